@@ -17,18 +17,30 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.ProgressBar;
-import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class BluetoothPairingDeviceList extends AppCompatActivity {
 
     private BluetoothAdapter bluetoothAdapter;
     private ListView listPairedDevices, listAvailableDevices;
     ProgressBar scanDeviceProgressBar;
-    private ArrayAdapter<String> pairedDevicesAdapter;
-    private ArrayAdapter<String> availableDevicesAdapter;
+    private ArrayAdapter<DeviceRegistry.Device> pairedDevicesAdapter;
+    private ArrayAdapter<DeviceRegistry.Device> availableDevicesAdapter;
+
+    private static final String DEVICES_FILE = "devices";
+    // Loaded once per process; later opens show it without touching the file.
+    private static DeviceRegistry registry;
+    private File devicesFile;
+    // Loads and saves the registry file off the main thread.
+    private ExecutorService devicesExecutor;
+    private final HashMap<Long, String> bondedDevices = new HashMap<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,15 +51,14 @@ public class BluetoothPairingDeviceList extends AppCompatActivity {
 
         listPairedDevices = findViewById(R.id.list_paired_devices);
         listAvailableDevices = findViewById(R.id.list_available_devices);
-        pairedDevicesAdapter = new ArrayAdapter<String>(BluetoothPairingDeviceList.this, R.layout.bluetooth_device_item);
-        availableDevicesAdapter = new ArrayAdapter<String>(BluetoothPairingDeviceList.this, R.layout.bluetooth_device_item);
+        pairedDevicesAdapter = new ArrayAdapter<DeviceRegistry.Device>(BluetoothPairingDeviceList.this, R.layout.bluetooth_device_item);
+        availableDevicesAdapter = new ArrayAdapter<DeviceRegistry.Device>(BluetoothPairingDeviceList.this, R.layout.bluetooth_device_item);
 
         listPairedDevices.setAdapter(pairedDevicesAdapter);
         listPairedDevices.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                String info = ((TextView) view).getText().toString();
-                String infoAddress = info.substring(info.length() - 17);
+                String infoAddress = pairedDevicesAdapter.getItem(position).getAddressString();
 
                 Intent intent = new Intent();
                 intent.putExtra("address", infoAddress);
@@ -60,8 +71,7 @@ public class BluetoothPairingDeviceList extends AppCompatActivity {
         listAvailableDevices.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                String info = ((TextView) view).getText().toString();
-                String infoAddress = info.substring(info.length() - 17);
+                String infoAddress = availableDevicesAdapter.getItem(position).getAddressString();
 
                 Intent intent = new Intent();
                 intent.putExtra("address", infoAddress);
@@ -70,21 +80,116 @@ public class BluetoothPairingDeviceList extends AppCompatActivity {
             }
         });
 
+        // Bonding is only known to the adapter, so the cached entries are refreshed from
+        // it, including those unpaired since they were cached.
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
-
-        if (pairedDevices != null && pairedDevices.size() > 0) {
+        if (pairedDevices != null) {
             for (BluetoothDevice bluetoothDevice : pairedDevices) {
-                pairedDevicesAdapter.add(bluetoothDevice.getName() + "\n" + bluetoothDevice.getAddress());
+                try {
+                    bondedDevices.put(DeviceRegistry.parseAddress(bluetoothDevice.getAddress()), bluetoothDevice.getName());
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
             }
         }
 
+        devicesFile = new File(getFilesDir(), DEVICES_FILE);
+        devicesExecutor = Executors.newSingleThreadExecutor();
+        if (registry == null) {
+            // Only the bonded devices show until the saved ones are merged in.
+            registry = new DeviceRegistry();
+            loadDevices();
+        }
+        showDevices();
+
         IntentFilter intentFilterFound = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         registerReceiver(bluetoothBroadCastReceiver, intentFilterFound);
         IntentFilter intentFilterFinish = new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         registerReceiver(bluetoothBroadCastReceiver, intentFilterFinish);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        unregisterReceiver(bluetoothBroadCastReceiver);
+        saveDevices();
+        devicesExecutor.shutdown();
+    }
+
+    /**
+     * Fills both lists from the registry.
+     */
+    private void showDevices() {
+        registry.evict(System.currentTimeMillis());
+        registry.updateBonded(bondedDevices);
+        pairedDevicesAdapter.clear();
+        availableDevicesAdapter.clear();
+        for (DeviceRegistry.Device device : registry.devices()) {
+            if (device.isBonded())
+                pairedDevicesAdapter.add(device);
+            else
+                availableDevicesAdapter.add(device);
+        }
+    }
+
+    private void loadDevices() {
+        final DeviceRegistry tRegistry = registry;
+        devicesExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tRegistry.load(devicesFile, System.currentTimeMillis());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showDevices();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Merges a discovery sighting into the registry and updates the device's row in
+     * place, or adds one if the device is new to its list.
+     */
+    private void showDevice(BluetoothDevice bluetoothDevice, int rssi, boolean bonded) {
+        long address;
+        try {
+            address = DeviceRegistry.parseAddress(bluetoothDevice.getAddress());
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return;
+        }
+        registry.seen(address, bluetoothDevice.getName(), rssi, bonded, System.currentTimeMillis());
+        DeviceRegistry.Device device = registry.find(address);
+        ArrayAdapter<DeviceRegistry.Device> adapter = bonded ? pairedDevicesAdapter : availableDevicesAdapter;
+        (bonded ? availableDevicesAdapter : pairedDevicesAdapter).remove(device);
+        if (adapter.getPosition(device) < 0)
+            adapter.add(device);
+        else
+            adapter.notifyDataSetChanged();
+    }
+
+    private void saveDevices() {
+        final DeviceRegistry tRegistry = registry;
+        devicesExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tRegistry.save(devicesFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_device_list, menu);
@@ -109,11 +214,11 @@ public class BluetoothPairingDeviceList extends AppCompatActivity {
 
             if (BluetoothDevice.ACTION_FOUND.equals(bluetoothAction)) {
                 BluetoothDevice bluetoothDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                if (bluetoothDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    availableDevicesAdapter.add(bluetoothDevice.getName() + "\n" + bluetoothDevice.getAddress());
-                }
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceRegistry.NO_RSSI);
+                showDevice(bluetoothDevice, rssi, bluetoothDevice.getBondState() == BluetoothDevice.BOND_BONDED);
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(bluetoothAction)) {
                 scanDeviceProgressBar.setVisibility(View.GONE);
+                saveDevices();
                 if (availableDevicesAdapter.getCount() == 0) {
                     Toast.makeText(BluetoothPairingDeviceList.this, "No Device Found", Toast.LENGTH_SHORT).show();
                 } else {
@@ -126,8 +231,8 @@ public class BluetoothPairingDeviceList extends AppCompatActivity {
     private void scanAvailableDevices() {
         Toast.makeText(BluetoothPairingDeviceList.this, "Scanning Available Devices", Toast.LENGTH_SHORT).show();
 
+        // Cached devices stay listed; discovery updates them as it finds them.
         scanDeviceProgressBar.setVisibility(View.VISIBLE);
-        availableDevicesAdapter.clear();
 
         if (bluetoothAdapter.isDiscovering()) {
             bluetoothAdapter.cancelDiscovery();
@@ -0,0 +1,131 @@
+package com.example.chatapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * RFCOMM transport. Opening by service record costs an SDP lookup on every connect;
+ * the endpoint of a connection is the RFCOMM channel it ended up on, and opening
+ * with it connects to that channel directly. Both go through hidden APIs, so either
+ * may be unavailable, in which case the SDP path is used.
+ */
+public class BluetoothTransport implements Transport {
+    private final BluetoothAdapter bluetoothAdapter;
+    private final String appName = "ChatApp";
+    private final UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    public BluetoothTransport(BluetoothAdapter bluetoothAdapter) {
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        final BluetoothServerSocket bluetoothServerSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(appName, uuid);
+        return new Acceptor() {
+            @Override
+            public Connection accept() throws IOException {
+                return new BluetoothConnection(bluetoothServerSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                bluetoothServerSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        BluetoothDevice bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
+        return new BluetoothConnection(bluetoothDevice.createRfcommSocketToServiceRecord(uuid));
+    }
+
+    @Override
+    public Connection open(String address, String endpoint) throws IOException {
+        if (endpoint != null) {
+            try {
+                BluetoothDevice bluetoothDevice = bluetoothAdapter.getRemoteDevice(address);
+                Method createRfcommSocket = bluetoothDevice.getClass().getMethod("createRfcommSocket", int.class);
+                BluetoothSocket bluetoothSocket = (BluetoothSocket) createRfcommSocket.invoke(bluetoothDevice, Integer.parseInt(endpoint));
+                return new BluetoothConnection(bluetoothSocket);
+            } catch (NoSuchMethodException e) {
+                e.printStackTrace();
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        return open(address);
+    }
+
+    private class BluetoothConnection implements Connection {
+        private final BluetoothSocket bluetoothSocket;
+
+        BluetoothConnection(BluetoothSocket bluetoothSocket) {
+            this.bluetoothSocket = bluetoothSocket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (bluetoothSocket.isConnected())
+                return;
+            if (bluetoothAdapter.isDiscovering())
+                bluetoothAdapter.cancelDiscovery();
+            bluetoothSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return bluetoothSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return bluetoothSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return bluetoothSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return bluetoothSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public String getEndpoint() {
+            try {
+                Field port = BluetoothSocket.class.getDeclaredField("mPort");
+                port.setAccessible(true);
+                int channel = port.getInt(bluetoothSocket);
+                return channel > 0 ? Integer.toString(channel) : null;
+            } catch (NoSuchFieldException e) {
+                return null;
+            } catch (IllegalAccessException e) {
+                return null;
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            bluetoothSocket.close();
+        }
+    }
+}
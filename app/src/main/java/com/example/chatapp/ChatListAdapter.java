@@ -0,0 +1,59 @@
+package com.example.chatapp;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+public class ChatListAdapter extends RecyclerView.Adapter<ChatListAdapter.ViewHolder> implements MessageListModel.Listener {
+    private final MessageListModel model;
+
+    public ChatListAdapter(MessageListModel model) {
+        this.model = model;
+        model.setListener(this);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.conversation_item, parent, false);
+        return new ViewHolder((TextView) view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        holder.text.setText(model.format(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return model.size();
+    }
+
+    @Override
+    public void onInserted(int position, int count) {
+        notifyItemRangeInserted(position, count);
+    }
+
+    @Override
+    public void onRemoved(int position, int count) {
+        notifyItemRangeRemoved(position, count);
+    }
+
+    @Override
+    public void onReset() {
+        notifyDataSetChanged();
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        ViewHolder(TextView text) {
+            super(text);
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,592 @@
+package com.example.chatapp;
+
+import androidx.core.app.NotificationCompat;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the connection and the open conversation, so both outlive the screens that
+ * show them: a rotation or a trip to the background no longer drops the socket.
+ * The service is started and bound by {@link MainActivity}, and runs in the
+ * foreground while it holds a connection.
+ *
+ * Everything here runs on the main thread unless noted. Messages that arrive while
+ * no screen is attached are staged in the conversation model; the next screen to
+ * attach flushes only those.
+ */
+public class ChatService extends Service {
+    public static final String CHANNEL_ID = "connection";
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final int HISTORY_PAGE = 50;
+    private static final String GROUP_HISTORY = "group";
+    private static final String MESH_HISTORY = "mesh";
+    private static final int SEARCH_RESULTS = 50;
+
+    /**
+     * The attached screen. Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * Messages were staged in the model; flush them on the next frame.
+         */
+        void onMessagesPending();
+
+        void onStateChanged(int state, String deviceName);
+
+        /**
+         * The model was switched to another conversation.
+         */
+        void onConversationOpened();
+
+        void onSearchResults(String query, List<String> results);
+
+        /**
+         * @param pending messages waiting for the peer to connect
+         */
+        void onOutboxChanged(int pending);
+    }
+
+    public class LocalBinder extends Binder {
+        public ChatService getService() {
+            return ChatService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private Listener listener;
+    private boolean attachedBefore;
+
+    private Utils utils;
+    private MessagePipeline pipeline;
+    private MessageListModel chatModel;
+
+    private String deviceConnected;
+    private int outboxPending;
+    private int state = Utils.STATE_NONE;
+    private long stateVersion;
+    private boolean hosting;
+    private boolean foreground;
+
+    private ChatHistory chatHistory;
+    private Outbox outbox;
+    // Opened, read and written on the pipeline stage, never on the main thread.
+    private MessageLog messageLog;
+    private String logPeer;
+    private String historyPeer;
+    private boolean loadingOlder;
+
+    // Opened, caught up and queried on searchExecutor, one task at a time.
+    private volatile SearchIndex searchIndex;
+    private ExecutorService searchExecutor;
+
+    private final Utils.Listener connectionListener = new Utils.Listener() {
+        @Override
+        public void onStateChanged(final int newState, final long version) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Transitions are posted from several threads; the version orders them.
+                    if (version < stateVersion)
+                        return;
+                    stateVersion = version;
+                    state = newState;
+                    updateForeground();
+                    if (listener != null)
+                        listener.onStateChanged(state, deviceConnected);
+                }
+            });
+        }
+
+        @Override
+        public void onDeviceName(final String name, final String address) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deviceConnected = name;
+                    if (address != null)
+                        openHistory(address);
+                    Toast.makeText(ChatService.this, name, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+
+        @Override
+        public void onToast(final String text) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(ChatService.this, text, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+
+        @Override
+        public void onFile(final File file, final int direction) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    int fileSender = direction == MessageLog.DIRECTION_SENT ? ChatMessage.SENDER_ME : chatModel.senderId(deviceConnected);
+                    saveAndShow(direction, fileSender, "[file] " + file.getName());
+                }
+            });
+        }
+
+        @Override
+        public void onOutboxChanged(final int pending) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    outboxPending = pending;
+                    if (listener != null)
+                        listener.onOutboxChanged(pending);
+                }
+            });
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        chatModel = new MessageListModel();
+        chatHistory = new ChatHistory(new File(getFilesDir(), "history"));
+        // Received and sent text is decoded and saved off the main thread; only the
+        // finished messages come back here.
+        pipeline = new MessagePipeline(chatModel, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        }, new MessagePipeline.Sink() {
+            @Override
+            public void onMessage(ChatMessage chatMessage) {
+                showMessage(chatMessage);
+            }
+        });
+        pipeline.start();
+        searchExecutor = Executors.newSingleThreadExecutor();
+        searchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    searchIndex = new SearchIndex(new File(getFilesDir(), "search"));
+                    pipeline.setSearchIndex(searchIndex);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        utils = new Utils(connectionListener, pipeline, new BluetoothTransport(BluetoothAdapter.getDefaultAdapter()));
+        utils.enableFileTransfer(getExternalFilesDir(null));
+        try {
+            outbox = new Outbox(new File(getFilesDir(), "outbox"));
+            utils.enableOutbox(outbox);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(ChatService.this, "Messages can only be sent while connected", Toast.LENGTH_SHORT).show();
+        }
+        // SecureConnection's AES-GCM classes need Android 4.4.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            try {
+                utils.enableEncryption(new File(getFilesDir(), "keys"));
+            } catch (IOException e) {
+                e.printStackTrace();
+                Toast.makeText(ChatService.this, "Encryption unavailable", Toast.LENGTH_SHORT).show();
+            } catch (GeneralSecurityException e) {
+                e.printStackTrace();
+                Toast.makeText(ChatService.this, "Encryption unavailable", Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Nothing is restored after the process dies, so don't ask to be restarted.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Makes {@code listener} the screen showing the conversation, and hands it any
+     * messages staged while no screen was attached.
+     *
+     * @return true if an earlier screen was attached, i.e. the connection and the
+     *         conversation were kept rather than set up again
+     */
+    public boolean attach(Listener listener) {
+        boolean reattached = attachedBefore;
+        attachedBefore = true;
+        this.listener = listener;
+        listener.onStateChanged(state, deviceConnected);
+        listener.onOutboxChanged(outboxPending);
+        if (chatModel.hasPending())
+            listener.onMessagesPending();
+        return reattached;
+    }
+
+    public void detach(Listener listener) {
+        if (this.listener != listener)
+            return;
+        this.listener = null;
+        // The adapter listening to the model belongs to the screen going away.
+        chatModel.setListener(null);
+    }
+
+    public MessageListModel getModel() {
+        return chatModel;
+    }
+
+    public String getHistoryPeer() {
+        return historyPeer;
+    }
+
+    public ChatMetrics getMetrics() {
+        return utils.getMetrics();
+    }
+
+    public String dumpMetrics() {
+        return utils.dumpMetrics();
+    }
+
+    public void connect(String address) {
+        utils.connect(address);
+    }
+
+    public void write(String text) {
+        utils.write(TextCodec.encode(text));
+    }
+
+    /**
+     * Safe to call from any thread.
+     */
+    public boolean sendFile(File file) {
+        return utils.sendFile(file);
+    }
+
+    public void startHub() {
+        openHistory(GROUP_HISTORY);
+        utils.startHub();
+        hosting = true;
+        updateForeground();
+    }
+
+    public void startMesh(String localName) {
+        openHistory(MESH_HISTORY);
+        utils.startMesh(localName);
+        hosting = true;
+        updateForeground();
+    }
+
+    /**
+     * Starts recording the traffic into a new file under the app's external
+     * "captures" directory, or stops the recording running.
+     */
+    public void toggleCapture() {
+        if (utils.isCapturing()) {
+            long records = utils.stopCapture();
+            Toast.makeText(ChatService.this, "Captured " + records + " records", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File file = new File(getExternalFilesDir("captures"), "capture-" + System.currentTimeMillis() + ".ccap");
+        try {
+            utils.startCapture(file);
+            Toast.makeText(ChatService.this, "Capturing to " + file.getName(), Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(ChatService.this, "Can't capture", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void showMessage(ChatMessage chatMessage) {
+        if (chatModel.add(chatMessage) && listener != null)
+            listener.onMessagesPending();
+        // With nobody drawing them, stage no more than the window can hold.
+        if (listener == null && chatModel.pendingCount() >= chatModel.capacity())
+            chatModel.flush();
+    }
+
+    /**
+     * Switches the conversation to the history of {@code peer} and shows its most
+     * recent page; older pages are read when the list is scrolled to the top.
+     */
+    private void openHistory(final String peer) {
+        chatModel.clear();
+        historyPeer = peer;
+        loadingOlder = false;
+        final String deviceName = deviceConnected;
+        // Opening recovers the log from disk, so it runs on the stage, in order with
+        // the messages to be saved in it.
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<ChatMessage> page = null;
+                try {
+                    messageLog = chatHistory.open(peer);
+                    logPeer = peer;
+                    pipeline.setLog(messageLog, peer);
+                    catchUpSearch(peer, messageLog);
+                    page = toMessages(messageLog.cursorAtEnd(HISTORY_PAGE).older(), peer, deviceName);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    messageLog = null;
+                    logPeer = null;
+                    pipeline.setLog(null);
+                }
+                final List<ChatMessage> tPage = page;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!peer.equals(historyPeer))
+                            return;
+                        if (tPage != null)
+                            chatModel.prepend(tPage);
+                        if (listener != null)
+                            listener.onConversationOpened();
+                    }
+                });
+            }
+        });
+    }
+
+    public void loadOlderMessages() {
+        if (historyPeer == null || loadingOlder || chatModel.size() == 0 || chatModel.size() == chatModel.capacity())
+            return;
+        final long first = chatModel.get(0).id;
+        if (first == ChatMessage.NO_ID)
+            return;
+        final String peer = historyPeer;
+        final String deviceName = deviceConnected;
+        loadingOlder = true;
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<ChatMessage> older = null;
+                if (messageLog != null && peer.equals(logPeer)) {
+                    long from = Math.max(messageLog.firstId(), first - HISTORY_PAGE);
+                    try {
+                        if (from < first)
+                            older = toMessages(messageLog.read(from, (int) (first - from)), peer, deviceName);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                final List<ChatMessage> tOlder = older;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadingOlder = false;
+                        // Dropped if the list moved on while the page was read.
+                        if (tOlder != null && peer.equals(historyPeer) && chatModel.size() > 0
+                                && chatModel.get(0).id == first)
+                            chatModel.prepend(tOlder);
+                    }
+                });
+            }
+        });
+    }
+
+    private List<ChatMessage> toMessages(List<MessageLog.Entry> entries, String peer, String deviceName) {
+        ArrayList<ChatMessage> messages = new ArrayList<>(entries.size());
+        for (MessageLog.Entry entry : entries) {
+            int sender;
+            if (entry.direction == MessageLog.DIRECTION_SENT)
+                sender = ChatMessage.SENDER_ME;
+            else if (GROUP_HISTORY.equals(peer) || MESH_HISTORY.equals(peer))
+                sender = ChatMessage.SENDER_NONE;
+            else
+                sender = chatModel.senderId(deviceName);
+            messages.add(new ChatMessage(entry.id, sender, entry.timestamp, entry.text));
+        }
+        return messages;
+    }
+
+    /**
+     * Saves a message that did not come through the pipeline on the stage, then
+     * shows it.
+     */
+    private void saveAndShow(final int direction, final int sender, final String text) {
+        final long timestamp = System.currentTimeMillis();
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                long id = ChatMessage.NO_ID;
+                if (messageLog != null) {
+                    try {
+                        id = messageLog.append(timestamp, direction, text);
+                        SearchIndex tIndex = searchIndex;
+                        if (tIndex != null)
+                            tIndex.add(logPeer, id, text);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                final ChatMessage message = new ChatMessage(id, sender, timestamp, text);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showMessage(message);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Indexes whatever {@code log} gained while the index was not listening, such as
+     * messages still unflushed when the app was killed.
+     */
+    private void catchUpSearch(final String peer, final MessageLog log) {
+        searchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SearchIndex tIndex = searchIndex;
+                if (tIndex == null)
+                    return;
+                try {
+                    tIndex.catchUp(peer, log);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Results go to whichever screen is attached when the query finishes.
+     *
+     * @param peer null to search every conversation
+     */
+    public void search(final String query, final String peer) {
+        searchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<String> results = new ArrayList<>();
+                SearchIndex tIndex = searchIndex;
+                try {
+                    if (tIndex != null) {
+                        for (SearchIndex.Hit hit : tIndex.search(query, peer, SEARCH_RESULTS)) {
+                            List<MessageLog.Entry> entries = chatHistory.open(hit.peer).read(hit.messageId, 1);
+                            if (!entries.isEmpty())
+                                results.add(hit.peer + ": " + entries.get(0).text);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listener != null)
+                            listener.onSearchResults(query, results);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Holds the foreground while connected or hosting, so going to the background
+     * doesn't get the process killed mid-conversation.
+     */
+    private void updateForeground() {
+        boolean wanted = hosting || state == Utils.STATE_CONNECTING || state == Utils.STATE_CONNECTED;
+        if (wanted == foreground)
+            return;
+        foreground = wanted;
+        if (wanted)
+            startForeground(NOTIFICATION_ID, buildNotification());
+        else
+            stopForeground(true);
+    }
+
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, getString(R.string.connection_channel),
+                    NotificationManager.IMPORTANCE_LOW);
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).createNotificationChannel(channel);
+        }
+        Intent open = new Intent(ChatService.this, MainActivity.class);
+        return new NotificationCompat.Builder(ChatService.this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_baseline_bluetooth_24)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.connection_active))
+                .setContentIntent(PendingIntent.getActivity(ChatService.this, 0, open, 0))
+                .setOngoing(true)
+                .build();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (utils != null) {
+            utils.stopCapture();
+            utils.stop();
+        }
+        if (outbox != null) {
+            try {
+                outbox.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (searchExecutor != null) {
+            // Queued catch-ups and queries finish first, then the index is flushed and
+            // the logs those queries read are closed.
+            searchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SearchIndex tIndex = searchIndex;
+                    searchIndex = null;
+                    if (tIndex != null) {
+                        try {
+                            tIndex.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    closeHistory();
+                }
+            });
+            searchExecutor.shutdown();
+        } else {
+            closeHistory();
+        }
+    }
+
+    private void closeHistory() {
+        try {
+            chatHistory.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -6,89 +6,186 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
+import android.os.IBinder;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
-import android.widget.ListView;
+import android.widget.LinearLayout;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
 public class MainActivity extends AppCompatActivity {
 
-    private Utils utils;
+    private ChatService chatService;
 
-    private ListView listConversation;
+    private RecyclerView listConversation;
     private EditText message;
     private Button send;
-    private ArrayAdapter<String> chatAdapter;
+    private MessageListModel chatModel;
+    private ChatListAdapter chatAdapter;
 
-    private String deviceConnected;
-    public static final String DEVICE_NAME = "deviceName";
-    public static final String TOAST = "toast";
     private BluetoothAdapter bluetoothAdapter;
 
+    private long createdNanos;
+    // Picked while this screen was being recreated, before the service was bound.
+    private String pendingAddress;
+    private Uri pendingFile;
+    private CharSequence stateText = "";
+    private int outboxPending;
+
     private final int LOCATION_REQ = 101;
     private final int DEVICE_SELECTED = 202;
+    private final int FILE_SELECTED = 303;
+
+    private final ChatService.Listener serviceListener = new ChatService.Listener() {
+        @Override
+        public void onMessagesPending() {
+            Choreographer.getInstance().postFrameCallback(flushMessages);
+        }
+
+        @Override
+        public void onStateChanged(int state, String deviceName) {
+            if (state == Utils.STATE_NONE || state == Utils.STATE_LISTEN)
+                setState("Not Connected");
+            else if (state == Utils.STATE_CONNECTING)
+                setState("Connecting");
+            else if (state == Utils.STATE_CONNECTED)
+                setState("Connected: " + deviceName);
+            else if (state == Utils.STATE_LOST)
+                setState("Connection Lost");
+        }
 
-    public static final int READ_MESSAGE = 1;
-    public static final int WRITE_MESSAGE = 2;
-    public static final int DEVICE_NAME_MESSAGE = 3;
-    public static final int TOAST_MESSAGE = 4;
-    public static final int MESSAGE_STATE_CHANGED = 5;
+        @Override
+        public void onConversationOpened() {
+            if (chatModel.size() > 0)
+                listConversation.scrollToPosition(chatModel.size() - 1);
+        }
 
-    private Handler handler = new Handler(new Handler.Callback() {
         @Override
-        public boolean handleMessage(@NonNull Message msg) {
-            switch (msg.what) {
-                case READ_MESSAGE:
-                    byte[] readBuffer = (byte[]) msg.obj;
-                    String iBuffer = new String(readBuffer, 0, msg.arg1);
-                    chatAdapter.add(deviceConnected + "| " + iBuffer);
-                    break;
-                case WRITE_MESSAGE:
-                    byte[] writebuffer = (byte[]) msg.obj;
-                    String oBuffer = new String(writebuffer);
-                    chatAdapter.add("Me| " + oBuffer);
-                    break;
-                case DEVICE_NAME_MESSAGE:
-                    deviceConnected = msg.getData().getString(DEVICE_NAME);
-                    Toast.makeText(MainActivity.this, deviceConnected, Toast.LENGTH_SHORT).show();
-                    break;
-                case TOAST_MESSAGE:
-                    Toast.makeText(MainActivity.this, msg.getData().getString(TOAST), Toast.LENGTH_SHORT).show();
-                    break;
-                case MESSAGE_STATE_CHANGED:
-                    if (msg.arg1 == Utils.STATE_NONE || msg.arg1 == Utils.STATE_LISTEN)
-                        setState("Not Connected");
-                    else if (msg.arg1 == Utils.STATE_CONNECTING)
-                        setState("Connecting");
-                    else if (msg.arg1 == Utils.STATE_CONNECTED)
-                        setState("Connected: " + deviceConnected);
-                    break;
-                default:
-                    throw new IllegalStateException("Unexpected value: " + msg.what);
+        public void onOutboxChanged(int pending) {
+            outboxPending = pending;
+            showState();
+        }
+
+        @Override
+        public void onSearchResults(String query, List<String> results) {
+            if (isFinishing())
+                return;
+            if (results.isEmpty()) {
+                Toast.makeText(MainActivity.this, "No messages found", Toast.LENGTH_SHORT).show();
+                return;
             }
-            return false;
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle(query)
+                    .setItems(results.toArray(new String[0]), null)
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
         }
-    });
+    };
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            chatService = ((ChatService.LocalBinder) binder).getService();
+            chatModel = chatService.getModel();
+            chatAdapter = new ChatListAdapter(chatModel);
+            listConversation.setAdapter(chatAdapter);
+            if (chatModel.size() > 0)
+                listConversation.scrollToPosition(chatModel.size() - 1);
+            final boolean reattached = chatService.attach(serviceListener);
+            // The next frame is the first to lay out the conversation.
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    if (chatService != null)
+                        chatService.getMetrics().recordTimeToInteractive(System.nanoTime() - createdNanos, reattached);
+                }
+            });
+            if (pendingAddress != null) {
+                chatService.connect(pendingAddress);
+                pendingAddress = null;
+            }
+            if (pendingFile != null) {
+                sendFile(pendingFile);
+                pendingFile = null;
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            chatService = null;
+        }
+    };
+
+    private final Choreographer.FrameCallback flushMessages = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            boolean atBottom = !listConversation.canScrollVertically(1);
+            chatModel.flush();
+            if (atBottom && chatModel.size() > 0)
+                listConversation.scrollToPosition(chatModel.size() - 1);
+        }
+    };
+
+    private void showSearch() {
+        final String historyPeer = chatService.getHistoryPeer();
+        final EditText query = new EditText(MainActivity.this);
+        query.setSingleLine(true);
+        final CheckBox thisConversation = new CheckBox(MainActivity.this);
+        thisConversation.setText(R.string.search_this_conversation);
+        thisConversation.setEnabled(historyPeer != null);
+        LinearLayout layout = new LinearLayout(MainActivity.this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(query);
+        layout.addView(thisConversation);
+        new AlertDialog.Builder(MainActivity.this)
+                .setTitle(R.string.search_messages)
+                .setView(layout)
+                .setPositiveButton(R.string.search_messages, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (chatService != null)
+                            chatService.search(query.getText().toString(), thisConversation.isChecked() ? historyPeer : null);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
 
     private void setState(CharSequence subTitle) {
-        getSupportActionBar().setSubtitle(subTitle);
+        stateText = subTitle;
+        showState();
+    }
+
+    private void showState() {
+        getSupportActionBar().setSubtitle(outboxPending == 0 ? stateText : stateText + " (" + outboxPending + " waiting)");
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        createdNanos = System.nanoTime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
@@ -96,16 +193,24 @@ public class MainActivity extends AppCompatActivity {
         message = findViewById(R.id.message);
         send = findViewById(R.id.send_button);
 
-        chatAdapter = new ArrayAdapter<>(MainActivity.this, R.layout.conversation_item);
-        listConversation.setAdapter(chatAdapter);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(MainActivity.this);
+        layoutManager.setStackFromEnd(true);
+        listConversation.setLayoutManager(layoutManager);
+        listConversation.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && !recyclerView.canScrollVertically(-1) && chatService != null)
+                    chatService.loadOlderMessages();
+            }
+        });
 
         send.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 String msg = message.getText().toString();
-                if(!msg.isEmpty()) {
+                if(!msg.isEmpty() && chatService != null) {
                     message.setText("");
-                    utils.write(msg.getBytes());
+                    chatService.write(msg);
                 }
             }
         });
@@ -115,7 +220,11 @@ public class MainActivity extends AppCompatActivity {
             Toast.makeText(MainActivity.this, "bluetooth not found", Toast.LENGTH_SHORT).show();
         }
 
-        utils = new Utils(handler);
+        // Started as well as bound, so the connection survives the unbind while this
+        // screen is recreated.
+        Intent service = new Intent(MainActivity.this, ChatService.class);
+        startService(service);
+        bindService(service, connection, BIND_AUTO_CREATE);
     }
 
     @Override
@@ -134,6 +243,41 @@ public class MainActivity extends AppCompatActivity {
             case R.id.bluetooth_on:
                 enableBluetooth();
                 return true;
+            case R.id.host_group:
+                if (chatService == null)
+                    return true;
+                Toast.makeText(MainActivity.this, "Hosting Group Chat", Toast.LENGTH_SHORT).show();
+                chatService.startHub();
+                return true;
+            case R.id.join_mesh:
+                if (chatService == null)
+                    return true;
+                Toast.makeText(MainActivity.this, "Joined Mesh", Toast.LENGTH_SHORT).show();
+                chatService.startMesh(bluetoothAdapter.getName());
+                return true;
+            case R.id.send_file:
+                Intent pick = new Intent(Intent.ACTION_GET_CONTENT);
+                pick.setType("*/*");
+                pick.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(pick, FILE_SELECTED);
+                return true;
+            case R.id.search_messages:
+                if (chatService != null)
+                    showSearch();
+                return true;
+            case R.id.capture_traffic:
+                if (chatService != null)
+                    chatService.toggleCapture();
+                return true;
+            case R.id.show_stats:
+                if (chatService == null)
+                    return true;
+                new AlertDialog.Builder(MainActivity.this)
+                        .setTitle(R.string.stats)
+                        .setMessage(chatService.dumpMetrics())
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -183,16 +327,65 @@ public class MainActivity extends AppCompatActivity {
         if (requestCode == DEVICE_SELECTED && resultCode == RESULT_OK) {
             String address = data.getStringExtra("address");
             Toast.makeText(MainActivity.this, "Device Selected: " + address, Toast.LENGTH_SHORT).show();
-            utils.connect(bluetoothAdapter.getRemoteDevice(address));
+            if (chatService != null)
+                chatService.connect(address);
+            else
+                pendingAddress = address;
+        } else if (requestCode == FILE_SELECTED && resultCode == RESULT_OK && data.getData() != null) {
+            if (chatService != null)
+                sendFile(data.getData());
+            else
+                pendingFile = data.getData();
         }
     }
 
+    /**
+     * Copies the picked content to a local file first, since transfers seek into the
+     * file when they resume.
+     */
+    private void sendFile(final Uri uri) {
+        final ChatService tService = chatService;
+        final File outbox = new File(getCacheDir(), "outbox");
+        String name = uri.getLastPathSegment();
+        final File file = new File(outbox, name != null ? new File(name).getName() : "file");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!outbox.isDirectory() && !outbox.mkdirs())
+                        throw new IOException("Can't create " + outbox);
+                    InputStream in = getContentResolver().openInputStream(uri);
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        byte[] buffer = new byte[16 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        in.close();
+                        out.close();
+                    }
+                    tService.sendFile(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "CopyFile").start();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (utils != null) {
-            utils.stop();
+        Choreographer.getInstance().removeFrameCallback(flushMessages);
+        if (chatService != null) {
+            chatService.detach(serviceListener);
+            chatService = null;
         }
+        unbindService(connection);
+        // Leaving the app ends the connection; being recreated keeps it.
+        if (isFinishing() && !isChangingConfigurations())
+            stopService(new Intent(MainActivity.this, ChatService.class));
     }
 
     private void enableBluetooth() {
@@ -1,276 +1,809 @@
 package com.example.chatapp;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
-
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
-
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the connection lifecycle. State and the live session change only through
+ * {@link ConnectionStateMachine} transitions; the fields that hold listeners (the
+ * acceptor, hub, relay and mesh node) are guarded by this object's lock, which the
+ * message path never takes.
+ */
 public class Utils {
-    private final Handler handler;
-    private int state;
-    private BluetoothAdapter bluetoothAdapter;
-    private final String appName = "ChatApp";
-    private final UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    /**
+     * Hears about the connection from whichever thread changed it.
+     */
+    public interface Listener {
+        /**
+         * @param version orders transitions, which can be reported out of order
+         */
+        void onStateChanged(int state, long version);
+
+        /**
+         * @param address null for peers of a group or mesh
+         */
+        void onDeviceName(String name, String address);
+
+        void onToast(String text);
+
+        /**
+         * @param direction {@link MessageLog#DIRECTION_SENT} or {@link MessageLog#DIRECTION_RECEIVED}
+         */
+        void onFile(File file, int direction);
+
+        /**
+         * @param pending messages in the outbox of the peer last connected to
+         */
+        void onOutboxChanged(int pending);
+    }
+
+    private final Listener listener;
+    private final MessagePipeline pipeline;
+    private final Transport transport;
+    private final ExecutorService executor;
+    private final ConnectionStateMachine<Session> stateMachine;
+    private final BufferPool receivePool = new BufferPool(RECEIVE_BUFFERS, FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH);
+
+    public static final int STATE_NONE = ConnectionStateMachine.NONE;
+    public static final int STATE_LISTEN = ConnectionStateMachine.LISTEN;
+    public static final int STATE_CONNECTING = ConnectionStateMachine.CONNECTING;
+    public static final int STATE_CONNECTED = ConnectionStateMachine.CONNECTED;
+    public static final int STATE_LOST = ConnectionStateMachine.LOST;
+
+    private static final int RECEIVE_BUFFERS = 4;
+    // Each mesh link keeps a buffer for its decoder; RFCOMM allows seven links.
+    private static final int MESH_RECEIVE_BUFFERS = 12;
+
+    private AcceptTask acceptTask;
+    private volatile Hub hub;
+    private volatile NioRelay relay;
+    private volatile MeshNode mesh;
+    private volatile FileTransfers fileTransfers;
+    private volatile SecureHandshake secureHandshake;
+    // Kept for as long as this object lives, so a peer that reconnects gets whatever it missed.
+    private final PeerCache peers = new PeerCache();
+    private final Reconnector reconnector;
+    private final ChatMetrics metrics = new ChatMetrics();
+    // Drives the heartbeat of every connection this object makes.
+    private final TimerWheel timers = new TimerWheel("Heartbeat");
+    private volatile long heartbeatIntervalMillis = Heartbeat.DEFAULT_INTERVAL_MILLIS;
+    private volatile long heartbeatTimeoutMillis = Heartbeat.DEFAULT_TIMEOUT_MILLIS;
+    private volatile CaptureWriter capture;
+    private volatile Outbox outbox;
+    // Who messages written while not connected are for: the peer last dialed or connected.
+    private volatile String outboxPeer;
+
+    /**
+     * Runs connections on platform threads, or on virtual threads in a desktop or
+     * relay build started with {@code -Dchatapp.threads=virtual}.
+     */
+    public Utils(Listener listener, MessagePipeline pipeline, Transport transport) {
+        this(listener, pipeline, transport, ConnectionExecutors.fromProperty("Utils"));
+    }
+
+    /**
+     * @param pipeline receives every message sent and received
+     * @param executor runs the accept, connect, read and write tasks; each task
+     *                 blocks on I/O for as long as its connection lives
+     */
+    public Utils(Listener listener, MessagePipeline pipeline, Transport transport, ExecutorService executor) {
+        this.listener = listener;
+        this.pipeline = pipeline;
+        pipeline.setMetrics(metrics);
+        this.transport = transport;
+        this.executor = executor;
+        this.stateMachine = new ConnectionStateMachine<>(new ConnectionStateMachine.Listener<Session>() {
+            @Override
+            public void onTransition(ConnectionStateMachine.Snapshot<Session> from,
+                                     ConnectionStateMachine.Snapshot<Session> to) {
+                if (to.session instanceof ConnectedTask) {
+                    Connection connection = ((ConnectedTask) to.session).connection;
+                    postDeviceName(connection.getRemoteName(), connection.getRemoteAddress());
+                }
+                CaptureWriter tCapture = capture;
+                if (tCapture != null) {
+                    try {
+                        tCapture.state(to.state, to.version);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                listener.onStateChanged(to.state, to.version);
+            }
+        });
+        this.reconnector = new Reconnector(transport, peers, executor, new Reconnector.Listener() {
+            @Override
+            public void onConnected(Connection connection, long elapsedMillis, boolean reconnect) {
+                metrics.recordConnected(TimeUnit.MILLISECONDS.toNanos(elapsedMillis), reconnect);
+                connected(connection, true);
+            }
 
-    public static final int STATE_NONE = 0;
-    public static final int STATE_LISTEN = 1;
-    public static final int STATE_CONNECTING = 2;
-    public static final int STATE_CONNECTED = 3;
+            @Override
+            public void onAttemptFailed(String address, int attempt, IOException e) {
+                metrics.recordConnectFailure();
+                e.printStackTrace();
+            }
 
-    private AcceptThread acceptThread;
-    private ConnectionThread connectionThread;
-    private ConnectedThread connectedThread;
+            @Override
+            public void onGaveUp(String address) {
+                connectionFailed();
+            }
+        });
+    }
 
-    public Utils(Handler handler) {
-        this.handler = handler;
+    /**
+     * The message path: one object that takes outgoing messages while connected.
+     */
+    private interface Session {
+        boolean write(byte[] buffer);
 
-        state = STATE_NONE;
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        void cancel();
     }
 
-    public synchronized void setState(int state) {
-        this.state = state;
-        handler.obtainMessage(MainActivity.MESSAGE_STATE_CHANGED, state, - 1).sendToTarget();
+    public int getState() {
+        return stateMachine.state();
     }
 
     public synchronized void start() {
-        if (connectionThread != null) {
-            connectionThread.cancel();
-            connectionThread = null;
+        reconnector.cancel();
+        if (acceptTask == null) {
+            Transport.Acceptor acceptor;
+            try {
+                acceptor = transport.listen();
+            } catch (IOException e) {
+                e.printStackTrace();
+                moveTo(STATE_NONE, null);
+                postToast("Can't wait for connections. Is Bluetooth on?");
+                return;
+            }
+            acceptTask = new AcceptTask(acceptor);
+            acceptTask.start();
+        }
+        moveTo(STATE_LISTEN, null);
+    }
+
+    /**
+     * Forgets an accept task that stopped on its own, so the next {@link #start()}
+     * listens again, and leaves LISTEN since nothing is listening any more.
+     */
+    private synchronized void acceptFailed(AcceptTask task) {
+        if (acceptTask != task)
+            return;
+        acceptTask = null;
+        ConnectionStateMachine.Snapshot<Session> snapshot = stateMachine.current();
+        if (snapshot.state == STATE_LISTEN && stateMachine.compareAndSet(snapshot, STATE_NONE, null) != null)
+            postToast("Stopped waiting for connections.");
+    }
+
+    /**
+     * Moves to {@code state} and shuts down the session that was live before.
+     */
+    private void moveTo(int state, Session session) {
+        ConnectionStateMachine.Snapshot<Session> previous = stateMachine.moveTo(state, session);
+        if (previous != null && previous.session != null && previous.session != session)
+            previous.session.cancel();
+    }
+
+    public synchronized void startHub() {
+        stop();
+        final Session hubSession = new Session() {
+            @Override
+            public boolean write(byte[] buffer) {
+                Hub tHub = hub;
+                if (tHub == null)
+                    return false;
+                tHub.broadcast(buffer);
+                return true;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+        hub = new Hub(transport, executor, Hub.DEFAULT_WRITER_THREADS, Hub.DEFAULT_MAX_PEERS, new Hub.Listener() {
+            @Override
+            public void onPeerJoined(Hub.Peer peer) {
+                postDeviceName(peer.getName());
+                stateMachine.moveTo(STATE_CONNECTED, hubSession);
+            }
+
+            @Override
+            public void onPeerLeft(Hub.Peer peer) {
+                Hub tHub = hub;
+                ConnectionStateMachine.Snapshot<Session> snapshot = stateMachine.current();
+                if (tHub != null && tHub.peerCount() == 0 && snapshot.session == hubSession)
+                    stateMachine.compareAndSet(snapshot, STATE_LISTEN, null);
+            }
+
+            @Override
+            public void onMessage(Hub.Peer peer, PooledBuffer buffer, int offset, int length) {
+                pipeline.received(buffer, offset, length, peer.getName(), true);
+            }
+        });
+        try {
+            hub.start();
+            stateMachine.moveTo(STATE_LISTEN, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+            hub.stop();
+            hub = null;
+            postToast("Can't start group chat.");
         }
-        if (acceptThread == null) {
-            acceptThread = new AcceptThread();
-            acceptThread.start();
+    }
+
+    /**
+     * Serves TCP peers from a selector-driven relay instead of the configured
+     * transport. Intended for desktop or relay builds holding many connections.
+     */
+    public synchronized void startRelay(int port) {
+        stop();
+        final Session relaySession = new Session() {
+            @Override
+            public boolean write(byte[] buffer) {
+                NioRelay tRelay = relay;
+                if (tRelay == null)
+                    return false;
+                tRelay.broadcast(buffer);
+                return true;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+        try {
+            relay = new NioRelay(new InetSocketAddress(port), NioRelay.DEFAULT_LOOPS, new NioRelay.Listener() {
+                @Override
+                public void onPeerJoined(NioRelay.Session session) {
+                    postDeviceName(session.getName());
+                    stateMachine.moveTo(STATE_CONNECTED, relaySession);
+                }
+
+                @Override
+                public void onPeerLeft(NioRelay.Session session) {
+                    NioRelay tRelay = relay;
+                    ConnectionStateMachine.Snapshot<Session> snapshot = stateMachine.current();
+                    if (tRelay != null && tRelay.peerCount() == 0 && snapshot.session == relaySession)
+                        stateMachine.compareAndSet(snapshot, STATE_LISTEN, null);
+                }
+
+                @Override
+                public void onMessage(NioRelay.Session session, ByteBuffer payload) {
+                    // The selector thread must not wait for the UI to free a buffer, so
+                    // the line is copied; past the pipeline's limit it is dropped and counted.
+                    byte[] text = new byte[payload.remaining()];
+                    payload.get(text);
+                    pipeline.received(text, session.getName(), true);
+                }
+            });
+            relay.start();
+            stateMachine.moveTo(STATE_LISTEN, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (relay != null)
+                relay.stop();
+            relay = null;
+            postToast("Can't start relay.");
         }
-        if (connectionThread != null) {
-            connectionThread.cancel();
-            connectionThread = null;
+    }
+
+    /**
+     * Joins a multi-hop mesh as {@code localName}: accepts neighbours like the
+     * group chat host, but {@link #connect(String)} then adds a neighbour instead of
+     * replacing the connection, and messages are relayed on to the other
+     * neighbours so they reach devices out of this one's range.
+     */
+    public synchronized void startMesh(String localName) {
+        stop();
+        final Session meshSession = new Session() {
+            @Override
+            public boolean write(byte[] buffer) {
+                MeshNode tMesh = mesh;
+                if (tMesh == null)
+                    return false;
+                tMesh.broadcast(buffer);
+                return true;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+        BufferPool meshPool = new BufferPool(MESH_RECEIVE_BUFFERS, FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH);
+        mesh = new MeshNode(localName, transport, meshPool, executor, new MeshNode.Listener() {
+            @Override
+            public void onLinkUp(MeshNode.Link link) {
+                postDeviceName(link.getName());
+                stateMachine.moveTo(STATE_CONNECTED, meshSession);
+            }
+
+            @Override
+            public void onLinkDown(MeshNode.Link link) {
+                MeshNode tMesh = mesh;
+                ConnectionStateMachine.Snapshot<Session> snapshot = stateMachine.current();
+                if (tMesh != null && tMesh.linkCount() == 0 && snapshot.session == meshSession)
+                    stateMachine.compareAndSet(snapshot, STATE_LISTEN, null);
+            }
+
+            @Override
+            public void onMessage(String origin, int hops, PooledBuffer buffer, int offset, int length) {
+                pipeline.received(buffer, offset, length, origin, true);
+            }
+        });
+        try {
+            mesh.start();
+            stateMachine.moveTo(STATE_LISTEN, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+            mesh.stop();
+            mesh = null;
+            postToast("Can't join the mesh.");
         }
-        setState(STATE_LISTEN);
     }
 
     public synchronized void stop() {
-        if (connectionThread != null) {
-            connectionThread.cancel();
-            connectionThread = null;
+        if (mesh != null) {
+            mesh.stop();
+            mesh = null;
+        }
+        if (relay != null) {
+            relay.stop();
+            relay = null;
         }
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+        if (hub != null) {
+            hub.stop();
+            hub = null;
         }
-        if (connectionThread != null) {
-            connectionThread.cancel();
-            connectionThread = null;
+        reconnector.cancel();
+        if (acceptTask != null) {
+            acceptTask.cancel();
+            acceptTask = null;
         }
-        setState(STATE_NONE);
+        moveTo(STATE_NONE, null);
     }
 
-    public void connect(BluetoothDevice bluetoothDevice) {
-        if (state == STATE_CONNECTING) {
-            connectionThread.cancel();
-            connectionThread = null;
+    /**
+     * Dials {@code address} in the background, retrying with backoff until it
+     * answers or the attempts run out.
+     */
+    public void connect(String address) {
+        MeshNode tMesh = mesh;
+        if (tMesh != null) {
+            tMesh.dial(address);
+            return;
         }
-        connectionThread = new ConnectionThread(bluetoothDevice);
-        connectionThread.start();
-        if (connectionThread != null) {
-            connectionThread.cancel();
-            connectionThread = null;
-        }
-        setState(STATE_CONNECTING);
+        outboxPeer = address;
+        postOutboxChanged();
+        moveTo(STATE_CONNECTING, null);
+        reconnector.connect(address);
+    }
+
+    /**
+     * Keeps messages written while the peer is not connected in {@code outbox}, and
+     * sends them once it is. The caller closes the outbox after {@link #stop()}.
+     */
+    public void enableOutbox(Outbox outbox) {
+        this.outbox = outbox;
+        postOutboxChanged();
     }
 
     public void write(byte[] buffer) {
-        ConnectedThread cThread;
-        synchronized (this) {
-            if(state != STATE_CONNECTED)
-                return;
-            else
-                cThread = connectedThread;
+        Session session = stateMachine.session(STATE_CONNECTED);
+        Outbox tOutbox = outbox;
+        String tPeer = outboxPeer;
+        // Groups and meshes have no one peer to queue for.
+        if (tOutbox != null && tPeer != null && (session == null || session instanceof ConnectedTask)) {
+            synchronized (tOutbox) {
+                // Read again under the lock the flush checks the outbox under, so a
+                // message is either sent or seen by the flush, never left behind.
+                session = stateMachine.session(STATE_CONNECTED);
+                PeerChannel channel = session instanceof ConnectedTask ? ((ConnectedTask) session).channel : null;
+                // Behind queued messages it waits its turn, so the order is kept.
+                if (channel == null || tOutbox.size(tPeer) > 0) {
+                    queue(tOutbox, tPeer, buffer);
+                    return;
+                }
+            }
+        }
+        if (session == null) {
+            postToast("Not connected to a device.");
+            return;
         }
-        cThread.write(buffer);
+        if (session.write(buffer))
+            pipeline.sent(buffer);
+        else
+            postToast("Too many unsent messages, try again.");
     }
 
-    private class ConnectionThread extends Thread {
-        private final BluetoothSocket bluetoothSocket;
-        private final BluetoothDevice bluetoothDevice;
-
-        public ConnectionThread(BluetoothDevice bluetoothDevice) {
-            this.bluetoothDevice = bluetoothDevice;
-
-            BluetoothSocket blthSocket = null;
-            try {
-                blthSocket = bluetoothDevice.createRfcommSocketToServiceRecord(uuid);
-            } catch (IOException e) {
-                e.printStackTrace();
+    private void queue(Outbox tOutbox, String peer, byte[] buffer) {
+        try {
+            if (!tOutbox.append(peer, buffer)) {
+                postToast("Too many messages waiting to be sent, this one was not.");
+                return;
             }
-            bluetoothSocket = blthSocket;
+        } catch (IOException e) {
+            e.printStackTrace();
+            postToast("Can't keep the message to send later.");
+            return;
         }
+        pipeline.sent(buffer);
+        postOutboxChanged();
+    }
 
-        public void run() {
-            try {
-                if (bluetoothAdapter.isDiscovering())
-                    bluetoothAdapter.cancelDiscovery();
-                bluetoothSocket.connect();
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Sends what waited in the outbox for the peer of {@code channel}, on the
+     * executor, while the channel reads.
+     */
+    private void flushOutbox(final Outbox tOutbox, final String peer, final PeerChannel channel) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    bluetoothSocket.close();
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
+                    long start = System.nanoTime();
+                    int sent = tOutbox.flush(peer, new Outbox.Target() {
+                        @Override
+                        public boolean send(byte[] payload) {
+                            return channel.send(payload);
+                        }
+
+                        @Override
+                        public boolean isOpen() {
+                            return channel.isOpen();
+                        }
+                    });
+                    if (sent > 0)
+                        metrics.recordOutboxFlush(sent, System.nanoTime() - start);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-                connectionFailed();
-                return;
+                postOutboxChanged();
             }
+        });
+    }
 
-            synchronized (Utils.this) {
-                connectionThread = null;
-            }
+    private void postOutboxChanged() {
+        Outbox tOutbox = outbox;
+        String tPeer = outboxPeer;
+        if (tOutbox != null)
+            listener.onOutboxChanged(tPeer != null ? tOutbox.size(tPeer) : 0);
+    }
+
+    /**
+     * Sets how long a connection may go quiet before it is pinged, and before it is
+     * given up as lost; applies from the next connection. A timeout of 0 turns the
+     * heartbeat off.
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        if (timeoutMillis != 0 && (intervalMillis < 1 || timeoutMillis <= intervalMillis))
+            throw new IllegalArgumentException("Need 0 < interval < timeout: " + intervalMillis + ", " + timeoutMillis);
+        heartbeatIntervalMillis = intervalMillis;
+        heartbeatTimeoutMillis = timeoutMillis;
+    }
 
-            connected(bluetoothSocket, bluetoothDevice);
+    /**
+     * Records the frames of one-to-one connections and every state transition into
+     * {@code file} until {@link #stopCapture()}, for replaying later; replaces any
+     * capture already running.
+     */
+    public synchronized void startCapture(File file) throws IOException {
+        CaptureWriter tCapture = new CaptureWriter(file);
+        CaptureWriter previous = capture;
+        capture = tCapture;
+        PeerChannel channel = currentChannel();
+        if (channel != null)
+            channel.setCapture(tCapture);
+        if (previous != null)
+            previous.close();
+        // Replay starts from the state the capture started in.
+        ConnectionStateMachine.Snapshot<Session> snapshot = stateMachine.current();
+        tCapture.state(snapshot.state, snapshot.version);
+    }
+
+    /**
+     * @return the number of records captured, or 0 if no capture was running
+     */
+    public synchronized long stopCapture() {
+        CaptureWriter tCapture = capture;
+        if (tCapture == null)
+            return 0;
+        capture = null;
+        PeerChannel channel = currentChannel();
+        if (channel != null)
+            channel.setCapture(null);
+        try {
+            tCapture.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return tCapture.records();
+    }
 
-        public void cancel() {
-            try {
-                bluetoothSocket.close();
-            } catch (IOException e) {
+    public boolean isCapturing() {
+        return capture != null;
+    }
+
+    /**
+     * Lets peers exchange files; received files are saved to {@code directory}.
+     */
+    public void enableFileTransfer(File directory) {
+        fileTransfers = new FileTransfers(directory, executor, new FileTransfers.Listener() {
+            @Override
+            public void onSent(File file) {
+                listener.onFile(file, MessageLog.DIRECTION_SENT);
+            }
+
+            @Override
+            public void onReceived(File file) {
+                listener.onFile(file, MessageLog.DIRECTION_RECEIVED);
+            }
+
+            @Override
+            public void onFailed(String name, IOException e) {
                 e.printStackTrace();
+                postToast("Can't transfer " + name);
             }
+        });
+    }
+
+    /**
+     * Encrypts every one-to-one connection from now on, with this device's identity
+     * and the pinned peer identities kept in {@code directory}. Group chat and the
+     * relay stay in the clear; their hosts answer the handshake saying so.
+     */
+    public void enableEncryption(File directory) throws IOException, GeneralSecurityException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+        Identity identity = Identity.loadOrCreate(new File(directory, "identity"));
+        SecureHandshake tHandshake = new SecureHandshake(identity, new TrustStore(new File(directory, "trusted")));
+        tHandshake.setTimeout(timers, SecureHandshake.DEFAULT_TIMEOUT_MILLIS);
+        secureHandshake = tHandshake;
+    }
+
+    /**
+     * Sends {@code file} now or, if not connected, once a connection is made. An
+     * interrupted transfer continues where it stopped after reconnecting.
+     */
+    public boolean sendFile(File file) {
+        FileTransfers tTransfers = fileTransfers;
+        if (tTransfers == null)
+            return false;
+        tTransfers.send(file);
+        return true;
+    }
+
+    public SendQueue.Stats getSendStats() {
+        PeerChannel channel = currentChannel();
+        return channel != null ? channel.sendStats() : null;
+    }
+
+    public CompressionStats getCompressionStats() {
+        PeerChannel channel = currentChannel();
+        return channel != null ? channel.compressionStats() : null;
+    }
+
+    public Heartbeat.Stats getHeartbeatStats() {
+        PeerChannel channel = currentChannel();
+        return channel != null ? channel.heartbeatStats() : null;
+    }
+
+    private PeerChannel currentChannel() {
+        Session session = stateMachine.session(STATE_CONNECTED);
+        return session instanceof ConnectedTask ? ((ConnectedTask) session).channel : null;
+    }
+
+    public Reconnector.Stats getReconnectStats() {
+        return reconnector.stats();
+    }
+
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Everything measured so far plus the live connection's queue, as text for a
+     * debug screen or a log.
+     */
+    public String dumpMetrics() {
+        StringBuilder dump = new StringBuilder();
+        dump.append("state=").append(getState()).append('\n').append(metrics.snapshot());
+        SendQueue.Stats sendStats = getSendStats();
+        if (sendStats != null)
+            dump.append("\nsend queue: ").append(sendStats);
+        CompressionStats compressionStats = getCompressionStats();
+        if (compressionStats != null)
+            dump.append("\ncompression: ").append(compressionStats);
+        Heartbeat.Stats heartbeatStats = getHeartbeatStats();
+        if (heartbeatStats != null)
+            dump.append("\nheartbeat: ").append(heartbeatStats);
+        dump.append("\nreconnect: ").append(reconnector.stats());
+        Outbox tOutbox = outbox;
+        if (tOutbox != null)
+            dump.append("\noutbox: ").append(tOutbox.stats());
+        MeshNode tMesh = mesh;
+        if (tMesh != null)
+            dump.append("\nmesh: ").append(tMesh.stats());
+        return dump.toString();
+    }
+
+    private abstract class Task implements Runnable {
+        private Future<?> future;
+
+        public synchronized void start() {
+            future = executor.submit(this);
+        }
+
+        protected synchronized void interrupt() {
+            if (future != null)
+                future.cancel(true);
         }
     }
 
-    private class AcceptThread extends Thread {
-        private BluetoothServerSocket bluetoothServerSocket;
+    private class AcceptTask extends Task {
+        private final Transport.Acceptor acceptor;
 
-        public AcceptThread() {
-            BluetoothServerSocket blthServerSocket = null;
-            try {
-                blthServerSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(appName, uuid);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            bluetoothServerSocket = blthServerSocket;
+        public AcceptTask(Transport.Acceptor acceptor) {
+            this.acceptor = acceptor;
         }
 
         public void run() {
-            BluetoothSocket bluetoothSocket = null;
-            try {
-                bluetoothSocket = bluetoothServerSocket.accept();
-            } catch (IOException e) {
-                e.printStackTrace();
+            // Keeps accepting until cancelled, so a peer that dropped can dial back in.
+            while (true) {
+                Connection connection;
                 try {
-                    bluetoothServerSocket.close();
-                } catch (IOException ioException) {
-                    ioException.printStackTrace();
-                }
-            }
-
-            if (bluetoothSocket != null) {
-                if (state == STATE_LISTEN || state == STATE_CONNECTING)
-                    connected(bluetoothSocket, bluetoothSocket.getRemoteDevice());
-                else if (state == STATE_NONE || state == STATE_CONNECTED) {
-                    try {
-                        bluetoothSocket.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                    connection = acceptor.accept();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    cancel();
+                    acceptFailed(this);
+                    return;
                 }
+                connected(connection, false);
             }
         }
 
         public void cancel() {
             try {
-                bluetoothServerSocket.close();
+                acceptor.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket bluetoothSocket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
-
-        public ConnectedThread(BluetoothSocket bluetoothSocket) {
-            this.bluetoothSocket = bluetoothSocket;
-            InputStream iStream = null;
-            OutputStream oStream = null;
-
-            try {
-                iStream = bluetoothSocket.getInputStream();
-                oStream = bluetoothSocket.getOutputStream();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            inputStream = iStream;
-            outputStream = oStream;
+    private class ConnectedTask extends Task implements Session {
+        private final Connection connection;
+        private final PeerCache.Peer peer;
+        // Only the side that dialed redials, so the two peers don't race each other.
+        private final boolean outgoing;
+        // Set once the secure handshake, if any, is done.
+        private volatile PeerChannel channel;
+        private volatile boolean untrusted;
+
+        public ConnectedTask(Connection connection, boolean outgoing) {
+            this.connection = connection;
+            this.peer = peers.get(connection.getRemoteAddress());
+            this.outgoing = outgoing;
         }
 
         public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
             try {
-                bytes = inputStream.read();
-                handler.obtainMessage(MainActivity.READ_MESSAGE, bytes, -1, buffer).sendToTarget();
+                Connection tConnection = connection;
+                SecureHandshake tHandshake = secureHandshake;
+                if (tHandshake != null) {
+                    long start = System.nanoTime();
+                    SecureConnection secured = tHandshake.run(connection, outgoing, peer);
+                    if (secured != null) {
+                        metrics.recordHandshake(System.nanoTime() - start, secured.isResumed());
+                        tConnection = secured;
+                    } else {
+                        postToast(connection.getRemoteName() + " hosts a group chat, which is not encrypted.");
+                    }
+                }
+                PeerChannel tChannel = new PeerChannel(tConnection, peer.getSession(), receivePool, executor,
+                        fileTransfers, new PeerChannel.Listener() {
+                            @Override
+                            public void onMessage(PooledBuffer buffer, int offset, int length) {
+                                pipeline.received(buffer, offset, length, connection.getRemoteName(), false);
+                            }
+                        });
+                tChannel.setMetrics(metrics);
+                tChannel.setCapture(capture);
+                long tInterval = heartbeatIntervalMillis;
+                long tTimeout = heartbeatTimeoutMillis;
+                if (tTimeout != 0)
+                    tChannel.enableHeartbeat(timers, tInterval, tTimeout);
+                channel = tChannel;
+                Outbox tOutbox = outbox;
+                if (tOutbox != null)
+                    flushOutbox(tOutbox, peer.getAddress(), tChannel);
+                tChannel.run();
+                connectionLost(this);
+            } catch (SecureHandshake.IdentityChangedException e) {
+                untrusted = true;
+                postToast(connection.getRemoteName() + " has a different identity key, not connecting.");
+                connectionLost(this);
+                e.printStackTrace();
             } catch (IOException e) {
-                connectionLost();
+                connectionLost(this);
                 e.printStackTrace();
             }
         }
 
-        public void write(byte[] buffer) {
+        public boolean write(byte[] buffer) {
+            PeerChannel tChannel = channel;
+            return tChannel != null && tChannel.send(buffer);
+        }
+
+        public void cancel() {
+            interrupt();
+            PeerChannel tChannel = channel;
+            if (tChannel != null) {
+                tChannel.close();
+                return;
+            }
             try {
-                outputStream.write(buffer);
-                handler.obtainMessage(MainActivity.WRITE_MESSAGE, -1, -1, buffer).sendToTarget();
+                connection.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private synchronized void connected(BluetoothSocket bluetoothSocket, BluetoothDevice bluetoothDevice) {
-        if (connectionThread != null) {
-            connectionThread.cancel();
-            connectionThread = null;
-        }
-        if (connectionThread != null) {
-            connectionThread.cancel();
-            connectionThread = null;
+    private void connected(Connection connection, boolean outgoing) {
+        ConnectedTask task = new ConnectedTask(connection, outgoing);
+        while (true) {
+            ConnectionStateMachine.Snapshot<Session> snapshot = stateMachine.current();
+            // Connections that turn up while already connected or after stop() are turned away.
+            if (snapshot.state != STATE_LISTEN && snapshot.state != STATE_CONNECTING) {
+                task.cancel();
+                return;
+            }
+            if (stateMachine.compareAndSet(snapshot, STATE_CONNECTED, task) != null)
+                break;
         }
-        connectedThread = new ConnectedThread(bluetoothSocket);
-        connectedThread.start();
-
-        Message message = handler.obtainMessage(MainActivity.DEVICE_NAME_MESSAGE);
-        Bundle bundle = new Bundle();
-        bundle.putString(MainActivity.DEVICE_NAME, bluetoothDevice.getName());
-        message.setData(bundle);
-        handler.sendMessage(message);
-        setState(STATE_CONNECTED);
-    }
-
-    private synchronized void connectionFailed() {
-        Message message = handler.obtainMessage(MainActivity.TOAST_MESSAGE);
-        Bundle bundle = new Bundle();
-        bundle.putString(MainActivity.TOAST, "Can't connect to the device.");
-        message.setData(bundle);
-        handler.sendMessage(message);
+        reconnector.cancel();
+        outboxPeer = task.peer.getAddress();
+        postOutboxChanged();
+        task.start();
+    }
+
+    private void postDeviceName(String deviceName) {
+        postDeviceName(deviceName, null);
+    }
+
+    private void postDeviceName(String deviceName, String deviceAddress) {
+        listener.onDeviceName(deviceName, deviceAddress);
+    }
+
+    private void postToast(String text) {
+        listener.onToast(text);
+    }
+
+    private void connectionFailed() {
+        postToast("Can't connect to the device.");
         Utils.this.start();
     }
 
-    private void connectionLost() {
-        Message message = handler.obtainMessage(MainActivity.TOAST_MESSAGE);
-        Bundle bundle = new Bundle();
-        bundle.putString(MainActivity.TOAST, "Connection Lost");
-        message.setData(bundle);
-        handler.sendMessage(message);
+    private void connectionLost(ConnectedTask task) {
+        // A task that was replaced or stopped on purpose was not lost.
+        ConnectionStateMachine.Snapshot<Session> snapshot = stateMachine.current();
+        if (snapshot.session != task || stateMachine.compareAndSet(snapshot, STATE_LOST, null) == null)
+            return;
+        metrics.recordConnectionLost();
+        task.cancel();
+        postToast("Connection Lost");
         Utils.this.start();
+        if (task.outgoing && !task.untrusted) {
+            moveTo(STATE_CONNECTING, null);
+            reconnector.reconnect(task.peer.getAddress());
+        }
     }
 }
@@ -0,0 +1,105 @@
+package com.example.chatapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of a batch of text frames, and of the UTF-8
+ * conversion on either side of it. Scores are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FramingBenchmarks {
+    private static final int FRAMES = 256;
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private byte[] encoded;
+    private int encodedLength;
+    private String text;
+    private ByteArrayInputStream inputStream;
+    private FrameDecoder decoder;
+    private ByteArrayInputStream pooledInputStream;
+    private FrameDecoder pooledDecoder;
+
+    @Setup
+    public void setUp() {
+        // Mostly ASCII with the odd accented or emoji character, like real chat.
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < payloadSize) {
+            builder.append("see you at caf\u00e9 at 8 \ud83d\ude00 ");
+        }
+        text = builder.substring(0, payloadSize);
+        payload = TextCodec.encode(text);
+        encoded = new byte[FRAMES * FrameCodec.encodedLength(payload.length)];
+        encodedLength = encodeBatch();
+        inputStream = new ByteArrayInputStream(encoded, 0, encodedLength);
+        decoder = new FrameDecoder(inputStream);
+        pooledInputStream = new ByteArrayInputStream(encoded, 0, encodedLength);
+        pooledDecoder = new FrameDecoder(pooledInputStream,
+                new BufferPool(4, FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH));
+    }
+
+    private int encodeBatch() {
+        int length = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            length += FrameCodec.encode(FrameCodec.TYPE_TEXT, payload, 0, payload.length, encoded, length);
+        }
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int encode() {
+        return encodeBatch();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode(Blackhole blackhole) throws IOException {
+        inputStream.reset();
+        while (decoder.next()) {
+            blackhole.consume(decoder.length());
+        }
+    }
+
+    /**
+     * The receive path as the app runs it: pooled buffers, each frame retained and
+     * released as the UI would.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodePooled(Blackhole blackhole) throws IOException {
+        pooledInputStream.reset();
+        while (pooledDecoder.next()) {
+            PooledBuffer frame = pooledDecoder.retainFrame();
+            blackhole.consume(pooledDecoder.length());
+            frame.release();
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeUtf8() {
+        return TextCodec.encode(text);
+    }
+
+    @Benchmark
+    public String decodeUtf8() {
+        return TextCodec.decode(payload, 0, payload.length);
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.chatapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of one chat message between two peers over in-memory pipes, through
+ * everything a real message goes through: UTF-8 encoding, the reliable session and
+ * send queue, framing, the reader, and a hop onto a single "main" thread standing in
+ * for the UI handler, where it is decoded. The far side echoes it back the same way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoopbackBenchmarks {
+
+    @Param({"32", "1024"})
+    public int messageLength;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // Single threads stand in for each side's main looper.
+    private final ExecutorService mainA = Executors.newSingleThreadExecutor();
+    private final ExecutorService mainB = Executors.newSingleThreadExecutor();
+    private final SynchronousQueue<String> replies = new SynchronousQueue<>();
+    private Transport.Acceptor acceptor;
+    private PeerChannel channelA;
+    private PeerChannel channelB;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < messageLength) {
+            builder.append("loopback ");
+        }
+        message = builder.substring(0, messageLength);
+
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        acceptor = new MemoryTransport(network, "a").listen();
+        Connection toA = new MemoryTransport(network, "b").open("a");
+        Connection toB = acceptor.accept();
+
+        final ReliableSession sessionA = new ReliableSession();
+        final ReliableSession sessionB = new ReliableSession();
+        channelA = new PeerChannel(toB, sessionA, new BufferPool(4, 70000), executor, null,
+                dispatch(mainA, new Handler() {
+                    @Override
+                    public void handle(String text) throws InterruptedException {
+                        replies.put(text);
+                    }
+                }));
+        channelB = new PeerChannel(toA, sessionB, new BufferPool(4, 70000), executor, null,
+                dispatch(mainB, new Handler() {
+                    @Override
+                    public void handle(String text) {
+                        sessionB.send(TextCodec.encode(text));
+                    }
+                }));
+        start(channelA);
+        start(channelB);
+        // Wait for the hello exchange so the first sample is not an outlier.
+        roundTrip();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channelA.close();
+        channelB.close();
+        acceptor.close();
+        executor.shutdownNow();
+        mainA.shutdownNow();
+        mainB.shutdownNow();
+    }
+
+    @Benchmark
+    public String roundTrip() throws InterruptedException {
+        while (!channelA.send(TextCodec.encode(message))) {
+            Thread.yield();
+        }
+        return replies.take();
+    }
+
+    private interface Handler {
+        void handle(String text) throws InterruptedException;
+    }
+
+    private static PeerChannel.Listener dispatch(final ExecutorService main, final Handler handler) {
+        return new PeerChannel.Listener() {
+            @Override
+            public void onMessage(final PooledBuffer buffer, final int offset, final int length) {
+                main.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String text = TextCodec.decode(buffer.data(), offset, length);
+                        buffer.release();
+                        try {
+                            handler.handle(text);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    private void start(final PeerChannel channel) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+}
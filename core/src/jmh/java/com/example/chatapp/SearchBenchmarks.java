@@ -0,0 +1,144 @@
+package com.example.chatapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries against an index of {@link #MESSAGES} synthetic messages spread over
+ * {@link #PEERS} conversations, with words drawn from a skewed vocabulary so some
+ * terms are common and most are rare, and the cost of indexing a message. The
+ * whole-word queries end in a space so their last word is not taken as a prefix.
+ */
+public class SearchBenchmarks {
+    static final int MESSAGES = 200000;
+    static final int PEERS = 20;
+    static final int VOCABULARY = 20000;
+
+    static String word(int rank) {
+        return "w" + Integer.toString(rank, 36);
+    }
+
+    static String message(Random random) {
+        StringBuilder text = new StringBuilder();
+        int words = 3 + random.nextInt(12);
+        for (int i = 0; i < words; i++) {
+            // Squaring a uniform value favours low ranks, roughly like real text.
+            double u = random.nextDouble();
+            text.append(word((int) (u * u * VOCABULARY))).append(' ');
+        }
+        return text.toString();
+    }
+
+    static File tempDirectory() throws IOException {
+        File directory = File.createTempFile("search", "");
+        directory.delete();
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Queries {
+        private File directory;
+        private SearchIndex index;
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = tempDirectory();
+            SearchIndex writer = new SearchIndex(directory);
+            Random random = new Random(1);
+            for (int i = 0; i < MESSAGES; i++) {
+                writer.add("peer" + i % PEERS, i / PEERS, message(random));
+            }
+            writer.close();
+            index = new SearchIndex(directory);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            index.close();
+            delete(directory);
+        }
+
+        @Benchmark
+        public List<SearchIndex.Hit> rareTerm() throws IOException {
+            return index.search(word(15000) + " ", null, 50);
+        }
+
+        @Benchmark
+        public List<SearchIndex.Hit> commonTerm() throws IOException {
+            return index.search(word(3) + " ", null, 50);
+        }
+
+        @Benchmark
+        public List<SearchIndex.Hit> prefix() throws IOException {
+            // w1, w10 to w1z and w100 to w1zz: about 1300 terms, most of them common.
+            return index.search("w1", null, 50);
+        }
+
+        @Benchmark
+        public List<SearchIndex.Hit> twoTermsOnePeer() throws IOException {
+            return index.search(word(10) + " " + word(40) + " ", "peer7", 50);
+        }
+    }
+
+    @State(Scope.Thread)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Indexing {
+        private File directory;
+        private SearchIndex index;
+        private String[] messages;
+        private long next;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            directory = tempDirectory();
+            index = new SearchIndex(directory);
+            messages = new String[1024];
+            Random random = new Random(2);
+            for (int i = 0; i < messages.length; i++) {
+                messages[i] = message(random);
+            }
+            next = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            index.close();
+            delete(directory);
+        }
+
+        /**
+         * Includes the share of segment flushes and merges each message causes.
+         */
+        @Benchmark
+        public boolean add() throws IOException {
+            long id = next++;
+            return index.add("peer", id, messages[(int) (id & 1023)]);
+        }
+    }
+}
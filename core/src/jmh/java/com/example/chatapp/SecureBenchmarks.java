@@ -0,0 +1,140 @@
+package com.example.chatapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of securing a connection: a full handshake against one resumed from a
+ * ticket, both over in-memory pipes with the responder on its own thread, and the
+ * per-frame cost of sealing and opening records against plain bytes through the
+ * same kind of pipe.
+ */
+public class SecureBenchmarks {
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Handshakes {
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private SecureHandshake initiator;
+        private SecureHandshake responder;
+        private PeerCache initiatorPeers;
+        private PeerCache responderPeers;
+
+        @Setup
+        public void setUp() throws Exception {
+            initiator = new SecureHandshake(Identity.generate(), new TrustStore());
+            responder = new SecureHandshake(Identity.generate(), new TrustStore());
+            initiatorPeers = new PeerCache();
+            responderPeers = new PeerCache();
+            handshake();
+        }
+
+        @TearDown
+        public void tearDown() {
+            executor.shutdownNow();
+        }
+
+        @Benchmark
+        public SecureConnection full() throws Exception {
+            initiatorPeers.get("a").setTicket(null);
+            responderPeers.get("b").setTicket(null);
+            return handshake();
+        }
+
+        @Benchmark
+        public SecureConnection resumed() throws Exception {
+            return handshake();
+        }
+
+        private SecureConnection handshake() throws Exception {
+            MemoryTransport.Network network = new MemoryTransport.Network(4096);
+            Transport.Acceptor acceptor = new MemoryTransport(network, "a").listen();
+            final Connection toA = new MemoryTransport(network, "b").open("a");
+            final Connection toB = acceptor.accept();
+            Future<SecureConnection> answer = executor.submit(new Callable<SecureConnection>() {
+                @Override
+                public SecureConnection call() throws Exception {
+                    return responder.run(toB, false, responderPeers.get("b"));
+                }
+            });
+            SecureConnection secured = initiator.run(toA, true, initiatorPeers.get("a"));
+            answer.get();
+            toA.close();
+            toB.close();
+            acceptor.close();
+            return secured;
+        }
+    }
+
+    /**
+     * One frame written and read back on the same thread; the pipe is large enough
+     * to hold it, so nothing blocks.
+     */
+    @State(Scope.Thread)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public static class Records {
+        @Param({"64", "1024", "16384"})
+        public int frameSize;
+
+        private byte[] frame;
+        private byte[] readBuffer;
+        private OutputStream plainOut;
+        private InputStream plainIn;
+        private OutputStream sealedOut;
+        private InputStream sealedIn;
+
+        @Setup
+        public void setUp() throws IOException {
+            frame = new byte[frameSize];
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = (byte) ('a' + i % 26);
+            }
+            readBuffer = new byte[FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH];
+            MemoryPipe plain = new MemoryPipe(64 * 1024);
+            plainOut = plain.getOutputStream();
+            plainIn = plain.getInputStream();
+            MemoryPipe sealed = new MemoryPipe(64 * 1024);
+            byte[] key = new byte[SecureConnection.KEY_LENGTH];
+            byte[] salt = new byte[SecureConnection.SALT_LENGTH];
+            sealedOut = new SecureConnection.RecordOutputStream(sealed.getOutputStream(), key, salt);
+            sealedIn = new SecureConnection.RecordInputStream(sealed.getInputStream(), key, salt);
+        }
+
+        @Benchmark
+        public int plain() throws IOException {
+            return roundTrip(plainOut, plainIn);
+        }
+
+        @Benchmark
+        public int sealed() throws IOException {
+            return roundTrip(sealedOut, sealedIn);
+        }
+
+        private int roundTrip(OutputStream out, InputStream in) throws IOException {
+            out.write(frame, 0, frame.length);
+            int read = 0;
+            while (read < frame.length) {
+                read += in.read(readBuffer, read, readBuffer.length - read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.chatapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several producers sending into one connection at once, as the UI, file transfers
+ * and acknowledgements do, with the writer draining to a sink. Scores are accepted
+ * messages; a full queue is retried, so the score is bounded by the writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SendContentionBenchmarks {
+    private SendQueue queue;
+    private ReliableSession session;
+    private final byte[] payload = TextCodec.encode("a message of a typical length, about forty bytes");
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queue = new SendQueue(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, new SendQueue.Listener() {
+            @Override
+            public void onSent(int type, byte[] payload) {
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                e.printStackTrace();
+            }
+        });
+        queue.start();
+        session = new ReliableSession();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void offerOneProducer() {
+        offer();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void offerFourProducers() {
+        offer();
+    }
+
+    /**
+     * Contention on the session lock as well; the ring is emptied as if every
+     * message was acknowledged at once.
+     */
+    @Benchmark
+    @Threads(4)
+    public void sessionSendFourProducers() {
+        while (!session.send(payload)) {
+            session.onAck(Long.MAX_VALUE);
+        }
+    }
+
+    private void offer() {
+        while (!queue.offer(FrameCodec.TYPE_TEXT, payload)) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.chatapp;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter: the n-th delay is picked uniformly from the upper
+ * half of {@code min(max, base * 2^n)}, so peers that lost their link together do not
+ * retry in lockstep.
+ */
+public class Backoff {
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Random random;
+    private int attempts;
+
+    public Backoff(long baseMillis, long maxMillis, Random random) {
+        if (baseMillis <= 0 || maxMillis < baseMillis)
+            throw new IllegalArgumentException("Bad backoff bounds " + baseMillis + ".." + maxMillis);
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    public long nextDelayMillis() {
+        long ceiling = attempts < 31 ? Math.min(maxMillis, baseMillis << attempts) : maxMillis;
+        attempts++;
+        long half = ceiling / 2;
+        return ceiling - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    public int attempts() {
+        return attempts;
+    }
+
+    public void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.chatapp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed number of equally sized receive buffers. Buffers are allocated lazily up
+ * to the capacity and then recycled; once every buffer is in use {@link #acquire()}
+ * blocks, which pushes back on the reader instead of allocating more memory.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int capacity;
+    private final ArrayBlockingQueue<PooledBuffer> free;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    public BufferPool(int capacity, int bufferSize) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public PooledBuffer acquire() throws InterruptedException {
+        PooledBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = allocate();
+            if (buffer == null)
+                buffer = free.take();
+        }
+        buffer.acquired();
+        return buffer;
+    }
+
+    /**
+     * Like {@link #acquire()} but returns null instead of waiting when the pool is
+     * exhausted, for callers such as selector threads that must never block.
+     */
+    public PooledBuffer tryAcquire() {
+        PooledBuffer buffer = free.poll();
+        if (buffer == null)
+            buffer = allocate();
+        if (buffer != null)
+            buffer.acquired();
+        return buffer;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int available() {
+        return free.size() + capacity - allocated.get();
+    }
+
+    /**
+     * Number of buffers this pool ever allocated. Stays at or below
+     * {@link #capacity()} no matter how many messages pass through.
+     */
+    public int allocationCount() {
+        return allocated.get();
+    }
+
+    void recycle(PooledBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    private PooledBuffer allocate() {
+        while (true) {
+            int count = allocated.get();
+            if (count >= capacity)
+                return null;
+            if (allocated.compareAndSet(count, count + 1))
+                return new PooledBuffer(this, new byte[bufferSize]);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads back a file written by {@link CaptureWriter}, one record at a time.
+ *
+ * <pre>
+ * CaptureReader reader = new CaptureReader(file);
+ * while (reader.next()) {
+ *     if (reader.kind() == CaptureWriter.IN)
+ *         feed(reader.data(), 0, reader.length());
+ * }
+ * </pre>
+ */
+public class CaptureReader implements Closeable {
+    private final DataInputStream in;
+    private final long startMillis;
+    private byte[] data = new byte[FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH];
+    private int kind;
+    private boolean ended;
+    private long micros;
+    private int length;
+    private int state;
+    private long version;
+
+    public CaptureReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != CaptureWriter.MAGIC)
+                throw new IOException("Not a capture: " + file);
+            int version = in.readUnsignedByte();
+            if (version != CaptureWriter.VERSION)
+                throw new IOException("Unsupported capture version " + version);
+            startMillis = in.readLong();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return false at the end of the capture
+     */
+    public boolean next() throws IOException {
+        if (ended)
+            return false;
+        int b = in.read();
+        if (b <= CaptureWriter.END) {
+            kind = CaptureWriter.END;
+            ended = true;
+            return false;
+        }
+        kind = b;
+        micros += readVarint();
+        if (kind == CaptureWriter.IN || kind == CaptureWriter.OUT) {
+            long recordLength = readVarint();
+            if (recordLength > Integer.MAX_VALUE - 8)
+                throw new IOException("Corrupt capture: record of " + recordLength + " bytes");
+            length = (int) recordLength;
+            if (length > data.length)
+                data = new byte[Math.max(length, data.length * 2)];
+            in.readFully(data, 0, length);
+        } else if (kind == CaptureWriter.STATE) {
+            state = (int) readVarint();
+            version = readVarint();
+            length = 0;
+        } else {
+            throw new IOException("Corrupt capture: record kind " + kind);
+        }
+        return true;
+    }
+
+    /**
+     * Wall clock time the capture started, in ms.
+     */
+    public long startMillis() {
+        return startMillis;
+    }
+
+    public int kind() {
+        return kind;
+    }
+
+    /**
+     * When the current record was written, in microseconds since the capture started.
+     */
+    public long micros() {
+        return micros;
+    }
+
+    /**
+     * Bytes of an {@link CaptureWriter#IN} or {@link CaptureWriter#OUT} record,
+     * valid until the next call to {@link #next()}.
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int state() {
+        return state;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Capture ends inside a record");
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Corrupt capture: varint too long");
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.chatapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records what went over the wire, for replaying it later with
+ * {@link CaptureReader}. Frames are recorded as the bytes on the wire: each frame
+ * read, each batch written, and each state transition.
+ *
+ * The file is a header and then records back to back:
+ * <pre>
+ * header: magic "CCAP", version byte, wall clock at start (ms, big-endian long)
+ * record: kind byte, varint microseconds since the previous record, then
+ *         for {@link #IN} and {@link #OUT}: varint length, bytes
+ *         for {@link #STATE}: varint state, varint version
+ * </pre>
+ * A kind of 0 ends the file. Records go straight into a memory-mapped window of the
+ * file, so appending is a copy and the kernel does the writing; the window moves on
+ * when it fills. Space mapped but not yet written reads as zeros, so a capture cut
+ * short by a crash still ends cleanly at its last whole record.
+ *
+ * Safe to call from the reader and writer threads at once.
+ */
+public class CaptureWriter implements Closeable {
+    public static final int MAGIC = 0x43434150;
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 13;
+
+    public static final int END = 0;
+    public static final int IN = 1;
+    public static final int OUT = 2;
+    public static final int STATE = 3;
+
+    public static final int DEFAULT_WINDOW_BYTES = 4 * 1024 * 1024;
+    // Kind, timestamp, length and frame header.
+    private static final int MAX_RECORD_OVERHEAD = 1 + 10 + 5 + FrameCodec.MAX_HEADER_LENGTH;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int windowBytes;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private final long startNanos = System.nanoTime();
+    private long lastMicros;
+    private long records;
+    private boolean closed;
+
+    public CaptureWriter(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_BYTES);
+    }
+
+    public CaptureWriter(File file, int windowBytes) throws IOException {
+        this.windowBytes = Math.max(windowBytes, HEADER_LENGTH + MAX_RECORD_OVERHEAD + FrameCodec.MAX_PAYLOAD_LENGTH);
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        channel = this.file.getChannel();
+        window = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.windowBytes);
+        window.putInt(MAGIC);
+        window.put((byte) VERSION);
+        window.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Bytes written to the connection, one or more whole frames.
+     */
+    public synchronized void outbound(byte[] buffer, int offset, int length) throws IOException {
+        if (!begin(OUT, length))
+            return;
+        putVarint(length);
+        window.put(buffer, offset, length);
+    }
+
+    /**
+     * A frame read from the connection, recorded with its header as it was on the wire.
+     */
+    public synchronized void inbound(int type, byte[] payload, int offset, int length) throws IOException {
+        int frameLength = FrameCodec.encodedLength(length);
+        if (!begin(IN, frameLength))
+            return;
+        putVarint(frameLength);
+        putVarint(length);
+        window.put((byte) type);
+        window.put(payload, offset, length);
+    }
+
+    public synchronized void state(int state, long version) throws IOException {
+        if (!begin(STATE, 0))
+            return;
+        putVarint(state);
+        putVarint(version);
+    }
+
+    public synchronized long records() {
+        return records;
+    }
+
+    /**
+     * @return bytes captured so far, header included
+     */
+    public synchronized long length() {
+        return windowStart + window.position();
+    }
+
+    /**
+     * Cuts the file to what was written; it stays readable without this.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        long end = windowStart + window.position();
+        window.force();
+        try {
+            channel.truncate(end);
+        } finally {
+            file.close();
+        }
+    }
+
+    private boolean begin(int kind, int bodyLength) throws IOException {
+        if (closed)
+            return false;
+        if (window.remaining() < MAX_RECORD_OVERHEAD + bodyLength) {
+            windowStart += window.position();
+            window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowBytes);
+        }
+        // Deltas of the time since the start, so rounding never accumulates.
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        window.put((byte) kind);
+        putVarint(Math.max(0, micros - lastMicros));
+        lastMicros = Math.max(lastMicros, micros);
+        records++;
+        return true;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            window.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        window.put((byte) value);
+    }
+}
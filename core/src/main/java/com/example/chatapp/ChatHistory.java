@@ -0,0 +1,56 @@
+package com.example.chatapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps one {@link MessageLog} per conversation under a common directory, opened on
+ * first use and kept open until {@link #close()}.
+ */
+public class ChatHistory implements Closeable {
+    private final File root;
+    private final Map<String, MessageLog> logs = new HashMap<>();
+
+    public ChatHistory(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @param peer a device address or any other stable conversation key
+     */
+    public synchronized MessageLog open(String peer) throws IOException {
+        MessageLog log = logs.get(peer);
+        if (log == null) {
+            log = new MessageLog(new File(root, directoryName(peer)));
+            logs.put(peer, log);
+        }
+        return log;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (MessageLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        logs.clear();
+        if (failure != null)
+            throw failure;
+    }
+
+    static String directoryName(String peer) {
+        StringBuilder name = new StringBuilder(peer.length());
+        for (int i = 0; i < peer.length(); i++) {
+            char c = peer.charAt(i);
+            name.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.chatapp;
+
+/**
+ * One line of a conversation as kept in memory. The sender is an index into the
+ * {@link MessageListModel}'s sender table. Messages from the {@link MessagePipeline}
+ * carry their display string; for the rest it is only built when the message is
+ * bound to a view.
+ */
+public final class ChatMessage {
+    public static final int SENDER_ME = 0;
+    /** Text already carries its sender, e.g. group history read back from disk. */
+    public static final int SENDER_NONE = -1;
+    public static final long NO_ID = -1;
+
+    public final long id;
+    public final int sender;
+    public final long timestamp;
+    public final String text;
+    /** Null if it is to be built on bind. */
+    public final String display;
+
+    public ChatMessage(long id, int sender, long timestamp, String text) {
+        this(id, sender, timestamp, text, null);
+    }
+
+    public ChatMessage(long id, int sender, long timestamp, String text, String display) {
+        this.id = id;
+        this.sender = sender;
+        this.timestamp = timestamp;
+        this.text = text;
+        this.display = display;
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.chatapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters and latency histograms for the chat engine, for when chat
+ * "feels laggy". Everything is recorded with atomics and nothing allocates until
+ * {@link #snapshot()} is taken.
+ *
+ * Latencies are in nanoseconds.
+ */
+public class ChatMetrics {
+    private final Histogram connectNanos = new Histogram();
+    private final Histogram handshakeNanos = new Histogram();
+    private final Histogram writeToFlushNanos = new Histogram();
+    private final Histogram readToDispatchNanos = new Histogram();
+    private final Histogram mainThreadNanos = new Histogram();
+    private final Histogram sendQueueDepth = new Histogram();
+    private final Histogram roundTripNanos = new Histogram();
+    private final Histogram coldStartNanos = new Histogram();
+    private final Histogram reattachNanos = new Histogram();
+    private final Histogram outboxFlushNanos = new Histogram();
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong connectionsLost = new AtomicLong();
+    private final AtomicLong heartbeatTimeouts = new AtomicLong();
+    private final AtomicLong outboxMessages = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong messagesDropped = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * @param reconnect true if this replaced a connection that dropped
+     */
+    public void recordConnected(long nanos, boolean reconnect) {
+        connectNanos.record(nanos);
+        connects.incrementAndGet();
+        if (reconnect)
+            reconnects.incrementAndGet();
+    }
+
+    /**
+     * @param resumed true if a session ticket saved the key exchange
+     */
+    public void recordHandshake(long nanos, boolean resumed) {
+        handshakeNanos.record(nanos);
+        if (resumed)
+            resumedHandshakes.incrementAndGet();
+    }
+
+    public void recordConnectFailure() {
+        connectFailures.incrementAndGet();
+    }
+
+    public void recordConnectionLost() {
+        connectionsLost.incrementAndGet();
+    }
+
+    /**
+     * A connection given up on because the peer went silent, counted on top of
+     * {@link #recordConnectionLost()}.
+     */
+    public void recordHeartbeatTimeout() {
+        heartbeatTimeouts.incrementAndGet();
+    }
+
+    /**
+     * Messages kept while disconnected, all handed to a new connection.
+     */
+    public void recordOutboxFlush(int messages, long nanos) {
+        outboxMessages.addAndGet(messages);
+        outboxFlushNanos.record(nanos);
+    }
+
+    /**
+     * A ping answered by its pong.
+     */
+    public void recordRoundTrip(long nanos) {
+        roundTripNanos.record(nanos);
+    }
+
+    /**
+     * A frame read from a connection, counted with its header.
+     */
+    public void recordFrameIn(int frameBytes) {
+        bytesIn.addAndGet(frameBytes);
+    }
+
+    /**
+     * A new text message handed to the UI; replays and control frames don't count.
+     */
+    public void recordMessageIn() {
+        messagesIn.incrementAndGet();
+    }
+
+    /**
+     * A relay message dropped because too many were already waiting for the UI.
+     */
+    public void recordMessageDropped() {
+        messagesDropped.incrementAndGet();
+    }
+
+    /**
+     * One socket write of {@code messages} queued messages.
+     *
+     * @param queueDepth messages still waiting after the batch was taken
+     */
+    public void recordFlush(int bytes, int messages, int queueDepth) {
+        bytesOut.addAndGet(bytes);
+        messagesOut.addAndGet(messages);
+        sendQueueDepth.record(queueDepth);
+    }
+
+    /**
+     * Time from handing a message to the send queue until its batch was written.
+     */
+    public void recordWriteToFlush(long nanos) {
+        writeToFlushNanos.record(nanos);
+    }
+
+    /**
+     * Time from reading a message off the connection until the UI handled it.
+     */
+    public void recordReadToDispatch(long nanos) {
+        readToDispatchNanos.record(nanos);
+    }
+
+    /**
+     * UI-thread time spent binding one received message.
+     */
+    public void recordMainThread(long nanos) {
+        mainThreadNanos.record(nanos);
+    }
+
+    /**
+     * Time from the screen being created until it first drew the conversation.
+     *
+     * @param reattached true if the connection outlived the previous screen, e.g.
+     *                   across a rotation; false if it had to be set up again
+     */
+    public void recordTimeToInteractive(long nanos, boolean reattached) {
+        if (reattached)
+            reattachNanos.record(nanos);
+        else
+            coldStartNanos.record(nanos);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public static final class Snapshot {
+        public final long connects;
+        public final long reconnects;
+        public final long connectFailures;
+        public final long connectionsLost;
+        public final long heartbeatTimeouts;
+        public final long outboxMessages;
+        public final long resumedHandshakes;
+        public final long messagesIn;
+        public final long messagesDropped;
+        public final long messagesOut;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final Histogram.Snapshot connectNanos;
+        public final Histogram.Snapshot handshakeNanos;
+        public final Histogram.Snapshot writeToFlushNanos;
+        public final Histogram.Snapshot readToDispatchNanos;
+        public final Histogram.Snapshot mainThreadNanos;
+        public final Histogram.Snapshot sendQueueDepth;
+        public final Histogram.Snapshot roundTripNanos;
+        public final Histogram.Snapshot coldStartNanos;
+        public final Histogram.Snapshot reattachNanos;
+        public final Histogram.Snapshot outboxFlushNanos;
+
+        Snapshot(ChatMetrics metrics) {
+            connects = metrics.connects.get();
+            reconnects = metrics.reconnects.get();
+            connectFailures = metrics.connectFailures.get();
+            connectionsLost = metrics.connectionsLost.get();
+            heartbeatTimeouts = metrics.heartbeatTimeouts.get();
+            outboxMessages = metrics.outboxMessages.get();
+            resumedHandshakes = metrics.resumedHandshakes.get();
+            messagesIn = metrics.messagesIn.get();
+            messagesDropped = metrics.messagesDropped.get();
+            messagesOut = metrics.messagesOut.get();
+            bytesIn = metrics.bytesIn.get();
+            bytesOut = metrics.bytesOut.get();
+            connectNanos = metrics.connectNanos.snapshot();
+            handshakeNanos = metrics.handshakeNanos.snapshot();
+            writeToFlushNanos = metrics.writeToFlushNanos.snapshot();
+            readToDispatchNanos = metrics.readToDispatchNanos.snapshot();
+            mainThreadNanos = metrics.mainThreadNanos.snapshot();
+            sendQueueDepth = metrics.sendQueueDepth.snapshot();
+            roundTripNanos = metrics.roundTripNanos.snapshot();
+            coldStartNanos = metrics.coldStartNanos.snapshot();
+            reattachNanos = metrics.reattachNanos.snapshot();
+            outboxFlushNanos = metrics.outboxFlushNanos.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return "connects=" + connects + " reconnects=" + reconnects + " failures=" + connectFailures
+                    + " lost=" + connectionsLost + " (" + heartbeatTimeouts + " silent)"
+                    + "\nin: " + messagesIn + " msgs, " + bytesIn + " bytes, " + messagesDropped + " dropped"
+                    + "\nout: " + messagesOut + " msgs, " + bytesOut + " bytes"
+                    + "\nconnect: " + connectNanos.format(1e6, "ms")
+                    + "\nrtt: " + roundTripNanos.format(1e6, "ms")
+                    + "\nhandshake: " + handshakeNanos.format(1e6, "ms") + ", " + resumedHandshakes + " resumed"
+                    + "\nwrite->flush: " + writeToFlushNanos.format(1e6, "ms")
+                    + "\nread->dispatch: " + readToDispatchNanos.format(1e6, "ms")
+                    + "\nui per msg: " + mainThreadNanos.format(1e3, "us")
+                    + "\nqueue depth: " + sendQueueDepth.format(1, "")
+                    + "\nstart: " + coldStartNanos.format(1e6, "ms")
+                    + "\nreattach: " + reattachNanos.format(1e6, "ms")
+                    + "\noutbox flush: " + outboxFlushNanos.format(1e6, "ms") + ", " + outboxMessages + " msgs";
+        }
+    }
+}
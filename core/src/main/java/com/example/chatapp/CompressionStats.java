@@ -0,0 +1,65 @@
+package com.example.chatapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-connection compression counters, for tuning
+ * {@link PayloadCompressor#DEFAULT_THRESHOLD}.
+ */
+public class CompressionStats {
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    void recordSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    void recordCompressed(int originalLength, int compressedLength, long nanos) {
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(originalLength);
+        bytesOut.addAndGet(compressedLength);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordDecompressed(long nanos) {
+        decompressed.incrementAndGet();
+        decompressNanos.addAndGet(nanos);
+    }
+
+    public long skippedMessages() {
+        return skipped.get();
+    }
+
+    public long compressedMessages() {
+        return compressed.get();
+    }
+
+    /**
+     * Compressed size over original size of the messages that were compressed.
+     */
+    public double ratio() {
+        long in = bytesIn.get();
+        return in == 0 ? 1 : (double) bytesOut.get() / in;
+    }
+
+    public double compressMicrosPerMessage() {
+        long count = compressed.get();
+        return count == 0 ? 0 : compressNanos.get() / 1e3 / count;
+    }
+
+    public double decompressMicrosPerMessage() {
+        long count = decompressed.get();
+        return count == 0 ? 0 : decompressNanos.get() / 1e3 / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed=%d skipped=%d ratio=%.3f compress=%.1fus/msg decompress=%.1fus/msg",
+                compressed.get(), skipped.get(), ratio(), compressMicrosPerMessage(), decompressMicrosPerMessage());
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.chatapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to one peer, independent of the underlying transport.
+ * Closing a connection unblocks any thread reading from or writing to it.
+ */
+public interface Connection extends Closeable {
+
+    /**
+     * Completes an outgoing connection. Connections returned by an acceptor are
+     * already connected and return immediately.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    String getRemoteAddress();
+
+    String getRemoteName();
+
+    /**
+     * @return a transport-specific hint that reaches this peer again without a
+     * lookup, for {@link Transport#open(String, String)}; null if there is none
+     */
+    String getEndpoint();
+}
@@ -0,0 +1,77 @@
+package com.example.chatapp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the blocking per-connection tasks run by {@link Utils} and
+ * {@link Hub}.
+ *
+ * Android keeps using platform threads. On a desktop or relay JVM that has virtual
+ * threads (Java 21+), {@link #preferVirtual(String)} runs every task on its own
+ * virtual thread, so tens of thousands of blocked sessions cost kilobytes each
+ * rather than a full thread stack. Such builds choose it with
+ * {@code -Dchatapp.threads=virtual}; see {@link #fromProperty(String)}.
+ */
+public final class ConnectionExecutors {
+    public static final String MODE_PROPERTY = "chatapp.threads";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private ConnectionExecutors() {
+    }
+
+    public static ExecutorService platform(final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + counter.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * @return a virtual-thread-per-task executor, or null when the running JVM has no
+     * virtual threads
+     */
+    public static ExecutorService virtual() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static boolean isVirtualAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    public static ExecutorService preferVirtual(String name) {
+        ExecutorService executor = virtual();
+        return executor != null ? executor : platform(name);
+    }
+
+    /**
+     * {@link #preferVirtual(String)} if the {@link #MODE_PROPERTY} system property is
+     * {@link #MODE_VIRTUAL}, else {@link #platform(String)}.
+     */
+    public static ExecutorService fromProperty(String name) {
+        return MODE_VIRTUAL.equals(System.getProperty(MODE_PROPERTY)) ? preferVirtual(name) : platform(name);
+    }
+}
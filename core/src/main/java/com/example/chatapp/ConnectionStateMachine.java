@@ -0,0 +1,115 @@
+package com.example.chatapp;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connection lifecycle as an immutable {@link Snapshot} swapped with compare-and-set.
+ *
+ * A snapshot pairs the state with the session that is live in it, so readers such
+ * as the write path get both from a single volatile read and never see one without
+ * the other. Only legal transitions are taken, and the thread whose swap succeeds is
+ * the only one to publish it; the thread that swaps a session out is the one that
+ * must shut it down.
+ *
+ * Listeners may be called from several threads at once. Snapshots carry an
+ * increasing version so that a listener can drop events that arrive out of order.
+ */
+public class ConnectionStateMachine<S> {
+    public static final int NONE = 0;
+    public static final int LISTEN = 1;
+    public static final int CONNECTING = 2;
+    public static final int CONNECTED = 3;
+    public static final int LOST = 4;
+
+    // LEGAL[from] has bit `to` set when from -> to is allowed.
+    private static final int[] LEGAL = {
+            bits(LISTEN, CONNECTING),
+            bits(NONE, CONNECTING, CONNECTED),
+            bits(NONE, LISTEN, CONNECTED),
+            bits(NONE, LISTEN, CONNECTING, LOST),
+            bits(NONE, LISTEN, CONNECTING),
+    };
+
+    public interface Listener<S> {
+        void onTransition(Snapshot<S> from, Snapshot<S> to);
+    }
+
+    private final AtomicReference<Snapshot<S>> current = new AtomicReference<>(new Snapshot<S>(NONE, null, 0));
+    private final Listener<S> listener;
+
+    public ConnectionStateMachine(Listener<S> listener) {
+        this.listener = listener;
+    }
+
+    public Snapshot<S> current() {
+        return current.get();
+    }
+
+    public int state() {
+        return current.get().state;
+    }
+
+    /**
+     * @return the live session if the state is {@code state}, otherwise null
+     */
+    public S session(int state) {
+        Snapshot<S> snapshot = current.get();
+        return snapshot.state == state ? snapshot.session : null;
+    }
+
+    public static boolean isLegal(int from, int to) {
+        return (LEGAL[from] & (1 << to)) != 0;
+    }
+
+    /**
+     * Replaces {@code expected} if it is still current.
+     *
+     * @return the new snapshot, or null if another transition got there first or
+     * the transition is not legal
+     */
+    public Snapshot<S> compareAndSet(Snapshot<S> expected, int to, S session) {
+        if (!isLegal(expected.state, to))
+            return null;
+        Snapshot<S> next = new Snapshot<>(to, session, expected.version + 1);
+        if (!current.compareAndSet(expected, next))
+            return null;
+        listener.onTransition(expected, next);
+        return next;
+    }
+
+    /**
+     * Moves to {@code to} from whatever the state is now, if that is legal.
+     *
+     * @return the snapshot that was replaced, or null if the current state can't move
+     * to {@code to}
+     */
+    public Snapshot<S> moveTo(int to, S session) {
+        while (true) {
+            Snapshot<S> expected = current.get();
+            if (!isLegal(expected.state, to))
+                return null;
+            if (compareAndSet(expected, to, session) != null)
+                return expected;
+        }
+    }
+
+    private static int bits(int... states) {
+        int bits = 0;
+        for (int state : states) {
+            bits |= 1 << state;
+        }
+        return bits;
+    }
+
+    public static final class Snapshot<S> {
+        public final int state;
+        public final S session;
+        public final long version;
+
+        Snapshot(int state, S session, long version) {
+            this.state = state;
+            this.session = session;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate over the whole connection: every message is flushed with
+ * {@code SYNC_FLUSH}, so it can be decoded on arrival while the compressor keeps its
+ * history, and both ends start from a preset dictionary of common chat text so even
+ * the first short message finds matches. The four-byte empty block that ends every
+ * sync flush is implied rather than sent.
+ *
+ * {@code SYNC_FLUSH} needs Android 4.4; see {@link #isSupported()}.
+ */
+public class DeflateCodec implements PayloadCodec {
+    static final byte[] DICTIONARY = (
+            "INFO WARN ERROR DEBUG Exception at java.lang. com.example.chatapp null true false "
+            + "http://https://www. .com .jpg .png .pdf 0123456789 :00 2021-01-01T12:00:00 "
+            + "I think you should we could would be really nice thanks thank you please sorry "
+            + "what's up how are you doing today tomorrow tonight yesterday morning evening "
+            + "where are you when will you be there I'll be there in minutes on my way ok okay "
+            + "yes no maybe sure sounds good see you later talk to you soon love you miss you "
+            + "haha lol :) :( :D ;) did you see the message can you send me the file call me "
+            + "I don't know I'm not sure let me check just now right now what do you mean "
+            + "the and for that this with have from they will your about there their what "
+            + "The I You We It That This What Hi Hello Hey Good ").getBytes(Charset.forName("UTF-8"));
+
+    private static final byte[] SYNC_TRAILER = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] input = new byte[0];
+
+    public static boolean isSupported() {
+        try {
+            Deflater.class.getField("SYNC_FLUSH");
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        } catch (NoSuchFieldException e) {
+            return false;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + (length >> 12) * 5 + 64;
+    }
+
+    @Override
+    public int compress(byte[] src, int offset, int length, byte[] dest) {
+        if (length == 0)
+            return 0;
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setDictionary(DICTIONARY);
+        }
+        deflater.setInput(src, offset, length);
+        int written = 0;
+        do {
+            if (written == dest.length)
+                throw new IllegalArgumentException("Destination too small");
+            written += deflater.deflate(dest, written, dest.length - written, Deflater.SYNC_FLUSH);
+        } while (written == dest.length || !deflater.needsInput());
+        return written - SYNC_TRAILER.length;
+    }
+
+    @Override
+    public int decompress(byte[] src, int offset, int length, byte[] dest) throws IOException {
+        if (length == 0)
+            return 0;
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflater.setDictionary(DICTIONARY);
+        }
+        if (input.length < length + SYNC_TRAILER.length)
+            input = new byte[length + SYNC_TRAILER.length];
+        System.arraycopy(src, offset, input, 0, length);
+        System.arraycopy(SYNC_TRAILER, 0, input, length, SYNC_TRAILER.length);
+        inflater.setInput(input, 0, length + SYNC_TRAILER.length);
+        int read = 0;
+        try {
+            while (!inflater.needsInput()) {
+                if (read == dest.length)
+                    throw new IOException("Decompressed message too large");
+                int inflated = inflater.inflate(dest, read, dest.length - read);
+                if (inflated == 0 && (inflater.finished() || inflater.needsDictionary()))
+                    throw new IOException("Unexpected end of compressed stream");
+                read += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return read;
+    }
+}
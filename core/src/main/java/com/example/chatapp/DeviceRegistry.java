@@ -0,0 +1,324 @@
+package com.example.chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen nearby, keyed by their 48-bit MAC address held in a long. Repeated
+ * sightings of a device update one entry with the latest name, signal strength and
+ * time. Entries not seen for {@code ttlMillis} are dropped, and once there are more
+ * than {@code maxDevices} the least recently seen go first.
+ *
+ * The registry is saved to a file so the device list can be shown before discovery
+ * has found anything.
+ */
+public class DeviceRegistry {
+    public static final long DEFAULT_TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_DEVICES = 256;
+    public static final int NO_RSSI = Short.MIN_VALUE;
+
+    private static final int FILE_MAGIC = 0x44455631; // "DEV1"
+
+    private final Map<Long, Device> devices = new HashMap<>();
+    private final long ttlMillis;
+    private final int maxDevices;
+
+    public DeviceRegistry() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_DEVICES);
+    }
+
+    public DeviceRegistry(long ttlMillis, int maxDevices) {
+        this.ttlMillis = ttlMillis;
+        this.maxDevices = maxDevices;
+    }
+
+    public static final class Device {
+        private final long address;
+        private String name;
+        private int rssi = NO_RSSI;
+        private long lastSeen;
+        private boolean bonded;
+
+        Device(long address) {
+            this.address = address;
+        }
+
+        public long getAddress() {
+            return address;
+        }
+
+        public String getAddressString() {
+            return formatAddress(address);
+        }
+
+        /**
+         * @return the last name the device reported, or null if it never did
+         */
+        public synchronized String getName() {
+            return name;
+        }
+
+        /**
+         * @return signal strength in dBm at the last sighting, or {@link #NO_RSSI}
+         */
+        public synchronized int getRssi() {
+            return rssi;
+        }
+
+        /**
+         * @return when the device was last seen, or 0 if only the adapter's bonded
+         * list knows it
+         */
+        public synchronized long getLastSeen() {
+            return lastSeen;
+        }
+
+        public synchronized boolean isBonded() {
+            return bonded;
+        }
+
+        /** Shown as is by list adapters. */
+        @Override
+        public String toString() {
+            String tName = getName();
+            return (tName != null ? tName : "") + "\n" + getAddressString();
+        }
+    }
+
+    /**
+     * Records a sighting of the device at {@code address}.
+     *
+     * @param name null to keep the name from earlier sightings
+     * @param rssi {@link #NO_RSSI} to keep the last known signal strength
+     * @return true if the device was not known
+     */
+    public synchronized boolean seen(long address, String name, int rssi, boolean bonded, long now) {
+        Device device = devices.get(address);
+        boolean added = device == null;
+        if (added) {
+            device = new Device(address);
+            devices.put(address, device);
+        }
+        synchronized (device) {
+            if (name != null)
+                device.name = name;
+            if (rssi != NO_RSSI)
+                device.rssi = rssi;
+            device.lastSeen = Math.max(device.lastSeen, now);
+            device.bonded = bonded;
+        }
+        if (added && devices.size() > maxDevices)
+            removeOldest();
+        return added;
+    }
+
+    /**
+     * Makes the bonded flags match the adapter's, including for devices unpaired
+     * since they were cached, and adds bonded devices not known yet. This is not a
+     * sighting: last-seen times stay as they are, and added devices have none, so
+     * they may take the registry past {@code maxDevices} until discovery finds more.
+     *
+     * @param bonded names of the devices bonded now, by address
+     * @return the number of devices no longer bonded
+     */
+    public synchronized int updateBonded(Map<Long, String> bonded) {
+        int unbonded = 0;
+        for (Device device : devices.values()) {
+            synchronized (device) {
+                if (device.bonded && !bonded.containsKey(device.address)) {
+                    device.bonded = false;
+                    unbonded++;
+                }
+            }
+        }
+        for (Map.Entry<Long, String> entry : bonded.entrySet()) {
+            Device device = devices.get(entry.getKey());
+            if (device == null) {
+                device = new Device(entry.getKey());
+                devices.put(entry.getKey(), device);
+            }
+            synchronized (device) {
+                if (entry.getValue() != null)
+                    device.name = entry.getValue();
+                device.bonded = true;
+            }
+        }
+        return unbonded;
+    }
+
+    public synchronized Device find(long address) {
+        return devices.get(address);
+    }
+
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    /**
+     * Drops the devices not seen within the TTL.
+     *
+     * @return the number dropped
+     */
+    public synchronized int evict(long now) {
+        int evicted = 0;
+        Iterator<Device> it = devices.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getLastSeen() > ttlMillis) {
+                it.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the known devices, most recently seen first
+     */
+    public synchronized List<Device> devices() {
+        ArrayList<Device> list = new ArrayList<>(devices.values());
+        Collections.sort(list, BY_LAST_SEEN);
+        return list;
+    }
+
+    private void removeOldest() {
+        Device oldest = null;
+        for (Device device : devices.values()) {
+            if (oldest == null || device.getLastSeen() < oldest.getLastSeen())
+                oldest = device;
+        }
+        devices.remove(oldest.address);
+    }
+
+    private static final Comparator<Device> BY_LAST_SEEN = new Comparator<Device>() {
+        @Override
+        public int compare(Device a, Device b) {
+            long aSeen = a.getLastSeen();
+            long bSeen = b.getLastSeen();
+            return aSeen > bSeen ? -1 : aSeen < bSeen ? 1 : 0;
+        }
+    };
+
+    /**
+     * Writes the registry to {@code file}, replacing it only once the new copy is
+     * complete.
+     */
+    public void save(File file) throws IOException {
+        List<Device> list = devices();
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(list.size());
+            for (Device device : list) {
+                synchronized (device) {
+                    out.writeLong(device.address);
+                    out.writeBoolean(device.name != null);
+                    if (device.name != null)
+                        out.writeUTF(device.name);
+                    out.writeShort(device.rssi);
+                    out.writeLong(device.lastSeen);
+                    out.writeBoolean(device.bonded);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Can't replace " + file);
+        }
+    }
+
+    /**
+     * Merges the devices saved in {@code file} that are still within the TTL; a
+     * missing file loads nothing. A device already known is only updated if the
+     * file saw it more recently.
+     *
+     * @return the number of devices loaded
+     */
+    public int load(File file, long now) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        int loaded = 0;
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Not a device registry: " + file);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long address = in.readLong();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                int rssi = in.readShort();
+                long lastSeen = in.readLong();
+                boolean bonded = in.readBoolean();
+                if (now - lastSeen > ttlMillis)
+                    continue;
+                synchronized (this) {
+                    Device known = devices.get(address);
+                    if (known != null && known.getLastSeen() >= lastSeen)
+                        continue;
+                }
+                seen(address, name, rssi, bonded, lastSeen);
+                loaded++;
+            }
+        } finally {
+            in.close();
+        }
+        return loaded;
+    }
+
+    /**
+     * Parses a MAC address such as {@code "00:11:22:AA:BB:CC"}.
+     *
+     * @throws IllegalArgumentException if it isn't one
+     */
+    public static long parseAddress(String address) {
+        if (address.length() != 17)
+            throw new IllegalArgumentException("Not a MAC address: " + address);
+        long value = 0;
+        for (int i = 0; i < 6; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0 || (i < 5 && address.charAt(i * 3 + 2) != ':'))
+                throw new IllegalArgumentException("Not a MAC address: " + address);
+            value = value << 8 | high << 4 | low;
+        }
+        return value;
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Formats an address the way Android's {@code BluetoothDevice} does: upper case
+     * hex, colon separated.
+     */
+    public static String formatAddress(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (address >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX[b >>> 4];
+            chars[i * 3 + 1] = HEX[b & 0xF];
+            if (i < 5)
+                chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,416 @@
+package com.example.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Sends and receives files over a connection's {@link SendQueue} next to the chat.
+ *
+ * The sender offers a file, the receiver answers with the offset it already has
+ * (a {@code .part} file left by an earlier attempt, or zero), and the sender then
+ * streams CRC-checked chunks on the queue's bulk lane. At most {@code windowBytes}
+ * may be unacknowledged, so a slow receiver throttles the sender instead of filling
+ * memory. The receiver appends each verified chunk straight to its part file and
+ * acknowledges the new length. Transfers outlive the connection: after
+ * {@link #detach} and a new {@link #attach} the sender offers again and resumes at
+ * whatever the receiver has on disk.
+ *
+ * Payloads (big-endian):
+ * offer {@code id, size, name}; accept {@code id, offset}; chunk
+ * {@code id, offset, crc32, data}; ack {@code id, offset}. An accept sent in the
+ * middle of a transfer rewinds the sender, which is how a corrupt chunk is retried.
+ */
+public class FileTransfers {
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final int DEFAULT_WINDOW_BYTES = 8 * CHUNK_SIZE;
+
+    private static final int CHUNK_HEADER = 20;
+    private static final String PART_SUFFIX = ".part";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface Listener {
+        void onSent(File file);
+
+        void onReceived(File file);
+
+        void onFailed(String name, IOException e);
+    }
+
+    private final File receiveDirectory;
+    private final Executor executor;
+    private final int windowBytes;
+    private final Listener listener;
+    private final Random random = new Random();
+    private final Map<Long, OutgoingFile> outgoing = new HashMap<>();
+    private final Map<Long, IncomingFile> incoming = new HashMap<>();
+    private SendQueue queue;
+
+    public FileTransfers(File receiveDirectory, Executor executor, Listener listener) {
+        this(receiveDirectory, executor, DEFAULT_WINDOW_BYTES, listener);
+    }
+
+    public FileTransfers(File receiveDirectory, Executor executor, int windowBytes, Listener listener) {
+        this.receiveDirectory = receiveDirectory;
+        this.executor = executor;
+        this.windowBytes = Math.max(windowBytes, CHUNK_SIZE);
+        this.listener = listener;
+    }
+
+    /**
+     * Starts sending {@code file}; it is offered as soon as a connection is attached.
+     *
+     * @return the transfer id
+     */
+    public synchronized long send(File file) {
+        long id = random.nextLong();
+        while (outgoing.containsKey(id)) {
+            id = random.nextLong();
+        }
+        OutgoingFile transfer = new OutgoingFile(id, file);
+        outgoing.put(id, transfer);
+        transfer.attach(queue);
+        executor.execute(transfer);
+        return id;
+    }
+
+    public synchronized int pendingCount() {
+        return outgoing.size() + incoming.size();
+    }
+
+    public synchronized void attach(SendQueue queue) {
+        this.queue = queue;
+        for (OutgoingFile transfer : outgoing.values()) {
+            transfer.attach(queue);
+        }
+    }
+
+    /**
+     * Pauses all transfers running over {@code queue}. Sent chunks that were not
+     * acknowledged are sent again after the next {@link #attach}.
+     */
+    public void detach(SendQueue queue) {
+        ArrayList<IncomingFile> closing;
+        synchronized (this) {
+            if (this.queue != queue)
+                return;
+            this.queue = null;
+            for (OutgoingFile transfer : outgoing.values()) {
+                transfer.attach(null);
+            }
+            closing = new ArrayList<>(incoming.values());
+            incoming.clear();
+        }
+        for (IncomingFile transfer : closing) {
+            transfer.close();
+        }
+    }
+
+    /**
+     * Stops all outgoing transfers for good.
+     */
+    public void cancelAll() {
+        ArrayList<OutgoingFile> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<>(outgoing.values());
+            outgoing.clear();
+        }
+        for (OutgoingFile transfer : cancelled) {
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * Handles a file frame read from the connection. Called on the reader thread.
+     *
+     * @return false if {@code type} is not a file transfer frame
+     */
+    public boolean onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+        if (length < 16)
+            return type == FrameCodec.TYPE_FILE_OFFER || type == FrameCodec.TYPE_FILE_ACCEPT
+                    || type == FrameCodec.TYPE_FILE_CHUNK || type == FrameCodec.TYPE_FILE_ACK;
+        long id = getLong(buffer, offset);
+        long value = getLong(buffer, offset + 8);
+        switch (type) {
+            case FrameCodec.TYPE_FILE_OFFER:
+                onOffer(id, value, new String(buffer, offset + 16, length - 16, UTF_8));
+                return true;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                onChunk(id, value, buffer, offset + 16, length - 16);
+                return true;
+            case FrameCodec.TYPE_FILE_ACCEPT:
+            case FrameCodec.TYPE_FILE_ACK:
+                OutgoingFile transfer;
+                synchronized (this) {
+                    transfer = outgoing.get(id);
+                }
+                if (transfer != null)
+                    transfer.onAck(value, type == FrameCodec.TYPE_FILE_ACCEPT);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void onOffer(long id, long size, String name) throws IOException {
+        File part = new File(receiveDirectory, Long.toHexString(id) + PART_SUFFIX);
+        IncomingFile transfer = new IncomingFile(id, size, safeName(name), part);
+        IncomingFile previous;
+        synchronized (this) {
+            previous = incoming.put(id, transfer);
+        }
+        if (previous != null)
+            previous.close();
+        sendControl(FrameCodec.TYPE_FILE_ACCEPT, id, transfer.offset);
+        if (transfer.offset == size)
+            complete(transfer);
+    }
+
+    private void onChunk(long id, long offset, byte[] buffer, int position, int length) throws IOException {
+        IncomingFile transfer;
+        synchronized (this) {
+            transfer = incoming.get(id);
+        }
+        // Chunks already in flight when the receiver asked for a rewind are dropped.
+        if (transfer == null || length < 4 || offset != transfer.offset)
+            return;
+        int dataLength = length - 4;
+        CRC32 crc = new CRC32();
+        crc.update(buffer, position + 4, dataLength);
+        if ((int) crc.getValue() != getInt(buffer, position) || offset + dataLength > transfer.size) {
+            sendControl(FrameCodec.TYPE_FILE_ACCEPT, id, transfer.offset);
+            return;
+        }
+        transfer.file.write(buffer, position + 4, dataLength);
+        transfer.offset += dataLength;
+        sendControl(FrameCodec.TYPE_FILE_ACK, id, transfer.offset);
+        if (transfer.offset == transfer.size)
+            complete(transfer);
+    }
+
+    private void complete(IncomingFile transfer) {
+        synchronized (this) {
+            incoming.remove(transfer.id);
+        }
+        transfer.close();
+        File target = new File(receiveDirectory, transfer.name);
+        for (int i = 1; target.exists(); i++) {
+            target = new File(receiveDirectory, "(" + i + ") " + transfer.name);
+        }
+        if (transfer.part.renameTo(target))
+            listener.onReceived(target);
+        else
+            listener.onFailed(transfer.name, new IOException("Can't rename " + transfer.part + " to " + target));
+    }
+
+    private void sendControl(int type, long id, long value) {
+        SendQueue target;
+        synchronized (this) {
+            target = queue;
+        }
+        if (target == null)
+            return;
+        byte[] payload = new byte[16];
+        putLong(payload, 0, id);
+        putLong(payload, 8, value);
+        try {
+            target.put(type, payload);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            // Closed; the transfer resumes from the receiver's offset on the next attach.
+        }
+    }
+
+    private static String safeName(String name) {
+        String base = new File(name).getName();
+        if (base.isEmpty() || base.equals(".") || base.equals("..") || base.endsWith(PART_SUFFIX))
+            return "file";
+        return base;
+    }
+
+    private final class OutgoingFile implements Runnable {
+        private final long id;
+        private final File file;
+        private final long size;
+        private SendQueue queue;
+        private boolean offered;
+        private long acked = -1;
+        private long next;
+        private boolean cancelled;
+
+        OutgoingFile(long id, File file) {
+            this.id = id;
+            this.file = file;
+            this.size = file.length();
+        }
+
+        synchronized void attach(SendQueue queue) {
+            this.queue = queue;
+            offered = false;
+            acked = -1;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        synchronized void onAck(long offset, boolean rewind) {
+            if (offset < 0 || offset > size)
+                return;
+            if (rewind) {
+                acked = offset;
+                next = offset;
+            } else if (acked >= 0) {
+                acked = Math.max(acked, offset);
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            RandomAccessFile in = null;
+            try {
+                in = new RandomAccessFile(file, "r");
+                while (true) {
+                    SendQueue target;
+                    long offset;
+                    synchronized (this) {
+                        while (!cancelled && acked != size && !canOffer() && !canSendChunk()) {
+                            wait();
+                        }
+                        if (cancelled)
+                            return;
+                        if (acked == size)
+                            break;
+                        target = queue;
+                        offset = offered ? next : -1;
+                        if (offered)
+                            next += Math.min(CHUNK_SIZE, size - next);
+                        offered = true;
+                    }
+                    try {
+                        if (offset < 0)
+                            target.put(FrameCodec.TYPE_FILE_OFFER, offer());
+                        else
+                            target.putBulk(FrameCodec.TYPE_FILE_CHUNK, chunk(in, offset));
+                    } catch (IllegalStateException e) {
+                        // Connection closed under us; wait for the next attach.
+                    }
+                }
+                synchronized (FileTransfers.this) {
+                    outgoing.remove(id);
+                }
+                listener.onSent(file);
+            } catch (IOException e) {
+                synchronized (FileTransfers.this) {
+                    outgoing.remove(id);
+                }
+                listener.onFailed(file.getName(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        private boolean canOffer() {
+            return queue != null && !offered;
+        }
+
+        private boolean canSendChunk() {
+            return queue != null && offered && acked >= 0 && next < size && next - acked < windowBytes;
+        }
+
+        private byte[] offer() {
+            byte[] name = file.getName().getBytes(UTF_8);
+            byte[] payload = new byte[16 + name.length];
+            putLong(payload, 0, id);
+            putLong(payload, 8, size);
+            System.arraycopy(name, 0, payload, 16, name.length);
+            return payload;
+        }
+
+        private byte[] chunk(RandomAccessFile in, long offset) throws IOException {
+            int length = (int) Math.min(CHUNK_SIZE, size - offset);
+            byte[] payload = new byte[CHUNK_HEADER + length];
+            in.seek(offset);
+            in.readFully(payload, CHUNK_HEADER, length);
+            CRC32 crc = new CRC32();
+            crc.update(payload, CHUNK_HEADER, length);
+            putLong(payload, 0, id);
+            putLong(payload, 8, offset);
+            putInt(payload, 16, (int) crc.getValue());
+            return payload;
+        }
+    }
+
+    private static final class IncomingFile {
+        final long id;
+        final long size;
+        final String name;
+        final File part;
+        final RandomAccessFile file;
+        long offset;
+
+        IncomingFile(long id, long size, String name, File part) throws IOException {
+            this.id = id;
+            this.size = size;
+            this.name = name;
+            this.part = part;
+            this.file = new RandomAccessFile(part, "rw");
+            // Only verified chunks are ever written, so whatever an earlier attempt
+            // left behind is a valid prefix.
+            offset = file.length();
+            if (offset > size) {
+                file.setLength(0);
+                offset = 0;
+            }
+            file.seek(offset);
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void putLong(byte[] dest, int offset, long value) {
+        putInt(dest, offset, (int) (value >>> 32));
+        putInt(dest, offset + 4, (int) value);
+    }
+
+    private static void putInt(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) (value >>> 24);
+        dest[offset + 1] = (byte) (value >>> 16);
+        dest[offset + 2] = (byte) (value >>> 8);
+        dest[offset + 3] = (byte) value;
+    }
+
+    private static long getLong(byte[] src, int offset) {
+        return ((long) getInt(src, offset) << 32) | (getInt(src, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) << 24 | (src[offset + 1] & 0xFF) << 16
+                | (src[offset + 2] & 0xFF) << 8 | (src[offset + 3] & 0xFF);
+    }
+}
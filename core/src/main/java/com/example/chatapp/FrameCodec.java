@@ -0,0 +1,57 @@
+package com.example.chatapp;
+
+/**
+ * Wire format shared by {@link FrameEncoder} and {@link FrameDecoder}.
+ *
+ * Every frame is a varint payload length, one type byte and the payload itself.
+ */
+public final class FrameCodec {
+    public static final int TYPE_TEXT = 1;
+    public static final int TYPE_FILE_OFFER = 2;
+    public static final int TYPE_FILE_ACCEPT = 3;
+    public static final int TYPE_FILE_CHUNK = 4;
+    public static final int TYPE_FILE_ACK = 5;
+    public static final int TYPE_TEXT_COMPRESSED = 6;
+    public static final int TYPE_HELLO = 7;
+    public static final int TYPE_ACK = 8;
+    public static final int TYPE_MESH = 9;
+    public static final int TYPE_PING = 10;
+    public static final int TYPE_PONG = 11;
+
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+    public static final int MAX_HEADER_LENGTH = 6;
+
+    private FrameCodec() {
+    }
+
+    public static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    public static int putVarint(byte[] dest, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+
+    public static int encodedLength(int payloadLength) {
+        return varintLength(payloadLength) + 1 + payloadLength;
+    }
+
+    public static int encode(int type, byte[] payload, int offset, int length, byte[] dest, int destOffset) {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+            throw new IllegalArgumentException("Payload length out of range: " + length);
+        int position = putVarint(dest, destOffset, length);
+        dest[position++] = (byte) type;
+        System.arraycopy(payload, offset, dest, position, length);
+        return position + length - destOffset;
+    }
+}
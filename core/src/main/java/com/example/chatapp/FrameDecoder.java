@@ -0,0 +1,195 @@
+package com.example.chatapp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Reassembles frames from an {@link InputStream} regardless of how the transport
+ * chunks the bytes. The decoded payload is a slice of the decoder's own buffer and
+ * is only valid until the next call to {@link #next()}.
+ *
+ * When built with a {@link BufferPool} the decoder reads straight into pooled
+ * buffers instead, and {@link #retainFrame()} lets the caller keep a slice alive
+ * after {@link #next()} without copying it.
+ */
+public class FrameDecoder {
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream inputStream;
+    private final BufferPool pool;
+    private PooledBuffer pooled;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    private int frameType;
+    private int frameOffset;
+    private int frameLength;
+
+    public FrameDecoder(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameDecoder(InputStream inputStream, int bufferSize) {
+        this.inputStream = inputStream;
+        this.pool = null;
+        this.buffer = new byte[Math.max(bufferSize, FrameCodec.MAX_HEADER_LENGTH)];
+    }
+
+    public FrameDecoder(InputStream inputStream, BufferPool pool) {
+        if (pool.bufferSize() < FrameCodec.MAX_HEADER_LENGTH)
+            throw new IllegalArgumentException("Pooled buffers are too small");
+        this.inputStream = inputStream;
+        this.pool = pool;
+    }
+
+    /**
+     * Blocks until a whole frame is available.
+     *
+     * @return false when the stream ended cleanly on a frame boundary
+     */
+    public boolean next() throws IOException {
+        while (!parseFrame()) {
+            if (!fill()) {
+                if (limit > position)
+                    throw new EOFException("Stream ended inside a frame");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int type() {
+        return frameType;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return frameOffset;
+    }
+
+    public int length() {
+        return frameLength;
+    }
+
+    /**
+     * Keeps the buffer holding the current frame out of the pool until the returned
+     * buffer is released. Only valid for pooled decoders.
+     */
+    public PooledBuffer retainFrame() {
+        if (pooled == null)
+            throw new IllegalStateException("Decoder is not pooled");
+        return pooled.retain();
+    }
+
+    /**
+     * Hands the decoder's own buffer back to the pool. Frames retained earlier stay
+     * valid until they are released.
+     */
+    public void close() {
+        if (pooled != null) {
+            pooled.release();
+            pooled = null;
+            buffer = null;
+        }
+    }
+
+    private boolean parseFrame() throws IOException {
+        if (buffer == null)
+            return false;
+        int index = position;
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            if (index >= limit)
+                return false;
+            int b = buffer[index++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+            shift += 7;
+            if (shift > 28)
+                throw new IOException("Malformed frame length");
+        }
+        if (length < 0 || length > FrameCodec.MAX_PAYLOAD_LENGTH)
+            throw new IOException("Frame too large: " + length);
+
+        int frameEnd = index + 1 + length;
+        if (frameEnd > limit) {
+            ensureCapacity(frameEnd - position);
+            return false;
+        }
+        frameType = buffer[index] & 0xFF;
+        frameOffset = index + 1;
+        frameLength = length;
+        position = frameEnd;
+        return true;
+    }
+
+    private void ensureCapacity(int frameSize) throws IOException {
+        if (frameSize > buffer.length) {
+            if (pool != null)
+                throw new IOException("Frame of " + frameSize + " bytes does not fit a pooled buffer");
+            byte[] grown = new byte[Math.max(frameSize, buffer.length * 2)];
+            System.arraycopy(buffer, position, grown, 0, limit - position);
+            buffer = grown;
+            limit -= position;
+            position = 0;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (pool != null) {
+            reclaimPooled();
+        } else if (position == limit) {
+            position = 0;
+            limit = 0;
+        } else if (limit == buffer.length) {
+            compact();
+        }
+        int read = inputStream.read(buffer, limit, buffer.length - limit);
+        if (read < 0)
+            return false;
+        limit += read;
+        return true;
+    }
+
+    private void compact() {
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+    }
+
+    private void reclaimPooled() throws IOException {
+        if (pooled != null && pooled.isExclusive()) {
+            if (position == limit || limit == buffer.length)
+                compact();
+            return;
+        }
+        // Slices handed out earlier still point into this buffer, so it is only
+        // replaced once it is full; the unparsed tail moves to a fresh buffer.
+        if (pooled != null && limit < buffer.length)
+            return;
+        PooledBuffer next;
+        try {
+            next = pool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a receive buffer");
+        }
+        int remaining = limit - position;
+        if (pooled != null) {
+            System.arraycopy(buffer, position, next.data(), 0, remaining);
+            pooled.release();
+        }
+        pooled = next;
+        buffer = next.data();
+        position = 0;
+        limit = remaining;
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames to an {@link OutputStream}, one {@code write} call per frame so a
+ * frame is never split across transport packets by the encoder itself.
+ */
+public class FrameEncoder {
+    private final OutputStream outputStream;
+    private byte[] buffer;
+
+    public FrameEncoder(OutputStream outputStream) {
+        this(outputStream, 1024);
+    }
+
+    public FrameEncoder(OutputStream outputStream, int initialCapacity) {
+        this.outputStream = outputStream;
+        this.buffer = new byte[Math.max(initialCapacity, FrameCodec.MAX_HEADER_LENGTH)];
+    }
+
+    public void write(int type, byte[] payload) throws IOException {
+        write(type, payload, 0, payload.length);
+    }
+
+    public void write(int type, byte[] payload, int offset, int length) throws IOException {
+        int needed = FrameCodec.encodedLength(length);
+        if (needed > buffer.length)
+            buffer = new byte[Math.max(needed, buffer.length * 2)];
+        int size = FrameCodec.encode(type, payload, offset, length, buffer, 0);
+        outputStream.write(buffer, 0, size);
+        outputStream.flush();
+    }
+}
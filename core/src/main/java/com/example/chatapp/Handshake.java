@@ -0,0 +1,125 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+
+/**
+ * The {@link FrameCodec#TYPE_HELLO} frame each side sends first on a new
+ * connection: a version byte and a varint bit set of optional features. A feature
+ * is used only if both sides list it. Peers that predate the handshake ignore the
+ * frame and never send one, so they keep getting plain frames.
+ *
+ * With {@link #CAP_RELIABLE} the hello goes on with the sender's session id, the
+ * sequence number of the first text message it sends on this connection, the
+ * session id it last heard from the receiver and the last sequence number it got
+ * from that session (each a big-endian long).
+ */
+public final class Handshake {
+    public static final int VERSION = 1;
+
+    public static final int CAP_DEFLATE = 1;
+    public static final int CAP_LZ = 1 << 1;
+    public static final int CAP_RELIABLE = 1 << 2;
+    /** Answers {@link FrameCodec#TYPE_PING} with {@link FrameCodec#TYPE_PONG}. */
+    public static final int CAP_HEARTBEAT = 1 << 3;
+
+    private static final int SESSION_FIELDS_LENGTH = 32;
+
+    public static final class Hello {
+        public final int capabilities;
+        public final long sessionId;
+        public final long firstSeq;
+        public final long peerSessionId;
+        public final long ackSeq;
+
+        Hello(int capabilities, long sessionId, long firstSeq, long peerSessionId, long ackSeq) {
+            this.capabilities = capabilities;
+            this.sessionId = sessionId;
+            this.firstSeq = firstSeq;
+            this.peerSessionId = peerSessionId;
+            this.ackSeq = ackSeq;
+        }
+
+        public boolean has(int capability) {
+            return (capabilities & capability) != 0;
+        }
+    }
+
+    private Handshake() {
+    }
+
+    public static int localCapabilities() {
+        return CAP_LZ | CAP_RELIABLE | CAP_HEARTBEAT | (DeflateCodec.isSupported() ? CAP_DEFLATE : 0);
+    }
+
+    public static byte[] hello(int capabilities) {
+        return hello(capabilities & ~CAP_RELIABLE, 0, 0, 0, 0);
+    }
+
+    public static byte[] hello(int capabilities, long sessionId, long firstSeq, long peerSessionId, long ackSeq) {
+        boolean reliable = (capabilities & CAP_RELIABLE) != 0;
+        int headerLength = 1 + FrameCodec.varintLength(capabilities);
+        byte[] payload = new byte[headerLength + (reliable ? SESSION_FIELDS_LENGTH : 0)];
+        payload[0] = VERSION;
+        FrameCodec.putVarint(payload, 1, capabilities);
+        if (reliable) {
+            putLong(payload, headerLength, sessionId);
+            putLong(payload, headerLength + 8, firstSeq);
+            putLong(payload, headerLength + 16, peerSessionId);
+            putLong(payload, headerLength + 24, ackSeq);
+        }
+        return payload;
+    }
+
+    public static Hello parse(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        if (length < 2)
+            throw new IOException("Malformed hello");
+        int position = offset + 1;
+        int capabilities = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (position >= end || shift > 28)
+                throw new IOException("Malformed hello");
+            b = buffer[position++];
+            capabilities |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if ((capabilities & CAP_RELIABLE) == 0)
+            return new Hello(capabilities, 0, 0, 0, 0);
+        if (end - position < SESSION_FIELDS_LENGTH)
+            throw new IOException("Malformed hello");
+        return new Hello(capabilities, getLong(buffer, position), getLong(buffer, position + 8),
+                getLong(buffer, position + 16), getLong(buffer, position + 24));
+    }
+
+    /**
+     * Picks the codec both sides support, preferring the better ratio since the
+     * radio link, not the CPU, is the bottleneck.
+     *
+     * @return null if the connection stays uncompressed
+     */
+    public static PayloadCodec negotiateCodec(int local, int remote) {
+        int common = local & remote;
+        if ((common & CAP_DEFLATE) != 0)
+            return new DeflateCodec();
+        if ((common & CAP_LZ) != 0)
+            return new LzCodec();
+        return null;
+    }
+
+    static void putLong(byte[] dest, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dest[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (src[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.chatapp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness of one connection. Any frame from the peer proves it is alive, so
+ * pings are only sent once nothing has arrived for an interval; if the silence
+ * then lasts the whole timeout, the connection is declared dead. A dead peer is
+ * noticed within the timeout instead of when a blocking read or write finally
+ * fails, which on a half-open socket may be never.
+ *
+ * A ping carries the time it was sent and the pong echoes it back, which samples
+ * the round trip. The smoothed RTT follows RFC 6298; jitter is the smoothed
+ * difference between successive samples, as in RFC 3550.
+ *
+ * Checks run on a shared {@link TimerWheel} and are rescheduled for when the
+ * silence would next matter, not on every frame.
+ */
+public class Heartbeat {
+    public static final long DEFAULT_INTERVAL_MILLIS = 3000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    public static final int PING_LENGTH = 8;
+
+    /**
+     * Called on the wheel thread; neither method may block.
+     */
+    public interface Listener {
+        /**
+         * @return false if the ping could not be queued
+         */
+        boolean sendPing(byte[] payload);
+
+        void onTimeout(long silentNanos);
+    }
+
+    private final TimerWheel wheel;
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final Listener listener;
+    private volatile long lastReceivedNanos;
+    private TimerWheel.Timeout check;
+    private boolean stopped;
+    private ChatMetrics metrics;
+
+    private long pingsSent;
+    private long pongsReceived;
+    private long pingsSuppressed;
+    private long smoothedRttNanos;
+    private long rttVarianceNanos;
+    private long jitterNanos;
+    private long lastRttNanos = -1;
+
+    public Heartbeat(TimerWheel wheel, long intervalMillis, long timeoutMillis, Listener listener) {
+        if (intervalMillis < 1 || timeoutMillis <= intervalMillis)
+            throw new IllegalArgumentException("Need 0 < interval < timeout: " + intervalMillis + ", " + timeoutMillis);
+        this.wheel = wheel;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.listener = listener;
+    }
+
+    /**
+     * Records round trips and timeouts into {@code metrics}; call before {@link #start()}.
+     */
+    public void setMetrics(ChatMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized void start() {
+        if (stopped || check != null)
+            return;
+        lastReceivedNanos = System.nanoTime();
+        schedule(intervalNanos);
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (check != null) {
+            check.cancel();
+            check = null;
+        }
+    }
+
+    /**
+     * Any frame read from the peer. Called on the reader thread for every frame, so
+     * it only stores the time.
+     */
+    public void onReceived() {
+        lastReceivedNanos = System.nanoTime();
+    }
+
+    /**
+     * Payload of a pong, which echoes the ping it answers.
+     */
+    public void onPong(byte[] buffer, int offset, int length) {
+        if (length != PING_LENGTH)
+            return;
+        long rtt = System.nanoTime() - Handshake.getLong(buffer, offset);
+        // Not one of ours, or from before a clock we can compare with.
+        if (rtt < 0 || rtt > timeoutNanos)
+            return;
+        synchronized (this) {
+            pongsReceived++;
+            if (lastRttNanos < 0) {
+                smoothedRttNanos = rtt;
+                rttVarianceNanos = rtt / 2;
+            } else {
+                rttVarianceNanos += (Math.abs(smoothedRttNanos - rtt) - rttVarianceNanos) / 4;
+                smoothedRttNanos += (rtt - smoothedRttNanos) / 8;
+                jitterNanos += (Math.abs(rtt - lastRttNanos) - jitterNanos) / 16;
+            }
+            lastRttNanos = rtt;
+        }
+        if (metrics != null)
+            metrics.recordRoundTrip(rtt);
+    }
+
+    private void schedule(long delayNanos) {
+        check = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void check() {
+        byte[] ping = null;
+        long silent;
+        synchronized (this) {
+            if (stopped)
+                return;
+            long now = System.nanoTime();
+            silent = now - lastReceivedNanos;
+            if (silent >= timeoutNanos) {
+                check = null;
+                stopped = true;
+            } else if (silent < intervalNanos) {
+                // Traffic arrived since the last check; nothing to prove.
+                pingsSuppressed++;
+                schedule(intervalNanos - silent);
+            } else {
+                ping = new byte[PING_LENGTH];
+                Handshake.putLong(ping, 0, now);
+                // Pings again every interval while the silence lasts, until the timeout.
+                schedule(Math.min(intervalNanos, timeoutNanos - silent));
+            }
+        }
+        if (ping != null) {
+            if (listener.sendPing(ping)) {
+                synchronized (this) {
+                    pingsSent++;
+                }
+            }
+        } else if (silent >= timeoutNanos) {
+            if (metrics != null)
+                metrics.recordHeartbeatTimeout();
+            listener.onTimeout(silent);
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(pingsSent, pongsReceived, pingsSuppressed, smoothedRttNanos, rttVarianceNanos, jitterNanos);
+    }
+
+    public static final class Stats {
+        public final long pingsSent;
+        public final long pongsReceived;
+        public final long pingsSuppressed;
+        /** Zero until the first pong. */
+        public final long smoothedRttNanos;
+        public final long rttVarianceNanos;
+        public final long jitterNanos;
+
+        Stats(long pingsSent, long pongsReceived, long pingsSuppressed, long smoothedRttNanos, long rttVarianceNanos,
+              long jitterNanos) {
+            this.pingsSent = pingsSent;
+            this.pongsReceived = pongsReceived;
+            this.pingsSuppressed = pingsSuppressed;
+            this.smoothedRttNanos = smoothedRttNanos;
+            this.rttVarianceNanos = rttVarianceNanos;
+            this.jitterNanos = jitterNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("pings=%d pongs=%d suppressed=%d srtt=%.1fms rttvar=%.1fms jitter=%.1fms",
+                    pingsSent, pongsReceived, pingsSuppressed, smoothedRttNanos / 1e6, rttVarianceNanos / 1e6,
+                    jitterNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Group chat server: keeps accepting peers and relays every message a peer sends to
+ * all other peers.
+ *
+ * A relayed message is encoded once and the same frame array is queued on every
+ * peer. Blocking transports need one reader task per peer, but all writing is done
+ * by a fixed pool of writer threads. With a virtual-thread reader executor (see
+ * {@link ConnectionExecutors}) the per-peer cost is a virtual thread, not a stack.
+ */
+public class Hub {
+    public static final int DEFAULT_WRITER_THREADS = 2;
+    public static final int MAX_QUEUED_FRAMES = 1024;
+    public static final int DEFAULT_MAX_PEERS = 32;
+
+    // Buffers beyond one per peer, for frames the listener still holds and refills.
+    private static final int SPARE_BUFFERS = 4;
+
+    private static final int WRITE_BATCH_BYTES = 8 * 1024;
+
+    // The answer to a peer's hello: plain text only, no numbering, compression or pings.
+    private static final byte[] HELLO_FRAME = encode(FrameCodec.TYPE_HELLO, Handshake.hello(0));
+
+    public interface Listener {
+        void onPeerJoined(Peer peer);
+
+        void onPeerLeft(Peer peer);
+
+        /**
+         * Called on the peer's reader thread. The listener owns the retained buffer and
+         * must release it.
+         */
+        void onMessage(Peer peer, PooledBuffer buffer, int offset, int length);
+    }
+
+    private final Transport transport;
+    private final BufferPool pool;
+    private final Listener listener;
+    private final CopyOnWriteArrayList<Peer> peers = new CopyOnWriteArrayList<>();
+    private final int maxPeers;
+    private final Executor readers;
+    private final ExecutorService writers;
+    private final ThreadLocal<byte[]> writeBatch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[WRITE_BATCH_BYTES];
+        }
+    };
+    private volatile Transport.Acceptor acceptor;
+    private volatile boolean stopped;
+
+    /**
+     * @param readers  runs one blocking read loop per peer; not shut down by {@link #stop()}
+     * @param maxPeers peers past this are turned away. Each peer's reader keeps a
+     *                 receive buffer for as long as it stays, and the pool is sized
+     *                 to match, so a reader never waits for a buffer forever.
+     */
+    public Hub(Transport transport, Executor readers, int writerThreads, int maxPeers, Listener listener) {
+        this.transport = transport;
+        this.maxPeers = maxPeers;
+        this.pool = new BufferPool(maxPeers + SPARE_BUFFERS, FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH);
+        this.listener = listener;
+        this.readers = readers;
+        this.writers = Executors.newFixedThreadPool(writerThreads, namedThreads("HubWriter"));
+    }
+
+    public void start() throws IOException {
+        acceptor = transport.listen();
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "HubAccept");
+        acceptThread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        Transport.Acceptor tAcceptor = acceptor;
+        if (tAcceptor != null) {
+            try {
+                tAcceptor.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        writers.shutdownNow();
+    }
+
+    public int peerCount() {
+        return peers.size();
+    }
+
+    /**
+     * Sends a locally typed message to every peer.
+     */
+    public void broadcast(byte[] payload) {
+        fanOut(null, encode(payload, 0, payload.length));
+    }
+
+    private void acceptLoop() {
+        while (!stopped) {
+            final Connection connection;
+            try {
+                connection = acceptor.accept();
+            } catch (IOException e) {
+                if (!stopped)
+                    e.printStackTrace();
+                return;
+            }
+            if (peers.size() >= maxPeers) {
+                closeQuietly(connection);
+                continue;
+            }
+            try {
+                final Peer peer = new Peer(connection);
+                peers.add(peer);
+                listener.onPeerJoined(peer);
+                readers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        readLoop(peer);
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private void readLoop(Peer peer) {
+        FrameDecoder frameDecoder = new FrameDecoder(peer.inputStream, pool);
+        try {
+            // Every client opens with the secure handshake or a hello. The answer to the
+            // handshake must come before any relayed frame, so those are held until then.
+            if (SecureHandshake.skipOpening(peer.inputStream)) {
+                peer.outputStream.write(SecureHandshake.plaintextReply());
+                peer.outputStream.flush();
+            }
+            peer.ready = true;
+            peer.schedule();
+            while (frameDecoder.next()) {
+                if (frameDecoder.type() == FrameCodec.TYPE_HELLO)
+                    peer.enqueue(HELLO_FRAME);
+                if (frameDecoder.type() != FrameCodec.TYPE_TEXT)
+                    continue;
+                fanOut(peer, encode(frameDecoder.buffer(), frameDecoder.offset(), frameDecoder.length()));
+                listener.onMessage(peer, frameDecoder.retainFrame(), frameDecoder.offset(), frameDecoder.length());
+            }
+        } catch (IOException e) {
+            if (!stopped)
+                e.printStackTrace();
+        } finally {
+            frameDecoder.close();
+            remove(peer);
+        }
+    }
+
+    private static byte[] encode(byte[] payload, int offset, int length) {
+        byte[] frame = new byte[FrameCodec.encodedLength(length)];
+        FrameCodec.encode(FrameCodec.TYPE_TEXT, payload, offset, length, frame, 0);
+        return frame;
+    }
+
+    private static byte[] encode(int type, byte[] payload) {
+        byte[] frame = new byte[FrameCodec.encodedLength(payload.length)];
+        FrameCodec.encode(type, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    private void fanOut(Peer from, byte[] frame) {
+        for (Peer peer : peers) {
+            if (peer != from)
+                peer.enqueue(frame);
+        }
+    }
+
+    private void remove(Peer peer) {
+        if (peers.remove(peer)) {
+            peer.close();
+            listener.onPeerLeft(peer);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ThreadFactory namedThreads(final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + counter.incrementAndGet());
+            }
+        };
+    }
+
+    public class Peer {
+        private final Connection connection;
+        private final PushbackInputStream inputStream;
+        private final OutputStream outputStream;
+        private final ConcurrentLinkedQueue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean ready;
+        private final Runnable drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        Peer(Connection connection) throws IOException {
+            this.connection = connection;
+            this.inputStream = new PushbackInputStream(connection.getInputStream(), 2);
+            this.outputStream = connection.getOutputStream();
+        }
+
+        public String getAddress() {
+            return connection.getRemoteAddress();
+        }
+
+        public String getName() {
+            return connection.getRemoteName();
+        }
+
+        void enqueue(byte[] frame) {
+            // A peer that cannot keep up is dropped rather than buffered without bound.
+            if (queued.incrementAndGet() > MAX_QUEUED_FRAMES) {
+                close();
+                return;
+            }
+            outbound.add(frame);
+            if (ready)
+                schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writers.execute(drainTask);
+                } catch (RuntimeException e) {
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        private void drain() {
+            byte[] batch = writeBatch.get();
+            try {
+                int length = 0;
+                byte[] frame;
+                while ((frame = outbound.poll()) != null) {
+                    queued.decrementAndGet();
+                    if (length + frame.length > batch.length) {
+                        if (length > 0) {
+                            outputStream.write(batch, 0, length);
+                            length = 0;
+                        }
+                        if (frame.length > batch.length) {
+                            outputStream.write(frame);
+                            continue;
+                        }
+                    }
+                    System.arraycopy(frame, 0, batch, length, frame.length);
+                    length += frame.length;
+                }
+                if (length > 0)
+                    outputStream.write(batch, 0, length);
+                outputStream.flush();
+            } catch (IOException e) {
+                close();
+            } finally {
+                scheduled.set(false);
+            }
+            if (!outbound.isEmpty())
+                schedule();
+        }
+
+        void close() {
+            outbound.clear();
+            closeQuietly(connection);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * This device's long-term P-256 key pair, which signs the full
+ * {@link SecureHandshake} so that peers can pin it.
+ */
+public final class Identity {
+    static final String CURVE = "secp256r1";
+    private static final int FILE_MAGIC = 0x49445431; // "IDT1"
+
+    private final PrivateKey privateKey;
+    private final byte[] publicKey;
+
+    private Identity(PrivateKey privateKey, byte[] publicKey) {
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+    }
+
+    public static Identity generate() throws GeneralSecurityException {
+        KeyPair keyPair = generateKeyPair();
+        return new Identity(keyPair.getPrivate(), keyPair.getPublic().getEncoded());
+    }
+
+    /**
+     * Reads the identity saved in {@code file}, creating and saving a new one the
+     * first time.
+     */
+    public static Identity loadOrCreate(File file) throws IOException, GeneralSecurityException {
+        if (!file.exists()) {
+            Identity identity = generate();
+            identity.save(file);
+            return identity;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Not an identity: " + file);
+            byte[] publicKey = new byte[in.readUnsignedShort()];
+            in.readFully(publicKey);
+            byte[] privateKey = new byte[in.readUnsignedShort()];
+            in.readFully(privateKey);
+            KeyFactory factory = KeyFactory.getInstance("EC");
+            return new Identity(factory.generatePrivate(new PKCS8EncodedKeySpec(privateKey)), publicKey);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            byte[] encodedPrivate = privateKey.getEncoded();
+            out.writeInt(FILE_MAGIC);
+            out.writeShort(publicKey.length);
+            out.write(publicKey);
+            out.writeShort(encodedPrivate.length);
+            out.write(encodedPrivate);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Can't create " + file);
+    }
+
+    /**
+     * @return the X.509 encoding of the public key
+     */
+    public byte[] publicKey() {
+        return publicKey.clone();
+    }
+
+    public String fingerprint() {
+        return fingerprint(publicKey);
+    }
+
+    /**
+     * @return the first 8 bytes of the key's SHA-256 in hex, for showing to users
+     */
+    public static String fingerprint(byte[] publicKey) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(publicKey);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            if (i > 0)
+                hex.append(':');
+            hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    byte[] sign(byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(privateKey);
+        signature.update(data);
+        return signature.sign();
+    }
+
+    static boolean verify(byte[] publicKey, byte[] data, byte[] signed) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initVerify(decodePublicKey(publicKey));
+        signature.update(data);
+        return signature.verify(signed);
+    }
+
+    static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(CURVE));
+        return generator.generateKeyPair();
+    }
+
+    static PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+
+/**
+ * Byte-oriented LZ77 codec in the style of LZ4: literal runs and back references
+ * into the last 64 KB of text, whether that text came from the current message or
+ * an earlier one. Much cheaper than deflate and needs no native state.
+ *
+ * A compressed payload is a flag byte, the varint original length and a sequence of
+ * (token, literal length, literals, 2-byte offset, match length) groups; when that
+ * would not be smaller the message is stored instead. Both ends append every message
+ * to their history either way, so the windows stay identical.
+ */
+public class LzCodec implements PayloadCodec {
+    static final int WINDOW = 64 * 1024;
+
+    private static final int STORED = 0;
+    private static final int COMPRESSED = 1;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+
+    private final byte[] window = new byte[2 * WINDOW];
+    private int windowLength;
+    // Position + 1 of the last occurrence of each hashed 4-byte sequence, 0 if none.
+    private int[] table;
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public int compress(byte[] src, int offset, int length, byte[] dest) {
+        if (table == null)
+            table = new int[1 << HASH_BITS];
+        int start = reserve(length);
+        System.arraycopy(src, offset, window, start, length);
+        int end = start + length;
+
+        dest[0] = COMPRESSED;
+        int out = FrameCodec.putVarint(dest, 1, length);
+        int anchor = start;
+        int position = start;
+        int limit = end - MIN_MATCH;
+        while (position <= limit) {
+            int sequence = readInt(window, position);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int candidate = table[hash] - 1;
+            table[hash] = position + 1;
+            if (candidate < 0 || position - candidate > MAX_OFFSET || readInt(window, candidate) != sequence) {
+                position++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < end && window[candidate + matchLength] == window[position + matchLength]) {
+                matchLength++;
+            }
+            out = writeLiterals(dest, out, anchor, position - anchor, matchLength - MIN_MATCH);
+            dest[out++] = (byte) (position - candidate);
+            dest[out++] = (byte) ((position - candidate) >>> 8);
+            if (matchLength - MIN_MATCH >= 15)
+                out = writeLength(dest, out, matchLength - MIN_MATCH - 15);
+            position += matchLength;
+            anchor = position;
+        }
+        out = writeLiterals(dest, out, anchor, end - anchor, 0);
+
+        if (out > length) {
+            dest[0] = STORED;
+            System.arraycopy(src, offset, dest, 1, length);
+            return length + 1;
+        }
+        return out;
+    }
+
+    @Override
+    public int decompress(byte[] src, int offset, int length, byte[] dest) throws IOException {
+        int end = offset + length;
+        if (length < 1)
+            throw new IOException("Empty payload");
+        if (src[offset] == STORED) {
+            int stored = length - 1;
+            if (stored > dest.length || stored > WINDOW)
+                throw new IOException("Stored payload too large: " + stored);
+            int start = reserve(stored);
+            System.arraycopy(src, offset + 1, window, start, stored);
+            System.arraycopy(src, offset + 1, dest, 0, stored);
+            return stored;
+        }
+
+        int position = offset + 1;
+        int original = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (position >= end || shift > 28)
+                throw new IOException("Malformed length");
+            b = src[position++];
+            original |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (original < 0 || original > dest.length || original > WINDOW)
+            throw new IOException("Payload too large: " + original);
+
+        int start = reserve(original);
+        int target = start + original;
+        int out = start;
+        while (true) {
+            if (position >= end)
+                throw new IOException("Truncated payload");
+            int token = src[position++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                do {
+                    if (position >= end)
+                        throw new IOException("Truncated payload");
+                    b = src[position++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - position || literals > target - out)
+                throw new IOException("Literal run out of bounds");
+            System.arraycopy(src, position, window, out, literals);
+            position += literals;
+            out += literals;
+            if (out == target)
+                break;
+
+            if (end - position < 2)
+                throw new IOException("Truncated payload");
+            int distance = (src[position] & 0xFF) | (src[position + 1] & 0xFF) << 8;
+            position += 2;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                do {
+                    if (position >= end)
+                        throw new IOException("Truncated payload");
+                    b = src[position++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int from = out - distance;
+            if (distance == 0 || from < 0 || matchLength > target - out)
+                throw new IOException("Match out of bounds");
+            // Byte by byte: the match may overlap the bytes it produces.
+            for (int i = 0; i < matchLength; i++) {
+                window[out + i] = window[from + i];
+            }
+            out += matchLength;
+        }
+        System.arraycopy(window, start, dest, 0, original);
+        return original;
+    }
+
+    /**
+     * Makes room for {@code length} more bytes of history, dropping all but the last
+     * {@link #WINDOW} bytes when the buffer is full.
+     *
+     * @return where the new bytes go
+     */
+    private int reserve(int length) {
+        if (windowLength + length > window.length) {
+            int keep = Math.min(windowLength, WINDOW);
+            int shift = windowLength - keep;
+            System.arraycopy(window, shift, window, 0, keep);
+            windowLength = keep;
+            if (table != null) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = table[i] > shift ? table[i] - shift : 0;
+                }
+            }
+        }
+        int start = windowLength;
+        windowLength += length;
+        return start;
+    }
+
+    private int writeLiterals(byte[] dest, int out, int from, int literals, int matchToken) {
+        dest[out++] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchToken, 15));
+        if (literals >= 15)
+            out = writeLength(dest, out, literals - 15);
+        System.arraycopy(window, from, dest, out, literals);
+        return out + literals;
+    }
+
+    private static int writeLength(byte[] dest, int out, int value) {
+        while (value >= 255) {
+            dest[out++] = (byte) 255;
+            value -= 255;
+        }
+        dest[out++] = (byte) value;
+        return out;
+    }
+
+    private static int readInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) | (src[offset + 1] & 0xFF) << 8
+                | (src[offset + 2] & 0xFF) << 16 | (src[offset + 3] & 0xFF) << 24;
+    }
+}
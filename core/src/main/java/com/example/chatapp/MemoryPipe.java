@@ -0,0 +1,124 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded single-direction byte pipe. Unlike {@code PipedInputStream} it does not
+ * tie either end to the thread that first used it, so any thread or executor task
+ * may read and write.
+ */
+public class MemoryPipe {
+    private final Object lock = new Object();
+    private final byte[] ring;
+    private int readIndex;
+    private int count;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            synchronized (lock) {
+                while (count == 0 && !writerClosed && !readerClosed) {
+                    await();
+                }
+                if (readerClosed)
+                    throw new IOException("Pipe closed");
+                if (count == 0)
+                    return -1;
+                int read = Math.min(len, count);
+                int first = Math.min(read, ring.length - readIndex);
+                System.arraycopy(ring, readIndex, b, off, first);
+                System.arraycopy(ring, 0, b, off + first, read - first);
+                readIndex = (readIndex + read) % ring.length;
+                count -= read;
+                lock.notifyAll();
+                return read;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (lock) {
+                return count;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                readerClosed = true;
+                lock.notifyAll();
+            }
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                synchronized (lock) {
+                    while (count == ring.length && !readerClosed && !writerClosed) {
+                        await();
+                    }
+                    if (readerClosed || writerClosed)
+                        throw new IOException("Pipe closed");
+                    int writeIndex = (readIndex + count) % ring.length;
+                    int chunk = Math.min(len, ring.length - count);
+                    int first = Math.min(chunk, ring.length - writeIndex);
+                    System.arraycopy(b, off, ring, writeIndex, first);
+                    System.arraycopy(b, off + first, ring, 0, chunk - first);
+                    count += chunk;
+                    off += chunk;
+                    len -= chunk;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                writerClosed = true;
+                lock.notifyAll();
+            }
+        }
+    };
+
+    public MemoryPipe(int capacity) {
+        this.ring = new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process transport. Every endpoint created on the same {@link Network} can
+ * reach the others by name, and each connection is a pair of {@link MemoryPipe}s.
+ */
+public class MemoryTransport implements Transport {
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private final Network network;
+    private final String localAddress;
+
+    public MemoryTransport(Network network, String localAddress) {
+        this.network = network;
+        this.localAddress = localAddress;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        MemoryAcceptor acceptor = new MemoryAcceptor();
+        if (network.listeners.putIfAbsent(localAddress, acceptor) != null)
+            throw new IOException("Address already in use: " + localAddress);
+        return acceptor;
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        MemoryAcceptor acceptor = network.listeners.get(address);
+        if (acceptor == null)
+            throw new ConnectException("Nobody listening on " + address);
+        MemoryPipe toServer = new MemoryPipe(network.pipeCapacity);
+        MemoryPipe toClient = new MemoryPipe(network.pipeCapacity);
+        acceptor.pending.add(new MemoryConnection(localAddress, toServer, toClient));
+        return new MemoryConnection(address, toClient, toServer);
+    }
+
+    @Override
+    public Connection open(String address, String endpoint) throws IOException {
+        return open(address);
+    }
+
+    public String getLocalAddress() {
+        return localAddress;
+    }
+
+    public static final class Network {
+        private final ConcurrentHashMap<String, MemoryAcceptor> listeners = new ConcurrentHashMap<>();
+        private final int pipeCapacity;
+
+        public Network() {
+            this(DEFAULT_PIPE_CAPACITY);
+        }
+
+        public Network(int pipeCapacity) {
+            this.pipeCapacity = pipeCapacity;
+        }
+    }
+
+    private class MemoryAcceptor implements Acceptor {
+        private final LinkedBlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        @Override
+        public Connection accept() throws IOException {
+            Connection connection;
+            try {
+                connection = pending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while accepting");
+            }
+            if (closed) {
+                pending.add(connection);
+                throw new IOException("Acceptor closed");
+            }
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            network.listeners.remove(localAddress, this);
+            pending.add(CLOSED);
+        }
+    }
+
+    private static final Connection CLOSED = new MemoryConnection(null, new MemoryPipe(1), new MemoryPipe(1));
+
+    private static class MemoryConnection implements Connection {
+        private final String remoteAddress;
+        private final MemoryPipe inbound;
+        private final MemoryPipe outbound;
+
+        MemoryConnection(String remoteAddress, MemoryPipe inbound, MemoryPipe outbound) {
+            this.remoteAddress = remoteAddress;
+            this.inbound = inbound;
+            this.outbound = outbound;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inbound.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outbound.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getEndpoint() {
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inbound.getInputStream().close();
+            outbound.getOutputStream().close();
+        }
+    }
+}
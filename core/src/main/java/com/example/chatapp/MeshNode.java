@@ -0,0 +1,539 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One node of a multi-hop mesh: holds links to any number of neighbours, accepted
+ * or dialed, and forwards every message it has not seen before to its other links
+ * until the message's TTL runs out.
+ *
+ * A mesh frame carries the message id, the TTL left, the hops taken so far, the
+ * originating node and the destination, empty for everyone. Ids start at a random
+ * value per node, so a {@link SeenIds} of recent ids is enough to drop the copies
+ * of a flood arriving over other paths. The one exception is a copy with more TTL
+ * left than any before it when the first copy had used up more than half of its
+ * TTL: that one came the long way round, and without forwarding the better copy
+ * the flood could stop short of its reach. Copies racing over paths of similar
+ * length are still dropped, which is most of them.
+ *
+ * Every message also teaches the route back to its origin: the link it came in on,
+ * kept if it took no more hops than the route known so far. A message for one node
+ * is sent down that link only, and only floods when no fresh route is known.
+ *
+ * Like {@link Hub}, a forwarded frame is encoded once and queued on every link it
+ * goes to, and a fixed pool of writer threads does all the writing.
+ */
+public class MeshNode {
+    public static final int DEFAULT_TTL = 8;
+    public static final int DEFAULT_SEEN_IDS = 4096;
+    public static final int DEFAULT_WRITER_THREADS = 1;
+    public static final long ROUTE_EXPIRY_NANOS = TimeUnit.SECONDS.toNanos(60);
+    public static final int MAX_QUEUED_FRAMES = 1024;
+
+    private static final int WRITE_BATCH_BYTES = 8 * 1024;
+    // id, ttl, hops, origin length, destination length
+    private static final int FIXED_HEADER_LENGTH = 12;
+    private static final int TTL_OFFSET = 8;
+    private static final int HOPS_OFFSET = 9;
+
+    public interface Listener {
+        void onLinkUp(Link link);
+
+        void onLinkDown(Link link);
+
+        /**
+         * Called on the link's reader thread for a message to everyone or to this
+         * node. The listener owns the retained buffer and must release it.
+         *
+         * @param hops the number of links the message crossed, at least 1
+         */
+        void onMessage(String origin, int hops, PooledBuffer buffer, int offset, int length);
+    }
+
+    private static final class Route {
+        Link link;
+        int hops;
+        long updatedNanos;
+
+        Route(Link link, int hops, long updatedNanos) {
+            this.link = link;
+            this.hops = hops;
+            this.updatedNanos = updatedNanos;
+        }
+    }
+
+    private final String localAddress;
+    private final byte[] localAddressBytes;
+    private final Transport transport;
+    private final BufferPool pool;
+    private final Executor readers;
+    private final ExecutorService writers;
+    private final Listener listener;
+    private final int ttl;
+    private final SeenIds seen;
+    private final CopyOnWriteArrayList<Link> links = new CopyOnWriteArrayList<>();
+    private final Map<String, Route> routes = new HashMap<>();
+    private final AtomicLong nextId;
+    private final ThreadLocal<byte[]> writeBatch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[WRITE_BATCH_BYTES];
+        }
+    };
+    private volatile Transport.Acceptor acceptor;
+    private volatile boolean stopped;
+
+    private final AtomicLong originated = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong transmissions = new AtomicLong();
+
+    /**
+     * @param localAddress how other nodes name this one; must be unique in the mesh
+     * @param readers      runs one blocking read loop per link; not shut down by {@link #stop()}
+     */
+    public MeshNode(String localAddress, Transport transport, BufferPool pool, Executor readers, Listener listener) {
+        this(localAddress, transport, pool, readers, DEFAULT_WRITER_THREADS, DEFAULT_TTL, DEFAULT_SEEN_IDS, listener);
+    }
+
+    public MeshNode(String localAddress, Transport transport, BufferPool pool, Executor readers, int writerThreads,
+                    int ttl, int seenIds, Listener listener) {
+        if (ttl < 1 || ttl > 255)
+            throw new IllegalArgumentException("TTL out of range: " + ttl);
+        this.localAddress = localAddress;
+        this.localAddressBytes = TextCodec.encode(localAddress);
+        if (localAddressBytes.length > 255)
+            throw new IllegalArgumentException("Address too long: " + localAddress);
+        this.transport = transport;
+        this.pool = pool;
+        this.readers = readers;
+        this.writers = Executors.newFixedThreadPool(writerThreads, namedThreads("MeshWriter"));
+        this.listener = listener;
+        this.ttl = ttl;
+        this.seen = new SeenIds(seenIds);
+        this.nextId = new AtomicLong(new SecureRandom().nextLong());
+    }
+
+    /**
+     * Starts accepting links from neighbours.
+     */
+    public void start() throws IOException {
+        acceptor = transport.listen();
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "MeshAccept");
+        acceptThread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        Transport.Acceptor tAcceptor = acceptor;
+        if (tAcceptor != null) {
+            try {
+                tAcceptor.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (Link link : links) {
+            link.close();
+        }
+        writers.shutdownNow();
+    }
+
+    /**
+     * Opens a link to a neighbour in the background.
+     */
+    public void dial(final String address) {
+        readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                Connection connection = null;
+                try {
+                    connection = transport.open(address);
+                    connection.connect();
+                    addLink(connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    if (connection != null)
+                        closeQuietly(connection);
+                }
+            }
+        });
+    }
+
+    public String getLocalAddress() {
+        return localAddress;
+    }
+
+    public int linkCount() {
+        return links.size();
+    }
+
+    /**
+     * Sends a message to every node in reach.
+     */
+    public void broadcast(byte[] payload) {
+        send(null, payload);
+    }
+
+    /**
+     * Sends a message to one node, down the cached route if there is one and as a
+     * flood otherwise.
+     *
+     * @param destination null for every node
+     * @return the message id
+     */
+    public long send(String destination, byte[] payload) {
+        byte[] destinationBytes = destination != null ? TextCodec.encode(destination) : new byte[0];
+        if (destinationBytes.length > 255)
+            throw new IllegalArgumentException("Address too long: " + destination);
+        long id = nextId.getAndIncrement();
+        seen.mark(id, 255);
+        int length = FIXED_HEADER_LENGTH + localAddressBytes.length + destinationBytes.length + payload.length;
+        byte[] frame = new byte[FrameCodec.encodedLength(length)];
+        int position = FrameCodec.putVarint(frame, 0, length);
+        frame[position++] = (byte) FrameCodec.TYPE_MESH;
+        Handshake.putLong(frame, position, id);
+        frame[position + TTL_OFFSET] = (byte) ttl;
+        frame[position + HOPS_OFFSET] = 1;
+        frame[position + 10] = (byte) localAddressBytes.length;
+        frame[position + 11] = (byte) destinationBytes.length;
+        position += FIXED_HEADER_LENGTH;
+        System.arraycopy(localAddressBytes, 0, frame, position, localAddressBytes.length);
+        position += localAddressBytes.length;
+        System.arraycopy(destinationBytes, 0, frame, position, destinationBytes.length);
+        position += destinationBytes.length;
+        System.arraycopy(payload, 0, frame, position, payload.length);
+        originated.incrementAndGet();
+        route(destination, frame, null);
+        return id;
+    }
+
+    /**
+     * @return the neighbour a message for {@code destination} would be sent to, or
+     * null if it would be flooded
+     */
+    public String nextHop(String destination) {
+        Link link = routeTo(destination);
+        return link != null ? link.getAddress() : null;
+    }
+
+    public Stats stats() {
+        return new Stats(originated.get(), delivered.get(), forwarded.get(), duplicates.get(), expired.get(),
+                routed.get(), transmissions.get(), links.size());
+    }
+
+    private void acceptLoop() {
+        while (!stopped) {
+            Connection connection;
+            try {
+                connection = acceptor.accept();
+            } catch (IOException e) {
+                if (!stopped)
+                    e.printStackTrace();
+                return;
+            }
+            try {
+                addLink(connection);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private void addLink(Connection connection) throws IOException {
+        final Link link = new Link(connection);
+        links.add(link);
+        if (stopped) {
+            remove(link);
+            return;
+        }
+        listener.onLinkUp(link);
+        readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(link);
+            }
+        });
+    }
+
+    private void readLoop(Link link) {
+        FrameDecoder frameDecoder = new FrameDecoder(link.inputStream, pool);
+        try {
+            while (frameDecoder.next()) {
+                if (frameDecoder.type() == FrameCodec.TYPE_MESH)
+                    receive(link, frameDecoder);
+            }
+        } catch (IOException e) {
+            if (!stopped)
+                e.printStackTrace();
+        } finally {
+            frameDecoder.close();
+            remove(link);
+        }
+    }
+
+    private void receive(Link link, FrameDecoder frameDecoder) throws IOException {
+        byte[] buffer = frameDecoder.buffer();
+        int offset = frameDecoder.offset();
+        int length = frameDecoder.length();
+        if (length < FIXED_HEADER_LENGTH)
+            throw new IOException("Short mesh frame");
+        long id = Handshake.getLong(buffer, offset);
+        int ttlLeft = buffer[offset + TTL_OFFSET] & 0xFF;
+        int hops = buffer[offset + HOPS_OFFSET] & 0xFF;
+        int originLength = buffer[offset + 10] & 0xFF;
+        int destinationLength = buffer[offset + 11] & 0xFF;
+        int payloadOffset = offset + FIXED_HEADER_LENGTH + originLength + destinationLength;
+        if (payloadOffset > offset + length)
+            throw new IOException("Malformed mesh frame");
+        String origin = TextCodec.decode(buffer, offset + FIXED_HEADER_LENGTH, originLength);
+        String destination = destinationLength == 0 ? null
+                : TextCodec.decode(buffer, offset + FIXED_HEADER_LENGTH + originLength, destinationLength);
+
+        if (!origin.equals(localAddress))
+            learn(origin, link, hops);
+        int bestTtl = seen.mark(id, ttlLeft);
+        boolean first = bestTtl == SeenIds.NOT_SEEN;
+        // Every forward adds a hop and takes one off the TTL, so their sum is fixed.
+        int initialTtl = hops + ttlLeft - 1;
+        if (!first && (ttlLeft <= bestTtl || bestTtl > initialTtl / 2)) {
+            duplicates.incrementAndGet();
+            return;
+        }
+        boolean forMe = destination != null && destination.equals(localAddress);
+        if (!forMe) {
+            if (ttlLeft > 1 && hops < 255) {
+                byte[] frame = new byte[FrameCodec.encodedLength(length)];
+                int header = FrameCodec.encode(FrameCodec.TYPE_MESH, buffer, offset, length, frame, 0) - length;
+                frame[header + TTL_OFFSET] = (byte) (ttlLeft - 1);
+                frame[header + HOPS_OFFSET] = (byte) (hops + 1);
+                forwarded.incrementAndGet();
+                route(destination, frame, link);
+            } else {
+                expired.incrementAndGet();
+            }
+        }
+        if (first && (destination == null || forMe)) {
+            delivered.incrementAndGet();
+            listener.onMessage(origin, hops, frameDecoder.retainFrame(), payloadOffset,
+                    offset + length - payloadOffset);
+        }
+    }
+
+    private void learn(String origin, Link link, int hops) {
+        long now = System.nanoTime();
+        synchronized (routes) {
+            Route route = routes.get(origin);
+            if (route == null) {
+                routes.put(origin, new Route(link, hops, now));
+            } else if (hops <= route.hops || route.link.closed || now - route.updatedNanos > ROUTE_EXPIRY_NANOS) {
+                route.link = link;
+                route.hops = hops;
+                route.updatedNanos = now;
+            } else if (route.link == link) {
+                route.updatedNanos = now;
+            }
+        }
+    }
+
+    private Link routeTo(String destination) {
+        synchronized (routes) {
+            Route route = routes.get(destination);
+            if (route == null || route.link.closed || System.nanoTime() - route.updatedNanos > ROUTE_EXPIRY_NANOS)
+                return null;
+            return route.link;
+        }
+    }
+
+    private void route(String destination, byte[] frame, Link from) {
+        if (destination != null) {
+            Link next = routeTo(destination);
+            if (next != null && next != from) {
+                routed.incrementAndGet();
+                transmissions.incrementAndGet();
+                next.enqueue(frame);
+                return;
+            }
+        }
+        for (Link link : links) {
+            if (link != from) {
+                transmissions.incrementAndGet();
+                link.enqueue(frame);
+            }
+        }
+    }
+
+    private void remove(Link link) {
+        if (links.remove(link)) {
+            link.close();
+            synchronized (routes) {
+                Iterator<Route> iterator = routes.values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().link == link)
+                        iterator.remove();
+                }
+            }
+            listener.onLinkDown(link);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ThreadFactory namedThreads(final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + counter.incrementAndGet());
+            }
+        };
+    }
+
+    public static final class Stats {
+        public final long originated;
+        public final long delivered;
+        public final long forwarded;
+        public final long duplicates;
+        public final long expired;
+        public final long routed;
+        public final long transmissions;
+        public final int links;
+
+        Stats(long originated, long delivered, long forwarded, long duplicates, long expired, long routed,
+              long transmissions, int links) {
+            this.originated = originated;
+            this.delivered = delivered;
+            this.forwarded = forwarded;
+            this.duplicates = duplicates;
+            this.expired = expired;
+            this.routed = routed;
+            this.transmissions = transmissions;
+            this.links = links;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("links=%d originated=%d delivered=%d forwarded=%d duplicates=%d expired=%d routed=%d sent=%d",
+                    links, originated, delivered, forwarded, duplicates, expired, routed, transmissions);
+        }
+    }
+
+    public class Link {
+        private final Connection connection;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        private final ConcurrentLinkedQueue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed;
+        private final Runnable drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        Link(Connection connection) throws IOException {
+            this.connection = connection;
+            this.inputStream = connection.getInputStream();
+            this.outputStream = connection.getOutputStream();
+        }
+
+        public String getAddress() {
+            return connection.getRemoteAddress();
+        }
+
+        public String getName() {
+            return connection.getRemoteName();
+        }
+
+        void enqueue(byte[] frame) {
+            // A neighbour that cannot keep up is dropped; the mesh routes around it.
+            if (queued.incrementAndGet() > MAX_QUEUED_FRAMES) {
+                close();
+                return;
+            }
+            outbound.add(frame);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writers.execute(drainTask);
+                } catch (RuntimeException e) {
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        private void drain() {
+            byte[] batch = writeBatch.get();
+            try {
+                int length = 0;
+                byte[] frame;
+                while ((frame = outbound.poll()) != null) {
+                    queued.decrementAndGet();
+                    if (length + frame.length > batch.length) {
+                        if (length > 0) {
+                            outputStream.write(batch, 0, length);
+                            length = 0;
+                        }
+                        if (frame.length > batch.length) {
+                            outputStream.write(frame);
+                            continue;
+                        }
+                    }
+                    System.arraycopy(frame, 0, batch, length, frame.length);
+                    length += frame.length;
+                }
+                if (length > 0)
+                    outputStream.write(batch, 0, length);
+                outputStream.flush();
+            } catch (IOException e) {
+                close();
+            } finally {
+                scheduled.set(false);
+            }
+            if (!outbound.isEmpty())
+                schedule();
+        }
+
+        void close() {
+            closed = true;
+            outbound.clear();
+            closeQuietly(connection);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.chatapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages currently shown, as a bounded window over the conversation.
+ *
+ * Incoming messages are staged by {@link #add} and only become visible on
+ * {@link #flush()}, which the UI calls once per frame; the listener then hears about
+ * one inserted range (and one removed range if the window overflowed) no matter how
+ * many messages arrived in between. Messages falling out of the window stay in the
+ * {@link MessageLog}.
+ */
+public class MessageListModel {
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    public interface Listener {
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+
+        void onReset();
+    }
+
+    private final ChatMessage[] items;
+    private int head;
+    private int size;
+    private final ArrayList<ChatMessage> pending = new ArrayList<>();
+    private final ArrayList<String> senders = new ArrayList<>();
+    private final Map<String, Integer> senderIds = new HashMap<>();
+    private Listener listener;
+
+    public MessageListModel() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MessageListModel(int capacity) {
+        items = new ChatMessage[capacity];
+        senders.add("Me");
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Safe to call from any thread; the rest of the model belongs to the UI thread. */
+    public int senderId(String name) {
+        synchronized (senders) {
+            return senderIdLocked(name);
+        }
+    }
+
+    public String senderName(int id) {
+        synchronized (senders) {
+            return senders.get(id);
+        }
+    }
+
+    private int senderIdLocked(String name) {
+        Integer id = senderIds.get(name);
+        if (id == null) {
+            id = senders.size();
+            senders.add(name);
+            senderIds.put(name, id);
+        }
+        return id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public ChatMessage get(int position) {
+        if (position < 0 || position >= size)
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size);
+        return items[(head + position) % items.length];
+    }
+
+    public String format(int position) {
+        ChatMessage message = get(position);
+        if (message.display != null)
+            return message.display;
+        if (message.sender == ChatMessage.SENDER_NONE)
+            return message.text;
+        return senderName(message.sender) + "| " + message.text;
+    }
+
+    /**
+     * Stages a message for the next {@link #flush()}.
+     *
+     * @return true if this is the first staged message, i.e. a flush needs scheduling
+     */
+    public boolean add(ChatMessage message) {
+        pending.add(message);
+        return pending.size() == 1;
+    }
+
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Makes all staged messages visible, evicting the oldest ones past capacity.
+     */
+    public void flush() {
+        int count = pending.size();
+        if (count == 0)
+            return;
+        int skip = Math.max(0, count - items.length);
+        int evict = Math.max(0, size + count - skip - items.length);
+        if (evict > 0) {
+            for (int i = 0; i < evict; i++) {
+                items[(head + i) % items.length] = null;
+            }
+            head = (head + evict) % items.length;
+            size -= evict;
+            if (listener != null)
+                listener.onRemoved(0, evict);
+        }
+        int position = size;
+        for (int i = skip; i < count; i++) {
+            items[(head + size) % items.length] = pending.get(i);
+            size++;
+        }
+        pending.clear();
+        if (listener != null)
+            listener.onInserted(position, size - position);
+    }
+
+    /**
+     * Inserts older messages in front of the window, as far as there is room left.
+     *
+     * @param older oldest first
+     * @return how many of the newest entries of {@code older} were inserted
+     */
+    public int prepend(List<ChatMessage> older) {
+        int count = Math.min(older.size(), items.length - size);
+        if (count == 0)
+            return 0;
+        int from = older.size() - count;
+        head = (head - count + items.length) % items.length;
+        for (int i = 0; i < count; i++) {
+            items[(head + i) % items.length] = older.get(from + i);
+        }
+        size += count;
+        if (listener != null)
+            listener.onInserted(0, count);
+        return count;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            items[(head + i) % items.length] = null;
+        }
+        head = 0;
+        size = 0;
+        pending.clear();
+        if (listener != null)
+            listener.onReset();
+    }
+}
@@ -0,0 +1,518 @@
+package com.example.chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only message history for one conversation.
+ *
+ * Messages get consecutive ids and live in segment files named after the id of
+ * their first message. A record is a varint text length, a direction byte, a varint
+ * timestamp delta from the previous record and the UTF-8 text. Every
+ * {@link #INDEX_INTERVAL}th record has a sparse index entry (timestamp, file
+ * position), so finding a message by id or time is a binary search plus a scan of
+ * at most one interval, no matter how long the history is.
+ *
+ * Timestamps are clamped to never go backwards so they can be searched.
+ */
+public class MessageLog implements Closeable {
+    public static final int DIRECTION_RECEIVED = 0;
+    public static final int DIRECTION_SENT = 1;
+
+    public static final long DEFAULT_SEGMENT_BYTES = 8L * 1024 * 1024;
+    static final int INDEX_INTERVAL = 64;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int MAX_RECORD_LENGTH = FrameCodec.MAX_PAYLOAD_LENGTH + 16;
+
+    public static final class Entry {
+        public final long id;
+        public final long timestamp;
+        public final int direction;
+        public final String text;
+
+        Entry(long id, long timestamp, int direction, String text) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.direction = direction;
+            this.text = text;
+        }
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final byte[] record = new byte[MAX_RECORD_LENGTH];
+    private final byte[] indexEntry = new byte[16];
+    private final RecordReader reader = new RecordReader();
+    private FileOutputStream logOut;
+    private FileOutputStream indexOut;
+    private long nextId;
+    private long lastTimestamp;
+
+    public MessageLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public MessageLog(File directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+        load();
+    }
+
+    public synchronized long append(long timestamp, int direction, String text) throws IOException {
+        byte[] bytes = TextCodec.encode(text);
+        return append(timestamp, direction, bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return the id of the new message
+     */
+    public synchronized long append(long timestamp, int direction, byte[] text, int offset, int length) throws IOException {
+        if (length > FrameCodec.MAX_PAYLOAD_LENGTH)
+            throw new IllegalArgumentException("Message too long: " + length);
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || active.size >= segmentBytes)
+            active = roll();
+
+        long ts = Math.max(timestamp, lastTimestamp);
+        long id = nextId;
+        long recordIndex = id - active.baseId;
+        int position = FrameCodec.putVarint(record, 0, length);
+        record[position++] = (byte) direction;
+        position = putVarLong(record, position, recordIndex == 0 ? ts : ts - lastTimestamp);
+        System.arraycopy(text, offset, record, position, length);
+        position += length;
+
+        if (recordIndex % INDEX_INTERVAL == 0) {
+            active.addIndex(ts, active.size);
+            putLong(indexEntry, 0, ts);
+            putLong(indexEntry, 8, active.size);
+            indexOut.write(indexEntry);
+        }
+        logOut.write(record, 0, position);
+        active.size += position;
+        active.recordCount++;
+        nextId++;
+        lastTimestamp = ts;
+        return id;
+    }
+
+    public synchronized long firstId() {
+        return segments.isEmpty() ? nextId : segments.get(0).baseId;
+    }
+
+    /**
+     * Id the next appended message will get; also the number of messages ever stored.
+     */
+    public synchronized long nextId() {
+        return nextId;
+    }
+
+    /**
+     * Reads up to {@code max} messages starting at {@code fromId}, oldest first.
+     */
+    public synchronized List<Entry> read(long fromId, int max) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<>(Math.max(0, Math.min(max, 1024)));
+        fromId = Math.max(fromId, firstId());
+        int segmentIndex = findSegment(fromId);
+        while (entries.size() < max && segmentIndex >= 0 && segmentIndex < segments.size() && fromId < nextId) {
+            Segment segment = segments.get(segmentIndex);
+            reader.seek(segment, (int) ((fromId - segment.baseId) / INDEX_INTERVAL));
+            while (reader.hasNext() && entries.size() < max) {
+                reader.next();
+                if (reader.id >= fromId)
+                    entries.add(new Entry(reader.id, reader.timestamp, reader.direction,
+                            TextCodec.decode(reader.buffer, reader.textOffset, reader.textLength)));
+            }
+            fromId = segment.baseId + segment.recordCount;
+            segmentIndex++;
+        }
+        return entries;
+    }
+
+    /**
+     * @return the id of the first message at or after {@code timestamp}, or
+     * {@link #nextId()} if there is none
+     */
+    public synchronized long findByTimestamp(long timestamp) throws IOException {
+        int low = 0;
+        int high = segments.size() - 1;
+        int segmentIndex = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = segments.get(mid);
+            if (segment.indexCount > 0 && segment.indexTimestamps[0] <= timestamp) {
+                segmentIndex = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (segmentIndex < 0)
+            return firstId();
+
+        Segment segment = segments.get(segmentIndex);
+        int entry = Arrays.binarySearch(segment.indexTimestamps, 0, segment.indexCount, timestamp);
+        if (entry < 0)
+            entry = -entry - 2;
+        // Equal timestamps may span index entries; step back to the first of them.
+        while (entry > 0 && segment.indexTimestamps[entry - 1] == timestamp) {
+            entry--;
+        }
+        reader.seek(segment, entry);
+        while (reader.hasNext()) {
+            reader.next();
+            if (reader.timestamp >= timestamp)
+                return reader.id;
+        }
+        return segment.baseId + segment.recordCount;
+    }
+
+    public Cursor cursorAtEnd(int pageSize) {
+        long end = nextId();
+        return new Cursor(end, end, pageSize);
+    }
+
+    public Cursor cursorAt(long id, int pageSize) {
+        return new Cursor(id, id, pageSize);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (logOut != null)
+            logOut.close();
+        if (indexOut != null)
+            indexOut.close();
+        for (Segment segment : segments) {
+            segment.closeReader();
+        }
+    }
+
+    /**
+     * Pages through the log in either direction. A cursor only ever holds the ids of
+     * the window it has returned, never the messages themselves.
+     */
+    public final class Cursor {
+        private long low;
+        private long high;
+        private final int pageSize;
+
+        Cursor(long low, long high, int pageSize) {
+            this.low = low;
+            this.high = high;
+            this.pageSize = pageSize;
+        }
+
+        public List<Entry> older() throws IOException {
+            long from = Math.max(firstId(), low - pageSize);
+            if (from >= low)
+                return Collections.emptyList();
+            List<Entry> entries = read(from, (int) (low - from));
+            low = from;
+            return entries;
+        }
+
+        public List<Entry> newer() throws IOException {
+            List<Entry> entries = read(high, pageSize);
+            high += entries.size();
+            return entries;
+        }
+
+        public boolean hasOlder() {
+            return low > firstId();
+        }
+    }
+
+    private int findSegment(long id) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).baseId <= id) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private Segment roll() throws IOException {
+        if (logOut != null) {
+            logOut.close();
+            indexOut.close();
+        }
+        Segment segment = new Segment(directory, nextId);
+        segments.add(segment);
+        logOut = new FileOutputStream(segment.logFile, true);
+        indexOut = new FileOutputStream(segment.indexFile, true);
+        return segment;
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        ArrayList<Long> baseIds = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(LOG_SUFFIX))
+                    baseIds.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(baseIds);
+        for (int i = 0; i < baseIds.size(); i++) {
+            Segment segment = new Segment(directory, baseIds.get(i));
+            segment.size = segment.logFile.length();
+            segment.loadIndex();
+            if (i + 1 < baseIds.size())
+                segment.recordCount = baseIds.get(i + 1) - segment.baseId;
+            segments.add(segment);
+        }
+        if (segments.isEmpty())
+            return;
+
+        Segment last = segments.get(segments.size() - 1);
+        recover(last);
+        nextId = last.baseId + last.recordCount;
+        lastTimestamp = reader.timestamp;
+        logOut = new FileOutputStream(last.logFile, true);
+        indexOut = new FileOutputStream(last.indexFile, true);
+    }
+
+    /**
+     * Rebuilds the record count and any missing index entries of the active segment
+     * and cuts off a record that was only partly written before a crash.
+     */
+    private void recover(Segment segment) throws IOException {
+        while (segment.indexCount > 0 && segment.indexPositions[segment.indexCount - 1] >= segment.size) {
+            segment.indexCount--;
+        }
+        if (segment.indexCount == 0)
+            segment.addIndex(0, 0);
+        int entry = segment.indexCount - 1;
+        segment.recordCount = Long.MAX_VALUE;
+        reader.seek(segment, entry);
+        long end = segment.indexPositions[entry];
+        long count = (long) entry * INDEX_INTERVAL;
+        long timestamp = segment.indexTimestamps[entry];
+        while (reader.tryNext()) {
+            if (count == 0)
+                segment.indexTimestamps[0] = reader.timestamp;
+            else if (count % INDEX_INTERVAL == 0 && count / INDEX_INTERVAL >= segment.indexCount)
+                segment.addIndex(reader.timestamp, end);
+            end = reader.position;
+            timestamp = reader.timestamp;
+            count++;
+        }
+        segment.recordCount = count;
+        reader.timestamp = timestamp;
+        if (count == 0)
+            segment.indexCount = 0;
+        if (end < segment.size) {
+            RandomAccessFile file = new RandomAccessFile(segment.logFile, "rw");
+            try {
+                file.setLength(end);
+            } finally {
+                file.close();
+            }
+            segment.size = end;
+        }
+        segment.closeReader();
+        segment.writeIndex();
+    }
+
+    private final class RecordReader {
+        final byte[] buffer = new byte[MAX_RECORD_LENGTH * 2];
+        private Segment segment;
+        private long bufferStart;
+        private int bufferLength;
+        private boolean firstAfterSeek;
+        long position;
+        long id;
+        long timestamp;
+        int direction;
+        int textOffset;
+        int textLength;
+
+        void seek(Segment segment, int entry) throws IOException {
+            this.segment = segment;
+            this.position = segment.indexPositions[entry];
+            this.id = segment.baseId + (long) entry * INDEX_INTERVAL - 1;
+            this.timestamp = segment.indexTimestamps[entry];
+            this.firstAfterSeek = true;
+            this.bufferLength = 0;
+            this.bufferStart = position;
+        }
+
+        boolean hasNext() {
+            return id + 1 < segment.baseId + segment.recordCount && position < segment.size;
+        }
+
+        void next() throws IOException {
+            if (!tryNext())
+                throw new IOException("Corrupt record at " + position + " in " + segment.logFile);
+        }
+
+        /**
+         * @return false at the end of the file or at a truncated record
+         */
+        boolean tryNext() throws IOException {
+            if (!fill(2))
+                return false;
+            int index = (int) (position - bufferStart);
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (index >= bufferLength || shift > 28)
+                    return false;
+                b = buffer[index++];
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length < 0 || length > FrameCodec.MAX_PAYLOAD_LENGTH)
+                return false;
+            int recordDirection = buffer[index++];
+            long delta = 0;
+            shift = 0;
+            do {
+                if (index >= bufferLength || shift > 63)
+                    return false;
+                b = buffer[index++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (index + length > bufferLength)
+                return false;
+
+            if (id + 1 == segment.baseId)
+                timestamp = delta;
+            else if (!firstAfterSeek)
+                timestamp += delta;
+            firstAfterSeek = false;
+            direction = recordDirection;
+            textOffset = index;
+            textLength = length;
+            id++;
+            position = bufferStart + index + length;
+            return true;
+        }
+
+        private boolean fill(int minimum) throws IOException {
+            int offset = (int) (position - bufferStart);
+            if (offset + MAX_RECORD_LENGTH <= bufferLength || bufferStart + bufferLength >= segment.size)
+                return position + minimum <= segment.size;
+            int remaining = bufferLength - offset;
+            System.arraycopy(buffer, offset, buffer, 0, remaining);
+            bufferStart = position;
+            RandomAccessFile file = segment.reader();
+            file.seek(bufferStart + remaining);
+            int toRead = (int) Math.min(buffer.length - remaining, segment.size - bufferStart - remaining);
+            file.readFully(buffer, remaining, toRead);
+            bufferLength = remaining + toRead;
+            return position + minimum <= segment.size;
+        }
+    }
+
+    private static final class Segment {
+        final long baseId;
+        final File logFile;
+        final File indexFile;
+        long size;
+        long recordCount;
+        long[] indexTimestamps = new long[16];
+        long[] indexPositions = new long[16];
+        int indexCount;
+        private RandomAccessFile reader;
+
+        Segment(File directory, long baseId) {
+            this.baseId = baseId;
+            String name = String.format("%020d", baseId);
+            this.logFile = new File(directory, name + LOG_SUFFIX);
+            this.indexFile = new File(directory, name + INDEX_SUFFIX);
+        }
+
+        void addIndex(long timestamp, long position) {
+            if (indexCount == indexTimestamps.length) {
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexTimestamps[indexCount] = timestamp;
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+
+        void loadIndex() throws IOException {
+            if (!indexFile.exists())
+                return;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                long entries = indexFile.length() / 16;
+                for (long i = 0; i < entries; i++) {
+                    addIndex(in.readLong(), in.readLong());
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        void writeIndex() throws IOException {
+            byte[] bytes = new byte[indexCount * 16];
+            for (int i = 0; i < indexCount; i++) {
+                putLong(bytes, i * 16, indexTimestamps[i]);
+                putLong(bytes, i * 16 + 8, indexPositions[i]);
+            }
+            FileOutputStream out = new FileOutputStream(indexFile, false);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        }
+
+        RandomAccessFile reader() throws IOException {
+            if (reader == null)
+                reader = new RandomAccessFile(logFile, "r");
+            return reader;
+        }
+
+        void closeReader() throws IOException {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+
+    private static int putVarLong(byte[] dest, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static void putLong(byte[] dest, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dest[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns raw chat payloads into messages ready to show, off the UI thread, and
+ * hands them to the {@link Sink} in batches that fit a frame budget.
+ */
+public class MessagePipeline {
+    public static final long DEFAULT_FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+    public static final int DEFAULT_READY_CAPACITY = 1024;
+    public static final int MAX_COPIED_MESSAGES = 4096;
+
+    /**
+     * Runs on the UI executor.
+     */
+    public interface Sink {
+        void onMessage(ChatMessage message);
+    }
+
+    private static final class Item {
+        final PooledBuffer buffer;
+        final int offset;
+        final int length;
+        final String sender;
+        final boolean group;
+        final byte[] sent;
+        final long readNanos;
+        byte[] copy;
+        Runnable task;
+        ChatMessage message;
+
+        Item(PooledBuffer buffer, int offset, int length, String sender, boolean group, byte[] sent, long readNanos) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.sender = sender;
+            this.group = group;
+            this.sent = sent;
+            this.readNanos = readNanos;
+        }
+    }
+
+    /**
+     * A log and the conversation it belongs to, swapped together.
+     */
+    private static final class Store {
+        final MessageLog log;
+        final String conversation;
+
+        Store(MessageLog log, String conversation) {
+            this.log = log;
+            this.conversation = conversation;
+        }
+    }
+
+    private final MessageListModel model;
+    private final Executor uiExecutor;
+    private final Sink sink;
+    private final long frameBudgetNanos;
+    private final LinkedBlockingQueue<Item> intake = new LinkedBlockingQueue<>();
+    private final ArrayBlockingQueue<Item> ready;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private volatile Store store;
+    private volatile SearchIndex searchIndex;
+    private volatile ChatMetrics metrics;
+    private volatile Thread stageThread;
+    private volatile boolean closed;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger copied = new AtomicInteger();
+    private final AtomicLong drains = new AtomicLong();
+
+    /**
+     * @param model only used to look up sender ids, which is safe off the UI thread
+     */
+    public MessagePipeline(MessageListModel model, Executor uiExecutor, Sink sink) {
+        this(model, uiExecutor, sink, DEFAULT_FRAME_BUDGET_NANOS, DEFAULT_READY_CAPACITY);
+    }
+
+    public MessagePipeline(MessageListModel model, Executor uiExecutor, Sink sink, long frameBudgetNanos,
+                           int readyCapacity) {
+        this.model = model;
+        this.uiExecutor = uiExecutor;
+        this.sink = sink;
+        this.frameBudgetNanos = frameBudgetNanos;
+        this.ready = new ArrayBlockingQueue<>(readyCapacity);
+    }
+
+    public void start() {
+        new Thread(stageTask, "MessagePipeline").start();
+    }
+
+    public void start(Executor executor) {
+        executor.execute(stageTask);
+    }
+
+    public void close() {
+        closed = true;
+        Thread stage = stageThread;
+        if (stage != null)
+            stage.interrupt();
+    }
+
+    /**
+     * Where messages are persisted from now on; null to stop persisting.
+     */
+    public void setLog(MessageLog log) {
+        setLog(log, null);
+    }
+
+    /**
+     * @param conversation the key messages are indexed under, or null not to index them
+     */
+    public void setLog(MessageLog log, String conversation) {
+        this.store = log != null ? new Store(log, conversation) : null;
+    }
+
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    public void setMetrics(ChatMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Takes over {@code buffer}, which is released once the text is decoded.
+     *
+     * @param group true if the text is to be stored with its sender's name, as in a group chat
+     */
+    public void received(PooledBuffer buffer, int offset, int length, String sender, boolean group) {
+        if (closed) {
+            buffer.release();
+            return;
+        }
+        intake.add(new Item(buffer, offset, length, sender, group, null, System.nanoTime()));
+    }
+
+    /**
+     * Like {@link #received(PooledBuffer, int, int, String, boolean)} for callers that
+     * must never wait for a buffer, such as selector threads, with the text copied
+     * to the heap. Never blocks.
+     *
+     * @return false if {@link #MAX_COPIED_MESSAGES} are already waiting and this one
+     *         was dropped
+     */
+    public boolean received(byte[] text, String sender, boolean group) {
+        if (closed)
+            return false;
+        if (copied.incrementAndGet() > MAX_COPIED_MESSAGES) {
+            copied.decrementAndGet();
+            ChatMetrics tMetrics = metrics;
+            if (tMetrics != null)
+                tMetrics.recordMessageDropped();
+            return false;
+        }
+        Item item = new Item(null, 0, text.length, sender, group, null, System.nanoTime());
+        item.copy = text;
+        intake.add(item);
+        return true;
+    }
+
+    /**
+     * A message this side sent; never blocks, so it may be called on the UI thread.
+     */
+    public void sent(byte[] text) {
+        if (!closed)
+            intake.add(new Item(null, 0, text.length, null, false, text, 0));
+    }
+
+    public long processedCount() {
+        return processed.get();
+    }
+
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Number of UI tasks that bound messages.
+     */
+    public long drainCount() {
+        return drains.get();
+    }
+
+    /**
+     * Runs {@code task} on the stage after the messages handed over before it, for
+     * other work on the log that must not run on the UI thread.
+     */
+    public void execute(Runnable task) {
+        if (closed)
+            return;
+        Item item = new Item(null, 0, 0, null, false, null, 0);
+        item.task = task;
+        intake.add(item);
+    }
+
+    private final Runnable stageTask = new Runnable() {
+        @Override
+        public void run() {
+            stageThread = Thread.currentThread();
+            try {
+                while (!closed) {
+                    Item item = intake.take();
+                    if (item.task != null) {
+                        runTask(item.task);
+                        continue;
+                    }
+                    if (process(item))
+                        publish(item);
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            } finally {
+                stageThread = null;
+                Item item;
+                while ((item = intake.poll()) != null) {
+                    if (item.buffer != null)
+                        item.buffer.release();
+                }
+            }
+        }
+    };
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // A failed task must not stop the messages behind it.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return false if the message is to be dropped
+     */
+    private boolean process(Item item) {
+        String text;
+        if (item.buffer != null) {
+            text = TextCodec.decode(item.buffer.data(), item.offset, item.length);
+            item.buffer.release();
+        } else if (item.copy != null) {
+            text = TextCodec.decode(item.copy, 0, item.length);
+            copied.decrementAndGet();
+        } else {
+            text = TextCodec.decode(item.sent, 0, item.length);
+        }
+        text = validate(text);
+        if (text == null) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        long timestamp = System.currentTimeMillis();
+        int direction;
+        int sender;
+        String display;
+        String stored;
+        if (item.sent != null) {
+            direction = MessageLog.DIRECTION_SENT;
+            sender = ChatMessage.SENDER_ME;
+            display = model.senderName(sender) + "| " + text;
+            stored = text;
+        } else {
+            direction = MessageLog.DIRECTION_RECEIVED;
+            sender = model.senderId(item.sender);
+            display = item.sender + "| " + text;
+            stored = item.group ? display : text;
+        }
+        long id = ChatMessage.NO_ID;
+        Store tStore = store;
+        if (tStore != null) {
+            try {
+                id = tStore.log.append(timestamp, direction, stored);
+                SearchIndex tIndex = searchIndex;
+                if (tIndex != null && tStore.conversation != null)
+                    tIndex.add(tStore.conversation, id, stored);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        item.message = new ChatMessage(id, sender, timestamp, text, display);
+        processed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Drops control characters other than tab and newline, which would otherwise
+     * garble the list.
+     *
+     * @return null if nothing printable is left
+     */
+    static String validate(String text) {
+        StringBuilder clean = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isISOControl(c) && c != '\n' && c != '\t') {
+                if (clean == null)
+                    clean = new StringBuilder(text.length()).append(text, 0, i);
+            } else if (clean != null) {
+                clean.append(c);
+            }
+        }
+        if (clean != null)
+            text = clean.toString();
+        return text.trim().isEmpty() ? null : text;
+    }
+
+    private void publish(Item item) throws InterruptedException {
+        ready.put(item);
+        if (drainScheduled.compareAndSet(false, true))
+            uiExecutor.execute(drainTask);
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private void drain() {
+        drains.incrementAndGet();
+        ChatMetrics tMetrics = metrics;
+        long start = System.nanoTime();
+        long now = start;
+        Item item;
+        while (now - start < frameBudgetNanos && (item = ready.poll()) != null) {
+            sink.onMessage(item.message);
+            long done = System.nanoTime();
+            if (tMetrics != null) {
+                tMetrics.recordMainThread(done - now);
+                if (item.readNanos != 0)
+                    tMetrics.recordReadToDispatch(done - item.readNanos);
+            }
+            now = done;
+        }
+        drainScheduled.set(false);
+        // A message published after the last poll found its CAS failing; pick it up here.
+        if (!ready.isEmpty() && drainScheduled.compareAndSet(false, true))
+            uiExecutor.execute(drainTask);
+    }
+}
@@ -0,0 +1,429 @@
+package com.example.chatapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking TCP relay. A small, fixed number of selector loops serve every
+ * connection, so one process can hold thousands of chat peers. Like {@link Hub}
+ * every text frame is encoded once and relayed to all other peers.
+ *
+ * Each loop owns one direct read buffer and one direct write buffer shared by all
+ * of its connections. A connection only holds heap memory for a frame that is split
+ * across reads and for frames still waiting to be written.
+ */
+public class NioRelay {
+    public static final int DEFAULT_LOOPS = 1;
+    public static final int MAX_QUEUED_FRAMES = 1024;
+
+    private static final int IO_BUFFER_SIZE = 256 * 1024;
+
+    // The answer to a peer's hello: plain text only, no numbering, compression or pings.
+    private static final byte[] HELLO_FRAME = helloFrame();
+
+    public interface Listener {
+        void onPeerJoined(Session session);
+
+        void onPeerLeft(Session session);
+
+        /**
+         * Called on a selector thread; the payload is only valid during the call and
+         * the listener must not block.
+         */
+        void onMessage(Session session, ByteBuffer payload);
+    }
+
+    private final InetSocketAddress bindAddress;
+    private final Listener listener;
+    private final EventLoop[] loops;
+    private final CopyOnWriteArrayList<Session> sessions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean stopped;
+
+    public NioRelay(InetSocketAddress bindAddress, int loopCount, Listener listener) throws IOException {
+        this.bindAddress = bindAddress;
+        this.listener = listener;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(bindAddress, 1024);
+        serverChannel.configureBlocking(false);
+        loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, null);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int peerCount() {
+        return sessions.size();
+    }
+
+    public void broadcast(byte[] payload) {
+        byte[] frame = new byte[FrameCodec.encodedLength(payload.length)];
+        FrameCodec.encode(FrameCodec.TYPE_TEXT, payload, 0, payload.length, frame, 0);
+        fanOut(null, frame);
+    }
+
+    private void fanOut(Session from, byte[] frame) {
+        for (Session session : sessions) {
+            if (session != from)
+                session.enqueue(frame);
+        }
+    }
+
+    public final class Session {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final String name;
+        private final ConcurrentLinkedQueue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        // Set once the peer's opening bytes were read; frames are held until then.
+        private volatile boolean ready;
+        private SelectionKey key;
+        private int headOffset;
+        private byte[] partial;
+        private int partialLength;
+        private boolean closed;
+
+        Session(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+            this.name = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        void enqueue(byte[] frame) {
+            if (queued.incrementAndGet() > MAX_QUEUED_FRAMES) {
+                queued.decrementAndGet();
+                loop.schedule(this, true);
+                return;
+            }
+            outbound.add(frame);
+            if (flushScheduled.compareAndSet(false, true))
+                loop.schedule(this, false);
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Session> flushQueue = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Session> closeQueue = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<SocketChannel> registerQueue = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "NioRelay-" + index);
+        }
+
+        void register(SocketChannel channel) {
+            registerQueue.add(channel);
+            selector.wakeup();
+        }
+
+        void register(ServerSocketChannel channel, int ops, Object attachment) throws IOException {
+            channel.register(selector, ops, attachment);
+        }
+
+        void schedule(Session session, boolean close) {
+            (close ? closeQueue : flushQueue).add(session);
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    // Flushes scheduled by this thread while handling keys do not wake
+                    // the selector, so drain them before blocking again.
+                    runPending();
+                    if (flushQueue.isEmpty() && closeQueue.isEmpty() && registerQueue.isEmpty())
+                        selector.select();
+                    else
+                        selector.selectNow();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Session session = (Session) key.attachment();
+                        if (key.isReadable())
+                            read(session);
+                        if (key.isValid() && key.isWritable())
+                            flush(session);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!stopped)
+                    e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Session)
+                        close((Session) key.attachment());
+                    else
+                        closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        private void runPending() {
+            SocketChannel channel;
+            while ((channel = registerQueue.poll()) != null) {
+                Session session = new Session(channel, this);
+                try {
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                    continue;
+                }
+                sessions.add(session);
+                listener.onPeerJoined(session);
+            }
+            Session session;
+            while ((session = closeQueue.poll()) != null) {
+                close(session);
+            }
+            while ((session = flushQueue.poll()) != null) {
+                flush(session);
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[Math.abs(nextLoop.getAndIncrement() % loops.length)].register(channel);
+            }
+        }
+
+        private void read(Session session) {
+            readBuffer.clear();
+            if (session.partialLength > 0) {
+                readBuffer.put(session.partial, 0, session.partialLength);
+                session.partialLength = 0;
+            }
+            int read;
+            try {
+                read = session.channel.read(readBuffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            readBuffer.flip();
+            try {
+                decode(session);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0)
+                close(session);
+        }
+
+        private void decode(Session session) throws IOException {
+            if (!session.ready && !open(session))
+                return;
+            while (readBuffer.hasRemaining()) {
+                int start = readBuffer.position();
+                int length = 0;
+                int shift = 0;
+                boolean complete = false;
+                while (readBuffer.hasRemaining()) {
+                    int b = readBuffer.get();
+                    length |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                    shift += 7;
+                    if (shift > 28)
+                        throw new IOException("Malformed frame length");
+                }
+                if (length < 0 || length > FrameCodec.MAX_PAYLOAD_LENGTH)
+                    throw new IOException("Frame too large: " + length);
+                if (!complete || readBuffer.remaining() < 1 + length) {
+                    readBuffer.position(start);
+                    keepPartial(session);
+                    return;
+                }
+                int type = readBuffer.get() & 0xFF;
+                if (type == FrameCodec.TYPE_HELLO)
+                    session.enqueue(HELLO_FRAME);
+                if (type != FrameCodec.TYPE_TEXT) {
+                    readBuffer.position(readBuffer.position() + length);
+                    continue;
+                }
+                int payloadEnd = readBuffer.position() + length;
+                byte[] frame = new byte[FrameCodec.encodedLength(length)];
+                readBuffer.position(start);
+                readBuffer.get(frame);
+                fanOut(session, frame);
+
+                int limit = readBuffer.limit();
+                readBuffer.position(payloadEnd - length);
+                readBuffer.limit(payloadEnd);
+                listener.onMessage(session, readBuffer);
+                readBuffer.limit(limit);
+                readBuffer.position(payloadEnd);
+            }
+        }
+
+        /**
+         * Answers the secure handshake a client may open with, before any relayed
+         * frame, and releases the frames held for it.
+         *
+         * @return false if more bytes are needed
+         */
+        private boolean open(Session session) throws IOException {
+            int opening = SecureHandshake.openingLength(readBuffer);
+            if (opening < 0) {
+                keepPartial(session);
+                return false;
+            }
+            if (opening > 0) {
+                readBuffer.position(readBuffer.position() + opening);
+                // A new socket's send buffer is empty, so the short reply goes out whole.
+                ByteBuffer reply = ByteBuffer.wrap(SecureHandshake.plaintextReply());
+                session.channel.write(reply);
+                if (reply.hasRemaining())
+                    throw new IOException("Can't answer the handshake");
+            }
+            session.ready = true;
+            flush(session);
+            return true;
+        }
+
+        private void keepPartial(Session session) {
+            int remaining = readBuffer.remaining();
+            if (session.partial == null || session.partial.length < remaining)
+                session.partial = new byte[Math.max(remaining, 256)];
+            readBuffer.get(session.partial, 0, remaining);
+            session.partialLength = remaining;
+        }
+
+        private void flush(Session session) {
+            session.flushScheduled.set(false);
+            if (session.closed || !session.ready)
+                return;
+            try {
+                while (true) {
+                    writeBuffer.clear();
+                    int offset = session.headOffset;
+                    for (byte[] frame : session.outbound) {
+                        int chunk = Math.min(frame.length - offset, writeBuffer.remaining());
+                        writeBuffer.put(frame, offset, chunk);
+                        offset = 0;
+                        if (!writeBuffer.hasRemaining())
+                            break;
+                    }
+                    writeBuffer.flip();
+                    if (!writeBuffer.hasRemaining())
+                        break;
+                    int written = session.channel.write(writeBuffer);
+                    consume(session, written);
+                    if (writeBuffer.hasRemaining())
+                        break;
+                }
+            } catch (IOException e) {
+                close(session);
+                return;
+            }
+            int ops = session.outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (session.key.interestOps() != ops)
+                session.key.interestOps(ops);
+        }
+
+        private void consume(Session session, int written) {
+            while (written > 0) {
+                byte[] head = session.outbound.peek();
+                int left = head.length - session.headOffset;
+                if (written >= left) {
+                    written -= left;
+                    session.outbound.poll();
+                    session.queued.decrementAndGet();
+                    session.headOffset = 0;
+                } else {
+                    session.headOffset += written;
+                    written = 0;
+                }
+            }
+        }
+
+        private void close(Session session) {
+            if (session.closed)
+                return;
+            session.closed = true;
+            if (session.key != null)
+                session.key.cancel();
+            closeQuietly(session.channel);
+            session.outbound.clear();
+            if (sessions.remove(session))
+                listener.onPeerLeft(session);
+        }
+    }
+
+    private static byte[] helloFrame() {
+        byte[] hello = Handshake.hello(0);
+        byte[] frame = new byte[FrameCodec.encodedLength(hello.length)];
+        FrameCodec.encode(FrameCodec.TYPE_HELLO, hello, 0, hello.length, frame, 0);
+        return frame;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
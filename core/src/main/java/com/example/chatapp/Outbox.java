@@ -0,0 +1,492 @@
+package com.example.chatapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Messages written while their peer is not connected, kept on disk until they can
+ * be sent. Each peer has an append-only file: an 8-byte head offset and the peer's
+ * name, then records of a big-endian length, the payload and a CRC32 of it.
+ * Sending a message moves the head past it; once the head reaches the end the
+ * file is cut back to its header.
+ *
+ * {@link #append} only queues the message in memory and never blocks, so it may be
+ * called on the UI thread. One committer thread does all of the file I/O: it
+ * writes whatever was appended since its last round and syncs each file touched
+ * once, so a burst of messages shares one fsync (group commit). Only committed
+ * messages are handed out for sending.
+ *
+ * Each peer's queue is bounded; a message that would go past the limit is refused
+ * rather than evicting an older one, so nothing already accepted is ever lost.
+ * On open, a record cut short or corrupted by a crash ends the queue there.
+ */
+public class Outbox implements Closeable {
+    public static final int DEFAULT_MAX_MESSAGES = 5000;
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int FLUSH_BATCH = 256;
+
+    private static final String SUFFIX = ".outbox";
+    private static final int HEAD_LENGTH = 8;
+    private static final int RECORD_OVERHEAD = 8;
+    // How long a flush waits for a full send queue before trying again.
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    /**
+     * Where {@link #flush} sends messages.
+     */
+    public interface Target {
+        /**
+         * @return false if the message can't be taken right now
+         */
+        boolean send(byte[] payload);
+
+        /**
+         * @return false once nothing more should be sent to it
+         */
+        boolean isOpen();
+    }
+
+    private static final class Queue {
+        final String peer;
+        final File file;
+        // Where records begin, after the head offset and the name.
+        final long start;
+        final ArrayDeque<byte[]> messages = new ArrayDeque<>();
+        long bytes;
+        // The first {@code committed} messages are on disk; the rest are not written yet.
+        int committed;
+        int writing;
+        long head;
+        boolean headDirty;
+        RandomAccessFile raf;
+
+        Queue(String peer, File file, long start) {
+            this.peer = peer;
+            this.file = file;
+            this.start = start;
+            head = start;
+        }
+    }
+
+    private final File root;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Map<String, Queue> queues = new HashMap<>();
+    private final Thread committer;
+    private boolean closed;
+    private IOException failure;
+    private long appended;
+    private long refused;
+    private long commits;
+
+    public Outbox(File root) throws IOException {
+        this(root, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Reads back whatever was queued before, then starts the committer thread.
+     */
+    public Outbox(File root, int maxMessages, long maxBytes) throws IOException {
+        this.root = root;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IOException("Can't create " + root);
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX))
+                    recover(file);
+            }
+        }
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "Outbox");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Queues {@code payload} for {@code peer}; it is written to disk shortly after.
+     *
+     * @return false if the peer's queue is full and the message was refused
+     * @throws IOException if the outbox is closed or can no longer write
+     */
+    public synchronized boolean append(String peer, byte[] payload) throws IOException {
+        if (closed)
+            throw new IOException("Outbox closed");
+        if (failure != null)
+            throw failure;
+        Queue queue = queue(peer);
+        if (queue.messages.size() >= maxMessages || queue.bytes + payload.length > maxBytes) {
+            refused++;
+            return false;
+        }
+        queue.messages.add(payload);
+        queue.bytes += payload.length;
+        appended++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return messages waiting for {@code peer}, committed or not
+     */
+    public synchronized int size(String peer) {
+        Queue queue = queues.get(peer);
+        return queue == null ? 0 : queue.messages.size();
+    }
+
+    /**
+     * @return every peer with messages waiting
+     */
+    public synchronized List<String> peers() {
+        ArrayList<String> peers = new ArrayList<>();
+        for (Queue queue : queues.values()) {
+            if (!queue.messages.isEmpty())
+                peers.add(queue.peer);
+        }
+        return peers;
+    }
+
+    /**
+     * Waits until everything appended so far is on disk.
+     */
+    public synchronized void sync() throws IOException, InterruptedException {
+        while (failure == null && !closed && hasUncommitted()) {
+            wait();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Sends the messages queued for {@code peer} to {@code target}, oldest first, and
+     * drops each one the target took. Messages appended meanwhile are sent too; it
+     * returns once the queue is empty or the target closes.
+     *
+     * Messages go out as fast as the target takes them, with no waiting on the
+     * peer in between, so the send queue packs them into large writes.
+     *
+     * @return the number of messages sent
+     */
+    public int flush(String peer, Target target) throws InterruptedException, IOException {
+        int sent = 0;
+        ArrayList<byte[]> batch = new ArrayList<>(FLUSH_BATCH);
+        while (target.isOpen()) {
+            synchronized (this) {
+                Queue queue = queues.get(peer);
+                if (queue == null || queue.messages.isEmpty())
+                    return sent;
+                while (queue.committed == 0 && failure == null && !closed) {
+                    wait();
+                }
+                if (failure != null)
+                    throw failure;
+                if (closed)
+                    return sent;
+                Iterator<byte[]> messages = queue.messages.iterator();
+                for (int i = 0; i < queue.committed && i < FLUSH_BATCH; i++) {
+                    batch.add(messages.next());
+                }
+            }
+            int taken = 0;
+            while (taken < batch.size() && target.isOpen()) {
+                if (target.send(batch.get(taken)))
+                    taken++;
+                else
+                    TimeUnit.NANOSECONDS.sleep(RETRY_NANOS);
+            }
+            remove(peer, taken);
+            sent += taken;
+            batch.clear();
+        }
+        return sent;
+    }
+
+    private synchronized void remove(String peer, int count) {
+        if (count == 0)
+            return;
+        Queue queue = queues.get(peer);
+        for (int i = 0; i < count; i++) {
+            byte[] payload = queue.messages.poll();
+            queue.bytes -= payload.length;
+            queue.head += RECORD_OVERHEAD + payload.length;
+        }
+        queue.committed -= count;
+        queue.headDirty = true;
+        notifyAll();
+    }
+
+    public synchronized Stats stats() {
+        int waiting = 0;
+        for (Queue queue : queues.values()) {
+            waiting += queue.messages.size();
+        }
+        return new Stats(waiting, appended, refused, commits);
+    }
+
+    /**
+     * Commits what is still pending, then closes the files.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException closeFailure = null;
+        synchronized (this) {
+            for (Queue queue : queues.values()) {
+                if (queue.raf == null)
+                    continue;
+                try {
+                    queue.raf.close();
+                } catch (IOException e) {
+                    closeFailure = e;
+                }
+                queue.raf = null;
+            }
+        }
+        if (closeFailure != null)
+            throw closeFailure;
+    }
+
+    private Queue queue(String peer) {
+        Queue queue = queues.get(peer);
+        if (queue == null) {
+            File file = new File(root, ChatHistory.directoryName(peer) + SUFFIX);
+            queue = new Queue(peer, file, HEAD_LENGTH + modifiedUtf8Length(peer));
+            queues.put(peer, queue);
+        }
+        return queue;
+    }
+
+    private boolean hasUncommitted() {
+        for (Queue queue : queues.values()) {
+            if (queue.committed < queue.messages.size() || queue.headDirty)
+                return true;
+        }
+        return false;
+    }
+
+    private void commitLoop() {
+        ArrayList<Queue> dirty = new ArrayList<>();
+        ArrayList<List<byte[]>> pending = new ArrayList<>();
+        ArrayList<Long> heads = new ArrayList<>();
+        while (true) {
+            boolean last;
+            synchronized (this) {
+                while (!closed && !hasUncommitted()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!hasUncommitted())
+                    return;
+                last = closed;
+                // Everything appended since the last round goes out under one sync.
+                for (Queue queue : queues.values()) {
+                    if (queue.committed == queue.messages.size() && !queue.headDirty)
+                        continue;
+                    ArrayList<byte[]> records = new ArrayList<>(queue.messages.size() - queue.committed);
+                    Iterator<byte[]> messages = queue.messages.iterator();
+                    for (int i = 0; messages.hasNext(); i++) {
+                        byte[] payload = messages.next();
+                        if (i >= queue.committed)
+                            records.add(payload);
+                    }
+                    queue.writing = records.size();
+                    queue.headDirty = false;
+                    dirty.add(queue);
+                    pending.add(records);
+                    // Empty once these are written: the file can start over.
+                    heads.add(queue.messages.isEmpty() ? -1L : queue.head);
+                }
+            }
+            IOException error = null;
+            for (int i = 0; i < dirty.size() && error == null; i++) {
+                try {
+                    write(dirty.get(i), pending.get(i), heads.get(i));
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            synchronized (this) {
+                if (error != null) {
+                    error.printStackTrace();
+                    failure = error;
+                } else {
+                    for (Queue queue : dirty) {
+                        queue.committed += queue.writing;
+                        queue.writing = 0;
+                    }
+                    commits++;
+                }
+                notifyAll();
+            }
+            dirty.clear();
+            pending.clear();
+            heads.clear();
+            if (error != null || last)
+                return;
+        }
+    }
+
+    /**
+     * @param head where the queue now starts, or -1 if it is empty
+     */
+    private void write(Queue queue, List<byte[]> records, long head) throws IOException {
+        if (queue.raf == null) {
+            queue.raf = new RandomAccessFile(queue.file, "rw");
+            if (queue.raf.length() < queue.start) {
+                queue.raf.setLength(0);
+                queue.raf.writeLong(queue.start);
+                queue.raf.writeUTF(queue.peer);
+            }
+        }
+        FileChannel channel = queue.raf.getChannel();
+        if (head < 0 && records.isEmpty()) {
+            channel.truncate(queue.start);
+            head = queue.start;
+            synchronized (this) {
+                // Nothing can have been removed meanwhile: only committed messages are.
+                queue.head = queue.start;
+            }
+        }
+        if (!records.isEmpty()) {
+            int length = 0;
+            for (byte[] payload : records) {
+                length += RECORD_OVERHEAD + payload.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            CRC32 crc = new CRC32();
+            for (byte[] payload : records) {
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                buffer.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+            }
+            buffer.flip();
+            long position = channel.size();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+        if (head >= 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEAD_LENGTH);
+            header.putLong(0, head);
+            channel.write(header, 0);
+        }
+        channel.force(false);
+    }
+
+    private void recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long head;
+            String peer;
+            try {
+                head = raf.readLong();
+                peer = raf.readUTF();
+            } catch (IOException e) {
+                // Cut short before its first record was written; there is nothing to send.
+                raf.close();
+                if (!file.delete())
+                    throw new IOException("Can't delete " + file);
+                return;
+            }
+            long start = raf.getFilePointer();
+            long length = raf.length();
+            if (head < start || head > length)
+                head = start;
+            ArrayDeque<byte[]> messages = new ArrayDeque<>();
+            long bytes = 0;
+            long position = head;
+            CRC32 crc = new CRC32();
+            while (position + RECORD_OVERHEAD <= length) {
+                raf.seek(position);
+                int size = raf.readInt();
+                if (size < 0 || position + RECORD_OVERHEAD + size > length)
+                    break;
+                byte[] payload = new byte[size];
+                raf.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, size);
+                if (raf.readInt() != (int) crc.getValue())
+                    break;
+                messages.add(payload);
+                bytes += size;
+                position += RECORD_OVERHEAD + size;
+            }
+            if (messages.isEmpty()) {
+                raf.setLength(start);
+                raf.seek(0);
+                raf.writeLong(start);
+                return;
+            }
+            // Drops a record torn by a crash, so new ones follow the last good one.
+            if (position < length)
+                raf.setLength(position);
+            Queue queue = new Queue(peer, file, start);
+            queue.messages.addAll(messages);
+            queue.bytes = bytes;
+            queue.committed = messages.size();
+            queue.head = head;
+            queues.put(peer, queue);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int modifiedUtf8Length(String s) {
+        int length = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    public static final class Stats {
+        public final int waiting;
+        public final long appended;
+        public final long refused;
+        public final long commits;
+
+        Stats(int waiting, long appended, long refused, long commits) {
+            this.waiting = waiting;
+            this.appended = appended;
+            this.refused = refused;
+            this.commits = commits;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("waiting=%d appended=%d refused=%d commits=%d", waiting, appended, refused, commits);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+
+/**
+ * A message compressor whose state carries over from one message to the next, so
+ * each instance serves exactly one direction of one connection and must see the
+ * messages in the order they are sent.
+ */
+public interface PayloadCodec {
+    int maxCompressedLength(int length);
+
+    /**
+     * @param dest at least {@link #maxCompressedLength} bytes
+     * @return the compressed length
+     */
+    int compress(byte[] src, int offset, int length, byte[] dest);
+
+    /**
+     * @return the decompressed length
+     * @throws IOException if the input is corrupt or does not fit {@code dest}
+     */
+    int decompress(byte[] src, int offset, int length, byte[] dest) throws IOException;
+}
@@ -0,0 +1,41 @@
+package com.example.chatapp;
+
+/**
+ * Encodes outgoing frames for a {@link SendQueue}, compressing text payloads of at
+ * least {@code threshold} bytes into {@link FrameCodec#TYPE_TEXT_COMPRESSED} frames.
+ * Runs on the queue's writer thread, so messages reach the codec in wire order.
+ */
+public class PayloadCompressor {
+    public static final int DEFAULT_THRESHOLD = 16;
+
+    // Leaves room for codec overhead so a compressed frame never exceeds the limit.
+    private static final int MAX_COMPRESSIBLE = FrameCodec.MAX_PAYLOAD_LENGTH - 1024;
+
+    private final PayloadCodec codec;
+    private final int threshold;
+    private final CompressionStats stats;
+    private final byte[] scratch;
+
+    public PayloadCompressor(PayloadCodec codec, int threshold, CompressionStats stats) {
+        this.codec = codec;
+        this.threshold = threshold;
+        this.stats = stats;
+        this.scratch = new byte[codec.maxCompressedLength(MAX_COMPRESSIBLE)];
+    }
+
+    /**
+     * @return the number of bytes written to {@code dest}
+     */
+    public int encode(int type, byte[] payload, byte[] dest, int destOffset) {
+        int length = payload.length;
+        if (type != FrameCodec.TYPE_TEXT || length < threshold || length > MAX_COMPRESSIBLE) {
+            if (type == FrameCodec.TYPE_TEXT)
+                stats.recordSkipped();
+            return FrameCodec.encode(type, payload, 0, length, dest, destOffset);
+        }
+        long start = System.nanoTime();
+        int compressed = codec.compress(payload, 0, length, scratch);
+        stats.recordCompressed(length, compressed, System.nanoTime() - start);
+        return FrameCodec.encode(FrameCodec.TYPE_TEXT_COMPRESSED, scratch, 0, compressed, dest, destOffset);
+    }
+}
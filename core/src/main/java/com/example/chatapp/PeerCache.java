@@ -0,0 +1,70 @@
+package com.example.chatapp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What is remembered about each peer for as long as the app runs: its reliable
+ * session, the endpoint of the last good connection, and the ticket that lets a
+ * reconnect skip the key exchange.
+ */
+public class PeerCache {
+    private final Map<String, Peer> peers = new HashMap<>();
+
+    /**
+     * @return the peer at {@code address}, created on first use
+     */
+    public synchronized Peer get(String address) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            peers.put(address, peer);
+        }
+        return peer;
+    }
+
+    public synchronized Peer find(String address) {
+        return peers.get(address);
+    }
+
+    public static final class Peer {
+        private final String address;
+        private final ReliableSession session = new ReliableSession();
+        private volatile String endpoint;
+        private volatile SecureHandshake.Ticket ticket;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public ReliableSession getSession() {
+            return session;
+        }
+
+        /**
+         * @return the endpoint of the last outgoing connection that worked, or null
+         */
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public void setEndpoint(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * @return the ticket from the last secure handshake, or null
+         */
+        public SecureHandshake.Ticket getTicket() {
+            return ticket;
+        }
+
+        public void setTicket(SecureHandshake.Ticket ticket) {
+            this.ticket = ticket;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+
+/**
+ * The chat protocol over one connection: the hello exchange, compression, reliable
+ * text delivery through a {@link ReliableSession}, file transfer frames and the
+ * {@link Heartbeat}.
+ * {@link #run()} reads until the connection ends; sending goes through a
+ * {@link SendQueue} whose writer runs on the executor.
+ */
+public class PeerChannel {
+    public interface Listener {
+        /**
+         * A new text message. The listener owns {@code buffer} and must release it.
+         */
+        void onMessage(PooledBuffer buffer, int offset, int length);
+    }
+
+    private final Connection connection;
+    private final ReliableSession session;
+    private final BufferPool receivePool;
+    private final Executor executor;
+    private final FileTransfers fileTransfers;
+    private final Listener listener;
+    private final InputStream inputStream;
+    private final SendQueue sendQueue;
+    private final CompressionStats compressionStats = new CompressionStats();
+    private PayloadCodec receiveCodec;
+    private ChatMetrics metrics;
+    private Heartbeat heartbeat;
+    private volatile CaptureWriter capture;
+
+    /**
+     * @param fileTransfers may be null if files are not exchanged
+     */
+    public PeerChannel(Connection connection, ReliableSession session, BufferPool receivePool, Executor executor,
+                       FileTransfers fileTransfers, Listener listener) throws IOException {
+        this.connection = connection;
+        this.session = session;
+        this.receivePool = receivePool;
+        this.executor = executor;
+        this.fileTransfers = fileTransfers;
+        this.listener = listener;
+        this.inputStream = connection.getInputStream();
+        this.sendQueue = new SendQueue(connection.getOutputStream(), new SendQueue.Listener() {
+            @Override
+            public void onSent(int type, byte[] payload) {
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        });
+    }
+
+    /**
+     * Records traffic on this connection into {@code metrics}; call before {@link #run()}.
+     */
+    public void setMetrics(ChatMetrics metrics) {
+        this.metrics = metrics;
+        sendQueue.setMetrics(metrics);
+        if (heartbeat != null)
+            heartbeat.setMetrics(metrics);
+    }
+
+    /**
+     * Records the frames read and written from now on into {@code capture}; null
+     * to stop. May be called while the channel runs.
+     */
+    public void setCapture(CaptureWriter capture) {
+        this.capture = capture;
+        sendQueue.setCapture(capture);
+    }
+
+    /**
+     * Pings a peer that has gone quiet and closes the connection if it stays silent
+     * for {@code timeoutMillis}; call before {@link #run()}. Only peers whose hello
+     * says they answer pings are checked.
+     */
+    public void enableHeartbeat(TimerWheel wheel, long intervalMillis, long timeoutMillis) {
+        heartbeat = new Heartbeat(wheel, intervalMillis, timeoutMillis, new Heartbeat.Listener() {
+            @Override
+            public boolean sendPing(byte[] payload) {
+                return sendQueue.offer(FrameCodec.TYPE_PING, payload);
+            }
+
+            @Override
+            public void onTimeout(long silentNanos) {
+                // Closing unblocks the reader, whose run() then returns.
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+            }
+        });
+        heartbeat.setMetrics(metrics);
+    }
+
+    /**
+     * Blocks until the connection ends.
+     *
+     * @throws IOException if it ended with an error rather than a clean close
+     */
+    public void run() throws IOException {
+        sendQueue.start(executor);
+        session.attach(sendQueue, Handshake.localCapabilities());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    session.replay(sendQueue);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        if (fileTransfers != null)
+            fileTransfers.attach(sendQueue);
+
+        Heartbeat tHeartbeat = heartbeat;
+        FrameDecoder frameDecoder = new FrameDecoder(inputStream, receivePool);
+        try {
+            while (frameDecoder.next()) {
+                int type = frameDecoder.type();
+                if (metrics != null)
+                    metrics.recordFrameIn(FrameCodec.encodedLength(frameDecoder.length()));
+                if (tHeartbeat != null)
+                    tHeartbeat.onReceived();
+                CaptureWriter tCapture = capture;
+                if (tCapture != null)
+                    capture(tCapture, frameDecoder);
+                if (type == FrameCodec.TYPE_TEXT) {
+                    if (session.onData())
+                        deliver(frameDecoder.retainFrame(), frameDecoder.offset(), frameDecoder.length());
+                } else if (type == FrameCodec.TYPE_TEXT_COMPRESSED && receiveCodec != null) {
+                    readCompressed(frameDecoder);
+                } else if (type == FrameCodec.TYPE_ACK) {
+                    long seq = ReliableSession.parseAck(frameDecoder.buffer(), frameDecoder.offset(), frameDecoder.length());
+                    if (seq >= 0)
+                        session.onAck(seq);
+                } else if (type == FrameCodec.TYPE_HELLO) {
+                    onHello(frameDecoder);
+                } else if (type == FrameCodec.TYPE_PING) {
+                    onPing(frameDecoder);
+                } else if (type == FrameCodec.TYPE_PONG) {
+                    if (tHeartbeat != null)
+                        tHeartbeat.onPong(frameDecoder.buffer(), frameDecoder.offset(), frameDecoder.length());
+                } else if (fileTransfers != null) {
+                    fileTransfers.onFrame(type, frameDecoder.buffer(), frameDecoder.offset(), frameDecoder.length());
+                }
+            }
+        } finally {
+            if (tHeartbeat != null)
+                tHeartbeat.stop();
+            session.detach(sendQueue);
+            if (fileTransfers != null)
+                fileTransfers.detach(sendQueue);
+            frameDecoder.close();
+            sendQueue.close();
+        }
+    }
+
+    /**
+     * @return false if the message can't be accepted right now
+     */
+    public boolean send(byte[] payload) {
+        return session.send(payload);
+    }
+
+    /**
+     * @return false once the channel was closed or its connection ended
+     */
+    public boolean isOpen() {
+        return !sendQueue.isClosed();
+    }
+
+    public void close() {
+        sendQueue.close();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public SendQueue.Stats sendStats() {
+        return sendQueue.stats();
+    }
+
+    public CompressionStats compressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * @return null if the heartbeat is not enabled
+     */
+    public Heartbeat.Stats heartbeatStats() {
+        Heartbeat tHeartbeat = heartbeat;
+        return tHeartbeat != null ? tHeartbeat.stats() : null;
+    }
+
+    private void onHello(FrameDecoder frameDecoder) throws IOException {
+        Handshake.Hello hello = Handshake.parse(frameDecoder.buffer(), frameDecoder.offset(), frameDecoder.length());
+        session.onHello(hello);
+        int local = Handshake.localCapabilities();
+        // Each side compresses with its own codec; both pick the same kind.
+        PayloadCodec sendCodec = Handshake.negotiateCodec(local, hello.capabilities);
+        receiveCodec = Handshake.negotiateCodec(local, hello.capabilities);
+        if (sendCodec != null)
+            sendQueue.setCompressor(new PayloadCompressor(sendCodec, PayloadCompressor.DEFAULT_THRESHOLD, compressionStats));
+        if (heartbeat != null && hello.has(Handshake.CAP_HEARTBEAT))
+            heartbeat.start();
+    }
+
+    private void capture(CaptureWriter tCapture, FrameDecoder frameDecoder) {
+        try {
+            tCapture.inbound(frameDecoder.type(), frameDecoder.buffer(), frameDecoder.offset(), frameDecoder.length());
+        } catch (IOException e) {
+            // Losing the capture must not take the connection with it.
+            e.printStackTrace();
+            setCapture(null);
+        }
+    }
+
+    /**
+     * Echoes the ping straight back. If the queue is full the pong is dropped; the
+     * frames ahead of it prove liveness anyway.
+     */
+    private void onPing(FrameDecoder frameDecoder) {
+        if (frameDecoder.length() != Heartbeat.PING_LENGTH)
+            return;
+        byte[] pong = new byte[Heartbeat.PING_LENGTH];
+        System.arraycopy(frameDecoder.buffer(), frameDecoder.offset(), pong, 0, pong.length);
+        sendQueue.offer(FrameCodec.TYPE_PONG, pong);
+    }
+
+    private void readCompressed(FrameDecoder frameDecoder) throws IOException {
+        PooledBuffer buffer;
+        try {
+            buffer = receivePool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a receive buffer");
+        }
+        int length;
+        try {
+            long start = System.nanoTime();
+            length = receiveCodec.decompress(frameDecoder.buffer(), frameDecoder.offset(), frameDecoder.length(), buffer.data());
+            compressionStats.recordDecompressed(System.nanoTime() - start);
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        // Replays are still decompressed so the codec state stays in step.
+        if (session.onData())
+            deliver(buffer, 0, length);
+        else
+            buffer.release();
+    }
+
+    private void deliver(PooledBuffer buffer, int offset, int length) {
+        if (metrics != null)
+            metrics.recordMessageIn();
+        listener.onMessage(buffer, offset, length);
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.chatapp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted buffer owned by a {@link BufferPool}. Several decoded messages
+ * may be slices of the same buffer; it goes back to the pool when the last holder
+ * calls {@link #release()}.
+ */
+public final class PooledBuffer {
+    private final BufferPool pool;
+    private final byte[] data;
+    private final AtomicInteger references = new AtomicInteger();
+
+    PooledBuffer(BufferPool pool, byte[] data) {
+        this.pool = pool;
+        this.data = data;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public PooledBuffer retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0)
+            pool.recycle(this);
+        else if (remaining < 0)
+            throw new IllegalStateException("Buffer released more times than retained");
+    }
+
+    boolean isExclusive() {
+        return references.get() == 1;
+    }
+
+    void acquired() {
+        references.set(1);
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dials a peer until it answers. The first attempt goes out immediately, using the
+ * endpoint cached from the last good connection if there is one; failed attempts
+ * are retried after an exponential, jittered {@link Backoff}. Everything runs as a
+ * task on the executor, so nothing here blocks the caller.
+ *
+ * Only one peer is dialed at a time: a new {@link #connect} replaces the running one.
+ */
+public class Reconnector {
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 250;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    public interface Listener {
+        /**
+         * @param elapsedMillis time since {@link #connect} or {@link #reconnect} was called
+         * @param reconnect     true if this was started by {@link #reconnect}
+         */
+        void onConnected(Connection connection, long elapsedMillis, boolean reconnect);
+
+        void onAttemptFailed(String address, int attempt, IOException e);
+
+        void onGaveUp(String address);
+    }
+
+    private final Transport transport;
+    private final PeerCache peers;
+    private final ExecutorService executor;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+    private final Listener listener;
+    private final Random random = new Random();
+    private Attempt current;
+
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong totalReconnectMillis = new AtomicLong();
+    private final AtomicLong maxReconnectMillis = new AtomicLong();
+    private final AtomicLong lastReconnectMillis = new AtomicLong(-1);
+
+    public Reconnector(Transport transport, PeerCache peers, ExecutorService executor, Listener listener) {
+        this(transport, peers, executor, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MAX_ATTEMPTS, listener);
+    }
+
+    public Reconnector(Transport transport, PeerCache peers, ExecutorService executor, long baseDelayMillis,
+                       long maxDelayMillis, int maxAttempts, Listener listener) {
+        this.transport = transport;
+        this.peers = peers;
+        this.executor = executor;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+        this.listener = listener;
+    }
+
+    public synchronized void connect(String address) {
+        start(address, false);
+    }
+
+    /**
+     * Like {@link #connect}, but counted in the time-to-reconnect statistics.
+     */
+    public synchronized void reconnect(String address) {
+        start(address, true);
+    }
+
+    private void start(String address, boolean reconnect) {
+        cancel();
+        current = new Attempt(address, reconnect, new Backoff(baseDelayMillis, maxDelayMillis, random));
+        current.future = executor.submit(current);
+    }
+
+    public synchronized void cancel() {
+        if (current != null) {
+            current.cancel();
+            current = null;
+        }
+    }
+
+    public synchronized boolean isConnecting() {
+        return current != null;
+    }
+
+    public Stats stats() {
+        return new Stats(reconnects.get(), failedAttempts.get(), lastReconnectMillis.get(),
+                totalReconnectMillis.get(), maxReconnectMillis.get());
+    }
+
+    private synchronized boolean finish(Attempt attempt) {
+        if (current != attempt)
+            return false;
+        current = null;
+        return true;
+    }
+
+    private class Attempt implements Runnable {
+        private final String address;
+        private final boolean reconnect;
+        private final Backoff backoff;
+        private final long startNanos = System.nanoTime();
+        private volatile boolean cancelled;
+        private volatile Connection connection;
+        private Future<?> future;
+
+        Attempt(String address, boolean reconnect, Backoff backoff) {
+            this.address = address;
+            this.reconnect = reconnect;
+            this.backoff = backoff;
+        }
+
+        @Override
+        public void run() {
+            PeerCache.Peer peer = peers.get(address);
+            for (int attempt = 1; !cancelled; attempt++) {
+                String endpoint = peer.getEndpoint();
+                Connection tConnection = null;
+                IOException failure;
+                try {
+                    tConnection = transport.open(address, endpoint);
+                    connection = tConnection;
+                    if (cancelled)
+                        break;
+                    tConnection.connect();
+                    peer.setEndpoint(tConnection.getEndpoint());
+                    failure = null;
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    // Such as a SecurityException once the Bluetooth permission is revoked.
+                    failure = new IOException(e);
+                }
+                if (failure == null) {
+                    if (finish(this)) {
+                        onConnected(tConnection);
+                        return;
+                    }
+                    break;
+                }
+                failedAttempts.incrementAndGet();
+                close(tConnection);
+                // A stale endpoint fails the same way every time; go back to a full lookup.
+                if (endpoint != null)
+                    peer.setEndpoint(null);
+                if (cancelled)
+                    return;
+                listener.onAttemptFailed(address, attempt, failure);
+                if (attempt >= maxAttempts) {
+                    if (finish(this))
+                        listener.onGaveUp(address);
+                    return;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoff.nextDelayMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            close(connection);
+        }
+
+        private void onConnected(Connection tConnection) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            if (reconnect) {
+                reconnects.incrementAndGet();
+                totalReconnectMillis.addAndGet(elapsed);
+                lastReconnectMillis.set(elapsed);
+                long max;
+                while (elapsed > (max = maxReconnectMillis.get()) && !maxReconnectMillis.compareAndSet(max, elapsed)) {
+                }
+            }
+            listener.onConnected(tConnection, elapsed, reconnect);
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null)
+                future.cancel(true);
+            close(connection);
+        }
+
+        private void close(Connection tConnection) {
+            if (tConnection == null)
+                return;
+            try {
+                tConnection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static final class Stats {
+        public final long reconnects;
+        public final long failedAttempts;
+        public final long lastReconnectMillis;
+        public final long totalReconnectMillis;
+        public final long maxReconnectMillis;
+
+        Stats(long reconnects, long failedAttempts, long lastReconnectMillis, long totalReconnectMillis,
+              long maxReconnectMillis) {
+            this.reconnects = reconnects;
+            this.failedAttempts = failedAttempts;
+            this.lastReconnectMillis = lastReconnectMillis;
+            this.totalReconnectMillis = totalReconnectMillis;
+            this.maxReconnectMillis = maxReconnectMillis;
+        }
+
+        public double averageReconnectMillis() {
+            return reconnects == 0 ? 0 : (double) totalReconnectMillis / reconnects;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("reconnects=%d failedAttempts=%d last=%dms avg=%.0fms max=%dms",
+                    reconnects, failedAttempts, lastReconnectMillis, averageReconnectMillis(), maxReconnectMillis);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.chatapp;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reliable, in-order text delivery to one peer across reconnects.
+ *
+ * Text messages are numbered implicitly. Each side's hello announces the oldest
+ * message it still holds and the last one it received from the peer; text frames
+ * on the connection start right after what the peer already has, so neither side
+ * sends anything before the other's hello arrived. Sent messages stay in a
+ * {@link RetransmitRing} until the peer acknowledges them; acknowledgements are
+ * cumulative and ride along with whatever batch the {@link SendQueue} writes next.
+ * When the connection drops, a new connection replays every unacknowledged message
+ * and the receiver drops the ones it already had. A peer without
+ * {@link Handshake#CAP_RELIABLE}, such as a {@link Hub}, gets each message once.
+ *
+ * A session outlives its connections; {@link #attach} and {@link #detach} bracket
+ * each one.
+ */
+public class ReliableSession implements SendQueue.Piggyback {
+    public static final int DEFAULT_RING_BYTES = 256 * 1024;
+    public static final int DEFAULT_RING_MESSAGES = 1024;
+
+    private static final int ACK_FRAME_LENGTH = 10;
+
+    private final long sessionId;
+    private final RetransmitRing ring;
+    private final AtomicBoolean ackScheduled = new AtomicBoolean();
+
+    private SendQueue queue;
+    // Next ring entry to replay on the current connection, -1 once caught up.
+    private long replayNext = -1;
+    private long peerAck;
+    private boolean peerReliable = true;
+    private boolean helloReceived;
+    // What our own hello on the current connection acknowledged.
+    private long helloPeerSessionId;
+    private long helloAckSeq;
+
+    private long peerSessionId;
+    private long receivedSeq;
+    // Number of the next text frame on the current connection, -1 if the peer does not number them.
+    private long expectedSeq = -1;
+    private long ackSent;
+
+    public ReliableSession() {
+        this(DEFAULT_RING_BYTES, DEFAULT_RING_MESSAGES);
+    }
+
+    public ReliableSession(int ringBytes, int ringMessages) {
+        long id = 0;
+        Random random = new Random();
+        while (id == 0) {
+            id = random.nextLong();
+        }
+        sessionId = id;
+        ring = new RetransmitRing(ringBytes, ringMessages);
+    }
+
+    /**
+     * Starts a connection: queues the hello and arms replay of everything still
+     * unacknowledged. Replay itself runs in {@link #replay}.
+     */
+    public synchronized void attach(SendQueue queue, int capabilities) {
+        this.queue = queue;
+        replayNext = ring.firstSeq();
+        expectedSeq = -1;
+        peerReliable = true;
+        helloReceived = false;
+        helloPeerSessionId = peerSessionId;
+        helloAckSeq = receivedSeq;
+        ackSent = receivedSeq;
+        ackScheduled.set(false);
+        queue.setPiggyback(this);
+        queue.offer(FrameCodec.TYPE_HELLO, Handshake.hello(capabilities | Handshake.CAP_RELIABLE, sessionId,
+                ring.firstSeq(), peerSessionId, receivedSeq));
+    }
+
+    public synchronized void detach(SendQueue queue) {
+        if (this.queue != queue)
+            return;
+        this.queue = null;
+        replayNext = -1;
+        expectedSeq = -1;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the peer's hello, then queues the messages it does not have yet on
+     * {@code queue}, followed by anything sent while the replay was running. Blocks,
+     * so run it off the reader thread.
+     */
+    public void replay(SendQueue queue) throws InterruptedException {
+        while (true) {
+            byte[] payload;
+            synchronized (this) {
+                while (this.queue == queue && !helloReceived) {
+                    wait();
+                }
+                if (this.queue != queue)
+                    return;
+                if (replayNext < 0 || replayNext >= ring.nextSeq()) {
+                    replayNext = -1;
+                    ring.releaseThrough(peerReliable ? peerAck : Long.MAX_VALUE);
+                    return;
+                }
+                payload = new byte[ring.length(replayNext)];
+                ring.copy(replayNext, payload, 0);
+                replayNext++;
+            }
+            try {
+                queue.put(FrameCodec.TYPE_TEXT, payload);
+            } catch (IllegalStateException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if too many messages are unacknowledged or the queue is full
+     */
+    public synchronized boolean send(byte[] payload) {
+        // Until the replay is done, messages wait in the ring to keep their order.
+        boolean tracked = peerReliable || replayNext >= 0;
+        if (tracked && !ring.add(payload, 0, payload.length))
+            return false;
+        if (queue == null || replayNext >= 0)
+            return tracked;
+        if (!queue.offer(FrameCodec.TYPE_TEXT, payload)) {
+            if (tracked)
+                ring.removeLast();
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void onHello(Handshake.Hello hello) {
+        helloReceived = true;
+        notifyAll();
+        if (!hello.has(Handshake.CAP_RELIABLE)) {
+            unreliablePeer();
+            return;
+        }
+        if (hello.sessionId != peerSessionId) {
+            peerSessionId = hello.sessionId;
+            receivedSeq = hello.firstSeq - 1;
+        }
+        // Both sides apply the same rule to the two hellos, so they agree on numbering.
+        expectedSeq = hello.sessionId == helloPeerSessionId
+                ? Math.max(hello.firstSeq, helloAckSeq + 1) : hello.firstSeq;
+        if (hello.peerSessionId == sessionId && replayNext >= 0) {
+            peerAck = Math.max(peerAck, hello.ackSeq);
+            replayNext = Math.max(replayNext, hello.ackSeq + 1);
+            ring.releaseThrough(hello.ackSeq);
+        }
+    }
+
+    private void unreliablePeer() {
+        // Nothing will be acknowledged. What is still in the ring goes out once
+        // through replay() and is released after that.
+        peerReliable = false;
+        expectedSeq = -1;
+    }
+
+    /**
+     * Counts a text frame read from the connection.
+     *
+     * @return false if it is a replay of a message delivered before
+     */
+    public boolean onData() {
+        SendQueue tQueue;
+        synchronized (this) {
+            if (!helloReceived) {
+                // Peers from before the hello exchange start sending text straight away.
+                helloReceived = true;
+                notifyAll();
+                unreliablePeer();
+            }
+            if (expectedSeq < 0)
+                return true;
+            long seq = expectedSeq++;
+            if (seq <= receivedSeq)
+                return false;
+            receivedSeq = seq;
+            tQueue = queue;
+        }
+        if (tQueue != null && ackScheduled.compareAndSet(false, true) && !tQueue.nudge())
+            ackScheduled.set(false);
+        return true;
+    }
+
+    public synchronized void onAck(long seq) {
+        peerAck = Math.max(peerAck, seq);
+        // Entries still to be replayed keep their place in the numbering.
+        ring.releaseThrough(replayNext >= 0 ? Math.min(seq, replayNext - 1) : seq);
+    }
+
+    public synchronized int unacknowledged() {
+        return ring.size();
+    }
+
+    @Override
+    public synchronized int append(byte[] dest, int offset) {
+        ackScheduled.set(false);
+        if (peerSessionId == 0 || receivedSeq <= ackSent)
+            return 0;
+        ackSent = receivedSeq;
+        dest[offset] = ACK_FRAME_LENGTH - 2;
+        dest[offset + 1] = FrameCodec.TYPE_ACK;
+        Handshake.putLong(dest, offset + 2, receivedSeq);
+        return ACK_FRAME_LENGTH;
+    }
+
+    static long parseAck(byte[] buffer, int offset, int length) {
+        return length == ACK_FRAME_LENGTH - 2 ? Handshake.getLong(buffer, offset) : -1;
+    }
+}
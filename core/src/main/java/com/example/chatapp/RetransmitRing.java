@@ -0,0 +1,98 @@
+package com.example.chatapp;
+
+/**
+ * Sent messages that the peer has not acknowledged yet, numbered by consecutive
+ * sequence numbers. Message bytes are copied into one preallocated circular byte
+ * array and their positions into parallel int arrays, so adding and releasing
+ * messages allocates nothing.
+ */
+public class RetransmitRing {
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] lengths;
+    private long firstSeq = 1;
+    private int firstSlot;
+    private int count;
+    private int dataStart;
+    private int dataUsed;
+
+    public RetransmitRing(int capacityBytes, int maxMessages) {
+        data = new byte[capacityBytes];
+        offsets = new int[maxMessages];
+        lengths = new int[maxMessages];
+    }
+
+    /**
+     * Copies a message in as sequence number {@link #nextSeq()}.
+     *
+     * @return false if the ring is full
+     */
+    public boolean add(byte[] payload, int offset, int length) {
+        if (count == offsets.length || dataUsed + length > data.length)
+            return false;
+        int slot = (firstSlot + count) % offsets.length;
+        int at = (dataStart + dataUsed) % data.length;
+        offsets[slot] = at;
+        lengths[slot] = length;
+        int first = Math.min(length, data.length - at);
+        System.arraycopy(payload, offset, data, at, first);
+        System.arraycopy(payload, offset + first, data, 0, length - first);
+        dataUsed += length;
+        count++;
+        return true;
+    }
+
+    /**
+     * Takes back the message just added, e.g. because it could not be queued.
+     */
+    public void removeLast() {
+        if (count == 0)
+            throw new IllegalStateException("Ring is empty");
+        count--;
+        dataUsed -= lengths[(firstSlot + count) % offsets.length];
+    }
+
+    /**
+     * Drops all messages up to and including {@code seq}.
+     */
+    public void releaseThrough(long seq) {
+        while (count > 0 && firstSeq <= seq) {
+            dataStart = (dataStart + lengths[firstSlot]) % data.length;
+            dataUsed -= lengths[firstSlot];
+            firstSlot = (firstSlot + 1) % offsets.length;
+            firstSeq++;
+            count--;
+        }
+    }
+
+    public long firstSeq() {
+        return firstSeq;
+    }
+
+    public long nextSeq() {
+        return firstSeq + count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int length(long seq) {
+        return lengths[slot(seq)];
+    }
+
+    public void copy(long seq, byte[] dest, int offset) {
+        int slot = slot(seq);
+        int at = offsets[slot];
+        int length = lengths[slot];
+        int first = Math.min(length, data.length - at);
+        System.arraycopy(data, at, dest, offset, first);
+        System.arraycopy(data, 0, dest, offset + first, length - first);
+    }
+
+    private int slot(long seq) {
+        if (seq < firstSeq || seq >= firstSeq + count)
+            throw new IndexOutOfBoundsException("seq " + seq + " not in [" + firstSeq + ", " + (firstSeq + count) + ")");
+        return (int) ((firstSlot + (seq - firstSeq)) % offsets.length);
+    }
+}
@@ -0,0 +1,720 @@
+package com.example.chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Full-text index over the history of every conversation.
+ *
+ * Each indexed message becomes a document with a consecutive doc id, recorded in
+ * the doc table with its conversation and message id. Its text is split into
+ * lower-case tokens and the doc id is added to each token's posting list.
+ *
+ * New documents collect in memory and are written out every {@code flushDocs}
+ * documents as an immutable segment file: the posting lists delta and varint
+ * encoded, followed by the sorted term dictionary. A query binary-searches each
+ * segment's dictionary and reads only the posting lists it needs. Once there are
+ * more than {@link #MAX_SEGMENTS} segments they are merged into one, so a query
+ * touches few files however long the history grows.
+ *
+ * Documents still in memory are lost if the process dies, which is why
+ * {@link #catchUp} re-reads a conversation's log from {@link #indexedThrough}.
+ */
+public class SearchIndex implements Closeable {
+    public static final int DEFAULT_FLUSH_DOCS = 4096;
+    public static final int MAX_SEGMENTS = 8;
+    public static final int MAX_TOKEN_LENGTH = 32;
+
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String DOCS_FILE = "docs";
+    private static final String PEERS_FILE = "peers";
+    private static final int DOC_RECORD_LENGTH = 12;
+    private static final int SEGMENT_MAGIC = 0x53494731; // "SIG1"
+    private static final int FOOTER_LENGTH = 24;
+    private static final int CATCH_UP_PAGE = 1024;
+
+    public static final class Hit {
+        public final String peer;
+        public final long messageId;
+
+        Hit(String peer, long messageId) {
+            this.peer = peer;
+            this.messageId = messageId;
+        }
+    }
+
+    private final File directory;
+    private final int flushDocs;
+    private final ArrayList<String> peers = new ArrayList<>();
+    private final Map<String, Integer> peerIds = new HashMap<>();
+    private long[] indexedThrough = new long[4];
+    // Live messages of conversations being caught up, indexed once the log has been.
+    private final Map<Integer, List<MessageLog.Entry>> catchingUp = new HashMap<>();
+    private boolean peersChanged;
+
+    private int[] docPeers = new int[1024];
+    private long[] docMessages = new long[1024];
+    private int docCount;
+
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final TreeMap<String, IntList> pending = new TreeMap<>();
+    // The first doc id not yet in a segment.
+    private int pendingFrom;
+    private FileOutputStream docsOut;
+
+    public SearchIndex(File directory) throws IOException {
+        this(directory, DEFAULT_FLUSH_DOCS);
+    }
+
+    public SearchIndex(File directory, int flushDocs) throws IOException {
+        this.directory = directory;
+        this.flushDocs = flushDocs;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+        load();
+    }
+
+    /**
+     * Indexes one message of the conversation with {@code peer}. Messages of a
+     * conversation are indexed in id order, so one at or below
+     * {@link #indexedThrough} is already indexed and is ignored. While
+     * {@link #catchUp} runs for the conversation the message waits until it is done.
+     *
+     * @return false if the message was already indexed
+     */
+    public synchronized boolean add(String peer, long messageId, String text) throws IOException {
+        if (docsOut == null)
+            throw new IOException("Search index is closed");
+        int peerId = peerId(peer);
+        List<MessageLog.Entry> deferred = catchingUp.get(peerId);
+        if (deferred != null) {
+            if (messageId <= indexedThrough[peerId])
+                return false;
+            deferred.add(new MessageLog.Entry(messageId, 0, 0, text));
+            return true;
+        }
+        return index(peerId, messageId, text);
+    }
+
+    private boolean index(int peerId, long messageId, String text) throws IOException {
+        if (messageId <= indexedThrough[peerId])
+            return false;
+        if (docCount == docPeers.length) {
+            docPeers = Arrays.copyOf(docPeers, docCount * 2);
+            docMessages = Arrays.copyOf(docMessages, docCount * 2);
+        }
+        int doc = docCount++;
+        docPeers[doc] = peerId;
+        docMessages[doc] = messageId;
+        indexedThrough[peerId] = messageId;
+        for (String token : tokenize(text)) {
+            IntList postings = pending.get(token);
+            if (postings == null) {
+                postings = new IntList();
+                pending.put(token, postings);
+            }
+            if (postings.size == 0 || postings.last() != doc)
+                postings.add(doc);
+        }
+        if (docCount - pendingFrom >= flushDocs)
+            flush();
+        return true;
+    }
+
+    /**
+     * @return the highest message id indexed for {@code peer}, or -1
+     */
+    public synchronized long indexedThrough(String peer) {
+        Integer peerId = peerIds.get(peer);
+        return peerId != null ? indexedThrough[peerId] : -1;
+    }
+
+    /**
+     * Indexes the messages of {@code log} that were appended after the last one
+     * indexed for {@code peer}, such as those lost when the process died.
+     *
+     * @return the number of messages indexed
+     */
+    public int catchUp(String peer, MessageLog log) throws IOException {
+        int peerId;
+        long from;
+        synchronized (this) {
+            if (docsOut == null)
+                throw new IOException("Search index is closed");
+            peerId = peerId(peer);
+            if (catchingUp.containsKey(peerId))
+                return 0;
+            // Messages added meanwhile are newer than the ones read here, so they
+            // wait; indexed first, they would hide the older ones from this loop.
+            catchingUp.put(peerId, new ArrayList<MessageLog.Entry>());
+            from = Math.max(indexedThrough[peerId] + 1, log.firstId());
+        }
+        long end = log.nextId();
+        int added = 0;
+        try {
+            while (from < end) {
+                List<MessageLog.Entry> entries = log.read(from, (int) Math.min(CATCH_UP_PAGE, end - from));
+                if (entries.isEmpty())
+                    break;
+                synchronized (this) {
+                    for (MessageLog.Entry entry : entries) {
+                        if (index(peerId, entry.id, entry.text))
+                            added++;
+                    }
+                }
+                from = entries.get(entries.size() - 1).id + 1;
+            }
+        } finally {
+            synchronized (this) {
+                List<MessageLog.Entry> deferred = catchingUp.remove(peerId);
+                Collections.sort(deferred, new Comparator<MessageLog.Entry>() {
+                    @Override
+                    public int compare(MessageLog.Entry a, MessageLog.Entry b) {
+                        return Long.compare(a.id, b.id);
+                    }
+                });
+                if (docsOut != null) {
+                    for (MessageLog.Entry entry : deferred) {
+                        index(peerId, entry.id, entry.text);
+                    }
+                }
+            }
+        }
+        return added;
+    }
+
+    public synchronized int size() {
+        return docCount;
+    }
+
+    /**
+     * Finds messages containing every token of {@code query}. While the last token is
+     * still being typed it also matches as a prefix, so results can follow the
+     * user's typing; a space after it makes it a whole word.
+     *
+     * @param peer null to search every conversation
+     * @return up to {@code limit} hits, newest first
+     */
+    public synchronized List<Hit> search(String query, String peer, int limit) throws IOException {
+        if (docsOut == null)
+            throw new IOException("Search index is closed");
+        List<String> tokens = tokenize(query);
+        ArrayList<Hit> hits = new ArrayList<>();
+        if (tokens.isEmpty())
+            return hits;
+        int peerId = -1;
+        if (peer != null) {
+            Integer id = peerIds.get(peer);
+            if (id == null)
+                return hits;
+            peerId = id;
+        }
+        boolean typing = Character.isLetterOrDigit(query.charAt(query.length() - 1));
+        // Rare tokens first would be cheaper, but the prefix is usually the widest.
+        IntList matches = null;
+        for (int i = 0; i < tokens.size(); i++) {
+            IntList docs = docsFor(tokens.get(i), typing && i == tokens.size() - 1);
+            matches = matches == null ? docs : intersect(matches, docs);
+            if (matches.size == 0)
+                return hits;
+        }
+        for (int i = matches.size - 1; i >= 0 && hits.size() < limit; i--) {
+            int doc = matches.values[i];
+            if (peerId < 0 || docPeers[doc] == peerId)
+                hits.add(new Hit(peers.get(docPeers[doc]), docMessages[doc]));
+        }
+        return hits;
+    }
+
+    /**
+     * Writes the documents held in memory to a new segment.
+     */
+    public synchronized void flush() throws IOException {
+        if (pendingFrom == docCount || docsOut == null)
+            return;
+        byte[] record = new byte[DOC_RECORD_LENGTH];
+        BufferedOutputStream out = new BufferedOutputStream(docsOut);
+        for (int doc = pendingFrom; doc < docCount; doc++) {
+            putInt(record, 0, docPeers[doc]);
+            Handshake.putLong(record, 4, docMessages[doc]);
+            out.write(record);
+        }
+        out.flush();
+        if (peersChanged)
+            savePeers();
+
+        SegmentWriter writer = new SegmentWriter(directory, pendingFrom, docCount);
+        try {
+            for (Map.Entry<String, IntList> entry : pending.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            segments.add(writer.finish());
+        } finally {
+            writer.close();
+        }
+        pending.clear();
+        pendingFrom = docCount;
+        if (segments.size() > MAX_SEGMENTS)
+            merge();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (docsOut == null)
+            return;
+        try {
+            flush();
+        } finally {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+            docsOut.close();
+            docsOut = null;
+        }
+    }
+
+    /**
+     * Lower-cased runs of letters and digits, each at most
+     * {@link #MAX_TOKEN_LENGTH} characters, without repeats.
+     */
+    static List<String> tokenize(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        ArrayList<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean inToken = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                String token = lower.substring(start, Math.min(i, start + MAX_TOKEN_LENGTH));
+                if (!tokens.contains(token))
+                    tokens.add(token);
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private int peerId(String peer) {
+        Integer id = peerIds.get(peer);
+        if (id == null) {
+            id = peers.size();
+            peers.add(peer);
+            peerIds.put(peer, id);
+            if (id == indexedThrough.length)
+                indexedThrough = Arrays.copyOf(indexedThrough, id * 2);
+            indexedThrough[id] = -1;
+            peersChanged = true;
+        }
+        return id;
+    }
+
+    /**
+     * @return the sorted doc ids for {@code token}, or for every token it prefixes
+     */
+    private IntList docsFor(String token, boolean prefix) throws IOException {
+        IntList docs = new IntList();
+        if (!prefix) {
+            for (Segment segment : segments) {
+                int i = Arrays.binarySearch(segment.terms, token);
+                if (i >= 0)
+                    segment.readPostings(i, i + 1, docs, null);
+            }
+            IntList postings = pending.get(token);
+            if (postings != null)
+                docs.addAll(postings);
+            return docs;
+        }
+        // A short prefix can match thousands of terms. Their lists are next to each
+        // other in a segment, so they are read at once, and unioned in a bitset
+        // rather than sorted.
+        BitSet union = new BitSet(docCount);
+        for (Segment segment : segments) {
+            int from = segment.lowerBound(token);
+            int to = from;
+            while (to < segment.terms.length && segment.terms[to].startsWith(token)) {
+                to++;
+            }
+            segment.readPostings(from, to, docs, union);
+        }
+        SortedMap<String, IntList> matching = pending.subMap(token, token + Character.MAX_VALUE);
+        for (IntList postings : matching.values()) {
+            for (int i = 0; i < postings.size; i++) {
+                union.set(postings.values[i]);
+            }
+        }
+        for (int doc = union.nextSetBit(0); doc >= 0; doc = union.nextSetBit(doc + 1)) {
+            docs.add(doc);
+        }
+        return docs;
+    }
+
+    private static IntList intersect(IntList a, IntList b) {
+        IntList result = new IntList();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            int x = a.values[i];
+            int y = b.values[j];
+            if (x == y) {
+                result.add(x);
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites every segment as one. Segments hold consecutive doc ranges, so a
+     * term's merged posting list is its lists appended in segment order.
+     */
+    private void merge() throws IOException {
+        Segment first = segments.get(0);
+        Segment last = segments.get(segments.size() - 1);
+        SegmentWriter writer = new SegmentWriter(directory, first.firstDoc, last.endDoc);
+        Segment merged;
+        try {
+            int[] cursors = new int[segments.size()];
+            IntList docs = new IntList();
+            while (true) {
+                String term = null;
+                for (int s = 0; s < segments.size(); s++) {
+                    Segment segment = segments.get(s);
+                    if (cursors[s] < segment.terms.length
+                            && (term == null || segment.terms[cursors[s]].compareTo(term) < 0))
+                        term = segment.terms[cursors[s]];
+                }
+                if (term == null)
+                    break;
+                docs.size = 0;
+                for (int s = 0; s < segments.size(); s++) {
+                    Segment segment = segments.get(s);
+                    if (cursors[s] < segment.terms.length && segment.terms[cursors[s]].equals(term)) {
+                        segment.readPostings(cursors[s], cursors[s] + 1, docs, null);
+                        cursors[s]++;
+                    }
+                }
+                writer.add(term, docs);
+            }
+            merged = writer.finish();
+        } finally {
+            writer.close();
+        }
+        for (Segment segment : segments) {
+            segment.close();
+            segment.file.delete();
+        }
+        segments.clear();
+        segments.add(merged);
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        ArrayList<Segment> found = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(TEMP_SUFFIX))
+                    file.delete();
+                else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    found.add(new Segment(file));
+            }
+        }
+        // A merge that died before deleting its inputs leaves segments covered by the merged one.
+        Collections.sort(found, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                if (a.firstDoc != b.firstDoc)
+                    return a.firstDoc < b.firstDoc ? -1 : 1;
+                return a.endDoc > b.endDoc ? -1 : a.endDoc < b.endDoc ? 1 : 0;
+            }
+        });
+        int end = 0;
+        for (Segment segment : found) {
+            if (segment.firstDoc >= end) {
+                if (segment.firstDoc != end)
+                    throw new IOException("Search index is missing documents " + end + " to " + segment.firstDoc);
+                segments.add(segment);
+                end = segment.endDoc;
+            } else {
+                segment.close();
+                segment.file.delete();
+            }
+        }
+
+        loadPeers();
+        File docsFile = new File(directory, DOCS_FILE);
+        long docsLength = docsFile.exists() ? docsFile.length() : 0;
+        if (docsLength < (long) end * DOC_RECORD_LENGTH)
+            throw new IOException("Search index doc table is short");
+        if (docsLength > (long) end * DOC_RECORD_LENGTH) {
+            RandomAccessFile raf = new RandomAccessFile(docsFile, "rw");
+            try {
+                raf.setLength((long) end * DOC_RECORD_LENGTH);
+            } finally {
+                raf.close();
+            }
+        }
+        docPeers = new int[Math.max(1024, end)];
+        docMessages = new long[Math.max(1024, end)];
+        docsOut = new FileOutputStream(docsFile, true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(docsFile), 64 * 1024));
+        try {
+            for (int doc = 0; doc < end; doc++) {
+                int peerId = in.readInt();
+                long messageId = in.readLong();
+                if (peerId < 0 || peerId >= peers.size())
+                    throw new IOException("Search index doc " + doc + " has unknown conversation " + peerId);
+                docPeers[doc] = peerId;
+                docMessages[doc] = messageId;
+                indexedThrough[peerId] = Math.max(indexedThrough[peerId], messageId);
+            }
+        } finally {
+            in.close();
+        }
+        docCount = end;
+        pendingFrom = end;
+    }
+
+    private void loadPeers() throws IOException {
+        File file = new File(directory, PEERS_FILE);
+        if (!file.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                peerId(in.readUTF());
+            }
+        } finally {
+            in.close();
+        }
+        peersChanged = false;
+    }
+
+    private void savePeers() throws IOException {
+        File file = new File(directory, PEERS_FILE);
+        File temp = new File(directory, PEERS_FILE + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(peers.size());
+            for (String peer : peers) {
+                out.writeUTF(peer);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Can't replace " + file);
+        }
+        peersChanged = false;
+    }
+
+    private static void putInt(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) (value >>> 24);
+        dest[offset + 1] = (byte) (value >>> 16);
+        dest[offset + 2] = (byte) (value >>> 8);
+        dest[offset + 3] = (byte) value;
+    }
+
+    /**
+     * One segment file: posting lists, then the dictionary, then a fixed footer
+     * (dictionary offset, term count, doc range, magic).
+     */
+    private static final class Segment {
+        final File file;
+        final int firstDoc;
+        final int endDoc;
+        final String[] terms;
+        final long[] offsets;
+        private final RandomAccessFile raf;
+        private byte[] buffer = new byte[256];
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                if (length < FOOTER_LENGTH)
+                    throw new IOException("Truncated search segment " + file);
+                raf.seek(length - FOOTER_LENGTH);
+                long dictionaryOffset = raf.readLong();
+                int termCount = raf.readInt();
+                firstDoc = raf.readInt();
+                endDoc = raf.readInt();
+                if (raf.readInt() != SEGMENT_MAGIC || dictionaryOffset < 0 || dictionaryOffset > length - FOOTER_LENGTH)
+                    throw new IOException("Not a search segment: " + file);
+                byte[] dictionary = new byte[(int) (length - FOOTER_LENGTH - dictionaryOffset)];
+                raf.seek(dictionaryOffset);
+                raf.readFully(dictionary);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(dictionary));
+                terms = new String[termCount];
+                // One offset per term plus the end of the last list.
+                offsets = new long[termCount + 1];
+                for (int i = 0; i < termCount; i++) {
+                    terms[i] = in.readUTF();
+                    offsets[i + 1] = offsets[i] + in.readInt();
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        int lowerBound(String prefix) {
+            int i = Arrays.binarySearch(terms, prefix);
+            return i >= 0 ? i : -i - 1;
+        }
+
+        /**
+         * Reads the doc ids of terms {@code from} to {@code to}, appending them to
+         * {@code docs} or, if {@code union} is not null, setting them in it.
+         */
+        void readPostings(int from, int to, IntList docs, BitSet union) throws IOException {
+            if (from >= to)
+                return;
+            int length = (int) (offsets[to] - offsets[from]);
+            if (buffer.length < length)
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            raf.seek(offsets[from]);
+            raf.readFully(buffer, 0, length);
+            int position = 0;
+            for (int i = from; i < to; i++) {
+                int end = (int) (offsets[i + 1] - offsets[from]);
+                int doc = firstDoc;
+                while (position < end) {
+                    int delta = 0;
+                    int shift = 0;
+                    int b;
+                    do {
+                        b = buffer[position++];
+                        delta |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+                    doc += delta;
+                    if (union != null)
+                        union.set(doc);
+                    else
+                        docs.add(doc);
+                }
+            }
+        }
+
+        void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    private static final class SegmentWriter {
+        private final File file;
+        private final File temp;
+        private final int firstDoc;
+        private final int endDoc;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+        private final DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+        private byte[] encoded = new byte[256];
+        private long position;
+        private int termCount;
+        private boolean finished;
+
+        SegmentWriter(File directory, int firstDoc, int endDoc) throws IOException {
+            String name = SEGMENT_PREFIX + firstDoc + "-" + endDoc + SEGMENT_SUFFIX;
+            this.file = new File(directory, name);
+            this.temp = new File(directory, name + TEMP_SUFFIX);
+            this.firstDoc = firstDoc;
+            this.endDoc = endDoc;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        }
+
+        void add(String term, IntList docs) throws IOException {
+            if (encoded.length < docs.size * 5)
+                encoded = new byte[docs.size * 5];
+            int length = 0;
+            int previous = firstDoc;
+            for (int i = 0; i < docs.size; i++) {
+                length = FrameCodec.putVarint(encoded, length, docs.values[i] - previous);
+                previous = docs.values[i];
+            }
+            out.write(encoded, 0, length);
+            dictionary.writeUTF(term);
+            dictionary.writeInt(length);
+            position += length;
+            termCount++;
+        }
+
+        Segment finish() throws IOException {
+            dictionaryBytes.writeTo(out);
+            out.writeLong(position);
+            out.writeInt(termCount);
+            out.writeInt(firstDoc);
+            out.writeInt(endDoc);
+            out.writeInt(SEGMENT_MAGIC);
+            out.close();
+            finished = true;
+            if (!temp.renameTo(file))
+                throw new IOException("Can't create " + file);
+            return new Segment(file);
+        }
+
+        void close() throws IOException {
+            if (!finished) {
+                out.close();
+                temp.delete();
+            }
+        }
+    }
+
+    static final class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addAll(IntList other) {
+            if (size + other.size > values.length)
+                values = Arrays.copyOf(values, Math.max(size + other.size, size * 2));
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        int last() {
+            return values[size - 1];
+        }
+    }
+}
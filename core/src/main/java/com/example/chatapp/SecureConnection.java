@@ -0,0 +1,261 @@
+package com.example.chatapp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link Connection} whose bytes travel as AES-GCM records, set up by a
+ * {@link SecureHandshake}.
+ *
+ * Each write becomes one record, or several of at most {@link #MAX_RECORD_PLAINTEXT}
+ * bytes: a two-byte length, the ciphertext and a 16-byte tag. Since the
+ * {@link SendQueue} writes a whole batch at a time, a record usually carries many
+ * frames. The nonce is a per-direction salt followed by a record counter, so it is
+ * never sent and a replayed, dropped or reordered record fails authentication.
+ *
+ * Encryption writes the ciphertext straight into the record buffer that goes to the
+ * socket. Decryption works in place in the record buffer, or straight into the
+ * reader's buffer when a whole record fits, which is the common case with
+ * {@link FrameDecoder}'s large reads.
+ *
+ * {@link GCMParameterSpec} and {@link AEADBadTagException} need Android 4.4.
+ */
+public class SecureConnection implements Connection {
+    public static final int MAX_RECORD_PLAINTEXT = 16 * 1024;
+    static final int KEY_LENGTH = 16;
+    static final int SALT_LENGTH = 4;
+    static final int TAG_LENGTH = 16;
+    private static final int HEADER_LENGTH = 2;
+
+    private final Connection connection;
+    private final RecordInputStream inputStream;
+    private final RecordOutputStream outputStream;
+    private final boolean resumed;
+    private final String peerFingerprint;
+
+    SecureConnection(Connection connection, byte[] writeKey, byte[] writeSalt, byte[] readKey, byte[] readSalt,
+                     boolean resumed, String peerFingerprint) throws IOException {
+        this.connection = connection;
+        this.inputStream = new RecordInputStream(connection.getInputStream(), readKey, readSalt);
+        this.outputStream = new RecordOutputStream(connection.getOutputStream(), writeKey, writeSalt);
+        this.resumed = resumed;
+        this.peerFingerprint = peerFingerprint;
+    }
+
+    /**
+     * @return true if the handshake reused a session ticket instead of a key exchange
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return the fingerprint of the identity key the peer proved it holds, or null
+     * if the session was resumed from a ticket
+     */
+    public String getPeerFingerprint() {
+        return peerFingerprint;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        connection.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public String getRemoteName() {
+        return connection.getRemoteName();
+    }
+
+    @Override
+    public String getEndpoint() {
+        return connection.getEndpoint();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    private static Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM is not available", e);
+        }
+    }
+
+    private static void nonce(byte[] iv, long counter) {
+        Handshake.putLong(iv, SALT_LENGTH, counter);
+    }
+
+    static final class RecordOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] iv = new byte[SALT_LENGTH + 8];
+        private final byte[] record = new byte[HEADER_LENGTH + MAX_RECORD_PLAINTEXT + TAG_LENGTH];
+        private long counter;
+
+        RecordOutputStream(OutputStream out, byte[] key, byte[] salt) throws IOException {
+            this.out = out;
+            this.cipher = newCipher();
+            this.key = new SecretKeySpec(key, "AES");
+            System.arraycopy(salt, 0, iv, 0, SALT_LENGTH);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, MAX_RECORD_PLAINTEXT);
+                int sealed;
+                try {
+                    nonce(iv, counter++);
+                    cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+                    sealed = cipher.doFinal(b, off, chunk, record, HEADER_LENGTH);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Can't encrypt record", e);
+                }
+                record[0] = (byte) (sealed >>> 8);
+                record[1] = (byte) sealed;
+                out.write(record, 0, HEADER_LENGTH + sealed);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static final class RecordInputStream extends InputStream {
+        private final InputStream in;
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final byte[] iv = new byte[SALT_LENGTH + 8];
+        private final byte[] record = new byte[MAX_RECORD_PLAINTEXT + TAG_LENGTH];
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private long counter;
+        // Decrypted bytes not yet read, in record[position, limit).
+        private int position;
+        private int limit;
+
+        RecordInputStream(InputStream in, byte[] key, byte[] salt) throws IOException {
+            this.in = in;
+            this.cipher = newCipher();
+            this.key = new SecretKeySpec(key, "AES");
+            System.arraycopy(salt, 0, iv, 0, SALT_LENGTH);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (position == limit) {
+                int sealed = readRecord();
+                if (sealed < 0)
+                    return -1;
+                if (len >= sealed - TAG_LENGTH) {
+                    int opened = open(sealed, b, off);
+                    if (opened > 0)
+                        return opened;
+                } else {
+                    limit = open(sealed, record, 0);
+                    position = 0;
+                }
+            }
+            int read = Math.min(len, limit - position);
+            System.arraycopy(record, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public synchronized int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /**
+         * @return the sealed length now in {@link #record}, or -1 at the end of the stream
+         */
+        private int readRecord() throws IOException {
+            int first = in.read(header, 0, HEADER_LENGTH);
+            if (first < 0)
+                return -1;
+            readFully(header, first, HEADER_LENGTH - first);
+            int sealed = (header[0] & 0xFF) << 8 | (header[1] & 0xFF);
+            if (sealed < TAG_LENGTH || sealed > record.length)
+                throw new IOException("Bad record length " + sealed);
+            readFully(record, 0, sealed);
+            return sealed;
+        }
+
+        private void readFully(byte[] dest, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = in.read(dest, offset, length);
+                if (n < 0)
+                    throw new EOFException("Stream ended inside a record");
+                offset += n;
+                length -= n;
+            }
+        }
+
+        private int open(int sealed, byte[] dest, int offset) throws IOException {
+            try {
+                nonce(iv, counter++);
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+                return cipher.doFinal(record, 0, sealed, dest, offset);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Record failed authentication", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Can't decrypt record", e);
+            }
+        }
+    }
+}
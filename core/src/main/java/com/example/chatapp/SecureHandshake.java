@@ -0,0 +1,558 @@
+package com.example.chatapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated key agreement run on a new connection before any chat frame, which
+ * turns it into a {@link SecureConnection}.
+ *
+ * A full handshake takes one and a half round trips. The dialing side sends a
+ * nonce, an ephemeral P-256 key and its {@link Identity} key. The answer carries the
+ * same, signed over the transcript, and the dialer then signs the whole transcript.
+ * Each side checks the other's identity key against its {@link TrustStore}. Record
+ * keys come from HKDF-SHA256 over the ECDH secret and the transcript.
+ *
+ * The handshake also leaves both sides with a {@link Ticket} on the peer's
+ * {@link PeerCache.Peer}. A reconnect presents the ticket and, if the other side
+ * holds the same one, both derive fresh keys from its secret and new nonces, with
+ * HMACs in place of signatures and no asymmetric operation. Each ticket is replaced
+ * after use. A side that doesn't have the ticket asks for a full handshake instead.
+ *
+ * Every message is a magic number, a two-byte length and the message itself; a peer
+ * that predates this handshake fails the magic check and is dropped. Hosts that
+ * relay in the clear, {@link Hub} and {@link NioRelay}, answer the first message
+ * with a plaintext notice instead, and the connection goes on unencrypted.
+ */
+public class SecureHandshake {
+    public static final int MAX_MESSAGE_LENGTH = 1024;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private static final int MAGIC = 0x43485331; // "CHS1"
+    private static final int MSG_FULL = 1;
+    private static final int MSG_RESUME = 2;
+    private static final int MSG_RETRY = 3;
+    private static final int MSG_FINISHED = 4;
+    private static final int MSG_PLAINTEXT = 5;
+    private static final int HEADER_LENGTH = 6;
+    private static final int NONCE_LENGTH = 16;
+    private static final int TICKET_ID_LENGTH = 16;
+    private static final int SECRET_LENGTH = 32;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The peer presented a different identity key from the one pinned for its address.
+     */
+    public static class IdentityChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final String address;
+        public final String fingerprint;
+
+        IdentityChangedException(String address, String fingerprint) {
+            super("Identity of " + address + " changed to " + fingerprint);
+            this.address = address;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * What both sides keep to resume a session without a key exchange.
+     */
+    public static final class Ticket {
+        final byte[] id;
+        final byte[] secret;
+        final String peerFingerprint;
+
+        Ticket(byte[] id, byte[] secret, String peerFingerprint) {
+            this.id = id;
+            this.secret = secret;
+            this.peerFingerprint = peerFingerprint;
+        }
+    }
+
+    private final Identity identity;
+    private final TrustStore trustStore;
+    private final SecureRandom random = new SecureRandom();
+    private volatile TimerWheel wheel;
+    private volatile long timeoutMillis;
+
+    public SecureHandshake(Identity identity, TrustStore trustStore) {
+        this.identity = identity;
+        this.trustStore = trustStore;
+    }
+
+    /**
+     * Closes the connection of a handshake that isn't done within
+     * {@code timeoutMillis}, so a silent peer can't stall it forever.
+     */
+    public void setTimeout(TimerWheel wheel, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.wheel = wheel;
+    }
+
+    /**
+     * Runs the handshake on a fresh connection. Exactly one side must be the
+     * initiator; only the initiator offers a ticket.
+     *
+     * @return null if the initiator reached a host that relays in the clear, such
+     * as a {@link Hub}; the connection is then ready for unencrypted frames
+     * @throws IdentityChangedException if the peer's identity doesn't match its pin
+     * @throws SocketTimeoutException if the handshake took longer than the timeout
+     */
+    public SecureConnection run(final Connection connection, boolean initiator, PeerCache.Peer peer)
+            throws IOException {
+        TimerWheel tWheel = wheel;
+        TimerWheel.Timeout deadline = null;
+        if (tWheel != null) {
+            deadline = tWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        SecureConnection secured;
+        try {
+            secured = handshake(connection, initiator, peer);
+        } catch (IOException e) {
+            if (deadline != null && !deadline.cancel())
+                throw timedOut(e);
+            throw e;
+        }
+        if (deadline != null && !deadline.cancel())
+            throw timedOut(null);
+        return secured;
+    }
+
+    private SecureConnection handshake(Connection connection, boolean initiator, PeerCache.Peer peer)
+            throws IOException {
+        Channel channel = new Channel(connection);
+        try {
+            if (!initiator)
+                return respond(connection, channel, peer);
+            Ticket ticket = peer.getTicket();
+            if (ticket != null) {
+                SecureConnection resumed = resume(connection, channel, peer, ticket);
+                if (resumed != null)
+                    return resumed;
+            }
+            return full(connection, channel, peer);
+        } catch (PlaintextHostException e) {
+            if (!initiator)
+                throw new IOException("Unexpected handshake message " + MSG_PLAINTEXT);
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Handshake failed", e);
+        }
+    }
+
+    private static SocketTimeoutException timedOut(IOException cause) {
+        SocketTimeoutException e = new SocketTimeoutException("Handshake timed out");
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * For a host that relays in the clear: reads the handshake message a dialing
+     * peer opens with, if it does. No frame starts with the first two bytes of the
+     * magic, so anything else is pushed back untouched.
+     *
+     * @param in must allow two bytes to be unread
+     * @return true if the peer must be sent {@link #plaintextReply()} before any frame
+     */
+    static boolean skipOpening(PushbackInputStream in) throws IOException {
+        int first = in.read();
+        if (first != (MAGIC >>> 24)) {
+            if (first >= 0)
+                in.unread(first);
+            return false;
+        }
+        int second = in.read();
+        if (second != (MAGIC >>> 16 & 0xFF)) {
+            if (second >= 0)
+                in.unread(second);
+            in.unread(first);
+            return false;
+        }
+        DataInputStream data = new DataInputStream(in);
+        if (data.readUnsignedShort() != (MAGIC & 0xFFFF))
+            throw new IOException("Peer does not speak the secure handshake");
+        data.readFully(new byte[checkLength(data.readUnsignedShort())]);
+        return true;
+    }
+
+    /**
+     * {@link #skipOpening} for the first bytes a peer sent, at the buffer's position.
+     *
+     * @return the length of the opening handshake message, 0 if the peer didn't open
+     * with one, or -1 if more bytes are needed to tell
+     */
+    static int openingLength(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        if (buffer.remaining() < 2)
+            return -1;
+        if (buffer.getShort(position) != (short) (MAGIC >>> 16))
+            return 0;
+        if (buffer.remaining() < HEADER_LENGTH)
+            return -1;
+        if (buffer.getShort(position + 2) != (short) MAGIC)
+            throw new IOException("Peer does not speak the secure handshake");
+        int length = HEADER_LENGTH + checkLength(buffer.getShort(position + 4) & 0xFFFF);
+        return buffer.remaining() < length ? -1 : length;
+    }
+
+    /**
+     * @return the answer that tells a dialing peer the connection stays unencrypted
+     */
+    static byte[] plaintextReply() {
+        return frame(new byte[]{MSG_PLAINTEXT});
+    }
+
+    private SecureConnection full(Connection connection, Channel channel, PeerCache.Peer peer)
+            throws IOException, GeneralSecurityException {
+        KeyPair ephemeral = Identity.generateKeyPair();
+        byte[] nonce = nonce();
+        byte[] hello = fullHello(nonce, ephemeral, null);
+        channel.send(hello);
+
+        byte[] reply = channel.receive();
+        Fields fields = new Fields(reply, MSG_FULL);
+        byte[] peerNonce = fields.next(NONCE_LENGTH);
+        byte[] peerEphemeral = fields.nextPrefixed();
+        byte[] peerIdentity = fields.nextPrefixed();
+        int signedLength = fields.position();
+        byte[] peerSignature = fields.nextPrefixed();
+        fields.end();
+        if (!Identity.verify(peerIdentity, hash(hello, slice(reply, signedLength)), peerSignature))
+            throw new IOException("Bad handshake signature");
+        checkTrust(connection, peerIdentity);
+
+        byte[] finished = prefixed(MSG_FINISHED, identity.sign(hash(hello, reply)));
+        channel.send(finished);
+
+        byte[] prk = hmac(concat(nonce, peerNonce), agree(ephemeral, peerEphemeral));
+        return established(connection, peer, prk, hash(hello, reply, finished), true, false,
+                Identity.fingerprint(peerIdentity));
+    }
+
+    /**
+     * @return null if the responder asked for a full handshake
+     */
+    private SecureConnection resume(Connection connection, Channel channel, PeerCache.Peer peer, Ticket ticket)
+            throws IOException, GeneralSecurityException {
+        byte[] nonce = nonce();
+        byte[] hello = concat(new byte[]{MSG_RESUME}, nonce, ticket.id);
+        channel.send(hello);
+
+        byte[] reply = channel.receive();
+        if (reply.length == 1 && reply[0] == MSG_RETRY) {
+            peer.setTicket(null);
+            return null;
+        }
+        Fields fields = new Fields(reply, MSG_RESUME);
+        byte[] peerNonce = fields.next(NONCE_LENGTH);
+        int macedLength = fields.position();
+        byte[] peerMac = fields.next(SECRET_LENGTH);
+        fields.end();
+        byte[] prk = hmac(concat(nonce, peerNonce), ticket.secret);
+        byte[] expected = hmac(expand(prk, "responder finished", null, SECRET_LENGTH), hash(hello, slice(reply, macedLength)));
+        if (!MessageDigest.isEqual(expected, peerMac)) {
+            peer.setTicket(null);
+            throw new IOException("Session ticket rejected");
+        }
+
+        byte[] finished = concat(new byte[]{MSG_FINISHED},
+                hmac(expand(prk, "initiator finished", null, SECRET_LENGTH), hash(hello, reply)));
+        channel.send(finished);
+        return established(connection, peer, prk, hash(hello, reply, finished), true, true, ticket.peerFingerprint);
+    }
+
+    private SecureConnection respond(Connection connection, Channel channel, PeerCache.Peer peer)
+            throws IOException, GeneralSecurityException {
+        byte[] hello = channel.receive();
+        if (hello.length > 0 && hello[0] == MSG_RESUME) {
+            Fields fields = new Fields(hello, MSG_RESUME);
+            byte[] peerNonce = fields.next(NONCE_LENGTH);
+            byte[] ticketId = fields.next(TICKET_ID_LENGTH);
+            fields.end();
+            Ticket ticket = peer.getTicket();
+            if (ticket != null && MessageDigest.isEqual(ticket.id, ticketId))
+                return respondResumed(connection, channel, peer, ticket, hello, peerNonce);
+            peer.setTicket(null);
+            channel.send(new byte[]{MSG_RETRY});
+            hello = channel.receive();
+        }
+
+        Fields fields = new Fields(hello, MSG_FULL);
+        byte[] peerNonce = fields.next(NONCE_LENGTH);
+        byte[] peerEphemeral = fields.nextPrefixed();
+        byte[] peerIdentity = fields.nextPrefixed();
+        fields.end();
+
+        KeyPair ephemeral = Identity.generateKeyPair();
+        byte[] nonce = nonce();
+        byte[] body = fullHello(nonce, ephemeral, null);
+        byte[] reply = fullHello(nonce, ephemeral, identity.sign(hash(hello, body)));
+        channel.send(reply);
+
+        byte[] finished = channel.receive();
+        Fields finishedFields = new Fields(finished, MSG_FINISHED);
+        byte[] peerSignature = finishedFields.nextPrefixed();
+        finishedFields.end();
+        if (!Identity.verify(peerIdentity, hash(hello, reply), peerSignature))
+            throw new IOException("Bad handshake signature");
+        checkTrust(connection, peerIdentity);
+
+        byte[] prk = hmac(concat(peerNonce, nonce), agree(ephemeral, peerEphemeral));
+        return established(connection, peer, prk, hash(hello, reply, finished), false, false,
+                Identity.fingerprint(peerIdentity));
+    }
+
+    private SecureConnection respondResumed(Connection connection, Channel channel, PeerCache.Peer peer,
+                                            Ticket ticket, byte[] hello, byte[] peerNonce)
+            throws IOException, GeneralSecurityException {
+        byte[] nonce = nonce();
+        byte[] prk = hmac(concat(peerNonce, nonce), ticket.secret);
+        byte[] body = concat(new byte[]{MSG_RESUME}, nonce);
+        byte[] reply = concat(body, hmac(expand(prk, "responder finished", null, SECRET_LENGTH), hash(hello, body)));
+        channel.send(reply);
+
+        byte[] finished = channel.receive();
+        Fields fields = new Fields(finished, MSG_FINISHED);
+        byte[] peerMac = fields.next(SECRET_LENGTH);
+        fields.end();
+        byte[] expected = hmac(expand(prk, "initiator finished", null, SECRET_LENGTH), hash(hello, reply));
+        if (!MessageDigest.isEqual(expected, peerMac)) {
+            peer.setTicket(null);
+            throw new IOException("Session ticket rejected");
+        }
+        return established(connection, peer, prk, hash(hello, reply, finished), false, true, ticket.peerFingerprint);
+    }
+
+    /**
+     * Derives the record keys and the next ticket from the handshake secret.
+     */
+    private SecureConnection established(Connection connection, PeerCache.Peer peer, byte[] prk, byte[] transcript,
+                                         boolean initiator, boolean resumed, String peerFingerprint)
+            throws IOException, GeneralSecurityException {
+        byte[] keyI2R = expand(prk, "i2r key", transcript, SecureConnection.KEY_LENGTH);
+        byte[] saltI2R = expand(prk, "i2r salt", transcript, SecureConnection.SALT_LENGTH);
+        byte[] keyR2I = expand(prk, "r2i key", transcript, SecureConnection.KEY_LENGTH);
+        byte[] saltR2I = expand(prk, "r2i salt", transcript, SecureConnection.SALT_LENGTH);
+        peer.setTicket(new Ticket(expand(prk, "ticket id", transcript, TICKET_ID_LENGTH),
+                expand(prk, "ticket secret", transcript, SECRET_LENGTH), peerFingerprint));
+        if (initiator)
+            return new SecureConnection(connection, keyI2R, saltI2R, keyR2I, saltR2I, resumed, peerFingerprint);
+        return new SecureConnection(connection, keyR2I, saltR2I, keyI2R, saltI2R, resumed, peerFingerprint);
+    }
+
+    private byte[] fullHello(byte[] nonce, KeyPair ephemeral, byte[] signature) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(MSG_FULL);
+        message.write(nonce);
+        writePrefixed(message, ephemeral.getPublic().getEncoded());
+        writePrefixed(message, identity.publicKey());
+        if (signature != null)
+            writePrefixed(message, signature);
+        return message.toByteArray();
+    }
+
+    private void checkTrust(Connection connection, byte[] peerIdentity) throws IOException {
+        if (!trustStore.check(connection.getRemoteAddress(), peerIdentity))
+            throw new IdentityChangedException(connection.getRemoteAddress(), Identity.fingerprint(peerIdentity));
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private static byte[] agree(KeyPair ephemeral, byte[] peerEphemeral) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(ephemeral.getPrivate());
+        agreement.doPhase(Identity.decodePublicKey(peerEphemeral), true);
+        return agreement.generateSecret();
+    }
+
+    static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    /**
+     * HKDF-Expand (RFC 5869) with the label and context as info.
+     */
+    static byte[] expand(byte[] prk, String label, byte[] context, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] okm = new byte[length];
+        byte[] block = new byte[0];
+        int position = 0;
+        for (int counter = 1; position < length; counter++) {
+            mac.update(block);
+            mac.update(label.getBytes(ASCII));
+            if (context != null)
+                mac.update(context);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - position);
+            System.arraycopy(block, 0, okm, position, n);
+            position += n;
+        }
+        return okm;
+    }
+
+    private static byte[] hash(byte[]... parts) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (byte[] part : parts) {
+            digest.update(part);
+        }
+        return digest.digest();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, position, part.length);
+            position += part.length;
+        }
+        return result;
+    }
+
+    private static byte[] slice(byte[] src, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(src, 0, result, 0, length);
+        return result;
+    }
+
+    private static byte[] prefixed(int type, byte[] value) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(type);
+        writePrefixed(message, value);
+        return message.toByteArray();
+    }
+
+    private static void writePrefixed(ByteArrayOutputStream out, byte[] value) throws IOException {
+        out.write(value.length >>> 8);
+        out.write(value.length);
+        out.write(value);
+    }
+
+    /**
+     * Handshake messages on the raw streams, read exactly so nothing after the
+     * handshake is consumed.
+     */
+    private static final class Channel {
+        private final DataInputStream in;
+        private final OutputStream out;
+        private boolean first = true;
+
+        Channel(Connection connection) throws IOException {
+            this.in = new DataInputStream(connection.getInputStream());
+            this.out = connection.getOutputStream();
+        }
+
+        void send(byte[] message) throws IOException {
+            out.write(frame(message));
+            out.flush();
+        }
+
+        /**
+         * @throws PlaintextHostException if the first message says the peer relays in the clear
+         */
+        byte[] receive() throws IOException {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Peer does not speak the secure handshake");
+            byte[] message = new byte[checkLength(in.readUnsignedShort())];
+            in.readFully(message);
+            if (first && message.length == 1 && message[0] == MSG_PLAINTEXT)
+                throw new PlaintextHostException();
+            first = false;
+            return message;
+        }
+    }
+
+    private static final class PlaintextHostException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static byte[] frame(byte[] message) {
+        byte[] framed = new byte[HEADER_LENGTH + message.length];
+        framed[0] = (byte) (MAGIC >>> 24);
+        framed[1] = (byte) (MAGIC >>> 16);
+        framed[2] = (byte) (MAGIC >>> 8);
+        framed[3] = (byte) MAGIC;
+        framed[4] = (byte) (message.length >>> 8);
+        framed[5] = (byte) message.length;
+        System.arraycopy(message, 0, framed, HEADER_LENGTH, message.length);
+        return framed;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length == 0 || length > MAX_MESSAGE_LENGTH)
+            throw new IOException("Bad handshake message length " + length);
+        return length;
+    }
+
+    private static final class Fields {
+        private final byte[] message;
+        private int position;
+
+        Fields(byte[] message, int type) throws IOException {
+            if (message.length == 0 || message[0] != type)
+                throw new IOException("Unexpected handshake message " + (message.length > 0 ? message[0] : -1));
+            this.message = message;
+            this.position = 1;
+        }
+
+        byte[] next(int length) throws IOException {
+            if (message.length - position < length)
+                throw new IOException("Malformed handshake message");
+            byte[] field = new byte[length];
+            System.arraycopy(message, position, field, 0, length);
+            position += length;
+            return field;
+        }
+
+        byte[] nextPrefixed() throws IOException {
+            byte[] length = next(2);
+            return next((length[0] & 0xFF) << 8 | (length[1] & 0xFF));
+        }
+
+        int position() {
+            return position;
+        }
+
+        void end() throws IOException {
+            if (position != message.length)
+                throw new IOException("Malformed handshake message");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.chatapp;
+
+/**
+ * A fixed-size set of the most recent message ids, used to drop flooded copies
+ * of a message that already arrived over another path.
+ *
+ * Ids sit in an open-addressing table and in a ring recording the order they were
+ * added; once the ring is full, adding an id evicts the oldest. Copies of a message
+ * arrive within a few hop latencies of each other, so the capacity only has to
+ * cover the messages a node sees in that time. Nothing is allocated per id.
+ *
+ * Each id can carry a mark, such as the most TTL any copy of the message had.
+ */
+public class SeenIds {
+    public static final int NOT_SEEN = -1;
+
+    private final long[] ring;
+    private final long[] keys;
+    private final int[] marks;
+    private final boolean[] used;
+    private final int mask;
+    private int head;
+    private int size;
+
+    public SeenIds(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        ring = new long[capacity];
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) * 2;
+        keys = new long[tableSize];
+        marks = new int[tableSize];
+        used = new boolean[tableSize];
+        mask = tableSize - 1;
+    }
+
+    /**
+     * @return true if {@code id} was not already in the set
+     */
+    public boolean add(long id) {
+        return mark(id, 0) == NOT_SEEN;
+    }
+
+    /**
+     * Adds {@code id} with {@code value} as its mark, or raises the mark of an id
+     * already in the set to {@code value} if that is higher.
+     *
+     * @return the previous mark, or {@link #NOT_SEEN} if the id was not in the set
+     */
+    public synchronized int mark(long id, int value) {
+        int slot = home(id);
+        while (used[slot]) {
+            if (keys[slot] == id) {
+                int previous = marks[slot];
+                if (value > previous)
+                    marks[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == ring.length) {
+            remove(ring[head]);
+            // The removal may have shifted the free slot found above.
+            slot = home(id);
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+        } else {
+            size++;
+        }
+        keys[slot] = id;
+        marks[slot] = value;
+        used[slot] = true;
+        ring[head] = id;
+        head = head + 1 == ring.length ? 0 : head + 1;
+        return NOT_SEEN;
+    }
+
+    public synchronized boolean contains(long id) {
+        int slot = home(id);
+        while (used[slot]) {
+            if (keys[slot] == id)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    private int home(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Deletes by shifting later entries of the same probe run back, so lookups
+     * never need tombstones.
+     */
+    private void remove(long id) {
+        int slot = home(id);
+        while (keys[slot] != id || !used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = false;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (!used[next])
+                return;
+            int wanted = home(keys[next]);
+            // Move the entry back unless its home lies cyclically in (slot, next].
+            boolean stays = slot <= next ? slot < wanted && wanted <= next : slot < wanted || wanted <= next;
+            if (!stays) {
+                keys[slot] = keys[next];
+                marks[slot] = marks[next];
+                used[slot] = true;
+                used[next] = false;
+                slot = next;
+            }
+        }
+    }
+}
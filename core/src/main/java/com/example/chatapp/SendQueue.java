@@ -0,0 +1,373 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded outbound queue drained by a dedicated writer thread.
+ *
+ * The writer encodes consecutive queued messages into one buffer and flushes them
+ * with a single socket write. A batch is flushed once it reaches the byte limit, or
+ * once its oldest message has waited {@code maxDelayMillis}, whichever comes first.
+ *
+ * Bulk frames such as file chunks go through a separate lane that is only drained
+ * when no regular message is waiting, and each bulk frame ends its batch, so a
+ * large transfer delays chat by at most one chunk.
+ */
+public class SendQueue {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 8 * 1024;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 2;
+    public static final int BULK_CAPACITY = 4;
+
+    public interface Listener {
+        void onSent(int type, byte[] payload);
+
+        void onFailed(IOException e);
+    }
+
+    /**
+     * Adds frames to each batch just before it is written, such as an
+     * acknowledgement that then costs no write of its own.
+     */
+    public interface Piggyback {
+        /**
+         * @return the number of bytes written, at most {@link #MAX_PIGGYBACK_LENGTH}
+         */
+        int append(byte[] dest, int offset);
+    }
+
+    public static final int MAX_PIGGYBACK_LENGTH = 64;
+
+    private static final int TYPE_NUDGE = -1;
+
+    private final OutputStream outputStream;
+    private final ArrayBlockingQueue<Outgoing> queue;
+    private final ArrayBlockingQueue<Outgoing> bulkQueue = new ArrayBlockingQueue<>(BULK_CAPACITY);
+    // One permit per message in either lane, so the writer can wait on both at once.
+    private final Semaphore available = new Semaphore(0);
+    private final int maxBatchBytes;
+    private final long maxDelayNanos;
+    private final Listener listener;
+    private final byte[] batch;
+    private final ArrayList<Outgoing> batchMessages = new ArrayList<>();
+    private volatile Thread writerThread;
+    private volatile boolean closed;
+    private volatile PayloadCompressor compressor;
+    private volatile Piggyback piggyback;
+    private volatile ChatMetrics metrics;
+    private volatile CaptureWriter capture;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong flushedMessages = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public SendQueue(OutputStream outputStream, Listener listener) {
+        this(outputStream, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_DELAY_MILLIS, listener);
+    }
+
+    public SendQueue(OutputStream outputStream, int capacity, int maxBatchBytes, long maxDelayMillis, Listener listener) {
+        this.outputStream = outputStream;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.listener = listener;
+        this.batch = new byte[maxBatchBytes + FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH
+                + MAX_PIGGYBACK_LENGTH];
+    }
+
+    public void start() {
+        new Thread(drainTask, "SendQueue").start();
+    }
+
+    /**
+     * Runs the writer as a task on {@code executor} instead of a dedicated thread.
+     */
+    public void start(Executor executor) {
+        executor.execute(drainTask);
+    }
+
+    public void close() {
+        closed = true;
+        Thread writer = writerThread;
+        if (writer != null)
+            writer.interrupt();
+    }
+
+    /**
+     * Queues a frame without blocking.
+     *
+     * @return false if the queue is full or closed; the caller decides whether to drop
+     * the message or retry
+     */
+    public boolean offer(int type, byte[] payload) {
+        if (closed || !queue.offer(new Outgoing(type, payload, false))) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        available.release();
+        enqueued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Queues a frame, waiting for space when the writer is behind. Not for the UI thread.
+     */
+    public void put(int type, byte[] payload) throws InterruptedException {
+        if (closed)
+            throw new IllegalStateException("SendQueue is closed");
+        queue.put(new Outgoing(type, payload, false));
+        available.release();
+        enqueued.incrementAndGet();
+    }
+
+    /**
+     * Queues a frame on the bulk lane, waiting while the lane is full.
+     *
+     * @throws IllegalStateException if the queue is or gets closed while waiting
+     */
+    public void putBulk(int type, byte[] payload) throws InterruptedException {
+        Outgoing outgoing = new Outgoing(type, payload, true);
+        do {
+            if (closed)
+                throw new IllegalStateException("SendQueue is closed");
+        } while (!bulkQueue.offer(outgoing, 100, TimeUnit.MILLISECONDS));
+        available.release();
+        enqueued.incrementAndGet();
+    }
+
+    /**
+     * Compresses messages from now on; may be called while the writer is running.
+     */
+    public void setCompressor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    public void setPiggyback(Piggyback piggyback) {
+        this.piggyback = piggyback;
+    }
+
+    public void setMetrics(ChatMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Records every batch written into {@code capture}; null to stop.
+     */
+    public void setCapture(CaptureWriter capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Wakes the writer for a batch with no message of its own, so that piggybacked
+     * frames go out even when nothing else is being sent.
+     */
+    public boolean nudge() {
+        if (closed || !queue.offer(new Outgoing(TYPE_NUDGE, new byte[0], false)))
+            return false;
+        available.release();
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int depth() {
+        return queue.size() + bulkQueue.size();
+    }
+
+    public Stats stats() {
+        return new Stats(depth(), enqueued.get(), rejected.get(), batches.get(), flushedMessages.get(),
+                flushedBytes.get(), largestBatch.get(), totalLatencyNanos.get(), maxLatencyNanos.get());
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            writerThread = Thread.currentThread();
+            try {
+                drain();
+            } finally {
+                writerThread = null;
+            }
+        }
+    };
+
+    private void drain() {
+        Outgoing carry = null;
+        try {
+            while (!closed) {
+                Outgoing first = carry != null ? carry : take();
+                carry = null;
+                int length = append(first, 0);
+                long deadline = first.enqueuedNanos + maxDelayNanos;
+
+                while (length < maxBatchBytes && !first.bulk) {
+                    Outgoing next = poll(0);
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0)
+                            break;
+                        next = poll(wait);
+                        if (next == null)
+                            break;
+                    }
+                    if (next.bulk || length + FrameCodec.encodedLength(next.payload.length) > maxBatchBytes) {
+                        carry = next;
+                        break;
+                    }
+                    length = append(next, length);
+                }
+                Piggyback tPiggyback = piggyback;
+                if (tPiggyback != null)
+                    length += tPiggyback.append(batch, length);
+                if (length > 0)
+                    flush(length);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            closed = true;
+            listener.onFailed(e);
+        } finally {
+            batchMessages.clear();
+            queue.clear();
+            bulkQueue.clear();
+        }
+    }
+
+    private Outgoing take() throws InterruptedException {
+        available.acquire();
+        return nextQueued();
+    }
+
+    private Outgoing poll(long timeoutNanos) throws InterruptedException {
+        if (!available.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS))
+            return null;
+        return nextQueued();
+    }
+
+    private Outgoing nextQueued() {
+        Outgoing outgoing = queue.poll();
+        return outgoing != null ? outgoing : bulkQueue.poll();
+    }
+
+    private int append(Outgoing outgoing, int offset) {
+        if (outgoing.type == TYPE_NUDGE)
+            return offset;
+        batchMessages.add(outgoing);
+        PayloadCompressor tCompressor = compressor;
+        if (tCompressor != null)
+            return offset + tCompressor.encode(outgoing.type, outgoing.payload, batch, offset);
+        return offset + FrameCodec.encode(outgoing.type, outgoing.payload, 0, outgoing.payload.length, batch, offset);
+    }
+
+    private void flush(int length) throws IOException {
+        outputStream.write(batch, 0, length);
+        outputStream.flush();
+        CaptureWriter tCapture = capture;
+        if (tCapture != null) {
+            try {
+                tCapture.outbound(batch, 0, length);
+            } catch (IOException e) {
+                // Losing the capture must not take the connection with it.
+                e.printStackTrace();
+                capture = null;
+            }
+        }
+
+        long now = System.nanoTime();
+        int count = batchMessages.size();
+        batches.incrementAndGet();
+        flushedMessages.addAndGet(count);
+        flushedBytes.addAndGet(length);
+        updateMax(largestBatch, count);
+        ChatMetrics tMetrics = metrics;
+        if (tMetrics != null)
+            tMetrics.recordFlush(length, count, depth());
+        for (int i = 0; i < count; i++) {
+            Outgoing outgoing = batchMessages.get(i);
+            long latency = now - outgoing.enqueuedNanos;
+            totalLatencyNanos.addAndGet(latency);
+            updateMax(maxLatencyNanos, latency);
+            if (tMetrics != null)
+                tMetrics.recordWriteToFlush(latency);
+            listener.onSent(outgoing.type, outgoing.payload);
+        }
+        batchMessages.clear();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    private static final class Outgoing {
+        final int type;
+        final byte[] payload;
+        final boolean bulk;
+        final long enqueuedNanos;
+
+        Outgoing(int type, byte[] payload, boolean bulk) {
+            if (payload.length > FrameCodec.MAX_PAYLOAD_LENGTH)
+                throw new IllegalArgumentException("Payload too large: " + payload.length);
+            this.type = type;
+            this.payload = payload;
+            this.bulk = bulk;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    public static final class Stats {
+        public final int queueDepth;
+        public final long enqueued;
+        public final long rejected;
+        public final long batches;
+        public final long flushedMessages;
+        public final long flushedBytes;
+        public final long largestBatch;
+        public final long totalLatencyNanos;
+        public final long maxLatencyNanos;
+
+        Stats(int queueDepth, long enqueued, long rejected, long batches, long flushedMessages, long flushedBytes,
+              long largestBatch, long totalLatencyNanos, long maxLatencyNanos) {
+            this.queueDepth = queueDepth;
+            this.enqueued = enqueued;
+            this.rejected = rejected;
+            this.batches = batches;
+            this.flushedMessages = flushedMessages;
+            this.flushedBytes = flushedBytes;
+            this.largestBatch = largestBatch;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        public double averageBatchSize() {
+            return batches == 0 ? 0 : (double) flushedMessages / batches;
+        }
+
+        public double averageLatencyMillis() {
+            return flushedMessages == 0 ? 0 : totalLatencyNanos / 1e6 / flushedMessages;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("depth=%d enqueued=%d rejected=%d batches=%d avgBatch=%.1f maxBatch=%d avgLatency=%.2fms maxLatency=%.2fms",
+                    queueDepth, enqueued, rejected, batches, averageBatchSize(), largestBatch,
+                    averageLatencyMillis(), maxLatencyNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking {@code java.nio} TCP transport. Addresses are {@code host:port}.
+ *
+ * The streams call the channel directly rather than going through
+ * {@code Channels.newInputStream}, whose read and write share one lock and would
+ * stall the writer while the reader is blocked.
+ */
+public class TcpTransport implements Transport {
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final String bindHost;
+    private final int port;
+
+    public TcpTransport(int port) {
+        this(null, port);
+    }
+
+    public TcpTransport(String bindHost, int port) {
+        this.bindHost = bindHost;
+        this.port = port;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(bindHost == null ? new InetSocketAddress(port) : new InetSocketAddress(bindHost, port), ACCEPT_BACKLOG);
+        return new Acceptor() {
+            @Override
+            public Connection accept() throws IOException {
+                SocketChannel channel = serverChannel.accept();
+                return new TcpConnection(channel, null);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverChannel.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        return new TcpConnection(SocketChannel.open(), parseAddress(address));
+    }
+
+    /**
+     * The endpoint is the resolved {@code ip:port}, which skips the name lookup.
+     */
+    @Override
+    public Connection open(String address, String endpoint) throws IOException {
+        return open(endpoint != null ? endpoint : address);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("Expected host:port but was " + address);
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    private static class TcpConnection implements Connection {
+        private final SocketChannel channel;
+        private final InetSocketAddress target;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+
+        TcpConnection(SocketChannel channel, InetSocketAddress target) throws IOException {
+            this.channel = channel;
+            this.target = target;
+            channel.socket().setTcpNoDelay(true);
+            this.inputStream = new ChannelInputStream(channel);
+            this.outputStream = new ChannelOutputStream(channel);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!channel.isConnected())
+                channel.connect(target);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+            if (remote == null)
+                remote = target;
+            return remote == null ? null : remote.getAddress().getHostAddress() + ":" + remote.getPort();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public String getEndpoint() {
+            return target != null && channel.isConnected() ? getRemoteAddress() : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+        private final byte[] single = new byte[1];
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
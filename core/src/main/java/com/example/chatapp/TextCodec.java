@@ -0,0 +1,22 @@
+package com.example.chatapp;
+
+import java.nio.charset.Charset;
+
+/**
+ * Converts chat text to and from the bytes sent on the wire, always as UTF-8
+ * whatever the platform default is.
+ */
+public final class TextCodec {
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TextCodec() {
+    }
+
+    public static byte[] encode(String text) {
+        return text.getBytes(UTF_8);
+    }
+
+    public static String decode(byte[] buffer, int offset, int length) {
+        return new String(buffer, offset, length, UTF_8);
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.chatapp;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: one thread runs the timeouts of every connection, rather
+ * than a thread or a {@link java.util.Timer} each. Scheduling and cancelling are
+ * O(1); deadlines are rounded up to the next tick, which is plenty for liveness
+ * checks measured in seconds.
+ *
+ * Tasks run on the wheel thread and must not block; anything slow belongs on an
+ * executor. The thread is a daemon, starts with the first task and only wakes
+ * every tick while something is pending.
+ */
+public class TimerWheel {
+    public static final long DEFAULT_TICK_MILLIS = 50;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout previous;
+        private Timeout next;
+        private boolean done;
+
+        Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * @return false if the task already ran or was cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (done)
+                    return false;
+                done = true;
+                unlink(this);
+                return true;
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    // The next tick whose bucket has not been expired yet.
+    private long tick;
+    private int pending;
+    private Thread thread;
+    private final String name;
+
+    public TimerWheel(String name) {
+        this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param wheelSize rounded up to a power of two; timeouts further out than one
+     *                  turn of the wheel just stay in their bucket for extra turns
+     */
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        if (tickMillis < 1)
+            throw new IllegalArgumentException("Tick must be at least 1ms: " + tickMillis);
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) * 2;
+        buckets = new Timeout[size];
+        mask = size - 1;
+    }
+
+    public synchronized Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long now = System.nanoTime() - startNanos;
+        if (pending == 0) {
+            // Nothing was due, so the ticks slept through while idle can be skipped.
+            tick = Math.max(tick, now / tickNanos);
+            notifyAll();
+        }
+        long elapsed = now + unit.toNanos(Math.max(0, delay));
+        // Rounded up, so a task never runs early.
+        long deadlineTick = Math.max(tick, (elapsed + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(task, deadlineTick);
+        int bucket = (int) (deadlineTick & mask);
+        timeout.next = buckets[bucket];
+        if (timeout.next != null)
+            timeout.next.previous = timeout;
+        buckets[bucket] = timeout;
+        pending++;
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWheel();
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return timeout;
+    }
+
+    public synchronized int pending() {
+        return pending;
+    }
+
+    /**
+     * Drops every pending timeout and ends the thread; scheduling again restarts it.
+     */
+    public synchronized void stop() {
+        for (int i = 0; i < buckets.length; i++) {
+            for (Timeout timeout = buckets[i]; timeout != null; timeout = timeout.next) {
+                timeout.done = true;
+            }
+            buckets[i] = null;
+        }
+        pending = 0;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        notifyAll();
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null)
+            timeout.previous.next = timeout.next;
+        else
+            buckets[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        pending--;
+    }
+
+    private void runWheel() {
+        ArrayList<Timeout> expired = new ArrayList<>();
+        Thread self = Thread.currentThread();
+        while (true) {
+            synchronized (this) {
+                if (thread != self)
+                    return;
+                if (pending == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Stopped, or a spurious interrupt; the loop checks which.
+                    }
+                    continue;
+                }
+                long now = (System.nanoTime() - startNanos) / tickNanos;
+                // Catches up on every tick missed while asleep.
+                while (tick <= now) {
+                    Timeout timeout = buckets[(int) (tick & mask)];
+                    while (timeout != null) {
+                        Timeout next = timeout.next;
+                        if (timeout.deadlineTick <= tick) {
+                            timeout.done = true;
+                            unlink(timeout);
+                            expired.add(timeout);
+                        }
+                        timeout = next;
+                    }
+                    tick++;
+                }
+            }
+            for (int i = 0; i < expired.size(); i++) {
+                try {
+                    expired.get(i).task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            expired.clear();
+            long sleepNanos = startNanos + tick * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    // Stopped, or a spurious interrupt; the loop checks which.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.chatapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Creates {@link Connection}s. {@link Utils} only talks to this interface, so the
+ * same connection handling runs over RFCOMM on a device and over TCP or in-memory
+ * pipes on a desktop JVM.
+ */
+public interface Transport {
+
+    interface Acceptor extends Closeable {
+        /**
+         * Blocks until a peer connects. Throws once the acceptor is closed.
+         */
+        Connection accept() throws IOException;
+    }
+
+    Acceptor listen() throws IOException;
+
+    /**
+     * Creates an unconnected connection to {@code address}; call
+     * {@link Connection#connect()} on a background thread to complete it.
+     */
+    Connection open(String address) throws IOException;
+
+    /**
+     * Like {@link #open(String)}, but tries {@code endpoint} from an earlier
+     * {@link Connection#getEndpoint()} first. Falls back to a normal open if the
+     * hint can't be used; a stale hint only shows up as a failed connect.
+     */
+    Connection open(String address, String endpoint) throws IOException;
+}
@@ -0,0 +1,108 @@
+package com.example.chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trust on first use: the first identity key seen from an address is pinned, and
+ * any other key from that address afterwards is refused until the pin is removed.
+ */
+public class TrustStore {
+    private static final int FILE_MAGIC = 0x54525331; // "TRS1"
+
+    private final File file;
+    private final Map<String, byte[]> pins = new HashMap<>();
+
+    /**
+     * Keeps the pins in memory only.
+     */
+    public TrustStore() {
+        this.file = null;
+    }
+
+    /**
+     * Keeps the pins in {@code file}, reading any saved there before.
+     */
+    public TrustStore(File file) throws IOException {
+        this.file = file;
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Not a trust store: " + file);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                byte[] key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                pins.put(address, key);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Pins {@code publicKey} for {@code address} if nothing is pinned yet.
+     *
+     * @return false if a different key is pinned
+     */
+    public synchronized boolean check(String address, byte[] publicKey) throws IOException {
+        byte[] pinned = pins.get(address);
+        if (pinned != null)
+            return MessageDigest.isEqual(pinned, publicKey);
+        pins.put(address, publicKey.clone());
+        save();
+        return true;
+    }
+
+    public synchronized byte[] pinned(String address) {
+        byte[] pinned = pins.get(address);
+        return pinned != null ? pinned.clone() : null;
+    }
+
+    /**
+     * Lets {@code address} present a new key, such as after the peer reinstalled.
+     */
+    public synchronized void forget(String address) throws IOException {
+        if (pins.remove(address) != null)
+            save();
+    }
+
+    private void save() throws IOException {
+        if (file == null)
+            return;
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(pins.size());
+            for (Map.Entry<String, byte[]> pin : pins.entrySet()) {
+                out.writeUTF(pin.getKey());
+                out.writeShort(pin.getValue().length);
+                out.write(pin.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Can't replace " + file);
+        }
+    }
+}
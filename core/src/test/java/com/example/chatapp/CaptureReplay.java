@@ -0,0 +1,211 @@
+package com.example.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the messaging engine from a capture made with {@link Utils#startCapture}:
+ * every connection in it gets a fresh {@link PeerChannel} over an in-memory pipe,
+ * with one {@link ReliableSession} across all of them as {@link PeerCache} would
+ * keep it, and the frames the peer sent are fed in again. What the engine sends
+ * back is read and dropped. Reports delivered messages per second and latency
+ * percentiles from writing a frame into the pipe to its message being delivered.
+ *
+ * Arguments: capture [fast|realtime] (default fast). Fast feeds frames as quickly
+ * as the engine takes them, which measures throughput; its latencies are mostly
+ * time spent queued in the pipe. Realtime keeps the captured gaps between frames,
+ * which measures latency under the load that was recorded.
+ */
+public class CaptureReplay {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CaptureReplay capture [fast|realtime]");
+            System.exit(2);
+        }
+        boolean realTime = args.length > 1 && args[1].equals("realtime");
+        System.out.println(run(new File(args[0]), realTime));
+    }
+
+    static Result run(File file, boolean realTime) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReliableSession session = new ReliableSession(64 * 1024, 256);
+        BufferPool pool = new BufferPool(8, FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH);
+        Histogram latencies = new Histogram();
+        AtomicLong delivered = new AtomicLong();
+        long records = 0;
+        long frames = 0;
+        long bytes = 0;
+        int connections = 0;
+        Segment segment = null;
+        CaptureReader reader = new CaptureReader(file);
+        long start = System.nanoTime();
+        try {
+            while (reader.next()) {
+                records++;
+                if (reader.kind() == CaptureWriter.STATE) {
+                    if (segment != null) {
+                        segment.finish();
+                        segment = null;
+                    }
+                    if (reader.state() == ConnectionStateMachine.CONNECTED) {
+                        segment = new Segment(session, pool, executor, latencies, delivered);
+                        connections++;
+                    }
+                } else if (reader.kind() == CaptureWriter.IN && segment != null) {
+                    if (realTime) {
+                        long wait = start + TimeUnit.MICROSECONDS.toNanos(reader.micros()) - System.nanoTime();
+                        if (wait > 0)
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    segment.feed(reader.data(), reader.length());
+                    frames++;
+                    bytes += reader.length();
+                }
+            }
+            if (segment != null)
+                segment.finish();
+        } finally {
+            reader.close();
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Result(records, connections, frames, bytes, delivered.get(), elapsed, latencies.snapshot());
+    }
+
+    /**
+     * One captured connection, replayed into a channel of its own.
+     */
+    private static final class Segment {
+        final Connection peerEnd;
+        final OutputStream out;
+        final Thread reader;
+        final Thread drain;
+        // When each frame went into the pipe, by its index on this connection.
+        long[] fedNanos = new long[1024];
+        int fed;
+
+        Segment(ReliableSession session, final BufferPool pool, ExecutorService executor, final Histogram latencies,
+                final AtomicLong delivered) throws IOException {
+            MemoryTransport.Network network = new MemoryTransport.Network(MemoryTransport.DEFAULT_PIPE_CAPACITY);
+            Transport.Acceptor acceptor = new MemoryTransport(network, "engine").listen();
+            peerEnd = new MemoryTransport(network, "capture").open("engine");
+            Connection engineEnd = acceptor.accept();
+            acceptor.close();
+            out = peerEnd.getOutputStream();
+
+            final AtomicLong framesRead = new AtomicLong();
+            final PeerChannel channel = new PeerChannel(engineEnd, session, pool, executor, null, new PeerChannel.Listener() {
+                @Override
+                public void onMessage(PooledBuffer buffer, int offset, int length) {
+                    TextCodec.decode(buffer.data(), offset, length);
+                    buffer.release();
+                    // Delivery happens while its frame is being handled, on this thread.
+                    long index = framesRead.get() - 1;
+                    latencies.record(System.nanoTime() - fedAt((int) index));
+                    delivered.incrementAndGet();
+                }
+            });
+            // Counts the frames the channel reads, which is how a delivery is traced
+            // back to the frame it came in.
+            channel.setMetrics(new ChatMetrics() {
+                @Override
+                public void recordFrameIn(int frameBytes) {
+                    framesRead.incrementAndGet();
+                    super.recordFrameIn(frameBytes);
+                }
+            });
+            reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        channel.run();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "ReplayReader");
+            drain = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] sink = new byte[8192];
+                    try {
+                        InputStream in = peerEnd.getInputStream();
+                        while (in.read(sink) >= 0) {
+                        }
+                    } catch (IOException e) {
+                        // Closed by finish().
+                    }
+                }
+            }, "ReplayDrain");
+            reader.start();
+            drain.start();
+        }
+
+        synchronized long fedAt(int index) {
+            return fedNanos[index];
+        }
+
+        void feed(byte[] frame, int length) throws IOException {
+            synchronized (this) {
+                if (fed == fedNanos.length)
+                    fedNanos = Arrays.copyOf(fedNanos, fed * 2);
+                fedNanos[fed++] = System.nanoTime();
+            }
+            out.write(frame, 0, length);
+        }
+
+        /**
+         * Ends the connection once the channel has read everything fed to it.
+         */
+        void finish() throws Exception {
+            out.close();
+            reader.join();
+            peerEnd.close();
+            drain.join();
+        }
+    }
+
+    static class Result {
+        final long records;
+        final int connections;
+        final long frames;
+        final long bytes;
+        final long delivered;
+        final long elapsedNanos;
+        final Histogram.Snapshot latencies;
+
+        Result(long records, int connections, long frames, long bytes, long delivered, long elapsedNanos,
+               Histogram.Snapshot latencies) {
+            this.records = records;
+            this.connections = connections;
+            this.frames = frames;
+            this.bytes = bytes;
+            this.delivered = delivered;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        double messagesPerSecond() {
+            return delivered * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("records=%d connections=%d frames=%d bytes=%d delivered=%d in %.1fms"
+                            + "\n%.0f msgs/s, %.1f MB/s"
+                            + "\nlatency p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                    records, connections, frames, bytes, delivered, elapsedNanos / 1e6,
+                    messagesPerSecond(), bytes * 1e3 / Math.max(1, elapsedNanos),
+                    latencies.percentile(50) / 1e3, latencies.percentile(99) / 1e3,
+                    latencies.percentile(99.9) / 1e3, latencies.max / 1e3);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CaptureTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static byte[] payload(int i, int length) {
+        byte[] payload = new byte[length];
+        Arrays.fill(payload, (byte) i);
+        return payload;
+    }
+
+    @Test
+    public void recordsReadBackAcrossWindows() throws Exception {
+        File file = folder.newFile("session.ccap");
+        CaptureWriter writer = new CaptureWriter(file, 1);
+        writer.state(ConnectionStateMachine.CONNECTED, 7);
+        for (int i = 0; i < 300; i++) {
+            writer.inbound(FrameCodec.TYPE_TEXT, payload(i, 1000), 0, 1000);
+            writer.outbound(payload(i, 20), 0, 20);
+        }
+        writer.state(ConnectionStateMachine.LOST, 8);
+        long length = writer.length();
+        writer.close();
+        assertEquals(length, file.length());
+        assertEquals(602, writer.records());
+
+        CaptureReader reader = new CaptureReader(file);
+        assertTrue(reader.next());
+        assertEquals(CaptureWriter.STATE, reader.kind());
+        assertEquals(ConnectionStateMachine.CONNECTED, reader.state());
+        assertEquals(7, reader.version());
+        long micros = reader.micros();
+        byte[] frame = new byte[FrameCodec.encodedLength(1000)];
+        for (int i = 0; i < 300; i++) {
+            assertTrue(reader.next());
+            assertEquals(CaptureWriter.IN, reader.kind());
+            FrameCodec.encode(FrameCodec.TYPE_TEXT, payload(i, 1000), 0, 1000, frame, 0);
+            assertArrayEquals(frame, Arrays.copyOf(reader.data(), reader.length()));
+            assertTrue(reader.micros() >= micros);
+            micros = reader.micros();
+            assertTrue(reader.next());
+            assertEquals(CaptureWriter.OUT, reader.kind());
+            assertArrayEquals(payload(i, 20), Arrays.copyOf(reader.data(), reader.length()));
+        }
+        assertTrue(reader.next());
+        assertEquals(ConnectionStateMachine.LOST, reader.state());
+        assertFalse(reader.next());
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void unclosedCaptureEndsAtLastRecord() throws Exception {
+        File file = folder.newFile("crashed.ccap");
+        CaptureWriter writer = new CaptureWriter(file);
+        for (int i = 0; i < 10; i++) {
+            writer.outbound(payload(i, 100), 0, 100);
+        }
+        // Never closed, as if the app died: the rest of the mapped window is zeros.
+        assertTrue(file.length() > writer.length());
+
+        CaptureReader reader = new CaptureReader(file);
+        int count = 0;
+        while (reader.next()) {
+            assertEquals(100, reader.length());
+            count++;
+        }
+        assertEquals(10, count);
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void replayDeliversWhatWasCaptured() throws Exception {
+        File file = folder.newFile("replay.ccap");
+        CaptureWriter writer = new CaptureWriter(file);
+
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        Transport.Acceptor acceptor = new MemoryTransport(network, "a").listen();
+        Connection toA = new MemoryTransport(network, "b").open("a");
+        Connection toB = acceptor.accept();
+        final AtomicInteger received = new AtomicInteger();
+        final PeerChannel channelA = new PeerChannel(toB, new ReliableSession(64 * 1024, 256), new BufferPool(4, 70000),
+                executor, null, new PeerChannel.Listener() {
+            @Override
+            public void onMessage(PooledBuffer buffer, int offset, int length) {
+                buffer.release();
+                received.incrementAndGet();
+            }
+        });
+        ReliableSession sessionB = new ReliableSession(64 * 1024, 256);
+        final PeerChannel channelB = new PeerChannel(toA, sessionB, new BufferPool(4, 70000), executor, null,
+                new PeerChannel.Listener() {
+            @Override
+            public void onMessage(PooledBuffer buffer, int offset, int length) {
+                buffer.release();
+            }
+        });
+        channelA.setCapture(writer);
+        writer.state(ConnectionStateMachine.CONNECTED, 1);
+        for (final PeerChannel channel : Arrays.asList(channelA, channelB)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        channel.run();
+                    } catch (IOException e) {
+                        // Closed at the end of the test.
+                    }
+                }
+            });
+        }
+
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            byte[] text = TextCodec.encode("message " + i + " of the captured conversation");
+            while (!sessionB.send(text)) {
+                Thread.sleep(1);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, received.get());
+        channelA.close();
+        channelB.close();
+        writer.state(ConnectionStateMachine.NONE, 2);
+        writer.close();
+        acceptor.close();
+
+        CaptureReplay.Result result = CaptureReplay.run(file, false);
+        assertEquals(1, result.connections);
+        assertEquals(count, result.delivered);
+        assertEquals(count, result.latencies.count);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.chatapp;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic but representative message streams for compression tests and benchmarks.
+ */
+final class ChatCorpus {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] WORDS = {
+            "hey", "hi", "ok", "okay", "sure", "yes", "no", "maybe", "lol", "haha", "thanks", "sorry",
+            "I", "you", "we", "they", "it", "this", "that", "the", "a", "to", "and", "for", "with",
+            "will", "can", "could", "should", "be", "there", "here", "now", "later", "tomorrow", "today",
+            "meeting", "dinner", "home", "work", "call", "send", "file", "photo", "train", "bus", "late",
+            "minutes", "on", "my", "way", "see", "what", "when", "where", "how", "did", "get", "got",
+            "don't", "know", "think", "really", "good", "great", "nice", "fine", "tonight", "weekend",
+            "Z\u00fcrich", "caf\u00e9", "\ud83d\ude00", "\ud83d\udc4d"};
+
+    private static final String[] LEVELS = {"D", "I", "I", "I", "W", "E"};
+    private static final String[] TAGS = {"BluetoothAdapter", "ChatService", "ActivityManager", "OkHttp", "SQLiteDatabase"};
+
+    private ChatCorpus() {
+    }
+
+    static List<byte[]> chatLines(int count, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int words = 1 + random.nextInt(random.nextInt(10) == 0 ? 40 : 12);
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < words; w++) {
+                if (w > 0)
+                    text.append(' ');
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (random.nextBoolean())
+                text.append(random.nextBoolean() ? "?" : "!");
+            messages.add(text.toString().getBytes(UTF_8));
+        }
+        return messages;
+    }
+
+    /**
+     * Pasted logcat output, a few dozen lines per message.
+     */
+    static List<byte[]> logPastes(int count, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> messages = new ArrayList<>(count);
+        long time = 1600000000000L;
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder();
+            int lines = 5 + random.nextInt(60);
+            for (int l = 0; l < lines; l++) {
+                time += random.nextInt(500);
+                String level = LEVELS[random.nextInt(LEVELS.length)];
+                text.append(String.format("01-%02d %02d:%02d:%02d.%03d  %5d  %5d %s %s: ",
+                        1 + (int) (time / 86400000 % 28), time / 3600000 % 24, time / 60000 % 60,
+                        time / 1000 % 60, time % 1000, 1000 + random.nextInt(50), 1000 + random.nextInt(300),
+                        level, TAGS[random.nextInt(TAGS.length)]));
+                if (level.equals("E"))
+                    text.append("java.io.IOException: read failed, socket might closed or timeout, read ret: -1\n")
+                            .append("\tat com.example.chatapp.Utils$ConnectedTask.run(Utils.java:")
+                            .append(300 + random.nextInt(100)).append(")\n");
+                else
+                    text.append("state changed to ").append(random.nextInt(4)).append(" for device ")
+                            .append(String.format("%02X:%02X:%02X:%02X:%02X:%02X", random.nextInt(256), random.nextInt(256),
+                                    random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256)))
+                            .append('\n');
+            }
+            messages.add(text.toString().getBytes(UTF_8));
+        }
+        return messages;
+    }
+
+    /**
+     * Base64-like noise, e.g. a pasted key or an encoded image: nothing to gain.
+     */
+    static List<byte[]> noise(int count, long seed) {
+        Random random = new Random(seed);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        List<byte[]> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[16 + random.nextInt(2000)];
+            for (int b = 0; b < message.length; b++) {
+                message[b] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compresses chat-like, log-paste and noise corpora with each codec and a range of
+ * thresholds, the way {@link PayloadCompressor} does on a connection, and prints
+ * bytes on the wire relative to uncompressed frames plus CPU time per message.
+ * Run with {@code main}.
+ */
+public class CompressionBenchmark {
+    private static final int[] THRESHOLDS = {0, 16, 32, 64, 128, 256};
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        String[] corpusNames = {"chat", "logs", "noise"};
+        List<?>[] corpora = {ChatCorpus.chatLines(20000, 1), ChatCorpus.logPastes(300, 2), ChatCorpus.noise(2000, 3)};
+        String[] codecs = {"lz", "deflate"};
+        for (int c = 0; c < corpora.length; c++) {
+            @SuppressWarnings("unchecked")
+            List<byte[]> messages = (List<byte[]>) corpora[c];
+            long raw = 0;
+            for (byte[] message : messages) {
+                raw += FrameCodec.encodedLength(message.length);
+            }
+            System.out.printf("%s: %d messages, %d bytes as plain frames%n", corpusNames[c], messages.size(), raw);
+            for (String codec : codecs) {
+                for (int threshold : THRESHOLDS) {
+                    run(codec, messages, threshold, raw);
+                }
+            }
+        }
+    }
+
+    private static PayloadCodec newCodec(String name) {
+        return name.equals("lz") ? new LzCodec() : new DeflateCodec();
+    }
+
+    private static void run(String codecName, List<byte[]> messages, int threshold, long raw) throws IOException {
+        long wire = 0;
+        long compressNanos = 0;
+        long decompressNanos = 0;
+        int compressed = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            PayloadCodec sender = newCodec(codecName);
+            PayloadCodec receiver = newCodec(codecName);
+            byte[] buffer = new byte[sender.maxCompressedLength(FrameCodec.MAX_PAYLOAD_LENGTH)];
+            byte[] plain = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+            wire = 0;
+            compressNanos = 0;
+            decompressNanos = 0;
+            compressed = 0;
+            for (byte[] message : messages) {
+                if (message.length < threshold) {
+                    wire += FrameCodec.encodedLength(message.length);
+                    continue;
+                }
+                long start = System.nanoTime();
+                int length = sender.compress(message, 0, message.length, buffer);
+                long middle = System.nanoTime();
+                receiver.decompress(buffer, 0, length, plain);
+                long end = System.nanoTime();
+                compressNanos += middle - start;
+                decompressNanos += end - middle;
+                wire += FrameCodec.encodedLength(length);
+                compressed++;
+            }
+        }
+        System.out.printf("  %-7s threshold=%4d  compressed=%6d  wire=%6.1f%%  compress=%6.2f us/msg  decompress=%6.2f us/msg%n",
+                codecName, threshold, compressed, 100.0 * wire / raw,
+                compressed == 0 ? 0 : compressNanos / 1e3 / compressed,
+                compressed == 0 ? 0 : decompressNanos / 1e3 / compressed);
+    }
+}
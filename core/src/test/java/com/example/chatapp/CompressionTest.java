@@ -0,0 +1,147 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    private static List<byte[]> mixedCorpus() {
+        List<byte[]> messages = new ArrayList<>();
+        messages.addAll(ChatCorpus.chatLines(2000, 1));
+        messages.addAll(ChatCorpus.logPastes(40, 2));
+        messages.addAll(ChatCorpus.noise(40, 3));
+        messages.add(new byte[0]);
+        messages.add(FrameCodecTest.payload(60000));
+        byte[] random = new byte[50000];
+        new Random(4).nextBytes(random);
+        messages.add(random);
+        messages.addAll(ChatCorpus.chatLines(500, 5));
+        return messages;
+    }
+
+    private static void assertRoundTrip(PayloadCodec sender, PayloadCodec receiver) throws IOException {
+        byte[] compressed = new byte[sender.maxCompressedLength(FrameCodec.MAX_PAYLOAD_LENGTH)];
+        byte[] decompressed = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+        long in = 0;
+        long out = 0;
+        for (byte[] message : mixedCorpus()) {
+            int length = sender.compress(message, 0, message.length, compressed);
+            assertTrue(length <= sender.maxCompressedLength(message.length));
+            assertEquals(message.length, receiver.decompress(compressed, 0, length, decompressed));
+            for (int i = 0; i < message.length; i++) {
+                if (message[i] != decompressed[i])
+                    fail("Mismatch at " + i + " of a " + message.length + " byte message");
+            }
+            in += message.length;
+            out += length;
+        }
+        assertTrue("ratio " + (double) out / in, out < in * 0.8);
+    }
+
+    @Test
+    public void lzRoundTripsAcrossWindowSlides() throws IOException {
+        assertRoundTrip(new LzCodec(), new LzCodec());
+    }
+
+    @Test
+    public void deflateRoundTripsWithSharedState() throws IOException {
+        if (!DeflateCodec.isSupported())
+            return;
+        assertRoundTrip(new DeflateCodec(), new DeflateCodec());
+    }
+
+    @Test
+    public void laterMessagesReuseEarlierContext() {
+        byte[] line = "did you see the message I sent you about the meeting tomorrow?".getBytes();
+        PayloadCodec[] codecs = {new LzCodec(), new DeflateCodec()};
+        for (PayloadCodec codec : codecs) {
+            byte[] dest = new byte[codec.maxCompressedLength(line.length)];
+            int first = codec.compress(line, 0, line.length, dest);
+            int second = codec.compress(line, 0, line.length, dest);
+            assertTrue(codec.getClass().getSimpleName() + " " + first + " -> " + second, second < first / 3);
+        }
+    }
+
+    @Test
+    public void corruptLzInputFailsCleanly() {
+        byte[] message = ChatCorpus.logPastes(1, 9).get(0);
+        LzCodec sender = new LzCodec();
+        byte[] compressed = new byte[sender.maxCompressedLength(message.length)];
+        int length = sender.compress(message, 0, message.length, compressed);
+        Random random = new Random(10);
+        int failures = 0;
+        for (int i = 0; i < 200; i++) {
+            byte[] corrupt = compressed.clone();
+            corrupt[1 + random.nextInt(length - 1)] ^= (byte) (1 + random.nextInt(255));
+            try {
+                new LzCodec().decompress(corrupt, 0, length, new byte[FrameCodec.MAX_PAYLOAD_LENGTH]);
+            } catch (IOException e) {
+                failures++;
+            }
+        }
+        assertTrue(failures > 0);
+    }
+
+    @Test
+    public void sendQueueCompressesAboveThresholdOnly() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<byte[]> messages = ChatCorpus.chatLines(300, 6);
+        final CountDownLatch sent = new CountDownLatch(messages.size());
+        SendQueue queue = new SendQueue(out, new SendQueue.Listener() {
+            @Override
+            public void onSent(int type, byte[] payload) {
+                sent.countDown();
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+            }
+        });
+        CompressionStats stats = new CompressionStats();
+        queue.setCompressor(new PayloadCompressor(new LzCodec(), 20, stats));
+        queue.start();
+        for (byte[] message : messages) {
+            queue.put(FrameCodec.TYPE_TEXT, message);
+        }
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        queue.close();
+
+        LzCodec receiver = new LzCodec();
+        byte[] plain = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(out.toByteArray()));
+        int compressed = 0;
+        for (byte[] message : messages) {
+            assertTrue(decoder.next());
+            if (message.length < 20) {
+                assertEquals(FrameCodec.TYPE_TEXT, decoder.type());
+                continue;
+            }
+            assertEquals(FrameCodec.TYPE_TEXT_COMPRESSED, decoder.type());
+            assertEquals(new String(message, "UTF-8"),
+                    new String(plain, 0, receiver.decompress(decoder.buffer(), decoder.offset(), decoder.length(), plain), "UTF-8"));
+            compressed++;
+        }
+        assertEquals(compressed, stats.compressedMessages());
+        assertEquals(messages.size() - compressed, stats.skippedMessages());
+        assertTrue(stats.toString(), stats.ratio() < 0.8);
+    }
+
+    @Test
+    public void negotiatesCommonCodec() throws IOException {
+        byte[] hello = Handshake.hello(Handshake.CAP_LZ);
+        assertEquals(Handshake.CAP_LZ, Handshake.parse(hello, 0, hello.length).capabilities);
+        assertTrue(Handshake.negotiateCodec(Handshake.CAP_LZ | Handshake.CAP_DEFLATE, Handshake.CAP_LZ) instanceof LzCodec);
+        assertTrue(Handshake.negotiateCodec(Handshake.CAP_LZ | Handshake.CAP_DEFLATE, Handshake.CAP_DEFLATE | 64) instanceof DeflateCodec);
+        assertNull(Handshake.negotiateCodec(Handshake.CAP_LZ, 0));
+    }
+}
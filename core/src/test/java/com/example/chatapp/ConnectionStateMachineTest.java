@@ -0,0 +1,131 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+
+    private static final class Transition {
+        final ConnectionStateMachine.Snapshot<AtomicInteger> from;
+        final ConnectionStateMachine.Snapshot<AtomicInteger> to;
+
+        Transition(ConnectionStateMachine.Snapshot<AtomicInteger> from, ConnectionStateMachine.Snapshot<AtomicInteger> to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class Recorder implements ConnectionStateMachine.Listener<AtomicInteger> {
+        final ConcurrentLinkedQueue<Transition> events = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void onTransition(ConnectionStateMachine.Snapshot<AtomicInteger> from,
+                                 ConnectionStateMachine.Snapshot<AtomicInteger> to) {
+            events.add(new Transition(from, to));
+        }
+    }
+
+    @Test
+    public void onlyLegalTransitionsAreTaken() {
+        Recorder recorder = new Recorder();
+        ConnectionStateMachine<AtomicInteger> machine = new ConnectionStateMachine<>(recorder);
+        assertNull(machine.moveTo(ConnectionStateMachine.CONNECTED, null));
+        assertNull(machine.moveTo(ConnectionStateMachine.LOST, null));
+        assertNotNull(machine.moveTo(ConnectionStateMachine.LISTEN, null));
+        assertNull(machine.moveTo(ConnectionStateMachine.LISTEN, null));
+
+        AtomicInteger session = new AtomicInteger();
+        ConnectionStateMachine.Snapshot<AtomicInteger> listening = machine.current();
+        assertNotNull(machine.compareAndSet(listening, ConnectionStateMachine.CONNECTED, session));
+        assertNull(machine.compareAndSet(listening, ConnectionStateMachine.CONNECTING, null));
+        assertSame(session, machine.session(ConnectionStateMachine.CONNECTED));
+        assertNull(machine.session(ConnectionStateMachine.LISTEN));
+        assertEquals(2, recorder.events.size());
+        assertEquals(2, machine.current().version);
+    }
+
+    /**
+     * Threads race random transitions, each installing a fresh session and shutting
+     * down the one it replaced. Every transition must be published exactly once, form
+     * one unbroken chain of legal steps, and every replaced session must be shut down
+     * exactly once.
+     */
+    @Test
+    public void racingTransitionsFormOneChain() throws Exception {
+        final Recorder recorder = new Recorder();
+        final ConnectionStateMachine<AtomicInteger> machine = new ConnectionStateMachine<>(recorder);
+        final int threads = 8;
+        final int iterations = 20000;
+        final AtomicInteger succeeded = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            int to = random.nextInt(5);
+                            AtomicInteger session = to == ConnectionStateMachine.CONNECTED ? new AtomicInteger() : null;
+                            ConnectionStateMachine.Snapshot<AtomicInteger> previous;
+                            if (random.nextBoolean()) {
+                                previous = machine.moveTo(to, session);
+                            } else {
+                                ConnectionStateMachine.Snapshot<AtomicInteger> expected = machine.current();
+                                previous = machine.compareAndSet(expected, to, session) != null ? expected : null;
+                            }
+                            if (previous == null)
+                                continue;
+                            succeeded.incrementAndGet();
+                            if (previous.session != null)
+                                previous.session.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        List<Transition> events = new ArrayList<>(recorder.events);
+        assertEquals(succeeded.get(), events.size());
+        assertTrue("too few transitions: " + events.size(), events.size() > threads * iterations / 10);
+        Collections.sort(events, new Comparator<Transition>() {
+            @Override
+            public int compare(Transition a, Transition b) {
+                return Long.compare(a.to.version, b.to.version);
+            }
+        });
+        ConnectionStateMachine.Snapshot<AtomicInteger> last = null;
+        for (int i = 0; i < events.size(); i++) {
+            ConnectionStateMachine.Snapshot<AtomicInteger> from = events.get(i).from;
+            ConnectionStateMachine.Snapshot<AtomicInteger> to = events.get(i).to;
+            assertEquals(i + 1, to.version);
+            if (last != null)
+                assertSame("transition " + i + " does not follow the previous one", last, from);
+            assertTrue(from.state + " -> " + to.state, ConnectionStateMachine.isLegal(from.state, to.state));
+            if (from.session != null)
+                assertEquals(1, from.session.get());
+            last = to;
+        }
+        assertSame(machine.current(), last);
+        if (last.session != null)
+            assertEquals(0, last.session.get());
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.chatapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void addressesRoundTripThroughLongs() {
+        long address = DeviceRegistry.parseAddress("00:1a:7D:DA:71:13");
+        assertEquals(0x001A7DDA7113L, address);
+        assertEquals("00:1A:7D:DA:71:13", DeviceRegistry.formatAddress(address));
+        assertEquals("FF:FF:FF:FF:FF:FF", DeviceRegistry.formatAddress(DeviceRegistry.parseAddress("ff:ff:ff:ff:ff:ff")));
+        for (String bad : new String[]{"", "00:1A:7D:DA:71", "00-1A-7D-DA-71-13", "00:1A:7D:DA:71:1G"}) {
+            try {
+                DeviceRegistry.parseAddress(bad);
+                fail(bad);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void mergesSightingsAndEvictsStaleDevices() {
+        DeviceRegistry registry = new DeviceRegistry(1000, 3);
+        assertTrue(registry.seen(1, "phone", -60, false, 100));
+        assertFalse(registry.seen(1, null, DeviceRegistry.NO_RSSI, true, 200));
+        assertEquals(1, registry.size());
+        DeviceRegistry.Device device = registry.find(1);
+        assertEquals("phone", device.getName());
+        assertEquals(-60, device.getRssi());
+        assertEquals(200, device.getLastSeen());
+        assertTrue(device.isBonded());
+        assertEquals("phone\n00:00:00:00:00:01", device.toString());
+
+        registry.seen(2, "tablet", -40, false, 300);
+        registry.seen(3, "watch", -80, false, 400);
+        // The least recently seen goes when the registry is full.
+        registry.seen(4, "laptop", -50, false, 500);
+        assertNull(registry.find(1));
+        List<DeviceRegistry.Device> devices = registry.devices();
+        assertEquals(4, devices.get(0).getAddress());
+        assertEquals(2, devices.get(2).getAddress());
+
+        assertEquals(1, registry.evict(1350));
+        assertNull(registry.find(2));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void savedDevicesLoadWithinTtl() throws IOException {
+        File file = new File(folder.getRoot(), "devices");
+        DeviceRegistry registry = new DeviceRegistry(1000, DeviceRegistry.DEFAULT_MAX_DEVICES);
+        assertEquals(0, registry.load(file, 0));
+        registry.seen(0xA0B0C0D0E0F0L, "\u00e9cho", -70, true, 100);
+        registry.seen(2, null, DeviceRegistry.NO_RSSI, false, 900);
+        registry.save(file);
+
+        DeviceRegistry loaded = new DeviceRegistry(1000, DeviceRegistry.DEFAULT_MAX_DEVICES);
+        assertEquals(1, loaded.load(file, 1500));
+        assertNull(loaded.find(0xA0B0C0D0E0F0L));
+        DeviceRegistry.Device device = loaded.find(2);
+        assertNull(device.getName());
+        assertEquals(DeviceRegistry.NO_RSSI, device.getRssi());
+        assertEquals(900, device.getLastSeen());
+
+        loaded = new DeviceRegistry(1000, DeviceRegistry.DEFAULT_MAX_DEVICES);
+        assertEquals(2, loaded.load(file, 1000));
+        device = loaded.find(0xA0B0C0D0E0F0L);
+        assertEquals("\u00e9cho", device.getName());
+        assertEquals(-70, device.getRssi());
+        assertTrue(device.isBonded());
+    }
+
+    @Test
+    public void bondedFlagsFollowTheAdapterWithoutCountingAsSightings() throws IOException {
+        DeviceRegistry registry = new DeviceRegistry(1000, DeviceRegistry.DEFAULT_MAX_DEVICES);
+        registry.seen(1, "kept", -60, true, 100);
+        registry.seen(2, "unpaired", -60, true, 200);
+        registry.seen(3, "paired since", -60, false, 300);
+        Map<Long, String> bonded = new HashMap<>();
+        bonded.put(1L, null);
+        bonded.put(3L, "paired since");
+        bonded.put(4L, "never seen");
+        assertEquals(1, registry.updateBonded(bonded));
+        assertTrue(registry.find(1).isBonded());
+        assertFalse(registry.find(2).isBonded());
+        assertTrue(registry.find(3).isBonded());
+        assertEquals("kept", registry.find(1).getName());
+        assertEquals(100, registry.find(1).getLastSeen());
+        assertEquals(300, registry.find(3).getLastSeen());
+        DeviceRegistry.Device added = registry.find(4);
+        assertEquals("never seen", added.getName());
+        assertTrue(added.isBonded());
+        assertEquals(0, added.getLastSeen());
+
+        // A device known only as bonded picks up what was saved about it.
+        File file = new File(folder.getRoot(), "devices");
+        DeviceRegistry saved = new DeviceRegistry(1000, DeviceRegistry.DEFAULT_MAX_DEVICES);
+        saved.seen(4, "never seen", -50, false, 400);
+        saved.save(file);
+        assertEquals(1, registry.load(file, 500));
+        assertEquals(400, added.getLastSeen());
+        assertEquals(-50, added.getRssi());
+
+        // Being bonded doesn't keep a device from going stale.
+        assertEquals(1, registry.evict(1150));
+        assertNull(registry.find(1));
+        assertNotNull(registry.find(4));
+    }
+}
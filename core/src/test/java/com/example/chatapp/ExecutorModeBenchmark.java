@@ -0,0 +1,197 @@
+package com.example.chatapp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares platform-thread and virtual-thread execution of blocking connection
+ * tasks. For each mode it opens N loopback TCP connections to an echo server whose
+ * per-connection loops run on the executor under test, parks every client and server
+ * task in a blocking read, samples resident memory, then runs round trips on all
+ * connections at once.
+ *
+ * Arguments: mode (platform, virtual or both; default both), connection counts
+ * (default 1000,10000) and round trips per connection (default 20). Resident memory
+ * is only comparable when each mode runs in its own JVM. Virtual mode is skipped on
+ * JVMs older than 21.
+ */
+public class ExecutorModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "both";
+        int[] counts = {1000, 10000};
+        int roundTrips = 20;
+        if (args.length > 1) {
+            String[] parts = args[1].split(",");
+            counts = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                counts[i] = Integer.parseInt(parts[i]);
+            }
+        }
+        if (args.length > 2)
+            roundTrips = Integer.parseInt(args[2]);
+
+        for (int count : counts) {
+            if (!mode.equals("virtual"))
+                run("platform", ConnectionExecutors.platform("Bench"), count, roundTrips);
+            if (mode.equals("platform"))
+                continue;
+            ExecutorService virtual = ConnectionExecutors.virtual();
+            if (virtual != null)
+                run("virtual", virtual, count, roundTrips);
+            else
+                System.out.println("virtual   connections=" + count + "  skipped, JVM has no virtual threads");
+        }
+    }
+
+    private static void run(String mode, ExecutorService executor, int connections, final int roundTrips) throws Exception {
+        System.gc();
+        long rssBefore = residentKilobytes();
+        final TcpTransport server = new TcpTransport("127.0.0.1", TransportTest.freePort());
+        final Transport.Acceptor acceptor = server.listen();
+        final CountDownLatch serversParked = new CountDownLatch(connections);
+        final ExecutorService tasks = executor;
+
+        tasks.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Connection connection = acceptor.accept();
+                        tasks.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                echo(connection, serversParked);
+                            }
+                        });
+                    }
+                } catch (ClosedChannelException e) {
+                    // acceptor closed at the end of the run
+                } catch (IOException e) {
+                    System.out.println("accept loop stopped: " + e);
+                } catch (OutOfMemoryError | RejectedExecutionException e) {
+                    System.out.println("accept loop could not start a task: " + e);
+                }
+            }
+        });
+
+        final Connection[] clients = new Connection[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients[i] = new TcpTransport(0).open("127.0.0.1:" + server.getPort());
+                clients[i].connect();
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            System.out.printf("%-9s connections=%d  failed while connecting: %s%n", mode, connections, e);
+            shutdown(tasks, acceptor, clients);
+            return;
+        }
+
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch clientsParked = new CountDownLatch(connections);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicLong completed = new AtomicLong();
+        try {
+            for (final Connection client : clients) {
+                tasks.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        clientsParked.countDown();
+                        try {
+                            go.await();
+                            FrameEncoder encoder = new FrameEncoder(client.getOutputStream(), 64);
+                            FrameDecoder decoder = new FrameDecoder(client.getInputStream(), 256);
+                            byte[] payload = new byte[32];
+                            for (int i = 0; i < roundTrips; i++) {
+                                encoder.write(FrameCodec.TYPE_TEXT, payload);
+                                if (!decoder.next())
+                                    break;
+                                completed.incrementAndGet();
+                            }
+                        } catch (IOException | InterruptedException e) {
+                            e.printStackTrace();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+        } catch (OutOfMemoryError e) {
+            System.out.printf("%-9s connections=%d  failed starting tasks: %s%n", mode, connections, e);
+            go.countDown();
+            shutdown(tasks, acceptor, clients);
+            return;
+        }
+        serversParked.await(60, TimeUnit.SECONDS);
+        clientsParked.await(60, TimeUnit.SECONDS);
+        System.gc();
+        long rssParked = residentKilobytes();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long start = System.nanoTime();
+        go.countDown();
+        done.await(120, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%-9s connections=%6d  platformThreads=%6d  rss+%7.1f MB (%5.1f KB/conn)  %10.0f round trips/s%n",
+                mode, connections, threads, (rssParked - rssBefore) / 1024.0,
+                (double) (rssParked - rssBefore) / connections, completed.get() / (elapsed / 1e9));
+        shutdown(tasks, acceptor, clients);
+    }
+
+    private static void echo(Connection connection, CountDownLatch parked) {
+        try {
+            FrameEncoder encoder = new FrameEncoder(connection.getOutputStream(), 64);
+            FrameDecoder decoder = new FrameDecoder(connection.getInputStream(), 256);
+            parked.countDown();
+            while (decoder.next()) {
+                encoder.write(decoder.type(), decoder.buffer(), decoder.offset(), decoder.length());
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void shutdown(ExecutorService tasks, Transport.Acceptor acceptor, Connection[] clients) throws Exception {
+        acceptor.close();
+        for (Connection client : clients) {
+            if (client != null)
+                client.close();
+        }
+        tasks.shutdownNow();
+        tasks.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private static long residentKilobytes() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:"))
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+    }
+}
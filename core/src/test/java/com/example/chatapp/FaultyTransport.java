@@ -0,0 +1,134 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps a transport so that every connection is cut after a random number of
+ * written bytes, possibly in the middle of a frame, as a flaky radio link would.
+ */
+class FaultyTransport implements Transport {
+    private final Transport transport;
+    private final int minBytes;
+    private final int maxBytes;
+    private final Random random;
+    final AtomicInteger cuts = new AtomicInteger();
+
+    FaultyTransport(Transport transport, int minBytes, int maxBytes, long seed) {
+        this.transport = transport;
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        final Acceptor acceptor = transport.listen();
+        return new Acceptor() {
+            @Override
+            public Connection accept() throws IOException {
+                return wrap(acceptor.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                acceptor.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        return wrap(transport.open(address));
+    }
+
+    @Override
+    public Connection open(String address, String endpoint) throws IOException {
+        return wrap(transport.open(address, endpoint));
+    }
+
+    private synchronized Connection wrap(Connection connection) {
+        return new FaultyConnection(connection, minBytes + random.nextInt(maxBytes - minBytes + 1));
+    }
+
+    private class FaultyConnection implements Connection {
+        private final Connection connection;
+        private int budget;
+        private final OutputStream outputStream;
+
+        FaultyConnection(Connection connection, int budgetBytes) {
+            this.connection = connection;
+            this.budget = budgetBytes;
+            final OutputStream out;
+            try {
+                out = connection.getOutputStream();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            outputStream = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    int allowed;
+                    synchronized (FaultyConnection.this) {
+                        allowed = Math.min(len, budget);
+                        budget -= allowed;
+                    }
+                    out.write(b, off, allowed);
+                    if (allowed < len) {
+                        cuts.incrementAndGet();
+                        connection.close();
+                        throw new IOException("Link dropped");
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+
+        @Override
+        public void connect() throws IOException {
+            connection.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connection.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return connection.getRemoteAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return connection.getRemoteName();
+        }
+
+        @Override
+        public String getEndpoint() {
+            return connection.getEndpoint();
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileTransfersTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * One direction of a connection: reads frames from a pipe and hands them to a
+     * {@link FileTransfers}, optionally cutting the link or corrupting a chunk.
+     */
+    private static final class Endpoint implements Runnable {
+        final FileTransfers transfers;
+        final SendQueue queue;
+        final MemoryPipe in;
+        final MemoryPipe out;
+        final List<Long> chunkOffsets = new ArrayList<>();
+        final List<String> texts = new ArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile int cutAfterChunks = -1;
+        volatile int corruptChunk = -1;
+
+        Endpoint(FileTransfers transfers, MemoryPipe in, MemoryPipe out) {
+            this.transfers = transfers;
+            this.in = in;
+            this.out = out;
+            this.queue = new SendQueue(out.getOutputStream(), new SendQueue.Listener() {
+                @Override
+                public void onSent(int type, byte[] payload) {
+                }
+
+                @Override
+                public void onFailed(IOException e) {
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            queue.start();
+            transfers.attach(queue);
+            FrameDecoder decoder = new FrameDecoder(in.getInputStream());
+            try {
+                while (decoder.next()) {
+                    if (decoder.type() == FrameCodec.TYPE_TEXT) {
+                        synchronized (this) {
+                            texts.add(new String(decoder.buffer(), decoder.offset(), decoder.length(), "UTF-8")
+                                    + "@" + chunkOffsets.size());
+                        }
+                        continue;
+                    }
+                    if (decoder.type() == FrameCodec.TYPE_FILE_CHUNK) {
+                        int chunks;
+                        synchronized (this) {
+                            chunkOffsets.add(readLong(decoder.buffer(), decoder.offset() + 8));
+                            chunks = chunkOffsets.size();
+                        }
+                        if (chunks == corruptChunk)
+                            decoder.buffer()[decoder.offset() + decoder.length() - 1] ^= 1;
+                        if (chunks == cutAfterChunks) {
+                            cut();
+                            break;
+                        }
+                    }
+                    transfers.onFrame(decoder.type(), decoder.buffer(), decoder.offset(), decoder.length());
+                }
+            } catch (IOException e) {
+                // Link cut from the other side.
+            } finally {
+                transfers.detach(queue);
+                queue.close();
+                finished.countDown();
+            }
+        }
+
+        void cut() {
+            try {
+                in.getInputStream().close();
+                out.getOutputStream().close();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        synchronized List<Long> chunkOffsets() {
+            return new ArrayList<>(chunkOffsets);
+        }
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static class Results implements FileTransfers.Listener {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(1);
+        volatile File file;
+
+        @Override
+        public void onSent(File file) {
+            sent.countDown();
+        }
+
+        @Override
+        public void onReceived(File file) {
+            this.file = file;
+            received.countDown();
+        }
+
+        @Override
+        public void onFailed(String name, IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Endpoint[] connect(FileTransfers sender, FileTransfers receiver) {
+        MemoryPipe forward = new MemoryPipe(64 * 1024);
+        MemoryPipe backward = new MemoryPipe(64 * 1024);
+        Endpoint senderSide = new Endpoint(sender, backward, forward);
+        Endpoint receiverSide = new Endpoint(receiver, forward, backward);
+        executor.execute(senderSide);
+        executor.execute(receiverSide);
+        return new Endpoint[]{senderSide, receiverSide};
+    }
+
+    private File randomFile(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(folder.newFolder(), "photo.jpg");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private static byte[] contents(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] data = new byte[(int) in.length()];
+        in.readFully(data);
+        in.close();
+        return data;
+    }
+
+    @Test
+    public void transfersFileWhileChatStaysResponsive() throws Exception {
+        File source = randomFile(3 * 1024 * 1024 + 123);
+        Results senderResults = new Results();
+        Results receiverResults = new Results();
+        FileTransfers sender = new FileTransfers(folder.newFolder(), executor, senderResults);
+        File inbox = folder.newFolder();
+        FileTransfers receiver = new FileTransfers(inbox, executor, receiverResults);
+        Endpoint[] link = connect(sender, receiver);
+
+        long start = System.nanoTime();
+        sender.send(source);
+        while (link[1].chunkOffsets().size() < 10) {
+            Thread.sleep(1);
+        }
+        link[0].queue.offer(FrameCodec.TYPE_TEXT, "hello".getBytes("UTF-8"));
+
+        assertTrue(receiverResults.received.await(20, TimeUnit.SECONDS));
+        assertTrue(senderResults.sent.await(5, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%d bytes in %.1f ms%n", source.length(), elapsed / 1e6);
+
+        assertArrayEquals(contents(source), contents(receiverResults.file));
+        assertEquals("photo.jpg", receiverResults.file.getName());
+        assertEquals(1, inbox.list().length);
+        assertEquals(0, sender.pendingCount());
+        // The text overtook the rest of the file: it arrived well before the last chunk.
+        String text = link[1].texts.get(0);
+        int chunksBefore = Integer.parseInt(text.substring(text.indexOf('@') + 1));
+        assertTrue("text arrived after chunk " + chunksBefore, chunksBefore < 10 + 2 * FileTransfers.DEFAULT_WINDOW_BYTES / FileTransfers.CHUNK_SIZE);
+        link[0].cut();
+        link[1].cut();
+    }
+
+    @Test
+    public void resumesFromAcknowledgedOffsetAfterReconnect() throws Exception {
+        File source = randomFile(2 * 1024 * 1024);
+        Results senderResults = new Results();
+        Results receiverResults = new Results();
+        FileTransfers sender = new FileTransfers(folder.newFolder(), executor, senderResults);
+        File inbox = folder.newFolder();
+        FileTransfers receiver = new FileTransfers(inbox, executor, receiverResults);
+
+        Endpoint[] first = connect(sender, receiver);
+        first[1].cutAfterChunks = 50;
+        sender.send(source);
+        assertTrue(first[0].finished.await(5, TimeUnit.SECONDS));
+        assertTrue(first[1].finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, sender.pendingCount());
+        assertEquals(0, receiver.pendingCount());
+        long partLength = inbox.listFiles()[0].length();
+        assertEquals(49L * FileTransfers.CHUNK_SIZE, partLength);
+
+        Endpoint[] second = connect(sender, receiver);
+        assertTrue(receiverResults.received.await(20, TimeUnit.SECONDS));
+        assertTrue(senderResults.sent.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(contents(source), contents(receiverResults.file));
+
+        List<Long> resumed = second[1].chunkOffsets();
+        assertEquals(Long.valueOf(partLength), resumed.get(0));
+        assertEquals((source.length() - partLength) / FileTransfers.CHUNK_SIZE, resumed.size());
+        second[0].cut();
+        second[1].cut();
+    }
+
+    @Test
+    public void corruptChunkIsSentAgain() throws Exception {
+        File source = randomFile(40 * FileTransfers.CHUNK_SIZE + 7);
+        Results receiverResults = new Results();
+        FileTransfers sender = new FileTransfers(folder.newFolder(), executor, new Results());
+        FileTransfers receiver = new FileTransfers(folder.newFolder(), executor, receiverResults);
+        Endpoint[] link = connect(sender, receiver);
+        link[1].corruptChunk = 5;
+        sender.send(source);
+
+        assertTrue(receiverResults.received.await(20, TimeUnit.SECONDS));
+        assertArrayEquals(contents(source), contents(receiverResults.file));
+        List<Long> offsets = link[1].chunkOffsets();
+        long corrupted = offsets.get(4);
+        assertTrue(offsets.subList(5, offsets.size()).contains(corrupted));
+        link[0].cut();
+        link[1].cut();
+    }
+}
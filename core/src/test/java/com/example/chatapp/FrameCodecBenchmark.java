@@ -0,0 +1,59 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Encodes frames on one thread and decodes them on another over a piped stream pair.
+ * Run with {@code main} from the IDE; prints frames/s and MB/s per payload size.
+ */
+public class FrameCodecBenchmark {
+    private static final int[] PAYLOAD_SIZES = {10, 100, 1024, 8 * 1024, 64 * 1024};
+    private static final long BYTES_PER_RUN = 256L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        for (int size : PAYLOAD_SIZES) {
+            run(size, false);
+            run(size, true);
+        }
+    }
+
+    private static void run(int payloadSize, boolean report) throws Exception {
+        final int frames = (int) Math.max(10000, Math.min(5000000, BYTES_PER_RUN / payloadSize / (report ? 1 : 4)));
+        final byte[] payload = FrameCodecTest.payload(payloadSize);
+        final PipedOutputStream pipeOut = new PipedOutputStream();
+        PipedInputStream pipeIn = new PipedInputStream(pipeOut, 256 * 1024);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FrameEncoder encoder = new FrameEncoder(pipeOut);
+                    for (int i = 0; i < frames; i++) {
+                        encoder.write(FrameCodec.TYPE_TEXT, payload);
+                    }
+                    pipeOut.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        writer.start();
+        FrameDecoder decoder = new FrameDecoder(pipeIn);
+        int decoded = 0;
+        while (decoder.next()) {
+            decoded++;
+        }
+        long elapsed = System.nanoTime() - start;
+        writer.join();
+
+        if (report) {
+            double seconds = elapsed / 1e9;
+            System.out.printf("payload=%6d B  frames=%8d  %12.0f frames/s  %8.1f MB/s%n",
+                    payloadSize, decoded, decoded / seconds, (double) decoded * payloadSize / seconds / (1024 * 1024));
+        }
+    }
+}
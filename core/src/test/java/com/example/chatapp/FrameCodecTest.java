@@ -0,0 +1,111 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    @Test
+    public void roundTripsFramesOfEverySize() throws IOException {
+        int[] sizes = {0, 1, 10, 127, 128, 16383, 16384, 40000, FrameCodec.MAX_PAYLOAD_LENGTH};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder(out, 16);
+        for (int size : sizes) {
+            encoder.write(FrameCodec.TYPE_TEXT, payload(size));
+        }
+
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(out.toByteArray()), 64);
+        for (int size : sizes) {
+            assertTrue(decoder.next());
+            assertEquals(FrameCodec.TYPE_TEXT, decoder.type());
+            assertArrayEquals(payload(size), Arrays.copyOfRange(decoder.buffer(), decoder.offset(), decoder.offset() + decoder.length()));
+        }
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void reassemblesFramesDeliveredOneByteAtATime() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder(out);
+        encoder.write(FrameCodec.TYPE_TEXT, "hello".getBytes("UTF-8"));
+        encoder.write(7, payload(300));
+
+        FrameDecoder decoder = new FrameDecoder(new TrickleInputStream(out.toByteArray()), 32);
+        assertTrue(decoder.next());
+        assertEquals("hello", new String(decoder.buffer(), decoder.offset(), decoder.length(), "UTF-8"));
+        assertTrue(decoder.next());
+        assertEquals(7, decoder.type());
+        assertEquals(300, decoder.length());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void reusesBufferOnceWarm() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder(out);
+        for (int i = 0; i < 1000; i++) {
+            encoder.write(FrameCodec.TYPE_TEXT, payload(i % 200));
+        }
+
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(out.toByteArray()), 1024);
+        byte[] first = null;
+        while (decoder.next()) {
+            if (first == null)
+                first = decoder.buffer();
+            assertSame(first, decoder.buffer());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsTruncatedFrame() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameEncoder(out).write(FrameCodec.TYPE_TEXT, payload(50));
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), 20);
+        new FrameDecoder(new ByteArrayInputStream(bytes)).next();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOversizedFrame() throws IOException {
+        byte[] header = new byte[8];
+        FrameCodec.putVarint(header, 0, FrameCodec.MAX_PAYLOAD_LENGTH + 1);
+        new FrameDecoder(new ByteArrayInputStream(header)).next();
+    }
+
+    static byte[] payload(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + size);
+        }
+        return bytes;
+    }
+
+    private static class TrickleInputStream extends InputStream {
+        private final byte[] bytes;
+        private int position;
+
+        TrickleInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= bytes.length)
+                return -1;
+            b[off] = bytes[position++];
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class HeartbeatTest {
+    private final TimerWheel wheel = new TimerWheel("TestHeartbeat", 5, 64);
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answers each ping after {@code delayMillis}, like a peer on a slow link.
+     */
+    private Heartbeat echoing(final long delayMillis, final CountDownLatch timedOut) {
+        final Heartbeat[] heartbeat = new Heartbeat[1];
+        heartbeat[0] = new Heartbeat(wheel, 40, 400, new Heartbeat.Listener() {
+            @Override
+            public boolean sendPing(final byte[] payload) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(delayMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        heartbeat[0].onReceived();
+                        heartbeat[0].onPong(payload, 0, payload.length);
+                    }
+                });
+                return true;
+            }
+
+            @Override
+            public void onTimeout(long silentNanos) {
+                timedOut.countDown();
+            }
+        });
+        return heartbeat[0];
+    }
+
+    @Test
+    public void idleLinkIsPingedAndRoundTripSampled() throws Exception {
+        CountDownLatch timedOut = new CountDownLatch(1);
+        Heartbeat heartbeat = echoing(10, timedOut);
+        heartbeat.start();
+        Thread.sleep(400);
+        heartbeat.stop();
+
+        Heartbeat.Stats stats = heartbeat.stats();
+        assertTrue(stats.toString(), stats.pingsSent >= 4);
+        assertTrue(stats.toString(), stats.pongsReceived >= stats.pingsSent - 1);
+        assertTrue(stats.toString(), stats.smoothedRttNanos >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(stats.toString(), stats.smoothedRttNanos < TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(1, timedOut.getCount());
+    }
+
+    @Test
+    public void trafficSuppressesPings() throws Exception {
+        CountDownLatch timedOut = new CountDownLatch(1);
+        Heartbeat heartbeat = echoing(0, timedOut);
+        heartbeat.start();
+        for (int i = 0; i < 30; i++) {
+            heartbeat.onReceived();
+            Thread.sleep(10);
+        }
+        heartbeat.stop();
+
+        Heartbeat.Stats stats = heartbeat.stats();
+        assertEquals(stats.toString(), 0, stats.pingsSent);
+        assertTrue(stats.toString(), stats.pingsSuppressed > 0);
+    }
+
+    @Test
+    public void silentPeerTimesOutOnSchedule() throws Exception {
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        final AtomicLong pings = new AtomicLong();
+        Heartbeat heartbeat = new Heartbeat(wheel, 40, 200, new Heartbeat.Listener() {
+            @Override
+            public boolean sendPing(byte[] payload) {
+                pings.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public void onTimeout(long silentNanos) {
+                timedOut.countDown();
+            }
+        });
+        long start = System.nanoTime();
+        heartbeat.start();
+        assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMillis + "ms", elapsedMillis >= 200 && elapsedMillis < 400);
+        // About one ping per interval of silence, then nothing more.
+        long sent = pings.get();
+        assertTrue(sent + " pings", sent >= 3 && sent <= 4);
+        Thread.sleep(100);
+        assertEquals(sent, pings.get());
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    public void halfOpenConnectionEndsWithinTimeout() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network(4096);
+        Transport.Acceptor acceptor = new MemoryTransport(network, "a").listen();
+        Connection toA = new MemoryTransport(network, "b").open("a");
+        Connection toB = acceptor.accept();
+
+        ChatMetrics metrics = new ChatMetrics();
+        final PeerChannel channel = new PeerChannel(toB, new ReliableSession(64 * 1024, 256), new BufferPool(4, 70000),
+                executor, null, new PeerChannel.Listener() {
+            @Override
+            public void onMessage(PooledBuffer buffer, int offset, int length) {
+                buffer.release();
+            }
+        });
+        channel.setMetrics(metrics);
+        channel.enableHeartbeat(wheel, 50, 300);
+
+        // The peer says hello, then never reads or writes again, so writes to it
+        // soon block for good.
+        byte[] hello = Handshake.hello(Handshake.CAP_HEARTBEAT);
+        byte[] frame = new byte[FrameCodec.encodedLength(hello.length)];
+        FrameCodec.encode(FrameCodec.TYPE_HELLO, hello, 0, hello.length, frame, 0);
+        OutputStream out = toA.getOutputStream();
+        out.write(frame);
+        out.flush();
+        for (int i = 0; i < 100; i++) {
+            channel.send(new byte[1000]);
+        }
+
+        long start = System.nanoTime();
+        try {
+            channel.run();
+        } catch (IOException e) {
+            // Closed under the reader, as expected.
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMillis + "ms", elapsedMillis < 2000);
+        assertEquals(1, metrics.snapshot().heartbeatTimeouts);
+        acceptor.close();
+    }
+}
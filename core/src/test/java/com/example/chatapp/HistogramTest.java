@@ -0,0 +1,70 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithinOneSixteenth() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        int last = -1;
+        for (long value : values) {
+            int index = Histogram.index(value);
+            assertTrue(index >= last);
+            last = index;
+            long highest = Histogram.highestValue(index);
+            assertTrue(value + " in bucket up to " + highest, highest >= value);
+            assertTrue(value + " in bucket up to " + highest, highest - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void percentilesMatchTheRecordedValues() {
+        Histogram histogram = new Histogram();
+        Random random = new Random(1);
+        long[] sorted = new long[10000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = (long) (Math.exp(random.nextDouble() * 15));
+            histogram.record(sorted[i]);
+        }
+        Arrays.sort(sorted);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(sorted.length, snapshot.count);
+        assertEquals(sorted[sorted.length - 1], snapshot.max);
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            long exact = sorted[(int) Math.ceil(p / 100 * sorted.length) - 1];
+            long reported = snapshot.percentile(p);
+            assertTrue(p + ": " + reported + " vs " + exact, reported >= exact && reported - exact <= exact / 16);
+        }
+        assertEquals(snapshot.max, snapshot.percentile(100));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.count);
+        assertEquals(1002, snapshot.max);
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HubTest {
+    private static final int PEERS = 12;
+
+    @Test
+    public void relaysEachMessageToEveryOtherPeer() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        final CountDownLatch joined = new CountDownLatch(PEERS);
+        final CountDownLatch hubReceived = new CountDownLatch(1);
+        Hub hub = new Hub(new MemoryTransport(network, "hub"), ConnectionExecutors.platform("HubReader"), 2, PEERS,
+                new Hub.Listener() {
+            @Override
+            public void onPeerJoined(Hub.Peer peer) {
+                joined.countDown();
+            }
+
+            @Override
+            public void onPeerLeft(Hub.Peer peer) {
+            }
+
+            @Override
+            public void onMessage(Hub.Peer peer, PooledBuffer buffer, int offset, int length) {
+                buffer.release();
+                hubReceived.countDown();
+            }
+        });
+        hub.start();
+
+        List<Connection> clients = new ArrayList<>();
+        for (int i = 0; i < PEERS; i++) {
+            clients.add(join(network, "peer" + i));
+        }
+        assertTrue(joined.await(5, TimeUnit.SECONDS));
+
+        new FrameEncoder(clients.get(0).getOutputStream()).write(FrameCodec.TYPE_TEXT, "hello group".getBytes("UTF-8"));
+        assertTrue(hubReceived.await(5, TimeUnit.SECONDS));
+        hub.broadcast("from host".getBytes("UTF-8"));
+
+        assertEquals("from host", readText(clients.get(0)));
+        for (int i = 1; i < PEERS; i++) {
+            FrameDecoder decoder = new FrameDecoder(clients.get(i).getInputStream());
+            assertEquals("hello group", next(decoder));
+            assertEquals("from host", next(decoder));
+        }
+        assertEquals(PEERS, hub.peerCount());
+        hub.stop();
+    }
+
+    /**
+     * More peers than the one-to-one receive pool in Utils holds, all sending at
+     * once; each peer's reader keeps a buffer while the messages are in flight.
+     */
+    @Test
+    public void everyPeerIsReadWithManyPeers() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        final CountDownLatch joined = new CountDownLatch(PEERS);
+        final CountDownLatch hubReceived = new CountDownLatch(PEERS);
+        Hub hub = new Hub(new MemoryTransport(network, "hub"), ConnectionExecutors.platform("HubReader"), 2, PEERS,
+                new Hub.Listener() {
+            @Override
+            public void onPeerJoined(Hub.Peer peer) {
+                joined.countDown();
+            }
+
+            @Override
+            public void onPeerLeft(Hub.Peer peer) {
+            }
+
+            @Override
+            public void onMessage(Hub.Peer peer, PooledBuffer buffer, int offset, int length) {
+                buffer.release();
+                hubReceived.countDown();
+            }
+        });
+        hub.start();
+
+        List<Connection> clients = new ArrayList<>();
+        for (int i = 0; i < PEERS; i++) {
+            Connection client = new MemoryTransport(network, "peer" + i).open("hub");
+            client.connect();
+            clients.add(client);
+        }
+        assertTrue(joined.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < PEERS; i++) {
+            new FrameEncoder(clients.get(i).getOutputStream()).write(FrameCodec.TYPE_TEXT, ("from " + i).getBytes("UTF-8"));
+        }
+        assertTrue(hubReceived.await(5, TimeUnit.SECONDS));
+        hub.stop();
+    }
+
+    @Test
+    public void turnsAwayPeersPastTheLimit() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        final CountDownLatch joined = new CountDownLatch(2);
+        Hub hub = new Hub(new MemoryTransport(network, "hub"), ConnectionExecutors.platform("HubReader"), 2, 2,
+                new Hub.Listener() {
+            @Override
+            public void onPeerJoined(Hub.Peer peer) {
+                joined.countDown();
+            }
+
+            @Override
+            public void onPeerLeft(Hub.Peer peer) {
+            }
+
+            @Override
+            public void onMessage(Hub.Peer peer, PooledBuffer buffer, int offset, int length) {
+                buffer.release();
+            }
+        });
+        hub.start();
+        for (int i = 0; i < 2; i++) {
+            new MemoryTransport(network, "peer" + i).open("hub").connect();
+        }
+        assertTrue(joined.await(5, TimeUnit.SECONDS));
+
+        Connection extra = new MemoryTransport(network, "extra").open("hub");
+        extra.connect();
+        assertEquals(-1, extra.getInputStream().read());
+        assertEquals(2, hub.peerCount());
+        hub.stop();
+    }
+
+    /**
+     * Clients that speak the reliable protocol: the hub answers their hello without
+     * it, so what they send before and after that goes out as plain text.
+     */
+    @Test
+    public void relaysBetweenPeerChannelClients() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        final CountDownLatch joined = new CountDownLatch(2);
+        Hub hub = new Hub(new MemoryTransport(network, "hub"), ConnectionExecutors.platform("HubReader"), 2, 2,
+                new Hub.Listener() {
+            @Override
+            public void onPeerJoined(Hub.Peer peer) {
+                joined.countDown();
+            }
+
+            @Override
+            public void onPeerLeft(Hub.Peer peer) {
+            }
+
+            @Override
+            public void onMessage(Hub.Peer peer, PooledBuffer buffer, int offset, int length) {
+                buffer.release();
+            }
+        });
+        hub.start();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        BlockingQueue<String> inbox0 = new LinkedBlockingQueue<>();
+        BlockingQueue<String> inbox1 = new LinkedBlockingQueue<>();
+        PeerChannel client0 = startClient(network, "peer0", null, executor, inbox0);
+        assertTrue(client0.send("queued before the hello".getBytes("UTF-8")));
+        PeerChannel client1 = startClient(network, "peer1", null, executor, inbox1);
+        assertTrue(joined.await(5, TimeUnit.SECONDS));
+
+        assertEquals("queued before the hello", inbox1.poll(5, TimeUnit.SECONDS));
+        assertTrue(client1.send("reply".getBytes("UTF-8")));
+        assertEquals("reply", inbox0.poll(5, TimeUnit.SECONDS));
+        hub.broadcast("from host".getBytes("UTF-8"));
+        assertEquals("from host", inbox0.poll(5, TimeUnit.SECONDS));
+        assertEquals("from host", inbox1.poll(5, TimeUnit.SECONDS));
+        client0.close();
+        client1.close();
+        hub.stop();
+        executor.shutdownNow();
+    }
+
+    /**
+     * A client with encryption on opens with the secure handshake; the hub answers
+     * that it relays in the clear and the client goes on unencrypted.
+     */
+    @Test
+    public void secureClientJoinsInTheClear() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        final CountDownLatch joined = new CountDownLatch(2);
+        final BlockingQueue<String> atHub = new LinkedBlockingQueue<>();
+        Hub hub = new Hub(new MemoryTransport(network, "hub"), ConnectionExecutors.platform("HubReader"), 2, 2,
+                new Hub.Listener() {
+            @Override
+            public void onPeerJoined(Hub.Peer peer) {
+                joined.countDown();
+            }
+
+            @Override
+            public void onPeerLeft(Hub.Peer peer) {
+            }
+
+            @Override
+            public void onMessage(Hub.Peer peer, PooledBuffer buffer, int offset, int length) {
+                atHub.add(TextCodec.decode(buffer.data(), offset, length));
+                buffer.release();
+            }
+        });
+        hub.start();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TimerWheel wheel = new TimerWheel("HubTest");
+        SecureHandshake handshake = new SecureHandshake(Identity.generate(), new TrustStore());
+        handshake.setTimeout(wheel, 3000);
+        BlockingQueue<String> secureInbox = new LinkedBlockingQueue<>();
+        BlockingQueue<String> plainInbox = new LinkedBlockingQueue<>();
+        PeerChannel plain = startClient(network, "plain", null, executor, plainInbox);
+        PeerChannel secure = startClient(network, "secure", handshake, executor, secureInbox);
+        assertTrue(joined.await(5, TimeUnit.SECONDS));
+
+        assertTrue(secure.send("from the secure client".getBytes("UTF-8")));
+        assertEquals("from the secure client", atHub.poll(5, TimeUnit.SECONDS));
+        assertEquals("from the secure client", plainInbox.poll(5, TimeUnit.SECONDS));
+        assertTrue(plain.send("from the plain client".getBytes("UTF-8")));
+        assertEquals("from the plain client", secureInbox.poll(5, TimeUnit.SECONDS));
+        plain.close();
+        secure.close();
+        hub.stop();
+        wheel.stop();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param handshake run first as the initiator if not null; the hub must answer
+     *                  it in the clear
+     */
+    private static PeerChannel startClient(MemoryTransport.Network network, String name, SecureHandshake handshake,
+                                           ExecutorService executor, final BlockingQueue<String> inbox)
+            throws IOException {
+        Connection connection = new MemoryTransport(network, name).open("hub");
+        connection.connect();
+        if (handshake != null)
+            assertNull(handshake.run(connection, true, new PeerCache().get("hub")));
+        final PeerChannel channel = new PeerChannel(connection, new ReliableSession(), new BufferPool(4, 70000),
+                executor, null, new PeerChannel.Listener() {
+            @Override
+            public void onMessage(PooledBuffer buffer, int offset, int length) {
+                inbox.add(TextCodec.decode(buffer.data(), offset, length));
+                buffer.release();
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.run();
+                } catch (IOException e) {
+                    // Closed at the end of the test.
+                }
+            }
+        });
+        return channel;
+    }
+
+    /**
+     * Connects a raw client that opens with a hello, as every real client does; the
+     * hub holds relayed frames for a peer until it has heard from it.
+     */
+    private static Connection join(MemoryTransport.Network network, String name) throws IOException {
+        Connection client = new MemoryTransport(network, name).open("hub");
+        client.connect();
+        new FrameEncoder(client.getOutputStream()).write(FrameCodec.TYPE_HELLO, Handshake.hello(0));
+        return client;
+    }
+
+    private static String readText(Connection connection) throws IOException {
+        return next(new FrameDecoder(connection.getInputStream()));
+    }
+
+    /**
+     * @return the next text, skipping the hub's answer to the hello
+     */
+    private static String next(FrameDecoder decoder) throws IOException {
+        do {
+            assertTrue(decoder.next());
+        } while (decoder.type() == FrameCodec.TYPE_HELLO);
+        return new String(decoder.buffer(), decoder.offset(), decoder.length(), "UTF-8");
+    }
+}
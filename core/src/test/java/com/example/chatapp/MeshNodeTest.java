@@ -0,0 +1,145 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MeshNodeTest {
+    private final ExecutorService readers = ConnectionExecutors.platform("MeshReader");
+    private final List<MeshNode> nodes = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (MeshNode node : nodes) {
+            node.stop();
+        }
+        readers.shutdownNow();
+    }
+
+    private static final class Received {
+        final String origin;
+        final int hops;
+        final String text;
+
+        Received(String origin, int hops, String text) {
+            this.origin = origin;
+            this.hops = hops;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Nodes n0 to n{count-1} in a line, each linked to the next.
+     */
+    private List<LinkedBlockingQueue<Received>> line(int count, int ttl) throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        List<LinkedBlockingQueue<Received>> inboxes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final LinkedBlockingQueue<Received> inbox = new LinkedBlockingQueue<>();
+            inboxes.add(inbox);
+            MeshNode node = new MeshNode("n" + i, new MemoryTransport(network, "n" + i), new BufferPool(8, 4096),
+                    readers, 1, ttl, 64, new MeshNode.Listener() {
+                @Override
+                public void onLinkUp(MeshNode.Link link) {
+                }
+
+                @Override
+                public void onLinkDown(MeshNode.Link link) {
+                }
+
+                @Override
+                public void onMessage(String origin, int hops, PooledBuffer buffer, int offset, int length) {
+                    inbox.add(new Received(origin, hops, TextCodec.decode(buffer.data(), offset, length)));
+                    buffer.release();
+                }
+            });
+            node.start();
+            nodes.add(node);
+        }
+        for (int i = 0; i + 1 < count; i++) {
+            nodes.get(i).dial("n" + (i + 1));
+        }
+        for (int i = 0; i < count; i++) {
+            int expected = i == 0 || i == count - 1 ? 1 : 2;
+            while (nodes.get(i).linkCount() < expected) {
+                Thread.sleep(1);
+            }
+        }
+        return inboxes;
+    }
+
+    @Test
+    public void seenIdsForgetsOldestOnceFull() {
+        SeenIds seen = new SeenIds(100);
+        for (long id = 0; id < 1000; id++) {
+            assertTrue(seen.add(id * 0x10000));
+            assertFalse(seen.add(id * 0x10000));
+        }
+        assertEquals(100, seen.size());
+        for (long id = 0; id < 900; id++) {
+            assertFalse(seen.contains(id * 0x10000));
+        }
+        for (long id = 900; id < 1000; id++) {
+            assertTrue(seen.contains(id * 0x10000));
+        }
+    }
+
+    @Test
+    public void floodStopsAtTtl() throws Exception {
+        List<LinkedBlockingQueue<Received>> inboxes = line(5, 3);
+        nodes.get(0).broadcast(TextCodec.encode("hello"));
+        for (int i = 1; i <= 3; i++) {
+            Received received = inboxes.get(i).poll(5, TimeUnit.SECONDS);
+            assertEquals("hello", received.text);
+            assertEquals("n0", received.origin);
+            assertEquals(i, received.hops);
+        }
+        assertNull(inboxes.get(4).poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, nodes.get(3).stats().expired);
+        assertTrue(inboxes.get(0).isEmpty());
+    }
+
+    @Test
+    public void directedMessageFollowsLearnedRoute() throws Exception {
+        List<LinkedBlockingQueue<Received>> inboxes = line(4, MeshNode.DEFAULT_TTL);
+        // Nothing learned yet: flooded, and only the destination delivers it.
+        nodes.get(0).send("n3", TextCodec.encode("first"));
+        assertEquals("first", inboxes.get(3).poll(5, TimeUnit.SECONDS).text);
+        assertNull(inboxes.get(1).poll(100, TimeUnit.MILLISECONDS));
+
+        nodes.get(3).broadcast(TextCodec.encode("here"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("here", inboxes.get(i).poll(5, TimeUnit.SECONDS).text);
+        }
+        assertEquals("n1", nodes.get(0).nextHop("n3"));
+        assertEquals("n2", nodes.get(1).nextHop("n3"));
+
+        long routedBefore = nodes.get(1).stats().routed;
+        nodes.get(0).send("n3", TextCodec.encode("second"));
+        Received received = inboxes.get(3).poll(5, TimeUnit.SECONDS);
+        assertEquals("second", received.text);
+        assertEquals(3, received.hops);
+        assertEquals(routedBefore + 1, nodes.get(1).stats().routed);
+        assertEquals(0, nodes.get(3).stats().duplicates);
+    }
+
+    @Test
+    public void simulatedMeshDeliversEverything() throws Exception {
+        // A TTL well past the diameter, so no copy can run out however slow its path.
+        MeshSimulator.Result result = MeshSimulator.run(15, 0.35, 20, 16, 3);
+        assertEquals(1.0, result.broadcastDeliveryRatio(), 0);
+        assertEquals(1.0, result.directedDeliveryRatio(), 0);
+        // Without duplicate suppression a flood would go round the cycles until its
+        // TTL ran out; with it each node sends a broadcast on its links about once.
+        assertTrue(result.broadcastTransmissions < 3L * result.edges * result.messages);
+        // Routes learned from the broadcasts keep directed messages from flooding.
+        assertTrue(result.directedTransmissions < result.broadcastTransmissions / 2);
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.chatapp;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Wires N in-process {@link MeshNode}s over in-memory links, as if scattered around
+ * a building where each device only reaches those nearby, and measures how messages
+ * get through: delivery ratio, latency per hop and transmissions per message
+ * against the fewest that could have delivered it.
+ *
+ * Nodes are placed at random in a unit square and linked to every node within
+ * range, and to their nearest earlier node so the mesh is connected. Broadcasts go
+ * first, from random nodes, which also teaches every node a route to them; then
+ * messages between random pairs show what the route cache saves over a flood.
+ *
+ * Arguments: nodes range messages ttl seed (defaults 40 0.25 200 8 1). With
+ * {@code -Dchatapp.threads=virtual} the links are read on virtual threads.
+ */
+public class MeshSimulator {
+    private static final long DELIVERY_TIMEOUT_NANOS = 2000000000L;
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        double range = args.length > 1 ? Double.parseDouble(args[1]) : 0.25;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int ttl = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+        System.out.println(run(nodes, range, messages, ttl, seed));
+    }
+
+    /**
+     * What the listeners saw, indexed by message number.
+     */
+    private static final class Recorder {
+        final AtomicIntegerArray deliveries;
+        final long[] perHopNanos;
+        int recorded;
+        long hops;
+
+        Recorder(int messages, int nodes) {
+            deliveries = new AtomicIntegerArray(messages);
+            perHopNanos = new long[messages * nodes];
+        }
+
+        void record(byte[] data, int offset, int hopCount) {
+            long now = System.nanoTime();
+            int message = (int) (Handshake.getLong(data, offset) >>> 32);
+            long sent = Handshake.getLong(data, offset + 8);
+            synchronized (this) {
+                perHopNanos[recorded++] = (now - sent) / hopCount;
+                hops += hopCount;
+            }
+            deliveries.incrementAndGet(message);
+        }
+    }
+
+    static Result run(int nodeCount, double range, int messages, int ttl, long seed) throws Exception {
+        Random random = new Random(seed);
+        boolean[][] linked = topology(nodeCount, range, random);
+        int[][] distances = new int[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            distances[i] = distances(linked, i);
+        }
+
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        ExecutorService readers = ConnectionExecutors.fromProperty("MeshReader");
+        final Recorder recorder = new Recorder(2 * messages, nodeCount);
+        MeshNode[] nodes = new MeshNode[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new MeshNode("n" + i, new MemoryTransport(network, "n" + i), new BufferPool(32, 16 * 1024),
+                    readers, MeshNode.DEFAULT_WRITER_THREADS, ttl, MeshNode.DEFAULT_SEEN_IDS, new MeshNode.Listener() {
+                @Override
+                public void onLinkUp(MeshNode.Link link) {
+                }
+
+                @Override
+                public void onLinkDown(MeshNode.Link link) {
+                }
+
+                @Override
+                public void onMessage(String origin, int hops, PooledBuffer buffer, int offset, int length) {
+                    recorder.record(buffer.data(), offset, hops);
+                    buffer.release();
+                }
+            });
+            nodes[i].start();
+        }
+        int edges = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j = i + 1; j < nodeCount; j++) {
+                if (linked[i][j]) {
+                    nodes[i].dial("n" + j);
+                    edges++;
+                }
+            }
+        }
+        while (totalLinks(nodes) < 2 * edges) {
+            Thread.sleep(5);
+        }
+
+        Result result = new Result(nodeCount, edges, messages);
+        byte[] payload = new byte[16];
+        long transmissionsBefore = totalTransmissions(nodes);
+        for (int m = 0; m < messages; m++) {
+            int origin = random.nextInt(nodeCount);
+            int reachable = 0;
+            for (int i = 0; i < nodeCount; i++) {
+                if (i != origin && distances[origin][i] <= ttl)
+                    reachable++;
+            }
+            result.broadcastExpected += nodeCount - 1;
+            result.broadcastMinimum += reachable;
+            stamp(payload, m);
+            nodes[origin].broadcast(payload);
+            awaitDeliveries(recorder, m, reachable);
+        }
+        Thread.sleep(100);
+        result.broadcastTransmissions = totalTransmissions(nodes) - transmissionsBefore;
+        for (MeshNode node : nodes) {
+            result.duplicates += node.stats().duplicates;
+        }
+        for (int m = 0; m < messages; m++) {
+            result.broadcastDelivered += recorder.deliveries.get(m);
+        }
+
+        transmissionsBefore = totalTransmissions(nodes);
+        for (int m = messages; m < 2 * messages; m++) {
+            int from = random.nextInt(nodeCount);
+            int to = random.nextInt(nodeCount - 1);
+            if (to >= from)
+                to++;
+            result.directedMinimum += distances[from][to];
+            stamp(payload, m);
+            nodes[from].send("n" + to, payload);
+            awaitDeliveries(recorder, m, distances[from][to] <= ttl ? 1 : 0);
+        }
+        Thread.sleep(100);
+        result.directedTransmissions = totalTransmissions(nodes) - transmissionsBefore;
+        for (int m = messages; m < 2 * messages; m++) {
+            result.directedDelivered += recorder.deliveries.get(m);
+        }
+
+        synchronized (recorder) {
+            long[] perHop = Arrays.copyOf(recorder.perHopNanos, recorder.recorded);
+            Arrays.sort(perHop);
+            result.p50PerHopNanos = percentile(perHop, 0.50);
+            result.p99PerHopNanos = percentile(perHop, 0.99);
+            result.averageHops = recorder.recorded == 0 ? 0 : (double) recorder.hops / recorder.recorded;
+        }
+        for (MeshNode node : nodes) {
+            node.stop();
+        }
+        readers.shutdownNow();
+        return result;
+    }
+
+    private static void stamp(byte[] payload, int message) {
+        Handshake.putLong(payload, 0, (long) message << 32);
+        Handshake.putLong(payload, 8, System.nanoTime());
+    }
+
+    private static void awaitDeliveries(Recorder recorder, int message, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+        while (recorder.deliveries.get(message) < expected && System.nanoTime() < deadline) {
+            Thread.sleep(0, 100000);
+        }
+    }
+
+    static boolean[][] topology(int nodeCount, double range, Random random) {
+        double[] x = new double[nodeCount];
+        double[] y = new double[nodeCount];
+        boolean[][] linked = new boolean[nodeCount][nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            x[i] = random.nextDouble();
+            y[i] = random.nextDouble();
+            int nearest = -1;
+            double nearestDistance = Double.MAX_VALUE;
+            for (int j = 0; j < i; j++) {
+                double distance = Math.hypot(x[i] - x[j], y[i] - y[j]);
+                if (distance < nearestDistance) {
+                    nearest = j;
+                    nearestDistance = distance;
+                }
+                if (distance <= range)
+                    linked[i][j] = linked[j][i] = true;
+            }
+            if (nearest >= 0)
+                linked[i][nearest] = linked[nearest][i] = true;
+        }
+        return linked;
+    }
+
+    /**
+     * @return the fewest hops from {@code from} to every node
+     */
+    static int[] distances(boolean[][] linked, int from) {
+        int[] distance = new int[linked.length];
+        Arrays.fill(distance, Integer.MAX_VALUE);
+        distance[from] = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(from);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int next = 0; next < linked.length; next++) {
+                if (linked[node][next] && distance[next] == Integer.MAX_VALUE) {
+                    distance[next] = distance[node] + 1;
+                    queue.add(next);
+                }
+            }
+        }
+        return distance;
+    }
+
+    private static int totalLinks(MeshNode[] nodes) {
+        int links = 0;
+        for (MeshNode node : nodes) {
+            links += node.linkCount();
+        }
+        return links;
+    }
+
+    private static long totalTransmissions(MeshNode[] nodes) {
+        long transmissions = 0;
+        for (MeshNode node : nodes) {
+            transmissions += node.stats().transmissions;
+        }
+        return transmissions;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    static class Result {
+        final int nodes;
+        final int edges;
+        final int messages;
+        long broadcastExpected;
+        long broadcastMinimum;
+        long broadcastDelivered;
+        long broadcastTransmissions;
+        long directedMinimum;
+        long directedDelivered;
+        long directedTransmissions;
+        long duplicates;
+        long p50PerHopNanos;
+        long p99PerHopNanos;
+        double averageHops;
+
+        Result(int nodes, int edges, int messages) {
+            this.nodes = nodes;
+            this.edges = edges;
+            this.messages = messages;
+        }
+
+        double broadcastDeliveryRatio() {
+            return (double) broadcastDelivered / broadcastExpected;
+        }
+
+        double directedDeliveryRatio() {
+            return (double) directedDelivered / messages;
+        }
+
+        /**
+         * Transmissions per broadcast beyond one per node reached, the least a
+         * flood can do.
+         */
+        double redundantPerBroadcast() {
+            return (double) (broadcastTransmissions - broadcastMinimum) / messages;
+        }
+
+        /**
+         * Transmissions per directed message beyond the length of the shortest path.
+         */
+        double redundantPerDirected() {
+            return (double) (directedTransmissions - directedMinimum) / messages;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("nodes=%d links=%d messages=%d%n"
+                            + "broadcast: delivered=%.4f sent/msg=%.1f redundant/msg=%.1f duplicates/msg=%.1f%n"
+                            + "directed: delivered=%.4f sent/msg=%.2f redundant/msg=%.2f%n"
+                            + "latency per hop: p50=%dus p99=%dus avgHops=%.2f",
+                    nodes, edges, messages,
+                    broadcastDeliveryRatio(), (double) broadcastTransmissions / messages, redundantPerBroadcast(),
+                    (double) duplicates / messages,
+                    directedDeliveryRatio(), (double) directedTransmissions / messages, redundantPerDirected(),
+                    p50PerHopNanos / 1000, p99PerHopNanos / 1000, averageHops);
+        }
+    }
+}
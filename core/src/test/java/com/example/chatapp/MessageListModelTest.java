@@ -0,0 +1,134 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageListModelTest {
+
+    private static class RecordingListener implements MessageListModel.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onInserted(int position, int count) {
+            events.add("insert " + position + "+" + count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            events.add("remove " + position + "+" + count);
+        }
+
+        @Override
+        public void onReset() {
+            events.add("reset");
+        }
+    }
+
+    private static ChatMessage message(int i) {
+        return new ChatMessage(i, ChatMessage.SENDER_ME, i, "m" + i);
+    }
+
+    @Test
+    public void burstIsOneInsertPerFlush() {
+        MessageListModel model = new MessageListModel(100);
+        RecordingListener listener = new RecordingListener();
+        model.setListener(listener);
+
+        assertTrue(model.add(message(0)));
+        for (int i = 1; i < 30; i++) {
+            assertFalse(model.add(message(i)));
+        }
+        assertEquals(0, model.size());
+        model.flush();
+        model.flush();
+
+        assertEquals(30, model.size());
+        assertEquals(Arrays.asList("insert 0+30"), listener.events);
+        assertTrue(model.add(message(30)));
+    }
+
+    @Test
+    public void windowEvictsOldestPastCapacity() {
+        MessageListModel model = new MessageListModel(10);
+        RecordingListener listener = new RecordingListener();
+        model.setListener(listener);
+        for (int i = 0; i < 8; i++) {
+            model.add(message(i));
+        }
+        model.flush();
+        for (int i = 8; i < 13; i++) {
+            model.add(message(i));
+        }
+        model.flush();
+
+        assertEquals(Arrays.asList("insert 0+8", "remove 0+3", "insert 5+5"), listener.events);
+        assertEquals(10, model.size());
+        assertEquals(3, model.get(0).id);
+        assertEquals(12, model.get(9).id);
+
+        for (int i = 13; i < 40; i++) {
+            model.add(message(i));
+        }
+        model.flush();
+        assertEquals(30, model.get(0).id);
+        assertEquals(39, model.get(9).id);
+    }
+
+    @Test
+    public void reattachedListenerHearsOnlyMissedMessages() {
+        MessageListModel model = new MessageListModel(10);
+        model.setListener(new RecordingListener());
+        for (int i = 0; i < 4; i++) {
+            model.add(message(i));
+        }
+        model.flush();
+
+        // Detached, as while the screen is recreated.
+        model.setListener(null);
+        for (int i = 4; i < 7; i++) {
+            model.add(message(i));
+        }
+        assertEquals(3, model.pendingCount());
+
+        RecordingListener listener = new RecordingListener();
+        model.setListener(listener);
+        model.flush();
+        assertEquals(Arrays.asList("insert 4+3"), listener.events);
+        assertEquals(7, model.size());
+    }
+
+    @Test
+    public void prependFillsOnlyFreeRoom() {
+        MessageListModel model = new MessageListModel(10);
+        for (int i = 6; i < 10; i++) {
+            model.add(message(i));
+        }
+        model.flush();
+        List<ChatMessage> older = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            older.add(message(i - 4));
+        }
+        assertEquals(6, model.prepend(older));
+        assertEquals(-4, model.get(0).id);
+        assertEquals(0, model.prepend(older));
+    }
+
+    @Test
+    public void formatsWithSenderAtBindTime() {
+        MessageListModel model = new MessageListModel(10);
+        int alice = model.senderId("Alice");
+        assertEquals(alice, model.senderId("Alice"));
+        model.add(new ChatMessage(0, alice, 0, "hi"));
+        model.add(new ChatMessage(1, ChatMessage.SENDER_ME, 0, "hello"));
+        model.add(new ChatMessage(2, ChatMessage.SENDER_NONE, 0, "Bob| hey"));
+        model.flush();
+        assertEquals("Alice| hi", model.format(0));
+        assertEquals("Me| hello", model.format(1));
+        assertEquals("Bob| hey", model.format(2));
+    }
+}
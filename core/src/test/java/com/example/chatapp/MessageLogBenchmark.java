@@ -0,0 +1,56 @@
+package com.example.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Fills a log with a million messages, then times what the UI needs when a chat is
+ * opened: reopening the log, reading the last page and seeking to a point in time.
+ * Run with {@code main}; pass a directory to keep the log, otherwise a temporary
+ * one is used and deleted.
+ */
+public class MessageLogBenchmark {
+    private static final int MESSAGES = 1000000;
+    private static final int PAGE = 50;
+
+    public static void main(String[] args) throws IOException {
+        File directory = args.length > 0 ? new File(args[0]) : File.createTempFile("history", "");
+        if (args.length == 0 && !directory.delete())
+            throw new IOException("Can't use " + directory);
+
+        MessageLog log = new MessageLog(directory);
+        long start = System.nanoTime();
+        long timestamp = 1600000000000L;
+        for (int i = 0; i < MESSAGES; i++) {
+            timestamp += 1 + i % 5000;
+            log.append(timestamp, i % 2, "message number " + i + " with a little text");
+        }
+        long elapsed = System.nanoTime() - start;
+        log.close();
+        System.out.printf("append: %d messages in %.0f ms (%.0f msg/s)%n",
+                MESSAGES, elapsed / 1e6, MESSAGES / (elapsed / 1e9));
+
+        for (int run = 0; run < 5; run++) {
+            start = System.nanoTime();
+            log = new MessageLog(directory);
+            long opened = System.nanoTime();
+            List<MessageLog.Entry> page = log.cursorAtEnd(PAGE).older();
+            long read = System.nanoTime();
+            long id = log.findByTimestamp(1600000000000L + (timestamp - 1600000000000L) / 3);
+            List<MessageLog.Entry> middle = log.read(id, PAGE);
+            long sought = System.nanoTime();
+            log.close();
+            System.out.printf("open: %.2f ms  last %d: %.3f ms  seek+page: %.3f ms  (%s .. %s)%n",
+                    (opened - start) / 1e6, page.size(), (read - opened) / 1e6, (sought - read) / 1e6,
+                    page.get(0).id, middle.get(0).id);
+        }
+
+        if (args.length == 0) {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
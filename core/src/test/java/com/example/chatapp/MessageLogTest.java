@@ -0,0 +1,105 @@
+package com.example.chatapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsRangesAcrossSegmentsAfterReopen() throws IOException {
+        File directory = folder.newFolder();
+        MessageLog log = new MessageLog(directory, 4096);
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, log.append(1000L + i * 10, i % 2, "message " + i));
+        }
+        log.close();
+        assertTrue(directory.list().length > 10);
+
+        log = new MessageLog(directory, 4096);
+        assertEquals(5000, log.nextId());
+        List<MessageLog.Entry> entries = log.read(1234, 300);
+        assertEquals(300, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            MessageLog.Entry entry = entries.get(i);
+            assertEquals(1234 + i, entry.id);
+            assertEquals(1000L + (1234 + i) * 10, entry.timestamp);
+            assertEquals((1234 + i) % 2, entry.direction);
+            assertEquals("message " + (1234 + i), entry.text);
+        }
+
+        assertEquals(5000, log.append(999999, MessageLog.DIRECTION_SENT, "after reopen"));
+        assertEquals("after reopen", log.read(5000, 10).get(0).text);
+        log.close();
+    }
+
+    @Test
+    public void findsFirstMessageAtOrAfterTimestamp() throws IOException {
+        MessageLog log = new MessageLog(folder.newFolder(), 2048);
+        for (int i = 0; i < 2000; i++) {
+            // Pairs of messages share a timestamp.
+            log.append(i / 2 * 100, MessageLog.DIRECTION_RECEIVED, "m" + i);
+        }
+        assertEquals(0, log.findByTimestamp(-5));
+        assertEquals(0, log.findByTimestamp(0));
+        assertEquals(2, log.findByTimestamp(1));
+        assertEquals(1000, log.findByTimestamp(50000));
+        assertEquals(1002, log.findByTimestamp(50001));
+        assertEquals(2000, log.findByTimestamp(Long.MAX_VALUE));
+        log.close();
+    }
+
+    @Test
+    public void cursorPagesBackwardsToTheStart() throws IOException {
+        MessageLog log = new MessageLog(folder.newFolder(), 1024);
+        for (int i = 0; i < 120; i++) {
+            log.append(i, MessageLog.DIRECTION_SENT, Integer.toString(i));
+        }
+        MessageLog.Cursor cursor = log.cursorAtEnd(50);
+        assertEquals("70", cursor.older().get(0).text);
+        assertEquals("20", cursor.older().get(0).text);
+        List<MessageLog.Entry> last = cursor.older();
+        assertEquals(20, last.size());
+        assertEquals("0", last.get(0).text);
+        assertFalse(cursor.hasOlder());
+        assertTrue(cursor.older().isEmpty());
+
+        log.append(500, MessageLog.DIRECTION_RECEIVED, "new");
+        assertEquals("new", log.cursorAt(120, 50).newer().get(0).text);
+        log.close();
+    }
+
+    @Test
+    public void dropsTornRecordOnReopen() throws IOException {
+        File directory = folder.newFolder();
+        MessageLog log = new MessageLog(directory);
+        for (int i = 0; i < 100; i++) {
+            log.append(i, MessageLog.DIRECTION_SENT, "message " + i);
+        }
+        log.close();
+
+        File segment = directory.listFiles()[0].getName().endsWith(".log")
+                ? directory.listFiles()[0] : directory.listFiles()[1];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        log = new MessageLog(directory);
+        assertEquals(99, log.nextId());
+        assertEquals(99, log.append(200, MessageLog.DIRECTION_SENT, "replacement"));
+        List<MessageLog.Entry> entries = log.read(97, 10);
+        assertEquals("message 97", entries.get(0).text);
+        assertEquals("message 98", entries.get(1).text);
+        assertEquals("replacement", entries.get(2).text);
+        log.close();
+    }
+}
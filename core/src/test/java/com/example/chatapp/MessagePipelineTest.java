@@ -0,0 +1,216 @@
+package com.example.chatapp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MessagePipelineTest {
+    private static final int SENDERS = 4;
+    private static final int PER_SENDER = 2000;
+    private static final long BIND_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void floodIsBoundInSlicesWithinBudget() throws Exception {
+        final int total = SENDERS * PER_SENDER;
+        final MessageListModel model = new MessageListModel();
+        final List<ChatMessage> bound = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(total);
+        final AtomicInteger perDrain = new AtomicInteger();
+        final AtomicInteger largestDrain = new AtomicInteger();
+        // Stands in for the UI thread, counting what each posted task binds.
+        final ExecutorService ui = Executors.newSingleThreadExecutor();
+        Executor uiExecutor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                ui.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        perDrain.set(0);
+                        command.run();
+                    }
+                });
+            }
+        };
+        MessagePipeline pipeline = new MessagePipeline(model, uiExecutor, new MessagePipeline.Sink() {
+            @Override
+            public void onMessage(ChatMessage message) {
+                bound.add(message);
+                largestDrain.set(Math.max(largestDrain.get(), perDrain.incrementAndGet()));
+                long end = System.nanoTime() + BIND_NANOS;
+                while (System.nanoTime() < end) {
+                    // A bind that costs something.
+                }
+                done.countDown();
+            }
+        }, BUDGET_NANOS, MessagePipeline.DEFAULT_READY_CAPACITY);
+        ChatMetrics metrics = new ChatMetrics();
+        MessageLog log = new MessageLog(folder.newFolder());
+        pipeline.setMetrics(metrics);
+        pipeline.setLog(log);
+        pipeline.start();
+
+        final BufferPool pool = new BufferPool(4, 64);
+        final MessagePipeline tPipeline = pipeline;
+        List<Thread> readers = new ArrayList<>();
+        for (int s = 0; s < SENDERS; s++) {
+            final String name = "peer" + s;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < PER_SENDER; i++) {
+                            PooledBuffer buffer = pool.acquire();
+                            byte[] text = TextCodec.encode("m" + i);
+                            System.arraycopy(text, 0, buffer.data(), 3, text.length);
+                            tPipeline.received(buffer, 3, text.length, name, true);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (Thread reader : readers)
+            reader.join();
+        ui.shutdown();
+        assertTrue(ui.awaitTermination(5, TimeUnit.SECONDS));
+        pipeline.close();
+
+        // A drain stops once the budget is spent, so it binds at most budget / cost + 1.
+        assertTrue("largest drain " + largestDrain.get(), largestDrain.get() <= BUDGET_NANOS / BIND_NANOS + 1);
+        assertTrue(pipeline.drainCount() >= total / (BUDGET_NANOS / BIND_NANOS + 1));
+
+        int[] next = new int[SENDERS];
+        for (ChatMessage message : bound) {
+            String name = model.senderName(message.sender);
+            int s = name.charAt(name.length() - 1) - '0';
+            assertEquals("m" + next[s]++, message.text);
+            assertEquals(name + "| " + message.text, message.display);
+            assertEquals(message.display, log.read(message.id, 1).get(0).text);
+        }
+        for (int s = 0; s < SENDERS; s++)
+            assertEquals(PER_SENDER, next[s]);
+        assertEquals(total, log.nextId());
+
+        ChatMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(total, snapshot.mainThreadNanos.count);
+        assertEquals(total, snapshot.readToDispatchNanos.count);
+        assertTrue(snapshot.mainThreadNanos.percentile(50) >= BIND_NANOS);
+        log.close();
+    }
+
+    @Test
+    public void dropsControlCharactersAndEmptyMessages() throws IOException, InterruptedException {
+        assertEquals("a\tb\nc", MessagePipeline.validate("a\u0000\tb\n\u001bc"));
+        assertEquals("plain", MessagePipeline.validate("plain"));
+        assertNull(MessagePipeline.validate("\u0007 \u0008"));
+
+        final List<ChatMessage> bound = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        ExecutorService ui = Executors.newSingleThreadExecutor();
+        MessagePipeline pipeline = new MessagePipeline(new MessageListModel(), ui, new MessagePipeline.Sink() {
+            @Override
+            public void onMessage(ChatMessage message) {
+                bound.add(message);
+                done.countDown();
+            }
+        });
+        pipeline.start();
+        pipeline.sent(new byte[]{0x07});
+        pipeline.sent(TextCodec.encode("hi"));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        ui.shutdown();
+        assertTrue(ui.awaitTermination(5, TimeUnit.SECONDS));
+        pipeline.close();
+
+        assertEquals(1, bound.size());
+        assertEquals(ChatMessage.SENDER_ME, bound.get(0).sender);
+        assertEquals(ChatMessage.NO_ID, bound.get(0).id);
+        assertEquals("Me| hi", bound.get(0).display);
+        assertEquals(1, pipeline.rejectedCount());
+    }
+
+    @Test
+    public void tasksRunInOrderWithMessages() throws Exception {
+        final MessageLog first = new MessageLog(folder.newFolder("first"));
+        final MessageLog second = new MessageLog(folder.newFolder("second"));
+        final CountDownLatch done = new CountDownLatch(1);
+        ExecutorService ui = Executors.newSingleThreadExecutor();
+        final MessagePipeline pipeline = new MessagePipeline(new MessageListModel(), ui, new MessagePipeline.Sink() {
+            @Override
+            public void onMessage(ChatMessage message) {
+            }
+        });
+        pipeline.setLog(first);
+        pipeline.start();
+        pipeline.sent(TextCodec.encode("one"));
+        // Switching logs from the stage splits the messages exactly where it was asked.
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.setLog(second);
+            }
+        });
+        pipeline.sent(TextCodec.encode("two"));
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pipeline.close();
+        ui.shutdownNow();
+
+        assertEquals(1, first.nextId() - first.firstId());
+        assertEquals("one", first.read(first.firstId(), 1).get(0).text);
+        assertEquals("two", second.read(second.firstId(), 1).get(0).text);
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void copiedMessagesPastTheLimitAreDroppedAndCounted() throws Exception {
+        ChatMetrics metrics = new ChatMetrics();
+        final CountDownLatch bound = new CountDownLatch(MessagePipeline.MAX_COPIED_MESSAGES);
+        ExecutorService ui = Executors.newSingleThreadExecutor();
+        MessagePipeline pipeline = new MessagePipeline(new MessageListModel(), ui, new MessagePipeline.Sink() {
+            @Override
+            public void onMessage(ChatMessage message) {
+                bound.countDown();
+            }
+        });
+        pipeline.setMetrics(metrics);
+        // Not started yet, so every copy is still waiting.
+        for (int i = 0; i < MessagePipeline.MAX_COPIED_MESSAGES; i++) {
+            assertTrue(pipeline.received(TextCodec.encode("line " + i), "relay", true));
+        }
+        assertFalse(pipeline.received(TextCodec.encode("one too many"), "relay", true));
+        assertEquals(1, metrics.snapshot().messagesDropped);
+
+        pipeline.start();
+        assertTrue(bound.await(10, TimeUnit.SECONDS));
+        assertTrue(pipeline.received(TextCodec.encode("room again"), "relay", true));
+        pipeline.close();
+        ui.shutdownNow();
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NioRelayTest {
+
+    @Test
+    public void relaysEveryMessageToAllOtherClients() throws Exception {
+        RelayLoadGenerator.Result result = RelayLoadGenerator.run(20, 20, 100, 2, 10000);
+        assertEquals(0, result.dropped);
+        assertEquals(result.expected, result.delivered);
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+    private static final String PEER = "00:11:22:AA:BB:CC";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static class ListTarget implements Outbox.Target {
+        final List<String> sent = new ArrayList<>();
+
+        @Override
+        public boolean send(byte[] payload) {
+            sent.add(new String(payload));
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+    private static class Inbox implements PeerChannel.Listener {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void onMessage(PooledBuffer buffer, int offset, int length) {
+            messages.add(new String(buffer.data(), offset, length));
+            buffer.release();
+            notifyAll();
+        }
+
+        synchronized void awaitCount(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (messages.size() < count && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+        }
+    }
+
+    @Test
+    public void keepsMessagesAcrossRestart() throws Exception {
+        File root = folder.getRoot();
+        Outbox outbox = new Outbox(root);
+        assertTrue(outbox.append(PEER, "one".getBytes()));
+        assertTrue(outbox.append(PEER, "two".getBytes()));
+        assertTrue(outbox.append("other", "three".getBytes()));
+        outbox.close();
+
+        outbox = new Outbox(root);
+        assertEquals(2, outbox.size(PEER));
+        assertEquals(1, outbox.size("other"));
+        ListTarget target = new ListTarget();
+        assertEquals(2, outbox.flush(PEER, target));
+        assertEquals(Arrays.asList("one", "two"), target.sent);
+        assertEquals(0, outbox.size(PEER));
+        outbox.close();
+
+        // What was sent stays sent.
+        outbox = new Outbox(root);
+        assertEquals(0, outbox.size(PEER));
+        assertEquals(1, outbox.size("other"));
+        outbox.close();
+    }
+
+    @Test
+    public void dropsRecordTornByCrash() throws Exception {
+        File root = folder.getRoot();
+        Outbox outbox = new Outbox(root);
+        outbox.append(PEER, "one".getBytes());
+        outbox.append(PEER, "two".getBytes());
+        outbox.close();
+        File[] files = root.listFiles();
+        assertEquals(1, files.length);
+        // Half a record: a length promising more than follows.
+        FileOutputStream out = new FileOutputStream(files[0], true);
+        out.write(new byte[]{0, 0, 0, 50, 'x', 'y'});
+        out.close();
+
+        outbox = new Outbox(root);
+        assertEquals(2, outbox.size(PEER));
+        outbox.append(PEER, "three".getBytes());
+        outbox.close();
+
+        outbox = new Outbox(root);
+        ListTarget target = new ListTarget();
+        outbox.flush(PEER, target);
+        assertEquals(Arrays.asList("one", "two", "three"), target.sent);
+        outbox.close();
+    }
+
+    @Test
+    public void refusesMessagesPastItsBound() throws Exception {
+        Outbox outbox = new Outbox(folder.getRoot(), 3, 1024);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(outbox.append(PEER, ("m" + i).getBytes()));
+        }
+        assertFalse(outbox.append(PEER, "m3".getBytes()));
+        // The bound is per peer.
+        assertTrue(outbox.append("other", new byte[1000]));
+        assertFalse(outbox.append("other", new byte[100]));
+        assertEquals(2, outbox.stats().refused);
+
+        ListTarget target = new ListTarget();
+        outbox.flush(PEER, target);
+        assertEquals(Arrays.asList("m0", "m1", "m2"), target.sent);
+        assertTrue(outbox.append(PEER, "m4".getBytes()));
+        outbox.close();
+    }
+
+    @Test
+    public void burstSharesCommits() throws Exception {
+        Outbox outbox = new Outbox(folder.getRoot());
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(outbox.append(PEER, ("message " + i).getBytes()));
+        }
+        outbox.sync();
+        Outbox.Stats stats = outbox.stats();
+        assertEquals(2000, stats.appended);
+        assertTrue(stats.toString(), stats.commits < 200);
+        outbox.close();
+    }
+
+    @Test
+    public void flushesInBulkOverChannel() throws Exception {
+        int count = 3000;
+        Outbox outbox = new Outbox(folder.getRoot());
+        for (int i = 0; i < count; i++) {
+            outbox.append(PEER, ("message " + i).getBytes());
+        }
+        outbox.sync();
+
+        MemoryTransport.Network network = new MemoryTransport.Network(64 * 1024);
+        Transport.Acceptor acceptor = new MemoryTransport(network, "a").listen();
+        Connection toA = new MemoryTransport(network, "b").open("a");
+        Connection toB = acceptor.accept();
+        final PeerChannel channelA = new PeerChannel(toB, new ReliableSession(), new BufferPool(4, 70000), executor,
+                null, new Inbox());
+        Inbox inboxB = new Inbox();
+        final PeerChannel channelB = new PeerChannel(toA, new ReliableSession(), new BufferPool(4, 70000), executor,
+                null, inboxB);
+        startReader(channelA);
+        startReader(channelB);
+
+        int sent = outbox.flush(PEER, new Outbox.Target() {
+            @Override
+            public boolean send(byte[] payload) {
+                return channelA.send(payload);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channelA.isOpen();
+            }
+        });
+        assertEquals(count, sent);
+        assertEquals(0, outbox.size(PEER));
+        inboxB.awaitCount(count, 10000);
+        synchronized (inboxB) {
+            assertEquals(count, inboxB.messages.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals("message " + i, inboxB.messages.get(i));
+            }
+        }
+        // Pipelined: the send queue packs many messages into each write.
+        SendQueue.Stats stats = channelA.sendStats();
+        assertTrue(stats.toString(), stats.averageBatchSize() > 10);
+        channelA.close();
+        channelB.close();
+        outbox.close();
+    }
+
+    private void startReader(final PeerChannel channel) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.run();
+                } catch (IOException e) {
+                    // Closed at the end of the test.
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+public class PooledFrameDecoderTest {
+
+    @Test
+    public void sustainedBurstDoesNotAllocatePastPoolCapacity() throws IOException {
+        byte[] stream = encode(100000);
+        BufferPool pool = new BufferPool(3, 4096);
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(stream), pool);
+
+        int count = 0;
+        while (decoder.next()) {
+            PooledBuffer buffer = decoder.retainFrame();
+            assertEquals(message(count), new String(buffer.data(), decoder.offset(), decoder.length(), "UTF-8"));
+            buffer.release();
+            count++;
+        }
+        decoder.close();
+
+        assertEquals(100000, count);
+        assertTrue(pool.allocationCount() <= pool.capacity());
+        assertEquals(pool.capacity(), pool.available());
+    }
+
+    @Test
+    public void retainedSlicesSurviveLaterReads() throws IOException {
+        byte[] stream = encode(5000);
+        BufferPool pool = new BufferPool(4, 1024);
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(stream), pool);
+
+        ArrayDeque<Object[]> pending = new ArrayDeque<>();
+        int decoded = 0;
+        int verified = 0;
+        while (decoder.next()) {
+            pending.add(new Object[]{decoder.retainFrame(), decoder.offset(), decoder.length()});
+            decoded++;
+            // A consumer lagging a few dozen messages behind the reader.
+            while (pending.size() > 40) {
+                verify(pending.poll(), verified++);
+            }
+        }
+        while (!pending.isEmpty()) {
+            verify(pending.poll(), verified++);
+        }
+        decoder.close();
+
+        assertEquals(decoded, verified);
+        assertTrue(pool.allocationCount() <= pool.capacity());
+        assertEquals(pool.capacity(), pool.available());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFrameLargerThanPooledBuffer() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameEncoder(out).write(FrameCodec.TYPE_TEXT, new byte[2000]);
+        new FrameDecoder(new ByteArrayInputStream(out.toByteArray()), new BufferPool(2, 1024)).next();
+    }
+
+    private static void verify(Object[] slice, int index) throws IOException {
+        PooledBuffer buffer = (PooledBuffer) slice[0];
+        assertEquals(message(index), new String(buffer.data(), (Integer) slice[1], (Integer) slice[2], "UTF-8"));
+        buffer.release();
+    }
+
+    private static byte[] encode(int messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder(out);
+        for (int i = 0; i < messages; i++) {
+            encoder.write(FrameCodec.TYPE_TEXT, message(i).getBytes("UTF-8"));
+        }
+        return out.toByteArray();
+    }
+
+    private static String message(int index) {
+        return "message " + index + " " + "xxxxxxxxxxxxxxxxxxxx".substring(index % 20);
+    }
+}
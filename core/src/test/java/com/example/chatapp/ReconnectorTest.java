@@ -0,0 +1,132 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReconnectorTest {
+    private static final long LATENCY_MILLIS = 20;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final PeerCache peers = new PeerCache();
+    private final LinkedBlockingQueue<Object> events = new LinkedBlockingQueue<>();
+    private Transport.Acceptor acceptor;
+    private SimulatedTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        acceptor = new MemoryTransport(network, "peer").listen();
+        transport = new SimulatedTransport(new MemoryTransport(network, "me"), LATENCY_MILLIS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        acceptor.close();
+        executor.shutdownNow();
+    }
+
+    private Reconnector reconnector(int maxAttempts) {
+        return new Reconnector(transport, peers, executor, 10, 100, maxAttempts, new Reconnector.Listener() {
+            @Override
+            public void onConnected(Connection connection, long elapsedMillis, boolean reconnect) {
+                events.add(elapsedMillis);
+            }
+
+            @Override
+            public void onAttemptFailed(String address, int attempt, IOException e) {
+            }
+
+            @Override
+            public void onGaveUp(String address) {
+                events.add(address);
+            }
+        });
+    }
+
+    @Test
+    public void backsOffUntilThePeerAnswers() throws Exception {
+        Reconnector reconnector = reconnector(10);
+        transport.failNext(3);
+        reconnector.reconnect("peer");
+
+        long elapsed = (Long) events.poll(5, TimeUnit.SECONDS);
+        // Four connects, plus at least half of each 10, 20 and 40 ms backoff ceiling.
+        assertTrue("elapsed " + elapsed, elapsed >= 4 * LATENCY_MILLIS + 5 + 10 + 20);
+        Reconnector.Stats stats = reconnector.stats();
+        assertEquals(1, stats.reconnects);
+        assertEquals(3, stats.failedAttempts);
+        assertEquals(elapsed, stats.lastReconnectMillis);
+        assertFalse(reconnector.isConnecting());
+    }
+
+    @Test
+    public void cachedEndpointIsUsedAndDroppedWhenStale() throws Exception {
+        Reconnector reconnector = reconnector(10);
+        peers.get("peer").setEndpoint("stale");
+        reconnector.connect("peer");
+        assertNotNull(events.poll(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("stale", null), transport.openedEndpoints());
+        assertEquals("direct:peer", peers.get("peer").getEndpoint());
+
+        transport.validEndpoint = "direct:peer";
+        reconnector.reconnect("peer");
+        long elapsed = (Long) events.poll(5, TimeUnit.SECONDS);
+        assertTrue("elapsed " + elapsed, elapsed < 10 * LATENCY_MILLIS);
+        assertEquals(Arrays.asList("stale", null, "direct:peer"), transport.openedEndpoints());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttemptsAndStopsWhenCancelled() throws Exception {
+        Reconnector reconnector = reconnector(3);
+        transport.failNext(Integer.MAX_VALUE);
+        reconnector.reconnect("peer");
+        assertEquals("peer", events.poll(5, TimeUnit.SECONDS));
+        assertEquals(3, transport.openedEndpoints().size());
+
+        reconnector.reconnect("peer");
+        Thread.sleep(LATENCY_MILLIS / 2);
+        reconnector.cancel();
+        Thread.sleep(200);
+        assertEquals(4, transport.openedEndpoints().size());
+        assertTrue(events.isEmpty());
+        assertEquals(0, reconnector.stats().reconnects);
+    }
+
+    @Test
+    public void runtimeFailuresCountAsFailedAttempts() throws Exception {
+        Reconnector reconnector = reconnector(3);
+        transport.openFailure = new SecurityException("Need BLUETOOTH_CONNECT permission");
+        reconnector.reconnect("peer");
+        assertEquals("peer", events.poll(5, TimeUnit.SECONDS));
+        assertEquals(3, transport.openedEndpoints().size());
+        assertEquals(3, reconnector.stats().failedAttempts);
+        assertFalse(reconnector.isConnecting());
+    }
+
+    @Test
+    public void backoffGrowsWithJitterUpToTheCap() {
+        Backoff backoff = new Backoff(100, 1000, new Random(7));
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000, 1000};
+        boolean jittered = false;
+        for (long ceiling : ceilings) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(ceiling + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            jittered |= delay != ceiling;
+        }
+        assertTrue(jittered);
+        assertEquals(ceilings.length, backoff.attempts());
+        backoff.reset();
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+}
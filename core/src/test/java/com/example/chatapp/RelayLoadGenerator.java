@@ -0,0 +1,218 @@
+package com.example.chatapp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens N loopback clients against a {@link NioRelay} and has each of them send a
+ * number of timestamped messages. Every message is relayed to the other N - 1
+ * clients; reports delivered messages per second and delivery latency percentiles.
+ * Sends are paced to a target rate, since an unpaced burst just measures how fast
+ * the relay drops clients that cannot keep up.
+ *
+ * Arguments: clients rounds payloadBytes selectorLoops sendsPerSecond
+ * (defaults 100 50 64 1 5000).
+ */
+public class RelayLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int payloadSize = Math.max(8, args.length > 2 ? Integer.parseInt(args[2]) : 64);
+        int loops = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int sendRate = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+
+        Result result = run(clients, rounds, payloadSize, loops, sendRate);
+        System.out.println(result);
+    }
+
+    static Result run(int clientCount, int rounds, int payloadSize, int loops, int sendRate) throws Exception {
+        final AtomicInteger dropped = new AtomicInteger();
+        NioRelay relay = new NioRelay(new InetSocketAddress("127.0.0.1", 0), loops, new NioRelay.Listener() {
+            @Override
+            public void onPeerJoined(NioRelay.Session session) {
+            }
+
+            @Override
+            public void onPeerLeft(NioRelay.Session session) {
+                dropped.incrementAndGet();
+            }
+
+            @Override
+            public void onMessage(NioRelay.Session session, ByteBuffer payload) {
+            }
+        });
+        relay.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", relay.getLocalPort());
+
+        Selector selector = Selector.open();
+        Client[] clients = new Client[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            clients[i] = new Client(channel);
+            channel.register(selector, SelectionKey.OP_READ, clients[i]);
+        }
+        while (relay.peerCount() < clientCount) {
+            Thread.sleep(10);
+        }
+
+        final long expected = (long) clientCount * (clientCount - 1) * rounds;
+        final long[] latencies = new long[(int) Math.min(expected, 5000000)];
+        final int[] recorded = new int[1];
+        final long[] delivered = new long[1];
+        final Selector readSelector = selector;
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer in = ByteBuffer.allocateDirect(256 * 1024);
+                long deadline = System.nanoTime() + 60000000000L;
+                try {
+                    while (delivered[0] < expected && dropped.get() == 0 && System.nanoTime() < deadline) {
+                        if (readSelector.select(100) > 0)
+                            drain(readSelector, in, latencies, recorded, delivered);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "LoadReader");
+
+        byte[] payload = new byte[payloadSize];
+        byte[] frame = new byte[FrameCodec.encodedLength(payloadSize)];
+        ByteBuffer out = ByteBuffer.wrap(frame);
+
+        long sendInterval = 1000000000L / sendRate;
+        long start = System.nanoTime();
+        long nextSend = start;
+        reader.start();
+        for (int round = 0; round < rounds; round++) {
+            for (Client client : clients) {
+                long now;
+                while ((now = System.nanoTime()) < nextSend) {
+                    Thread.yield();
+                }
+                nextSend += sendInterval;
+                for (int b = 0; b < 8; b++) {
+                    payload[b] = (byte) (now >>> (56 - 8 * b));
+                }
+                FrameCodec.encode(FrameCodec.TYPE_TEXT, payload, 0, payloadSize, frame, 0);
+                out.clear();
+                while (out.hasRemaining()) {
+                    if (client.channel.write(out) == 0)
+                        Thread.yield();
+                }
+            }
+        }
+        reader.join();
+        long elapsed = System.nanoTime() - start;
+        int droppedDuringRun = dropped.get();
+
+        for (Client client : clients) {
+            client.channel.close();
+        }
+        selector.close();
+        relay.stop();
+
+        Arrays.sort(latencies, 0, recorded[0]);
+        return new Result(clientCount, droppedDuringRun, expected, delivered[0], elapsed,
+                percentile(latencies, recorded[0], 0.50), percentile(latencies, recorded[0], 0.99));
+    }
+
+    private static void drain(Selector selector, ByteBuffer in, long[] latencies, int[] recorded, long[] delivered) throws Exception {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Client client = (Client) key.attachment();
+            in.clear();
+            in.put(client.pending, 0, client.pendingLength);
+            if (client.channel.read(in) < 0) {
+                key.cancel();
+                continue;
+            }
+            in.flip();
+            long now = System.nanoTime();
+            while (true) {
+                int start = in.position();
+                int length = 0;
+                int shift = 0;
+                boolean complete = false;
+                while (in.hasRemaining()) {
+                    int b = in.get();
+                    length |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                    shift += 7;
+                }
+                if (!complete || in.remaining() < 1 + length) {
+                    in.position(start);
+                    break;
+                }
+                in.get();
+                long sent = 0;
+                for (int b = 0; b < 8; b++) {
+                    sent = (sent << 8) | (in.get() & 0xFF);
+                }
+                in.position(in.position() + length - 8);
+                delivered[0]++;
+                if (recorded[0] < latencies.length)
+                    latencies[recorded[0]++] = now - sent;
+            }
+            client.pendingLength = in.remaining();
+            in.get(client.pending, 0, client.pendingLength);
+        }
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction) {
+        if (count == 0)
+            return 0;
+        return sorted[Math.min(count - 1, (int) Math.ceil(fraction * count) - 1)];
+    }
+
+    private static class Client {
+        final SocketChannel channel;
+        final byte[] pending = new byte[FrameCodec.MAX_HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH];
+        int pendingLength;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    static class Result {
+        final int clients;
+        final int dropped;
+        final long expected;
+        final long delivered;
+        final long elapsedNanos;
+        final long p50Nanos;
+        final long p99Nanos;
+
+        Result(int clients, int dropped, long expected, long delivered, long elapsedNanos, long p50Nanos, long p99Nanos) {
+            this.clients = clients;
+            this.dropped = dropped;
+            this.expected = expected;
+            this.delivered = delivered;
+            this.elapsedNanos = elapsedNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("clients=%d dropped=%d delivered=%d/%d  %.0f msg/s  p50=%.2fms  p99=%.2fms",
+                    clients, dropped, delivered, expected, delivered / (elapsedNanos / 1e9), p50Nanos / 1e6, p99Nanos / 1e6);
+        }
+    }
+}
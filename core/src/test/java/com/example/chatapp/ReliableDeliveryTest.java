@@ -0,0 +1,166 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ReliableDeliveryTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static class Inbox implements PeerChannel.Listener {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void onMessage(PooledBuffer buffer, int offset, int length) {
+            messages.add(new String(buffer.data(), offset, length));
+            buffer.release();
+            notifyAll();
+        }
+
+        synchronized void awaitCount(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (messages.size() < count && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+        }
+
+        synchronized List<String> snapshot() {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    /**
+     * Keeps reconnecting two peers over a link that keeps dropping, the way Utils
+     * would after connectionLost, with one session per side living across all of it.
+     */
+    private static class Link implements Runnable {
+        final ReliableSession sessionA = new ReliableSession(64 * 1024, 256);
+        final ReliableSession sessionB = new ReliableSession(64 * 1024, 256);
+        final Inbox inboxA = new Inbox();
+        final Inbox inboxB = new Inbox();
+        final FaultyTransport transportA;
+        final FaultyTransport transportB;
+        final ExecutorService executor;
+        volatile boolean stopped;
+        int connections;
+
+        Link(ExecutorService executor, int minBytes, int maxBytes) {
+            MemoryTransport.Network network = new MemoryTransport.Network(4096);
+            this.executor = executor;
+            transportA = new FaultyTransport(new MemoryTransport(network, "a"), minBytes, maxBytes, 1);
+            transportB = new FaultyTransport(new MemoryTransport(network, "b"), minBytes, maxBytes, 2);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Transport.Acceptor acceptor = transportA.listen();
+                while (!stopped) {
+                    Connection toA = transportB.open("a");
+                    Connection toB = acceptor.accept();
+                    connections++;
+                    final PeerChannel channelA = new PeerChannel(toB, sessionA, new BufferPool(4, 70000), executor, null, inboxA);
+                    final PeerChannel channelB = new PeerChannel(toA, sessionB, new BufferPool(4, 70000), executor, null, inboxB);
+                    Thread readerB = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            runQuietly(channelB);
+                        }
+                    });
+                    readerB.start();
+                    runQuietly(channelA);
+                    channelA.close();
+                    channelB.close();
+                    readerB.join();
+                }
+                acceptor.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        private static void runQuietly(PeerChannel channel) {
+            try {
+                channel.run();
+            } catch (IOException e) {
+                // The link was cut; reconnect.
+            }
+        }
+    }
+
+    private static void send(ReliableSession session, String text) throws InterruptedException {
+        while (!session.send(text.getBytes())) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void deliversEverythingOnceAndInOrderAcrossDrops() throws Exception {
+        final Link link = new Link(executor, 500, 6000);
+        Thread connector = new Thread(link);
+        connector.start();
+
+        final int count = 3000;
+        Thread senderB = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        send(link.sessionB, "from b " + i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        senderB.start();
+        for (int i = 0; i < count; i++) {
+            send(link.sessionA, "from a " + i + " with some padding to vary the frame sizes a little");
+        }
+        senderB.join();
+        link.inboxA.awaitCount(count, 20000);
+        link.inboxB.awaitCount(count, 20000);
+        link.stopped = true;
+
+        List<String> atB = link.inboxB.snapshot();
+        List<String> atA = link.inboxA.snapshot();
+        assertEquals(count, atB.size());
+        assertEquals(count, atA.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("from a " + i + " with some padding to vary the frame sizes a little", atB.get(i));
+            assertEquals("from b " + i, atA.get(i));
+        }
+        assertTrue("cuts " + link.transportA.cuts.get(), link.transportA.cuts.get() + link.transportB.cuts.get() > 10);
+    }
+
+    @Test
+    public void acknowledgementsEmptyTheRetransmitRing() throws Exception {
+        final Link link = new Link(executor, Integer.MAX_VALUE - 1, Integer.MAX_VALUE - 1);
+        Thread connector = new Thread(link);
+        connector.start();
+        for (int i = 0; i < 1000; i++) {
+            send(link.sessionA, "message " + i);
+        }
+        link.inboxB.awaitCount(1000, 10000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (link.sessionA.unacknowledged() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, link.sessionA.unacknowledged());
+        assertEquals(1000, link.inboxB.snapshot().size());
+        link.stopped = true;
+        assertEquals(1, link.connections);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetransmitRingTest {
+
+    private static byte[] message(int seq, int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) (seq + i);
+        }
+        return message;
+    }
+
+    @Test
+    public void wrapsAroundAndReleasesCumulatively() {
+        RetransmitRing ring = new RetransmitRing(100, 8);
+        int seq = 1;
+        for (int round = 0; round < 50; round++) {
+            while (ring.add(message(seq, 7 + seq % 13), 0, 7 + seq % 13)) {
+                seq++;
+            }
+            assertEquals(seq, ring.nextSeq());
+            for (long s = ring.firstSeq(); s < ring.nextSeq(); s++) {
+                byte[] copy = new byte[ring.length(s)];
+                ring.copy(s, copy, 0);
+                assertArrayEquals(message((int) s, copy.length), copy);
+            }
+            ring.releaseThrough(ring.firstSeq() + 2);
+        }
+        ring.releaseThrough(Long.MAX_VALUE);
+        assertEquals(0, ring.size());
+        assertEquals(seq, ring.firstSeq());
+        assertTrue(ring.add(new byte[100], 0, 100));
+    }
+
+    @Test
+    public void removeLastUndoesAdd() {
+        RetransmitRing ring = new RetransmitRing(10, 4);
+        assertTrue(ring.add(new byte[6], 0, 6));
+        assertFalse(ring.add(new byte[6], 0, 6));
+        assertTrue(ring.add(new byte[4], 0, 4));
+        ring.removeLast();
+        assertEquals(2, ring.nextSeq());
+        assertTrue(ring.add(new byte[4], 0, 4));
+        assertEquals(3, ring.nextSeq());
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("search", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static List<Long> ids(List<SearchIndex.Hit> hits) {
+        ArrayList<Long> ids = new ArrayList<>();
+        for (SearchIndex.Hit hit : hits) {
+            ids.add(hit.messageId);
+        }
+        return ids;
+    }
+
+    @Test
+    public void tokenizeSplitsAndLowerCases() {
+        assertEquals(Arrays.asList("hello", "world", "caf\u00e9", "42"),
+                SearchIndex.tokenize("Hello, WORLD! hello caf\u00c9 -- 42"));
+        assertEquals(SearchIndex.MAX_TOKEN_LENGTH,
+                SearchIndex.tokenize(new String(new char[100]).replace('\0', 'a')).get(0).length());
+    }
+
+    @Test
+    public void termsAreAndedAndLastTermIsPrefix() throws IOException {
+        SearchIndex index = new SearchIndex(directory, 3);
+        index.add("a", 0, "meet at the station");
+        index.add("a", 1, "the train is late");
+        index.add("b", 0, "late again, meet at the stadium");
+        index.add("b", 1, "Station closed");
+
+        assertEquals(Arrays.asList(1L, 0L), ids(index.search("sta", "b", 10)));
+        assertEquals(Arrays.asList(0L), ids(index.search("sta", "a", 10)));
+        List<SearchIndex.Hit> meet = index.search("meet sta", null, 10);
+        assertEquals(2, meet.size());
+        assertEquals("b", meet.get(0).peer);
+        assertEquals("a", meet.get(1).peer);
+        assertEquals(Arrays.asList(0L, 1L), ids(index.search("late", null, 10)));
+        assertEquals("b", index.search("late", null, 10).get(0).peer);
+        assertEquals(2, index.search("station", null, 10).size());
+        assertTrue(index.search("stat late", null, 10).isEmpty());
+        assertTrue(index.search("late", "c", 10).isEmpty());
+        assertEquals(1, index.search("the", null, 1).size());
+        // Not a prefix unless it is the last term and still being typed.
+        assertTrue(index.search("sta meet", null, 10).isEmpty());
+        assertTrue(index.search("sta ", null, 10).isEmpty());
+        assertEquals(2, index.search("station!", null, 10).size());
+        index.close();
+    }
+
+    @Test
+    public void reopenKeepsFlushedAndMergedSegments() throws IOException {
+        SearchIndex index = new SearchIndex(directory, 10);
+        for (int i = 0; i < 500; i++) {
+            index.add(i % 2 == 0 ? "even" : "odd", i, "message " + i + (i % 7 == 0 ? " lucky" : ""));
+        }
+        assertEquals(499, index.indexedThrough("odd"));
+        // Re-adding an indexed message does nothing.
+        assertFalse(index.add("odd", 499, "lucky"));
+        index.close();
+
+        int segments = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".idx"))
+                segments++;
+        }
+        assertTrue(segments <= SearchIndex.MAX_SEGMENTS);
+
+        index = new SearchIndex(directory, 10);
+        assertEquals(500, index.size());
+        assertEquals(498, index.indexedThrough("even"));
+        List<SearchIndex.Hit> lucky = index.search("lucky", null, 1000);
+        assertEquals(72, lucky.size());
+        assertEquals(497L, lucky.get(0).messageId);
+        assertEquals("odd", lucky.get(0).peer);
+        assertEquals(Arrays.asList(490L, 476L), ids(index.search("luck", "even", 2)));
+        assertEquals(Arrays.asList(123L), ids(index.search("message 123", null, 10)));
+        index.close();
+    }
+
+    @Test
+    public void catchUpIndexesOnlyTheUnindexedTail() throws IOException {
+        MessageLog log = new MessageLog(new File(directory, "log"));
+        SearchIndex index = new SearchIndex(new File(directory, "index"));
+        for (int i = 0; i < 5; i++) {
+            index.add("peer", log.append(i, MessageLog.DIRECTION_SENT, "indexed " + i), "indexed " + i);
+        }
+        // Appended while the index was not listening, or lost with its memory buffer.
+        for (int i = 0; i < 3000; i++) {
+            log.append(i, MessageLog.DIRECTION_RECEIVED, "missed " + i);
+        }
+        assertEquals(3000, index.catchUp("peer", log));
+        assertEquals(0, index.catchUp("peer", log));
+        assertEquals(5, index.search("indexed", null, 100).size());
+        assertEquals(Arrays.asList(3004L), ids(index.search("missed 2999", "peer", 10)));
+        index.close();
+        log.close();
+    }
+
+    @Test
+    public void messageAddedDuringCatchUpDoesNotHideOlderOnes() throws IOException {
+        final SearchIndex index = new SearchIndex(new File(directory, "index"));
+        // A live message arrives, appended and indexed, while the first page is read.
+        MessageLog log = new MessageLog(new File(directory, "log")) {
+            boolean appended;
+
+            @Override
+            public synchronized List<Entry> read(long fromId, int max) throws IOException {
+                if (!appended) {
+                    appended = true;
+                    long id = append(0, DIRECTION_RECEIVED, "live");
+                    index.add("peer", id, "live");
+                }
+                return super.read(fromId, max);
+            }
+        };
+        for (int i = 0; i < 3000; i++) {
+            log.append(i, MessageLog.DIRECTION_RECEIVED, "missed " + i);
+        }
+        assertEquals(3000, index.catchUp("peer", log));
+        assertEquals(3000, index.search("missed", "peer", 5000).size());
+        assertEquals(Arrays.asList(3000L), ids(index.search("live", "peer", 10)));
+        assertEquals(3000L, index.indexedThrough("peer"));
+        index.close();
+        log.close();
+    }
+}
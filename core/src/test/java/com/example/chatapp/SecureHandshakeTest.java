@@ -0,0 +1,198 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SecureHandshakeTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static final class Side {
+        final SecureHandshake handshake;
+        final TrustStore trustStore = new TrustStore();
+        final PeerCache peers = new PeerCache();
+        final Identity identity;
+
+        Side() throws Exception {
+            identity = Identity.generate();
+            handshake = new SecureHandshake(identity, trustStore);
+        }
+    }
+
+    /**
+     * Connects "b" to "a" and runs the handshake with b as the initiator.
+     *
+     * @return a's end then b's end
+     */
+    private SecureConnection[] connect(final Side a, final Side b) throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        Transport.Acceptor acceptor = new MemoryTransport(network, "a").listen();
+        final Connection toA = new MemoryTransport(network, "b").open("a");
+        final Connection toB = acceptor.accept();
+        Future<SecureConnection> responder = executor.submit(new Callable<SecureConnection>() {
+            @Override
+            public SecureConnection call() throws Exception {
+                return a.handshake.run(toB, false, a.peers.get(toB.getRemoteAddress()));
+            }
+        });
+        SecureConnection initiator;
+        try {
+            initiator = b.handshake.run(toA, true, b.peers.get(toA.getRemoteAddress()));
+        } catch (IOException e) {
+            toA.close();
+            toB.close();
+            throw e;
+        }
+        return new SecureConnection[]{responder.get(), initiator};
+    }
+
+    private void exchange(SecureConnection from, final SecureConnection to, int length) throws Exception {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        Future<byte[]> received = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                byte[] buffer = new byte[data.length];
+                InputStream in = to.getInputStream();
+                int read = 0;
+                while (read < buffer.length) {
+                    // Odd read sizes cover records split across reads.
+                    int n = in.read(buffer, read, Math.min(777, buffer.length - read));
+                    assertTrue(n > 0);
+                    read += n;
+                }
+                return buffer;
+            }
+        });
+        from.getOutputStream().write(data);
+        assertArrayEquals(data, received.get());
+    }
+
+    @Test
+    public void reconnectResumesWithTicket() throws Exception {
+        Side a = new Side();
+        Side b = new Side();
+        SecureConnection[] first = connect(a, b);
+        assertFalse(first[0].isResumed());
+        assertFalse(first[1].isResumed());
+        assertEquals(b.identity.fingerprint(), first[0].getPeerFingerprint());
+        assertEquals(a.identity.fingerprint(), first[1].getPeerFingerprint());
+        assertNotNull(b.trustStore.pinned("a"));
+        assertNotNull(a.trustStore.pinned("b"));
+
+        for (int i = 0; i < 3; i++) {
+            SecureConnection[] next = connect(a, b);
+            assertTrue(next[0].isResumed());
+            assertTrue(next[1].isResumed());
+            assertEquals(a.identity.fingerprint(), next[1].getPeerFingerprint());
+            exchange(next[1], next[0], 100000);
+            exchange(next[0], next[1], 5);
+        }
+    }
+
+    @Test
+    public void unknownTicketFallsBackToFullHandshake() throws Exception {
+        Side a = new Side();
+        Side b = new Side();
+        connect(a, b);
+        // a restarted and forgot its tickets but kept its identity and pins.
+        a.peers.get("b").setTicket(null);
+        SecureConnection[] next = connect(a, b);
+        assertFalse(next[0].isResumed());
+        assertFalse(next[1].isResumed());
+        exchange(next[1], next[0], 20000);
+        assertTrue(connect(a, b)[1].isResumed());
+    }
+
+    @Test
+    public void changedIdentityIsRefused() throws Exception {
+        Side a = new Side();
+        Side b = new Side();
+        connect(a, b);
+        Side impostor = new Side();
+        b.peers.get("a").setTicket(null);
+        try {
+            connect(impostor, b);
+            fail();
+        } catch (SecureHandshake.IdentityChangedException expected) {
+            assertEquals("a", expected.address);
+            assertEquals(impostor.identity.fingerprint(), expected.fingerprint);
+        }
+    }
+
+    @Test
+    public void silentPeerTimesOut() throws Exception {
+        Side b = new Side();
+        TimerWheel wheel = new TimerWheel("SecureHandshakeTest");
+        b.handshake.setTimeout(wheel, 200);
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        Transport.Acceptor acceptor = new MemoryTransport(network, "a").listen();
+        Connection toA = new MemoryTransport(network, "b").open("a");
+        Connection toB = acceptor.accept();
+        long start = System.nanoTime();
+        try {
+            b.handshake.run(toA, true, b.peers.get("a"));
+            fail();
+        } catch (SocketTimeoutException expected) {
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            toB.close();
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void tamperedRecordFailsAuthentication() throws IOException {
+        byte[] key = new byte[SecureConnection.KEY_LENGTH];
+        byte[] salt = {1, 2, 3, 4};
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = new SecureConnection.RecordOutputStream(wire, key, salt);
+        byte[] data = new byte[SecureConnection.MAX_RECORD_PLAINTEXT + 100];
+        new Random(1).nextBytes(data);
+        out.write(data);
+        out.write(data, 0, 10);
+        byte[] sealed = wire.toByteArray();
+        // Three records, each with a length and a tag.
+        assertEquals(data.length + 10 + 3 * (2 + SecureConnection.TAG_LENGTH), sealed.length);
+
+        InputStream in = new SecureConnection.RecordInputStream(new ByteArrayInputStream(sealed), key, salt);
+        byte[] read = new byte[data.length + 10];
+        int position = 0;
+        int n;
+        while ((n = in.read(read, position, read.length - position)) > 0) {
+            position += n;
+        }
+        assertEquals(read.length, position);
+        assertArrayEquals(data, Arrays.copyOf(read, data.length));
+
+        sealed[sealed.length - 20] ^= 1;
+        in = new SecureConnection.RecordInputStream(new ByteArrayInputStream(sealed), key, salt);
+        assertEquals(SecureConnection.MAX_RECORD_PLAINTEXT, in.read(new byte[70000]));
+        assertEquals(100, in.read(new byte[70000]));
+        try {
+            in.read(new byte[70000]);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
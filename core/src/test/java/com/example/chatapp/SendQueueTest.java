@@ -0,0 +1,103 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SendQueueTest {
+
+    @Test
+    public void coalescesBurstIntoFewWritesAndKeepsOrder() throws Exception {
+        final CountingOutputStream out = new CountingOutputStream();
+        final CountDownLatch sent = new CountDownLatch(500);
+        SendQueue queue = new SendQueue(out, 1000, 4096, 20, new RecordingListener(sent));
+        for (int i = 0; i < 500; i++) {
+            assertTrue(queue.offer(FrameCodec.TYPE_TEXT, ("line " + i).getBytes("UTF-8")));
+        }
+        queue.start();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        queue.close();
+
+        assertTrue("writes=" + out.writes.get(), out.writes.get() < 10);
+        SendQueue.Stats stats = queue.stats();
+        assertEquals(500, stats.flushedMessages);
+        assertEquals(out.writes.get(), stats.batches);
+        assertTrue(stats.largestBatch > 1);
+
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < 500; i++) {
+            assertTrue(decoder.next());
+            assertEquals("line " + i, new String(decoder.buffer(), decoder.offset(), decoder.length(), "UTF-8"));
+        }
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void rejectsWhenFullWhileWriterIsBlocked() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        final CountDownLatch sent = new CountDownLatch(5);
+        SendQueue queue = new SendQueue(stalled, 4, 16, 0, new RecordingListener(sent));
+        queue.start();
+
+        int accepted = 0;
+        for (int i = 0; i < 50; i++) {
+            if (queue.offer(FrameCodec.TYPE_TEXT, new byte[12]))
+                accepted++;
+        }
+        assertTrue(accepted < 50);
+        assertEquals(50 - accepted, queue.stats().rejected);
+
+        release.countDown();
+        queue.close();
+    }
+
+    private static class RecordingListener implements SendQueue.Listener {
+        private final CountDownLatch sent;
+
+        RecordingListener(CountDownLatch sent) {
+            this.sent = sent;
+        }
+
+        @Override
+        public void onSent(int type, byte[] payload) {
+            sent.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.incrementAndGet();
+            super.write(b, off, len);
+        }
+    }
+}
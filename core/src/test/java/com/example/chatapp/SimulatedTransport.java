@@ -0,0 +1,113 @@
+package com.example.chatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for a radio link that is slow to connect: every connect takes
+ * {@code latencyMillis}, the next {@link #failNext} connects fail, and only the
+ * endpoint in {@link #validEndpoint} is accepted as a shortcut. While
+ * {@link #openFailure} is set, every open throws it.
+ */
+class SimulatedTransport implements Transport {
+    private final Transport transport;
+    private final long latencyMillis;
+    private final List<String> openedEndpoints = new ArrayList<>();
+    private int failNext;
+    volatile String validEndpoint;
+    volatile RuntimeException openFailure;
+
+    SimulatedTransport(Transport transport, long latencyMillis) {
+        this.transport = transport;
+        this.latencyMillis = latencyMillis;
+    }
+
+    synchronized void failNext(int count) {
+        failNext = count;
+    }
+
+    synchronized List<String> openedEndpoints() {
+        return new ArrayList<>(openedEndpoints);
+    }
+
+    private synchronized boolean shouldFail() {
+        if (failNext == 0)
+            return false;
+        failNext--;
+        return true;
+    }
+
+    @Override
+    public Acceptor listen() throws IOException {
+        return transport.listen();
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        return open(address, null);
+    }
+
+    @Override
+    public Connection open(final String address, final String endpoint) throws IOException {
+        synchronized (this) {
+            openedEndpoints.add(endpoint);
+        }
+        RuntimeException tOpenFailure = openFailure;
+        if (tOpenFailure != null)
+            throw tOpenFailure;
+        return new Connection() {
+            private Connection connection;
+
+            @Override
+            public void connect() throws IOException {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+                if (endpoint != null && !endpoint.equals(validEndpoint))
+                    throw new ConnectException("Stale endpoint " + endpoint);
+                if (shouldFail())
+                    throw new ConnectException("Simulated failure");
+                connection = transport.open(address);
+                connection.connect();
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return connection.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return connection.getOutputStream();
+            }
+
+            @Override
+            public String getRemoteAddress() {
+                return address;
+            }
+
+            @Override
+            public String getRemoteName() {
+                return address;
+            }
+
+            @Override
+            public String getEndpoint() {
+                return "direct:" + address;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (connection != null)
+                    connection.close();
+            }
+        };
+    }
+}
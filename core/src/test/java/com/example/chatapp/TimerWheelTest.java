@@ -0,0 +1,83 @@
+package com.example.chatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+    private final TimerWheel wheel = new TimerWheel("TestWheel", 5, 8);
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void runsInDeadlineOrderAndNeverEarly() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(4);
+        final long start = System.nanoTime();
+        // 200ms is several turns of an 8-slot wheel of 5ms ticks.
+        int[] delays = {200, 30, 90, 12};
+        for (final int delay : delays) {
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(delay));
+                    order.add(delay);
+                    done.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(12, 30, 90, 200), order);
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    public void cancelledTaskNeverRuns() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(0, wheel.pending());
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void wakesForWorkScheduledAfterIdling() throws Exception {
+        final CountDownLatch first = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                first.countDown();
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        final CountDownLatch second = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                second.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.chatapp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+
+import static org.junit.Assert.*;
+
+public class TransportTest {
+
+    @Test
+    public void memoryTransportExchangesFrames() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network(256);
+        exchange(new MemoryTransport(network, "server"), new MemoryTransport(network, "client"), "server");
+    }
+
+    @Test
+    public void tcpTransportExchangesFrames() throws Exception {
+        int port = freePort();
+        exchange(new TcpTransport("127.0.0.1", port), new TcpTransport(0), "127.0.0.1:" + port);
+    }
+
+    @Test(expected = ConnectException.class)
+    public void memoryTransportRefusesUnknownAddress() throws IOException {
+        new MemoryTransport(new MemoryTransport.Network(), "client").open("nobody");
+    }
+
+    @Test(expected = IOException.class)
+    public void closedAcceptorUnblocksAccept() throws Exception {
+        final Transport.Acceptor acceptor = new MemoryTransport(new MemoryTransport.Network(), "server").listen();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    acceptor.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+        acceptor.accept();
+    }
+
+    private static void exchange(Transport serverSide, Transport clientSide, String address) throws Exception {
+        Transport.Acceptor acceptor = serverSide.listen();
+        Connection client = clientSide.open(address);
+        client.connect();
+        Connection server = acceptor.accept();
+        acceptor.close();
+
+        // Larger than the memory pipe so the writer has to wait for the reader.
+        final byte[] big = FrameCodecTest.payload(10000);
+        final FrameEncoder clientEncoder = new FrameEncoder(client.getOutputStream());
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clientEncoder.write(FrameCodec.TYPE_TEXT, "ping".getBytes("UTF-8"));
+                    clientEncoder.write(FrameCodec.TYPE_TEXT, big);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+
+        FrameDecoder serverDecoder = new FrameDecoder(server.getInputStream());
+        assertTrue(serverDecoder.next());
+        assertEquals("ping", new String(serverDecoder.buffer(), serverDecoder.offset(), serverDecoder.length(), "UTF-8"));
+        assertTrue(serverDecoder.next());
+        assertEquals(big.length, serverDecoder.length());
+        writer.join();
+
+        new FrameEncoder(server.getOutputStream()).write(FrameCodec.TYPE_TEXT, "pong".getBytes("UTF-8"));
+        FrameDecoder clientDecoder = new FrameDecoder(client.getInputStream());
+        assertTrue(clientDecoder.next());
+        assertEquals("pong", new String(clientDecoder.buffer(), clientDecoder.offset(), clientDecoder.length(), "UTF-8"));
+
+        server.close();
+        assertFalse(clientDecoder.next());
+        client.close();
+    }
+
+    static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}